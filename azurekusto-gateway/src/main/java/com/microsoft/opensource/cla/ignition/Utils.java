@@ -1,6 +1,7 @@
 package com.microsoft.opensource.cla.ignition;
 
-import java.text.SimpleDateFormat;
+import com.microsoft.opensource.cla.ignition.azurekusto.AzureKustoTimestampCodec;
+
 import java.util.Date;
 
 public class Utils {
@@ -20,8 +21,6 @@ public class Utils {
     }
 
     public static String getDateLiteral(Date d) {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSSSSSS");
-
-        return "datetime(" + sdf.format(d) + ")";
+        return AzureKustoTimestampCodec.toLiteral(d);
     }
 }
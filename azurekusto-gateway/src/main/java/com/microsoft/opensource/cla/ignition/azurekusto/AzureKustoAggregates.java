@@ -2,6 +2,15 @@ package com.microsoft.opensource.cla.ignition.azurekusto;
 
 import com.inductiveautomation.ignition.common.sqltags.history.Aggregate;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 /**
  * Represents all of the aggregation functions the provider supports
  */
@@ -24,24 +33,54 @@ import com.inductiveautomation.ignition.common.sqltags.history.Aggregate;
 //"PctBad" - the percentage of time the value was bad.
 
 public enum AzureKustoAggregates implements Aggregate {
-    AZUREKUSTO_MINMAX("MinMax", "min"),
-    //AZUREKUSTO_LASTVALUE("LastValue", "any"), // TODO
+    // New aggregates are added at the end, the ids are the ordinals
+    AZUREKUSTO_MINMAX("MinMax", "minmax"),
     AZUREKUSTO_TOTAL("Total", "total"),
     AZUREKUSTO_DCOUNT("DCount", "dcount"),
     AZUREKUSTO_AVERAGE("SimpleAverage", "avg"),
-    //AZUREKUSTO_TIMEAVERAGE("Average", "avg"), // TODO
     AZUREKUSTO_COUNT("Count", "count"),
     AZUREKUSTO_STDEV("StdDev", "stddev"),
-    AZUREKUSTO_MINIMUM("Mininum", "min"),
+    AZUREKUSTO_MINIMUM("Minimum", "min"),
     AZUREKUSTO_MAXIMUM("Maximum", "max"),
-    AZUREKUSTO_VARIANCE("Variance", "variance");
-    //AZUREKUSTO_COUNTON("CountOn", "count"), // TODO
-    //AZUREKUSTO_COUNTOFF("CountOff", "count"), // TODO
-    //AZUREKUSTO_DURATIONON("DurationOn", "count"), // TODO
-    //AZUREKUSTO_DURAITONOFF("DurationOff", "count"), // TODO
-    //AZUREKUSTO_RANGE("Range", "avg"), // TODO
-    //AZUREKUSTO_PERCENTGOOD("PctGood", "avg"), // TODO
-    //AZUREKUSTO_PERCENTBAD("PctBad", "avg"); // TODO
+    AZUREKUSTO_VARIANCE("Variance", "variance"),
+    AZUREKUSTO_LASTVALUE("LastValue", "last"),
+    AZUREKUSTO_TIMEAVERAGE("Average", "twavg"),
+    AZUREKUSTO_COUNTON("CountOn", "counton"),
+    AZUREKUSTO_COUNTOFF("CountOff", "countoff"),
+    AZUREKUSTO_DURATIONON("DurationOn", "durationon"),
+    AZUREKUSTO_DURATIONOFF("DurationOff", "durationoff"),
+    AZUREKUSTO_RANGE("Range", "range"),
+    AZUREKUSTO_PERCENTGOOD("PctGood", "pctgood"),
+    AZUREKUSTO_PERCENTBAD("PctBad", "pctbad");
+
+    // How far back the value at the start of the range is looked for by the time weighted aggregates
+    static final String SEED_LOOKBACK = "7d";
+
+    // The KQL aggregate over the value v of the rows in a block, by KQL function
+    private static final Map<String, String> SUMMARIZED = new HashMap<>();
+
+    // The KQL aggregate over the intervals a value held in a block, see getTimeWeightedQuery
+    private static final Map<String, String> TIME_WEIGHTED = new HashMap<>();
+
+    static {
+        SUMMARIZED.put("min", "min(v)");
+        SUMMARIZED.put("max", "max(v)");
+        SUMMARIZED.put("avg", "avg(v)");
+        SUMMARIZED.put("count", "countif(isnotnull(v))");
+        SUMMARIZED.put("dcount", "dcount(v)");
+        SUMMARIZED.put("total", "sum(v)");
+        SUMMARIZED.put("variance", "variance(v)");
+        SUMMARIZED.put("stddev", "stdev(v)");
+        SUMMARIZED.put("range", "max(v) - min(v)");
+
+        TIME_WEIGHTED.put("twavg", "sumif(v * dur, isnotnull(v)) / sumif(dur, isnotnull(v))");
+        TIME_WEIGHTED.put("durationon", "sumif(dur, v != 0) / 1000.0");
+        TIME_WEIGHTED.put("durationoff", "sumif(dur, v == 0) / 1000.0");
+        TIME_WEIGHTED.put("counton", "countif(inBlock and v != 0 and prevV == 0)");
+        TIME_WEIGHTED.put("countoff", "countif(inBlock and v == 0 and prevV != 0)");
+        TIME_WEIGHTED.put("pctgood", "100.0 * sumif(dur, good) / sum(dur)");
+        TIME_WEIGHTED.put("pctbad", "100.0 * sumif(dur, not(good)) / sum(dur)");
+    }
 
     private String ignitionAggregate;
     private String kqlFunction;
@@ -70,8 +109,11 @@ public enum AzureKustoAggregates implements Aggregate {
     }
 
     public static String getKqlFunction(Aggregate aggregate) {
+        if (aggregate instanceof AzureKustoAggregates) {
+            return ((AzureKustoAggregates) aggregate).getKqlFunction(); // One of ours, its name is not the Ignition name
+        }
         for (AzureKustoAggregates azureKustoAggregate : AzureKustoAggregates.values()) {
-            if (azureKustoAggregate.getIgnitionAggregate().equals(aggregate.getName())) {
+            if (aggregate != null && azureKustoAggregate.getIgnitionAggregate().equals(aggregate.getName())) {
                 return azureKustoAggregate.getKqlFunction();
             }
         }
@@ -79,6 +121,97 @@ public enum AzureKustoAggregates implements Aggregate {
         return "avg";
     }
 
+    /**
+     * Whether the aggregate weighs each value by how long it held, which also
+     * needs the value at the start of the range.
+     */
+    public static boolean isTimeWeighted(String kqlFunction) {
+        return TIME_WEIGHTED.containsKey(kqlFunction);
+    }
+
+    /**
+     * The values the aggregate returns per block, each in its own column (see
+     * getColumn). MinMax returns two, the minimum first.
+     */
+    public static List<String> getOutputs(String kqlFunction) {
+        return kqlFunction.equals("minmax") ? Arrays.asList("min", "max") : Collections.singletonList(kqlFunction);
+    }
+
+    /**
+     * The column of the block query holding the output.
+     */
+    public static String getColumn(String output) {
+        return "value_" + output;
+    }
+
+    /**
+     * The KQL computing the aggregates per tag and block from the rows in a
+     * single summarize, one column per output, sorted by tag and time. The
+     * aggregates have to be either all time weighted or none, an
+     * IllegalArgumentException is thrown for a mix. The rows and the seed rows
+     * before the start are tabular expressions, the value is the numeric value
+     * of a row, and blocks, startTime and endTime are let statements before
+     * the query.
+     */
+    public static String getBlockQuery(Collection<String> kqlFunctions, String rows, String seedRows, String tagColumns, String value) {
+        Set<String> outputs = new LinkedHashSet<>();
+        for (String kqlFunction : kqlFunctions) {
+            outputs.addAll(getOutputs(kqlFunction));
+        }
+        if (outputs.isEmpty()) {
+            throw new IllegalArgumentException("No aggregates to compute");
+        }
+        boolean timeWeighted = isTimeWeighted(outputs.iterator().next());
+        StringBuilder aggregates = new StringBuilder();
+        for (String output : outputs) {
+            if (isTimeWeighted(output) != timeWeighted) {
+                throw new IllegalArgumentException("Time weighted and other aggregates can't be computed in one query: " + outputs);
+            }
+            if (output.equals("last")) {
+                aggregates.append("(lastTime, ").append(getColumn(output)).append(") = arg_max(timestamp, v), ");
+            } else {
+                aggregates.append(getColumn(output)).append(" = ").append(timeWeighted ? TIME_WEIGHTED.get(output) : SUMMARIZED.get(output)).append(", ");
+            }
+        }
+        aggregates.append("quality = min(quality)");
+
+        String sort = "| sort by " + tagColumns + ", timestamp asc";
+        if (timeWeighted) {
+            return getTimeWeightedQuery(aggregates.toString(), rows, seedRows, tagColumns, value) + sort;
+        }
+        return rows + "| extend v = " + value
+                + "| summarize " + aggregates + " by " + tagColumns + ", timestamp = bin_at(timestamp, 1millisecond * blocks, startTime)" + sort;
+    }
+
+    /**
+     * Each value holds from its timestamp until the next value of the tag, or
+     * the end of the range for the last one. The intervals are split at the
+     * block boundaries, so each row is a part of an interval within a block,
+     * with its duration in dur (ms), the previous value in prevV and whether
+     * the value changed in this block in inBlock. The seed rows provide the
+     * value at the start of the range.
+     */
+    private static String getTimeWeightedQuery(String aggregates, String rows, String seedRows, String tagColumns, String value) {
+        String sameTag = "";
+        String nextSameTag = "";
+        for (String column : tagColumns.split(", ")) {
+            sameTag += (sameTag.isEmpty() ? "" : " and ") + "prev(" + column + ") == " + column;
+            nextSameTag += (nextSameTag.isEmpty() ? "" : " and ") + "next(" + column + ") == " + column;
+        }
+
+        return "union (" + seedRows + "| summarize arg_max(timestamp, *) by " + tagColumns + "), (" + rows + ")"
+                + "| extend v = " + value + ", good = binary_and(quality, 192) == 192"
+                + "| sort by " + tagColumns + ", timestamp asc"
+                + "| extend prevV = iff(" + sameTag + ", prev(v), real(null)), intervalEnd = iff(" + nextSameTag + ", next(timestamp), endTime)"
+                + "| extend intervalStart = max_of(timestamp, startTime), intervalEnd = min_of(intervalEnd, endTime)"
+                + "| where intervalEnd >= intervalStart"
+                + "| mv-expand block = range(bin_at(intervalStart, 1millisecond * blocks, startTime), "
+                + "bin_at(max_of(intervalStart, intervalEnd - 1tick), 1millisecond * blocks, startTime), 1millisecond * blocks) to typeof(datetime)"
+                + "| extend dur = (min_of(intervalEnd, block + 1millisecond * blocks) - max_of(intervalStart, block)) / 1millisecond, "
+                + "inBlock = timestamp >= block and timestamp < block + 1millisecond * blocks"
+                + "| summarize " + aggregates + " by " + tagColumns + ", timestamp = block";
+    }
+
     @Override
     public String getDesc() {
         return "";
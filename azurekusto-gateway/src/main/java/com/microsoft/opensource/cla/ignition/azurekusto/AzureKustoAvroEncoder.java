@@ -0,0 +1,603 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes tag values as an Avro object container file with the deflate codec,
+ * using one of the record schemas from AzureKustoTableSchema. Numbers go out in binary
+ * instead of text and the value column keeps its type through an Avro union, or
+ * goes into the column of its type in a typed table.
+ * Complex values (datasets, arrays, ...) are written as their json text.
+ * <p>
+ * Rows are encoded into a block buffer, which is compressed and written out as
+ * one container block once it is large enough. There is no dependency on the
+ * Avro library, the format of the few types used here is simple enough.
+ */
+public class AzureKustoAvroEncoder implements AzureKustoBatchEncoder {
+    private static final byte[] MAGIC = {'O', 'b', 'j', 1};
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final Map<AzureKustoTableLayout, String> SCHEMAS = new EnumMap<>(AzureKustoTableLayout.class);
+
+    static {
+        for (AzureKustoTableLayout layout : AzureKustoTableLayout.values()) {
+            SCHEMAS.put(layout, AzureKustoTableSchema.getAvroSchema(layout));
+        }
+    }
+
+    // Branches of the value union, in the order of the schema
+    private static final int VALUE_BOOLEAN = 1;
+    private static final int VALUE_LONG = 2;
+    private static final int VALUE_DOUBLE = 3;
+    private static final int VALUE_STRING = 4;
+
+    private final OutputStream out;
+    private final AzureKustoTableLayout layout;
+    private final byte[] sync = new byte[16];
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true); // Avro's deflate codec is raw deflate
+    private byte[] block = new byte[BLOCK_SIZE + 1024];
+    private int position;
+    private int blockRows;
+    private byte[] compressed = new byte[BLOCK_SIZE];
+    private boolean headerWritten;
+    private boolean finished;
+    private long rows;
+    private long rawBytes;
+
+    /**
+     * Creates an encoder for rows of a table with the layout, the container can
+     * only hold rows of one schema.
+     */
+    public AzureKustoAvroEncoder(OutputStream out, AzureKustoTableLayout layout) {
+        this.out = out;
+        this.layout = layout;
+        ThreadLocalRandom.current().nextBytes(sync);
+    }
+
+    @Override
+    public void writeRow(String systemName, String tagProvider, String tagPath, Object value, Date timestamp, Integer quality) throws IOException {
+        int start = startRow(false);
+        writeString(systemName == null ? "" : systemName);
+        writeString(tagProvider == null ? "" : tagProvider);
+        writeString(tagPath == null ? "" : tagPath);
+        writeColumns(start, value, timestamp, quality);
+    }
+
+    @Override
+    public void writeRow(long tagId, Object value, Date timestamp, Integer quality) throws IOException {
+        int start = startRow(true);
+        writeLong(tagId);
+        writeColumns(start, value, timestamp, quality);
+    }
+
+    /**
+     * Checks the row fits the schema of the container and returns where it starts.
+     */
+    private int startRow(boolean normalizedRow) throws IOException {
+        if (finished) {
+            throw new IOException("Avro encoder has already been finished");
+        }
+        if (normalizedRow != layout.isNormalized()) {
+            throw new IllegalStateException("Can't write a " + (normalizedRow ? "normalized" : "denormalized") + " row into this container");
+        }
+        if (!headerWritten) {
+            writeHeader();
+        }
+        return position;
+    }
+
+    /**
+     * Writes the columns after the tag and finishes the row.
+     */
+    private void writeColumns(int start, Object value, Date timestamp, Integer quality) throws IOException {
+        if (layout.isTyped()) {
+            writeTypedValue(value);
+        } else {
+            writeValue(value);
+        }
+        if (timestamp == null) {
+            writeLong(0);
+        } else {
+            writeLong(1);
+            writeLong(timestamp.getTime());
+        }
+        if (quality == null) {
+            writeLong(0);
+        } else {
+            writeLong(1);
+            writeLong(quality);
+        }
+
+        rows++;
+        blockRows++;
+        rawBytes += position - start;
+        if (position >= BLOCK_SIZE) {
+            writeBlock();
+        }
+    }
+
+    @Override
+    public void writeRawRow(byte[] row) throws IOException {
+        if (finished) {
+            throw new IOException("Avro encoder has already been finished");
+        }
+        if (!headerWritten) {
+            writeHeader();
+        }
+
+        ensure(row.length);
+        System.arraycopy(row, 0, block, position, row.length);
+        position += row.length;
+        rows++;
+        blockRows++;
+        rawBytes += row.length;
+        if (position >= BLOCK_SIZE) {
+            writeBlock();
+        }
+    }
+
+    @Override
+    public long getRowCount() {
+        return rows;
+    }
+
+    @Override
+    public long getRawBytes() {
+        return rawBytes;
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        try {
+            if (!headerWritten) {
+                writeHeader();
+            }
+            writeBlock();
+        } finally {
+            finished = true;
+            deflater.end();
+        }
+    }
+
+    /**
+     * Writes the value, value_double and value_integer columns.
+     */
+    private void writeValue(Object value) throws IOException {
+        if (value == null) {
+            writeLong(0);
+            writeLong(0);
+            writeLong(0);
+        } else if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            writeLong(VALUE_DOUBLE);
+            writeDouble(d);
+            writeLong(1);
+            writeDouble(d);
+            writeLong(0);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            long l = ((Number) value).longValue();
+            writeLong(VALUE_LONG);
+            writeLong(l);
+            writeLong(1);
+            writeDouble(l);
+            writeLong(1);
+            writeLong(l);
+        } else if (value instanceof Boolean) {
+            boolean b = (Boolean) value;
+            writeLong(VALUE_BOOLEAN);
+            ensure(1);
+            block[position++] = (byte) (b ? 1 : 0);
+            writeLong(1);
+            writeDouble(b ? 1 : 0);
+            writeLong(1);
+            writeLong(b ? 1 : 0);
+        } else {
+            writeLong(VALUE_STRING);
+            writeString(value instanceof String ? (String) value : AzureKustoRowEncoder.JSON_WRITER.writeValueAsString(value));
+            writeLong(0);
+            writeLong(0);
+        }
+    }
+
+    /**
+     * Writes the value_double, value_long, value_bool, value_string and
+     * value_dynamic columns of a typed table, only the one matching the value is set.
+     */
+    private void writeTypedValue(Object value) throws IOException {
+        if (value instanceof Double || value instanceof Float) {
+            writeLong(1);
+            writeDouble(((Number) value).doubleValue());
+            writeNulls(4);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            writeNulls(1);
+            writeLong(1);
+            writeLong(((Number) value).longValue());
+            writeNulls(3);
+        } else if (value instanceof Boolean) {
+            writeNulls(2);
+            writeLong(1);
+            ensure(1);
+            block[position++] = (byte) ((Boolean) value ? 1 : 0);
+            writeNulls(2);
+        } else if (value instanceof String) {
+            writeNulls(3);
+            writeLong(1);
+            writeString((String) value);
+            writeNulls(1);
+        } else if (value != null) {
+            writeNulls(4);
+            writeLong(1);
+            writeString(AzureKustoRowEncoder.JSON_WRITER.writeValueAsString(value));
+        } else {
+            writeNulls(5);
+        }
+    }
+
+    private void writeNulls(int count) {
+        for (int i = 0; i < count; i++) {
+            writeLong(0);
+        }
+    }
+
+    /**
+     * Writes the container header through the block buffer, before the first row.
+     */
+    private void writeHeader() throws IOException {
+        headerWritten = true;
+        position = 0;
+        ensure(MAGIC.length);
+        System.arraycopy(MAGIC, 0, block, position, MAGIC.length);
+        position += MAGIC.length;
+        writeLong(2); // Metadata map with two entries
+        writeString("avro.schema");
+        writeString(SCHEMAS.get(layout));
+        writeString("avro.codec");
+        writeString("deflate");
+        writeLong(0);
+        ensure(sync.length);
+        System.arraycopy(sync, 0, block, position, sync.length);
+        position += sync.length;
+
+        out.write(block, 0, position);
+        position = 0;
+    }
+
+    /**
+     * Compresses the rows in the block buffer and writes them out as one block.
+     */
+    private void writeBlock() throws IOException {
+        if (blockRows == 0) {
+            return;
+        }
+
+        deflater.reset();
+        deflater.setInput(block, 0, position);
+        deflater.finish();
+        int size = 0;
+        while (!deflater.finished()) {
+            if (size == compressed.length) {
+                byte[] grown = new byte[compressed.length * 2];
+                System.arraycopy(compressed, 0, grown, 0, size);
+                compressed = grown;
+            }
+            size += deflater.deflate(compressed, size, compressed.length - size);
+        }
+
+        byte[] prefix = new byte[20];
+        int prefixLength = putLong(prefix, putLong(prefix, 0, blockRows), size);
+        out.write(prefix, 0, prefixLength);
+        out.write(compressed, 0, size);
+        out.write(sync);
+
+        position = 0;
+        blockRows = 0;
+    }
+
+    private void writeLong(long value) {
+        ensure(10);
+        position = putLong(block, position, value);
+    }
+
+    /**
+     * Zig-zag varint, the encoding Avro uses for int and long.
+     */
+    private static int putLong(byte[] buffer, int offset, long value) {
+        long n = (value << 1) ^ (value >> 63);
+        while ((n & ~0x7FL) != 0) {
+            buffer[offset++] = (byte) ((n & 0x7F) | 0x80);
+            n >>>= 7;
+        }
+        buffer[offset++] = (byte) n;
+        return offset;
+    }
+
+    private void writeDouble(double value) {
+        ensure(8);
+        long bits = Double.doubleToLongBits(value);
+        for (int i = 0; i < 8; i++) {
+            block[position++] = (byte) (bits >>> (8 * i));
+        }
+    }
+
+    /**
+     * Writes the length and the UTF-8 bytes of the string, without encoding it to
+     * a temporary byte array first.
+     */
+    private void writeString(String s) {
+        int length = s.length();
+        int utf8Length = 0;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                utf8Length++;
+            } else if (c < 0x800) {
+                utf8Length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                utf8Length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                utf8Length++; // Unpaired surrogate, written as '?' like String.getBytes does
+            } else {
+                utf8Length += 3;
+            }
+        }
+
+        writeLong(utf8Length);
+        ensure(utf8Length);
+        if (utf8Length == length) {
+            for (int i = 0; i < length; i++) {
+                block[position++] = (byte) s.charAt(i);
+            }
+            return;
+        }
+
+        byte[] b = block;
+        int p = position;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                b[p++] = (byte) c;
+            } else if (c < 0x800) {
+                b[p++] = (byte) (0xC0 | (c >> 6));
+                b[p++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                b[p++] = (byte) (0xF0 | (cp >> 18));
+                b[p++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                b[p++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                b[p++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                b[p++] = '?';
+            } else {
+                b[p++] = (byte) (0xE0 | (c >> 12));
+                b[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                b[p++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        position = p;
+    }
+
+    /**
+     * Splits a container written by this encoder back into its rows, each one
+     * still in its binary encoding. Only understands the schema and codec used
+     * here, not Avro in general.
+     */
+    static List<byte[]> readRows(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        byte[] magic = new byte[MAGIC.length];
+        data.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not an Avro container");
+        }
+        AzureKustoTableLayout layout = AzureKustoTableLayout.DEFAULT;
+        for (long count = readLong(data); count != 0; count = readLong(data)) {
+            if (count < 0) {
+                readLong(data); // Size of the map block in bytes
+                count = -count;
+            }
+            for (long i = 0; i < count; i++) {
+                String key = readString(data);
+                String value = readString(data);
+                if (key.equals("avro.schema")) {
+                    layout = getLayout(value);
+                }
+            }
+        }
+        byte[] sync = new byte[16];
+        data.readFully(sync);
+
+        List<byte[]> rows = new ArrayList<>();
+        Inflater inflater = new Inflater(true);
+        try {
+            while (true) {
+                int first = data.read();
+                if (first == -1) {
+                    return rows;
+                }
+                long blockRows = readLong(data, first);
+                byte[] compressed = new byte[(int) readLong(data)];
+                data.readFully(compressed);
+                data.skipBytes(sync.length);
+
+                inflater.reset();
+                inflater.setInput(compressed);
+                ByteArrayOutputStream inflated = new ByteArrayOutputStream(compressed.length * 4);
+                byte[] buffer = new byte[8192];
+                while (!inflater.finished()) {
+                    int n = inflater.inflate(buffer);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new IOException("Truncated Avro block");
+                    }
+                    inflated.write(buffer, 0, n);
+                }
+
+                byte[] block = inflated.toByteArray();
+                int position = 0;
+                for (long i = 0; i < blockRows; i++) {
+                    int end = skipRow(block, position, layout);
+                    rows.add(Arrays.copyOfRange(block, position, end));
+                    position = end;
+                }
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("Corrupt Avro block", ex);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static AzureKustoTableLayout getLayout(String schema) throws IOException {
+        for (Map.Entry<AzureKustoTableLayout, String> entry : SCHEMAS.entrySet()) {
+            if (entry.getValue().equals(schema)) {
+                return entry.getKey();
+            }
+        }
+        throw new IOException("Unknown Avro schema " + schema);
+    }
+
+    /**
+     * Returns the position after the row starting at the position, following the
+     * order the columns are written in by writeRow.
+     */
+    private static int skipRow(byte[] block, int position, AzureKustoTableLayout layout) throws IOException {
+        int[] p = {position};
+        if (layout.isNormalized()) {
+            getLong(block, p); // Tag id
+        } else {
+            for (int i = 0; i < 3; i++) {
+                skipString(block, p); // System name, tag provider, tag path
+            }
+        }
+        if (layout.isTyped()) {
+            skipTypedValue(block, p);
+        } else {
+            skipValue(block, p);
+        }
+        for (int i = 0; i < 2; i++) {
+            if (getLong(block, p) == 1) {
+                getLong(block, p); // timestamp, quality
+            }
+        }
+        if (p[0] > block.length) {
+            throw new IOException("Truncated Avro row");
+        }
+        return p[0];
+    }
+
+    private static void skipValue(byte[] block, int[] p) throws IOException {
+        switch ((int) getLong(block, p)) {
+            case VALUE_BOOLEAN:
+                p[0]++;
+                break;
+            case VALUE_LONG:
+                getLong(block, p);
+                break;
+            case VALUE_DOUBLE:
+                p[0] += 8;
+                break;
+            case VALUE_STRING:
+                skipString(block, p);
+                break;
+            default:
+                break;
+        }
+        if (getLong(block, p) == 1) {
+            p[0] += 8; // value_double
+        }
+        if (getLong(block, p) == 1) {
+            getLong(block, p); // value_integer
+        }
+    }
+
+    private static void skipTypedValue(byte[] block, int[] p) throws IOException {
+        if (getLong(block, p) == 1) {
+            p[0] += 8; // value_double
+        }
+        if (getLong(block, p) == 1) {
+            getLong(block, p); // value_long
+        }
+        if (getLong(block, p) == 1) {
+            p[0]++; // value_bool
+        }
+        for (int i = 0; i < 2; i++) {
+            if (getLong(block, p) == 1) {
+                skipString(block, p); // value_string, value_dynamic
+            }
+        }
+    }
+
+    private static void skipString(byte[] buffer, int[] position) throws IOException {
+        long length = getLong(buffer, position);
+        if (length < 0 || length > buffer.length - position[0]) {
+            throw new IOException("Invalid Avro string length " + length);
+        }
+        position[0] += (int) length;
+    }
+
+    private static long getLong(byte[] buffer, int[] position) throws IOException {
+        long n = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position[0] >= buffer.length) {
+                throw new IOException("Truncated Avro row");
+            }
+            byte b = buffer[position[0]++];
+            n |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return (n >>> 1) ^ -(n & 1);
+            }
+        }
+        throw new IOException("Invalid Avro long");
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        long length = readLong(in);
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new IOException("Invalid Avro string length " + length);
+        }
+        byte[] bytes = new byte[(int) length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long readLong(DataInputStream in) throws IOException {
+        return readLong(in, in.readUnsignedByte());
+    }
+
+    private static long readLong(DataInputStream in, int first) throws IOException {
+        long n = first & 0x7F;
+        int b = first;
+        for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+            if (shift >= 64) {
+                throw new IOException("Invalid Avro long");
+            }
+            b = in.readUnsignedByte();
+            n |= (long) (b & 0x7F) << shift;
+        }
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private void ensure(int bytes) {
+        if (position + bytes > block.length) {
+            byte[] grown = new byte[Math.max(block.length * 2, position + bytes)];
+            System.arraycopy(block, 0, grown, 0, position);
+            block = grown;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A group of tag values that is ingested into ADX as a single unit. Rows are
+ * encoded in the batch's format and compressed as they are added, so a batch only ever holds its
+ * compressed payload. Batches are filled by one of the batcher's workers and
+ * handed to its upload thread once they are full or old enough.
+ */
+public class AzureKustoBatch {
+    private final long createdTime;
+    private final AzureKustoPayload payload;
+    private final AzureKustoIngestionFormat format;
+    private final AzureKustoTableLayout layout; // The table the rows are encoded for
+    private final GZIPOutputStream gzipOutputStream; // Null for formats that compress themselves
+    private final AzureKustoBatchEncoder encoder;
+    private final long rowCount; // Only for batches re-created from a sealed payload, otherwise the encoder counts
+    private final long rawBytes;
+    private boolean sealed;
+    private AzureKustoForwardLog.Record logRecord; // Where the batch is kept in the store & forward log, if it is
+    private volatile boolean streamingRejected; // Streaming ingestion failed for this batch, only use queued ingestion
+    private AzureKustoRetryPolicy.State retryState = new AzureKustoRetryPolicy.State();
+
+    public AzureKustoBatch(AzureKustoBufferPool pool) throws IOException {
+        this(pool, AzureKustoIngestionFormat.CSV);
+    }
+
+    public AzureKustoBatch(AzureKustoBufferPool pool, AzureKustoIngestionFormat format) throws IOException {
+        this(pool, format, AzureKustoTableLayout.DEFAULT);
+    }
+
+    public AzureKustoBatch(AzureKustoBufferPool pool, AzureKustoIngestionFormat format, AzureKustoTableLayout layout) throws IOException {
+        this.createdTime = System.currentTimeMillis();
+        this.payload = new AzureKustoPayload(pool);
+        this.format = format;
+        this.layout = layout;
+        if (format.isGzipped()) {
+            this.gzipOutputStream = new GZIPOutputStream(payload, 8192);
+            this.encoder = format.newEncoder(gzipOutputStream, layout);
+        } else {
+            this.gzipOutputStream = null;
+            this.encoder = format.newEncoder(payload, layout);
+        }
+        this.rowCount = 0;
+        this.rawBytes = 0;
+    }
+
+    /**
+     * Re-creates a sealed batch from a payload that has already been compressed,
+     * e.g. one read back from the store & forward log.
+     */
+    public AzureKustoBatch(AzureKustoPayload payload, AzureKustoIngestionFormat format, AzureKustoTableLayout layout, long rowCount, long rawBytes) {
+        this.createdTime = System.currentTimeMillis();
+        this.payload = payload;
+        this.format = format;
+        this.layout = layout;
+        this.gzipOutputStream = null;
+        this.encoder = null;
+        this.rowCount = rowCount;
+        this.rawBytes = rawBytes;
+        this.sealed = true;
+    }
+
+    public void add(AzureKustoTagValue record) throws IOException {
+        add(record.getTag(), record.getValue(), record.getTimestamp(), record.getQuality());
+    }
+
+    public void add(AzureKustoTag tag, Object value, Date timestamp, Integer quality) throws IOException {
+        if (layout.isNormalized()) {
+            encoder.writeRow(tag.getKey(), value, timestamp, quality);
+        } else {
+            encoder.writeRow(tag.getSystemName(), tag.getTagProvider(), tag.getTagPath(), value, timestamp, quality);
+        }
+    }
+
+    public void add(String systemName, String tagProvider, String tagPath, Object value, Date timestamp, Integer quality) throws IOException {
+        if (layout.isNormalized()) {
+            encoder.writeRow(AzureKustoTag.longHash(systemName, tagProvider, tagPath), value, timestamp, quality);
+        } else {
+            encoder.writeRow(systemName, tagProvider, tagPath, value, timestamp, quality);
+        }
+    }
+
+    public void addRaw(byte[] row) throws IOException {
+        encoder.writeRawRow(row);
+    }
+
+    /**
+     * Finishes the compressed stream. No rows can be added afterwards. Calling
+     * seal again, e.g. when retrying a failed batch, does nothing.
+     */
+    public AzureKustoPayload seal() throws IOException {
+        if (!sealed) {
+            sealed = true;
+            encoder.finish();
+            if (gzipOutputStream != null) {
+                gzipOutputStream.close(); // Also releases the native deflater
+            }
+        }
+        return payload;
+    }
+
+    /**
+     * Splits a sealed batch into two sealed halves with the same rows in the same
+     * order, e.g. to narrow down the rows ADX rejects. The batch itself is left
+     * as it is. Needs at least two rows.
+     */
+    public AzureKustoBatch[] split(AzureKustoBufferPool pool) throws IOException {
+        if (!sealed) {
+            throw new IllegalStateException("Only a sealed batch can be split");
+        }
+        List<byte[]> rows = format.readRows(payload.newInputStream());
+        if (rows.size() < 2) {
+            throw new IllegalStateException("A batch of " + rows.size() + " row(s) can't be split");
+        }
+
+        int middle = rows.size() / 2;
+        AzureKustoBatch[] halves = {new AzureKustoBatch(pool, format, layout), new AzureKustoBatch(pool, format, layout)};
+        try {
+            for (int i = 0; i < rows.size(); i++) {
+                halves[i < middle ? 0 : 1].addRaw(rows.get(i));
+            }
+            for (AzureKustoBatch half : halves) {
+                half.seal();
+                half.setStreamingRejected(streamingRejected);
+            }
+        } catch (IOException | RuntimeException ex) {
+            for (AzureKustoBatch half : halves) {
+                half.discard();
+            }
+            throw ex;
+        }
+        return halves;
+    }
+
+    /**
+     * Drops the batch without ingesting it and returns its buffers to the pool.
+     */
+    public void discard() {
+        try {
+            seal();
+        } catch (IOException ignored) {
+            // Nothing to do, the payload is thrown away anyway
+        }
+        payload.release();
+    }
+
+    public AzureKustoIngestionFormat getFormat() {
+        return format;
+    }
+
+    public AzureKustoTableLayout getLayout() {
+        return layout;
+    }
+
+    public AzureKustoPayload getPayload() {
+        return payload;
+    }
+
+    public long getRowCount() {
+        return encoder == null ? rowCount : encoder.getRowCount();
+    }
+
+    /**
+     * The uncompressed size of the rows in this batch.
+     */
+    public long getEstimatedBytes() {
+        return encoder == null ? rawBytes : encoder.getRawBytes();
+    }
+
+    public long getCreatedTime() {
+        return createdTime;
+    }
+
+    public long getAge(long now) {
+        return now - createdTime;
+    }
+
+    public boolean isStreamingRejected() {
+        return streamingRejected;
+    }
+
+    public void setStreamingRejected(boolean streamingRejected) {
+        this.streamingRejected = streamingRejected;
+    }
+
+    public AzureKustoForwardLog.Record getLogRecord() {
+        return logRecord;
+    }
+
+    public void setLogRecord(AzureKustoForwardLog.Record logRecord) {
+        this.logRecord = logRecord;
+    }
+
+    public AzureKustoRetryPolicy.State getRetryState() {
+        return retryState;
+    }
+
+    /**
+     * Shares the retry state of a batch read back from the store & forward log
+     * with its log record.
+     */
+    void setRetryState(AzureKustoRetryPolicy.State retryState) {
+        this.retryState = retryState;
+    }
+
+    public boolean isEmpty() {
+        return getRowCount() == 0;
+    }
+}
@@ -0,0 +1,43 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * Encodes tag values into the payload of a batch, in one of the ingestion
+ * formats. Encoders are not thread-safe, a batch is only filled by one thread at
+ * a time.
+ */
+public interface AzureKustoBatchEncoder {
+    default void writeRow(AzureKustoTagValue record) throws IOException {
+        AzureKustoTag tag = record.getTag();
+        writeRow(tag.getSystemName(), tag.getTagProvider(), tag.getTagPath(), record.getValue(), record.getTimestamp(), record.getQuality());
+    }
+
+    void writeRow(String systemName, String tagProvider, String tagPath, Object value, Date timestamp, Integer quality) throws IOException;
+
+    /**
+     * Writes a row of the normalized table, which identifies the tag by its id
+     * (see AzureKustoTableSchema). A batch only holds rows of one kind.
+     */
+    void writeRow(long tagId, Object value, Date timestamp, Integer quality) throws IOException;
+
+    /**
+     * Writes a row exactly as an encoder of the same format encoded it before,
+     * one of the rows AzureKustoIngestionFormat.readRows returns.
+     */
+    void writeRawRow(byte[] row) throws IOException;
+
+    long getRowCount();
+
+    /**
+     * The number of bytes encoded so far, before compression. A close estimate
+     * for the text formats.
+     */
+    long getRawBytes();
+
+    /**
+     * Writes out everything that is still buffered. No rows can be written afterwards.
+     */
+    void finish() throws IOException;
+}
@@ -0,0 +1,993 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Merges the data Ignition hands to the sink into larger batches so ADX sees a
+ * few large ingestions instead of thousands of tiny ones. A batch is flushed when
+ * it reaches the maximum row count, the maximum size or the maximum age,
+ * whichever comes first.
+ * <p>
+ * Rows are split over a number of ingestion workers by a hash of their tag, so
+ * all values of one tag go through the same worker and stay in order. Each worker
+ * has one thread that encodes and compresses its rows into its own batch and one
+ * that uploads its sealed batches, one after the other. Workers don't share
+ * anything but the buffer pool, so a gateway with many tags can use a core per
+ * worker.
+ * <p>
+ * With compression enabled, each worker runs the values through its own
+ * AzureKustoCompressor before they are encoded, which drops the values that
+ * add no information. The values it holds back for tags that have gone quiet
+ * are drained into the batches on the flush timer and at shutdown.
+ * <p>
+ * The row and size limits adapt to the ingestion latency Kusto actually shows:
+ * they shrink while flushes are slower than the target latency (or fail) and
+ * grow back towards the configured maximum while Kusto keeps up.
+ * <p>
+ * With the sink's store & forward log enabled, every batch is written to the log
+ * as it is sealed, before it waits for an upload thread, and acknowledged in the
+ * log's checkpoint once it is in ADX. Batches that fail are dropped from memory and replayed
+ * from the log on the flush timer, including whatever was left from a previous run.
+ * <p>
+ * Failed batches are retried with jittered exponential backoff (see
+ * AzureKustoRetryPolicy), and every call to ADX goes through a circuit breaker
+ * that holds all batches back for a while after repeated failures. A batch ADX
+ * rejects for good is bisected down to the rows at fault, which go to the
+ * quarantine, while the rest of its rows are ingested.
+ * <p>
+ * Row sets larger than the spool threshold, e.g. a backlog Ignition forwards in
+ * one go, are encoded into batches of at least the threshold instead of the
+ * regular size. They are sealed, logged and uploaded like any other batch, but
+ * the upload thread writes batches over the threshold to a spool file (see
+ * AzureKustoSpool) and has the file handler ingest them from there, so a
+ * backlog goes out as a few large files rather than many small streams.
+ * <p>
+ * Sealed batches are counted until they are ingested (or safely in the log), and
+ * rows waiting for an encode thread at the size their batches had so far. Above
+ * the high watermark the batcher stops accepting data so Ignition's own buffering
+ * takes over, below the low watermark it accepts data again.
+ */
+public class AzureKustoBatcher {
+    private static final int MIN_ROWS = 1000;
+    private static final long MIN_BYTES = 64 * 1024;
+    private static final long INITIAL_ROW_BYTES = 64; // Estimate for queued rows until a batch has been sealed
+    private static final long INITIAL_RAW_ROW_BYTES = 128; // Estimate for spooling until a batch has been sealed
+    private static final long STATS_INTERVAL_MILLIS = 1000; // How often the encode threads publish their compression statistics
+
+    /**
+     * Does the actual ingestion of a sealed batch. Called from the upload threads.
+     */
+    public interface BatchHandler {
+        void ingest(AzureKustoBatch batch) throws Exception;
+    }
+
+    /**
+     * Knows how to turn one kind of row into a line of a batch. Called from the
+     * encode threads.
+     */
+    public interface RowWriter<T> {
+        /**
+         * A hash of the tag the row belongs to. Rows with the same hash are
+         * ingested in the order they were added.
+         */
+        int partitionHash(T row);
+
+        /**
+         * Writes the row into the batch. The compressor is the calling worker's,
+         * null when compression is off.
+         */
+        void write(T row, AzureKustoBatch batch, AzureKustoCompressor compressor) throws IOException;
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final String name;
+    private final AzureKustoBufferPool pool;
+    private final AzureKustoForwardLog log; // The sink's own store & forward log, null when it isn't enabled
+    private final BatchHandler handler;
+    private final File spoolDir; // Null when nothing is spooled
+    private final AzureKustoSpool.FileHandler fileHandler;
+    private final long spoolThresholdBytes;
+    private final long spoolFileMaxBytes;
+    private final AzureKustoSinkMetrics metrics;
+    private final AzureKustoQuarantine quarantine; // Null when rejected rows are dropped
+    private final AzureKustoRetryPolicy retryPolicy;
+    private final AzureKustoCircuitBreaker breaker;
+    private final int maxRows;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    private final long targetLatencyMillis;
+    private final boolean adaptive;
+    private final AzureKustoIngestionFormat format;
+    private final AzureKustoTableLayout layout; // The table the rows of new batches are encoded for
+    private final AzureKustoCompressor.Mode compressionMode;
+    private final double compressionDeviation;
+    private final boolean compressionPercent;
+    private final long compressionMaxIntervalMillis;
+    private final Worker[] workers;
+
+    private volatile int effectiveMaxRows;
+    private volatile long effectiveMaxBytes;
+
+    private final AtomicInteger replaying = new AtomicInteger(); // Batches read back from the log and not finished yet
+    private final AtomicInteger nextReplayWorker = new AtomicInteger();
+
+    // Sealed batches held in memory until they are ingested and rows waiting to be encoded, for backpressure
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private volatile long rowBytes = INITIAL_ROW_BYTES; // Payload bytes per row of the last sealed batch
+    private volatile long rawRowBytes = INITIAL_RAW_ROW_BYTES; // Uncompressed bytes per row of the last sealed batch
+    private final AtomicInteger pendingBatches = new AtomicInteger();
+    private final long highWatermarkBytes;
+    private final long lowWatermarkBytes;
+    private final int highWatermarkBatches;
+    private volatile boolean accepting = true;
+
+    private ScheduledExecutorService scheduler;
+
+    public AzureKustoBatcher(String name, AzureKustoHistoryProviderSettings settings, AzureKustoBufferPool pool, AzureKustoForwardLog log,
+                             AzureKustoSinkMetrics metrics, AzureKustoQuarantine quarantine, BatchHandler handler) {
+        this(name, settings, pool, log, metrics, quarantine, handler, null, null);
+    }
+
+    /**
+     * Like the other constructor, but spools row sets and batches larger than
+     * the spool threshold to files in spoolDir and hands those to fileHandler.
+     */
+    public AzureKustoBatcher(String name, AzureKustoHistoryProviderSettings settings, AzureKustoBufferPool pool, AzureKustoForwardLog log,
+                             AzureKustoSinkMetrics metrics, AzureKustoQuarantine quarantine, BatchHandler handler,
+                             File spoolDir, AzureKustoSpool.FileHandler fileHandler) {
+        this.name = name;
+        this.pool = pool;
+        this.log = log;
+        this.metrics = metrics;
+        this.quarantine = quarantine;
+        this.handler = handler;
+        this.fileHandler = fileHandler;
+        if (spoolDir != null && fileHandler != null) {
+            this.spoolDir = spoolDir;
+            this.spoolThresholdBytes = settings.getSpoolThresholdMB() * 1024L * 1024L;
+            this.spoolFileMaxBytes = Math.max(1024L, settings.getSpoolFileMaxMB() * 1024L * 1024L);
+        } else {
+            this.spoolDir = null;
+            this.spoolThresholdBytes = 0;
+            this.spoolFileMaxBytes = 0;
+        }
+        this.retryPolicy = new AzureKustoRetryPolicy(settings.getRetryInitialDelayMillis(), settings.getRetryMaxDelayMillis());
+        this.breaker = new AzureKustoCircuitBreaker(settings.getCircuitBreakerFailures(), settings.getCircuitBreakerOpenMillis(), settings.getRetryMaxDelayMillis());
+        this.maxRows = Math.max(1, settings.getBatchMaxRows());
+        this.maxBytes = Math.max(1024L, settings.getBatchMaxSizeKB() * 1024L);
+        this.maxAgeMillis = Math.max(100L, settings.getBatchMaxAgeMillis());
+        this.targetLatencyMillis = settings.getBatchTargetLatencyMillis();
+        this.adaptive = settings.isAdaptiveBatching();
+        this.format = settings.getIngestionFormat();
+        this.layout = settings.getTableLayout();
+        this.compressionMode = settings.getCompressionMode() == null ? AzureKustoCompressor.Mode.NONE : settings.getCompressionMode();
+        if (compressionMode != AzureKustoCompressor.Mode.NONE) {
+            this.compressionDeviation = settings.getCompressionDeviation();
+            this.compressionPercent = settings.isCompressionPercent();
+            this.compressionMaxIntervalMillis = settings.getCompressionMaxIntervalMillis();
+        } else {
+            this.compressionDeviation = 0;
+            this.compressionPercent = false;
+            this.compressionMaxIntervalMillis = 0;
+        }
+        this.workers = new Worker[Math.max(1, settings.getIngestionWorkers())];
+        this.effectiveMaxRows = maxRows;
+        this.effectiveMaxBytes = maxBytes;
+        this.highWatermarkBytes = settings.getBackpressureHighMB() * 1024L * 1024L;
+        this.lowWatermarkBytes = Math.min(highWatermarkBytes, settings.getBackpressureLowMB() * 1024L * 1024L);
+        this.highWatermarkBatches = Math.max(2, settings.getBackpressureHighBatches());
+    }
+
+    public void startup() {
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(i);
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(name + "-flush-timer"));
+
+        // Check the age of the current batches a few times per max age so a batch never gets much older than that
+        long period = Math.max(50L, maxAgeMillis / 4);
+        scheduler.scheduleWithFixedDelay(this::flushIfExpired, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the timers and synchronously flushes whatever is still buffered.
+     */
+    public void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+
+        // Encoders first, so the last batches still reach the uploaders
+        for (Worker worker : workers) {
+            if (worker != null) {
+                worker.execute(() -> {
+                    worker.drainHeld(Long.MAX_VALUE);
+                    worker.sealCurrent();
+                });
+                worker.encodeExecutor.shutdown();
+            }
+        }
+        awaitTermination(true);
+
+        for (Worker worker : workers) {
+            if (worker != null) {
+                worker.retryFailed(Long.MAX_VALUE);
+                worker.uploadExecutor.shutdown();
+            }
+        }
+        awaitTermination(false);
+
+        for (Worker worker : workers) {
+            if (worker != null) {
+                worker.dropFailed();
+            }
+        }
+    }
+
+    private void awaitTermination(boolean encoders) {
+        long deadline = System.currentTimeMillis() + 30000;
+        for (Worker worker : workers) {
+            if (worker == null) {
+                continue;
+            }
+            ExecutorService executor = encoders ? worker.encodeExecutor : worker.uploadExecutor;
+            try {
+                if (!executor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+                    logger.warn("Timed out waiting for worker " + worker.index + " to " + (encoders ? "encode" : "flush") + " pending batches on shutdown");
+                    executor.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Splits the rows over the workers by tag and queues them for encoding.
+     * Returns right away, the rows are encoded and compressed on the workers'
+     * own threads.
+     */
+    public <T> void add(Iterable<T> rows, RowWriter<T> writer) throws IOException {
+        if (workers.length == 1) {
+            List<T> all = new ArrayList<>();
+            for (T row : rows) {
+                all.add(row);
+            }
+            if (!all.isEmpty()) {
+                submitRows(workers[0], all, writer);
+            }
+            return;
+        }
+
+        List<List<T>> parts = new ArrayList<>(workers.length);
+        for (int i = 0; i < workers.length; i++) {
+            parts.add(null);
+        }
+        for (T row : rows) {
+            int index = partition(writer.partitionHash(row));
+            List<T> part = parts.get(index);
+            if (part == null) {
+                part = new ArrayList<>();
+                parts.set(index, part);
+            }
+            part.add(row);
+        }
+        for (int i = 0; i < workers.length; i++) {
+            if (parts.get(i) != null) {
+                submitRows(workers[i], parts.get(i), writer);
+            }
+        }
+    }
+
+    private <T> void submitRows(Worker worker, List<T> rows, RowWriter<T> writer) throws IOException {
+        if (worker == null) {
+            throw new IOException("Batcher '" + name + "' is not started");
+        }
+        // Counted until encoded, so a backlog in front of a busy encoder holds back more data too
+        long bytes = rows.size() * rowBytes;
+        addPending(bytes);
+        try {
+            worker.encodeExecutor.execute(() -> {
+                try {
+                    worker.encode(rows, writer);
+                } finally {
+                    addPending(-bytes);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            addPending(-bytes);
+            throw new IOException("Batcher '" + name + "' is shut down", ex);
+        }
+    }
+
+    private int partition(int hash) {
+        // Spread the high bits, string hashes of similar tag paths differ mostly in the low ones
+        hash ^= (hash >>> 16);
+        return Math.floorMod(hash * 0x9E3779B9, workers.length);
+    }
+
+    /**
+     * The compression statistics of all workers, merged from the snapshots
+     * their encode threads publish, so they are at most about a second old and
+     * reading them never waits for an encode thread. Returns null when
+     * compression is off.
+     */
+    public AzureKustoCompressionStats getCompressionStats() {
+        if (compressionMode == AzureKustoCompressor.Mode.NONE) {
+            return null;
+        }
+        List<AzureKustoCompressionStats> parts = new ArrayList<>(workers.length);
+        for (Worker worker : workers) {
+            AzureKustoCompressionStats stats = worker == null ? null : worker.compressionStats;
+            if (stats != null) {
+                parts.add(stats);
+            }
+        }
+        return AzureKustoCompressionStats.merge(parts);
+    }
+
+    public int getWorkerCount() {
+        return workers.length;
+    }
+
+    public int getEffectiveMaxRows() {
+        return effectiveMaxRows;
+    }
+
+    public long getEffectiveMaxBytes() {
+        return effectiveMaxBytes;
+    }
+
+    private void flushIfExpired() {
+        long now = System.currentTimeMillis();
+        for (Worker worker : workers) {
+            worker.execute(() -> worker.sealIfExpired(now));
+        }
+        if (breaker.isCallPermitted(now)) {
+            for (Worker worker : workers) {
+                worker.retryFailed(now);
+            }
+            replayFromLog(now);
+        }
+    }
+
+    /**
+     * Queues a sealed batch for ingestion on one of the workers, e.g. one taken
+     * back out of the quarantine.
+     */
+    public void submit(AzureKustoBatch batch) throws IOException {
+        Worker worker = workers[Math.floorMod(nextReplayWorker.getAndIncrement(), workers.length)];
+        if (worker == null) {
+            throw new IOException("Batcher '" + name + "' is not started");
+        }
+        if (worker.uploadExecutor.isShutdown()) {
+            throw new IOException("Batcher '" + name + "' is shut down");
+        }
+        logBatch(batch);
+        track(batch);
+        try {
+            worker.uploadExecutor.execute(() -> worker.flush(batch));
+        } catch (RejectedExecutionException ex) {
+            acknowledge(batch); // The caller keeps it
+            untrack(batch);
+            throw new IOException("Batcher '" + name + "' is shut down", ex);
+        }
+    }
+
+    public AzureKustoCircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
+
+    /**
+     * The number of failed batches held in memory until their next try. Failed
+     * batches in the store & forward log are not included.
+     */
+    public int getRetryingBatches() {
+        int count = 0;
+        for (Worker worker : workers) {
+            if (worker != null) {
+                synchronized (worker.failed) {
+                    count += worker.failed.size();
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Whether the sink should accept more data. Turns false when the bytes or
+     * batches waiting for ADX, with the rows waiting to be encoded, go above the
+     * high watermark, and true again once both are below the low watermark.
+     */
+    public boolean isAccepting() {
+        return accepting;
+    }
+
+    public long getPendingBytes() {
+        return pendingBytes.get();
+    }
+
+    public int getPendingBatches() {
+        return pendingBatches.get();
+    }
+
+    public long getHighWatermarkBytes() {
+        return highWatermarkBytes;
+    }
+
+    /**
+     * The number of row sets waiting for the encode threads.
+     */
+    public int getEncodeQueueDepth() {
+        int depth = 0;
+        for (Worker worker : workers) {
+            if (worker != null) {
+                depth += worker.encodeExecutor.getQueue().size();
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * The number of batches waiting for the upload threads, including replays and retries.
+     */
+    public int getUploadQueueDepth() {
+        int depth = 0;
+        for (Worker worker : workers) {
+            if (worker != null) {
+                depth += worker.uploadExecutor.getQueue().size();
+            }
+        }
+        return depth;
+    }
+
+    private void addPending(long bytes) {
+        pendingBytes.addAndGet(bytes);
+        updateAccepting();
+    }
+
+    private void track(AzureKustoBatch batch) {
+        pendingBatches.incrementAndGet();
+        pendingBytes.addAndGet(batch.getPayload().size());
+        updateAccepting();
+    }
+
+    private void untrack(AzureKustoBatch batch) {
+        pendingBatches.decrementAndGet();
+        pendingBytes.addAndGet(-batch.getPayload().size());
+        updateAccepting();
+    }
+
+    private synchronized void updateAccepting() {
+        long bytes = pendingBytes.get();
+        int batches = pendingBatches.get();
+        if (accepting && (bytes > highWatermarkBytes || batches > highWatermarkBatches)) {
+            accepting = false;
+            logger.warn("Not accepting data, " + batches + " batch(es) / " + bytes + " byte(s) waiting for ADX");
+        } else if (!accepting && bytes < lowWatermarkBytes && batches < highWatermarkBatches / 2) {
+            accepting = true;
+            logger.info("Accepting data again, " + batches + " batch(es) / " + bytes + " byte(s) waiting for ADX");
+        }
+    }
+
+    /**
+     * Reads batches waiting in the store & forward log back in, at most one per
+     * worker at a time so a large backlog doesn't end up on the heap. The log
+     * doesn't know which worker a batch came from, so they are spread round robin.
+     * Batches whose retry isn't due yet stay in the log.
+     */
+    private void replayFromLog(long now) {
+        if (log == null) {
+            return;
+        }
+
+        int slots = workers.length - replaying.get();
+        if (slots <= 0) {
+            return;
+        }
+        for (AzureKustoForwardLog.Record record : log.pollPending(slots, now)) {
+            Worker worker = workers[Math.floorMod(nextReplayWorker.getAndIncrement(), workers.length)];
+            replaying.incrementAndGet();
+            try {
+                worker.uploadExecutor.execute(() -> {
+                    try {
+                        AzureKustoBatch batch = log.read(record);
+                        track(batch);
+                        worker.flush(batch);
+                    } catch (IOException ex) {
+                        logger.error("Unable to read " + record + " back from the store and forward log, will retry", ex);
+                        log.retryLater(record);
+                    } finally {
+                        replaying.decrementAndGet();
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                replaying.decrementAndGet();
+                log.retryLater(record);
+            }
+        }
+    }
+
+    /**
+     * Writes a sealed batch to the store & forward log before it is queued for
+     * upload, so it survives a restart while it waits. A batch that can't be
+     * written is kept in memory only.
+     */
+    private void logBatch(AzureKustoBatch batch) {
+        if (log == null || batch.getLogRecord() != null) {
+            return;
+        }
+        try {
+            batch.setLogRecord(log.append(batch));
+        } catch (IOException ex) {
+            logger.warn("Unable to write batch to the store and forward log, keeping it in memory", ex);
+        }
+    }
+
+    private void acknowledge(AzureKustoBatch batch) {
+        if (batch.getLogRecord() == null) {
+            return;
+        }
+        try {
+            log.acknowledge(batch.getLogRecord());
+        } catch (IOException ex) {
+            // The data is in ADX, worst case the batch gets replayed again after a restart
+            logger.warn("Unable to update the store and forward checkpoint", ex);
+        }
+    }
+
+    /**
+     * Additive increase, multiplicative decrease of the batch limits based on the
+     * latency of the last flush.
+     */
+    private void onFlushCompleted(long latencyMillis, boolean success) {
+        if (!adaptive || targetLatencyMillis <= 0) {
+            return;
+        }
+
+        synchronized (workers) {
+            if (!success || latencyMillis > targetLatencyMillis) {
+                effectiveMaxRows = Math.max(Math.min(MIN_ROWS, maxRows), effectiveMaxRows / 2);
+                effectiveMaxBytes = Math.max(Math.min(MIN_BYTES, maxBytes), effectiveMaxBytes / 2);
+            } else if (latencyMillis < targetLatencyMillis / 2) {
+                effectiveMaxRows = Math.min(maxRows, effectiveMaxRows + Math.max(1, maxRows / 8));
+                effectiveMaxBytes = Math.min(maxBytes, effectiveMaxBytes + Math.max(1, maxBytes / 8));
+            }
+        }
+        logger.trace("Flush took " + latencyMillis + "ms, batch limits now " + effectiveMaxRows + " row(s) / " + effectiveMaxBytes + " byte(s)");
+    }
+
+    /**
+     * One partition of the tags. The current batch is only ever touched from the
+     * encode thread, so filling it needs no locking.
+     */
+    private class Worker {
+        private final int index;
+        private final ThreadPoolExecutor encodeExecutor;
+        private final ThreadPoolExecutor uploadExecutor;
+        private final Deque<AzureKustoBatch> failed = new ArrayDeque<>(); // Batches to retry on the next flush cycle
+        private AzureKustoBatch current; // Created on the first row so idle workers hold no buffers
+        private final AzureKustoCompressor compressor; // Null when compression is off
+        private volatile AzureKustoCompressionStats compressionStats; // Published by the encode thread, read by the status page
+        private long compressionStatsTime;
+
+        Worker(int index) {
+            this.index = index;
+            this.encodeExecutor = newSingleThreadExecutor(name + "-worker-" + index + "-encode");
+            this.uploadExecutor = newSingleThreadExecutor(name + "-worker-" + index + "-upload");
+            this.compressor = compressionMode == AzureKustoCompressor.Mode.NONE ? null
+                    : new AzureKustoCompressor(compressionMode, compressionDeviation, compressionPercent, compressionMaxIntervalMillis);
+        }
+
+        /**
+         * Runs a task on the encode thread, unless the worker is shutting down.
+         */
+        void execute(Runnable task) {
+            try {
+                encodeExecutor.execute(task);
+            } catch (RejectedExecutionException ignored) {
+                // Shutting down, the last batch is sealed by shutdown() itself
+            }
+        }
+
+        /**
+         * Encodes the rows into the current batch, sealing it whenever it is
+         * full. A row set over the spool threshold is encoded into batches of
+         * its own, of up to the spool file size, with the current batch sealed
+         * first so its rows go ahead.
+         */
+        <T> void encode(List<T> rows, RowWriter<T> writer) {
+            long start = System.nanoTime();
+            boolean spooled = isSpooled(rows.size() * rawRowBytes);
+            if (spooled) {
+                sealCurrent();
+            }
+            for (T row : rows) {
+                try {
+                    if (current == null) {
+                        current = new AzureKustoBatch(pool, format, layout);
+                    }
+                    writer.write(row, current, compressor);
+                } catch (IOException | RuntimeException ex) {
+                    logger.error("Error encoding row " + row + ", skipping it", ex);
+                    metrics.recordSkipped();
+                    continue;
+                }
+                if (spooled ? current.getEstimatedBytes() >= getSpoolBatchBytes()
+                        : current.getRowCount() >= effectiveMaxRows || current.getEstimatedBytes() >= effectiveMaxBytes) {
+                    sealCurrent();
+                }
+            }
+            if (spooled) {
+                sealCurrent();
+            }
+            publishCompressionStats();
+            metrics.recordEncode(rows.size(), System.nanoTime() - start);
+        }
+
+        /**
+         * Publishes a snapshot of the compressor's statistics, unless the last
+         * one is less than STATS_INTERVAL_MILLIS old. Called on the encode
+         * thread, which owns the compressor.
+         */
+        void publishCompressionStats() {
+            long now = System.currentTimeMillis();
+            if (compressor == null || (compressionStats != null && now - compressionStatsTime < STATS_INTERVAL_MILLIS)) {
+                return;
+            }
+            compressionStats = new AzureKustoCompressionStats(compressor);
+            compressionStatsTime = now;
+        }
+
+        void sealIfExpired(long now) {
+            drainHeld(now);
+            publishCompressionStats();
+            if (current != null && current.getAge(now) >= maxAgeMillis) {
+                sealCurrent();
+            }
+        }
+
+        /**
+         * Encodes the values the compressor held back that are due at now into
+         * the current batch, see AzureKustoCompressor.drainHeld.
+         */
+        void drainHeld(long now) {
+            if (compressor == null || !compressor.hasHeld(now)) {
+                return;
+            }
+            try {
+                if (current == null) {
+                    current = new AzureKustoBatch(pool, format, layout);
+                }
+                compressor.drainHeld(current, now);
+            } catch (IOException | RuntimeException ex) {
+                logger.error("Error encoding held back values, skipping them", ex);
+                metrics.recordSkipped();
+            }
+            if (current != null && (current.getRowCount() >= effectiveMaxRows || current.getEstimatedBytes() >= effectiveMaxBytes)) {
+                sealCurrent();
+            }
+        }
+
+        /**
+         * Seals the current batch, writes it to the store & forward log, counts
+         * it as pending and queues it for upload. If the upload thread is shut
+         * down already, e.g. after shutdown() timed out waiting for the encode
+         * thread, the batch is let go: a logged batch is replayed from the log
+         * on the next start, any other is dropped.
+         */
+        void sealCurrent() {
+            AzureKustoBatch batch = current;
+            current = null;
+            if (batch == null) {
+                return;
+            }
+            try {
+                batch.seal();
+            } catch (IOException ex) {
+                logger.error("Error sealing batch of " + batch.getRowCount() + " row(s), dropping it", ex);
+                batch.discard();
+                return;
+            }
+            rowBytes = Math.max(1, batch.getPayload().size() / Math.max(1, batch.getRowCount()));
+            rawRowBytes = Math.max(1, batch.getEstimatedBytes() / Math.max(1, batch.getRowCount()));
+            logBatch(batch);
+            track(batch);
+            try {
+                uploadExecutor.execute(() -> flush(batch));
+            } catch (RejectedExecutionException ex) {
+                untrack(batch);
+                batch.discard();
+                logger.error("Worker " + index + " is shut down, " + (batch.getLogRecord() != null
+                        ? "batch of " + batch.getRowCount() + " row(s) stays in the store and forward log"
+                        : "dropping batch of " + batch.getRowCount() + " row(s)"));
+            }
+        }
+
+        /**
+         * Queues the failed batches whose retry is due at now for upload again.
+         */
+        void retryFailed(long now) {
+            List<AzureKustoBatch> due = new ArrayList<>();
+            synchronized (failed) {
+                for (Iterator<AzureKustoBatch> it = failed.iterator(); it.hasNext(); ) {
+                    AzureKustoBatch batch = it.next();
+                    if (batch.getRetryState().isDue(now)) {
+                        it.remove();
+                        due.add(batch);
+                    }
+                }
+            }
+            for (int i = 0; i < due.size(); i++) {
+                AzureKustoBatch retry = due.get(i);
+                try {
+                    uploadExecutor.execute(() -> flush(retry));
+                } catch (RejectedExecutionException ex) {
+                    synchronized (failed) {
+                        for (int j = due.size() - 1; j >= i; j--) {
+                            failed.addFirst(due.get(j));
+                        }
+                    }
+                    return;
+                }
+            }
+        }
+
+        void dropFailed() {
+            synchronized (failed) {
+                if (!failed.isEmpty()) {
+                    logger.error("Dropping " + failed.size() + " batch(es) that could not be ingested before shutdown");
+                    for (AzureKustoBatch batch : failed) {
+                        untrack(batch);
+                        batch.discard();
+                    }
+                    failed.clear();
+                }
+            }
+        }
+
+        void flush(AzureKustoBatch batch) {
+            long start = System.currentTimeMillis();
+            try {
+                batch.seal();
+                ingest(batch);
+                acknowledge(batch);
+                untrack(batch);
+                batch.getPayload().release();
+                onFlushCompleted(System.currentTimeMillis() - start, true);
+            } catch (AzureKustoCircuitBreaker.OpenException ex) {
+                logger.debug("Holding back batch of " + batch.getRowCount() + " row(s): " + ex.getMessage());
+                retryAt(batch, ex.getRetryTime(), false);
+            } catch (Throwable ex) {
+                onFlushCompleted(System.currentTimeMillis() - start, false);
+                long now = System.currentTimeMillis();
+                if (AzureKustoRetryPolicy.isPermanent(ex)) {
+                    batch.getRetryState().failed(now, now, false); // Only marks the time of the first failure
+                    logger.warn("ADX rejected batch of " + batch.getRowCount() + " row(s), looking for the rows at fault: " + AzureKustoRetryPolicy.describe(ex));
+                    isolate(batch, ex);
+                } else {
+                    long delay = retryPolicy.getDelay(batch.getRetryState().getAttempts() + 1);
+                    logger.error("Error ingesting batch of " + batch.getRowCount() + " row(s), will retry in " + delay / 1000 + "s"
+                            + (batch.getLogRecord() != null ? " from the store and forward log" : ""), ex);
+                    retryAt(batch, now + delay, true);
+                }
+            }
+        }
+
+        /**
+         * Keeps a batch that couldn't be ingested for another try at retryTime:
+         * in the store & forward log if it is there, otherwise in memory. Only
+         * a batch ADX was called for counts as a retry, not one the circuit
+         * breaker held back.
+         */
+        void retryAt(AzureKustoBatch batch, long retryTime, boolean attempted) {
+            if (attempted) {
+                batch.getRetryState().failed(System.currentTimeMillis(), retryTime, true);
+                metrics.recordRetry();
+            } else {
+                batch.getRetryState().holdUntil(retryTime);
+            }
+            if (batch.getLogRecord() != null) {
+                // The batch is safe on disk, free the memory and replay it from there later
+                log.retryLater(batch.getLogRecord());
+                untrack(batch);
+                batch.discard();
+            } else {
+                synchronized (failed) {
+                    failed.addLast(batch);
+                }
+            }
+        }
+
+        /**
+         * Narrows a batch ADX rejected for good down to the rows at fault. The
+         * rows that ADX takes are ingested on the way, the rest is quarantined
+         * or, when it isn't clear the rows are at fault, retried later.
+         */
+        void isolate(AzureKustoBatch batch, Throwable cause) {
+            long since = batch.getRetryState().getFirstFailureTime();
+            List<AzureKustoBatch> unresolved = new ArrayList<>();
+            if (batch.getRowCount() < 2) {
+                if (!isAdxHealthySince(since)) {
+                    retryAt(batch, System.currentTimeMillis() + retryPolicy.getDelay(batch.getRetryState().getAttempts() + 1), true);
+                    return;
+                }
+                quarantine(batch, cause);
+            } else {
+                bisect(batch, cause, since, unresolved);
+            }
+
+            // Everything else is in ADX or in the quarantine, keep the rest before letting go of the batch
+            long now = System.currentTimeMillis();
+            for (AzureKustoBatch part : unresolved) {
+                part.getRetryState().copyFrom(batch.getRetryState());
+                track(part);
+                logBatch(part);
+                retryAt(part, now + retryPolicy.getDelay(part.getRetryState().getAttempts() + 1), true);
+            }
+            acknowledge(batch);
+            untrack(batch);
+            batch.getPayload().release();
+        }
+
+        /**
+         * Splits a rejected part in halves and ingests each on its own. Halves ADX
+         * rejects again are split further, down to single rows, which go to the
+         * quarantine. The splitting stops when both halves are rejected while
+         * nothing else made it into ADX since the batch first failed: then the
+         * rejection is more likely about ADX than about the rows, and the halves
+         * are left to retry later. Parts that fail for a transient reason are
+         * left to retry too.
+         */
+        private void bisect(AzureKustoBatch part, Throwable cause, long since, List<AzureKustoBatch> unresolved) {
+            AzureKustoBatch[] halves;
+            try {
+                halves = part.split(pool);
+            } catch (IOException | RuntimeException ex) {
+                logger.error("Unable to split batch of " + part.getRowCount() + " row(s), quarantining it as a whole", ex);
+                quarantine(part, cause);
+                return;
+            }
+
+            Throwable[] errors = new Throwable[halves.length];
+            for (int i = 0; i < halves.length; i++) {
+                try {
+                    ingest(halves[i]);
+                    halves[i].discard();
+                } catch (Throwable ex) {
+                    errors[i] = ex;
+                }
+            }
+
+            boolean bothRejected = AzureKustoRetryPolicy.isPermanent(errors[0]) && AzureKustoRetryPolicy.isPermanent(errors[1]);
+            if (bothRejected && !isAdxHealthySince(since)) {
+                unresolved.add(halves[0]);
+                unresolved.add(halves[1]);
+                return;
+            }
+            for (int i = 0; i < halves.length; i++) {
+                if (errors[i] == null) {
+                    continue;
+                }
+                if (!AzureKustoRetryPolicy.isPermanent(errors[i])) {
+                    unresolved.add(halves[i]);
+                } else if (halves[i].getRowCount() < 2) {
+                    quarantine(halves[i], errors[i]);
+                    halves[i].discard();
+                } else {
+                    bisect(halves[i], errors[i], since, unresolved);
+                    halves[i].discard();
+                }
+            }
+        }
+
+        /**
+         * Moves rows ADX rejected to the quarantine, or drops them if there is no room.
+         */
+        private void quarantine(AzureKustoBatch part, Throwable cause) {
+            long rows = part.getRowCount();
+            String reason = AzureKustoRetryPolicy.describe(cause);
+            metrics.recordRejected(rows);
+            try {
+                if (quarantine == null) {
+                    logger.error("ADX rejected " + rows + " row(s), dropping them: " + reason);
+                } else if (quarantine.add(part, reason)) {
+                    logger.warn("ADX rejected " + rows + " row(s), moved them to the quarantine: " + reason);
+                } else {
+                    logger.error("ADX rejected " + rows + " row(s) and the quarantine is full, dropping them: " + reason);
+                }
+            } catch (IOException ex) {
+                logger.error("Unable to quarantine " + rows + " row(s) ADX rejected, dropping them", ex);
+            }
+        }
+    }
+
+    /**
+     * Whether ADX took any batch after the given time, i.e. it is up and a
+     * rejection is about the data.
+     */
+    private boolean isAdxHealthySince(long time) {
+        return breaker.getLastSuccessTime() > time;
+    }
+
+    /**
+     * Whether rows or a batch of this many uncompressed bytes are spooled.
+     */
+    private boolean isSpooled(long rawBytes) {
+        return spoolDir != null && spoolThresholdBytes > 0 && rawBytes >= spoolThresholdBytes;
+    }
+
+    /**
+     * The uncompressed size the batches of a spooled row set are sealed at.
+     */
+    private long getSpoolBatchBytes() {
+        return Math.min(Math.max(spoolThresholdBytes, effectiveMaxBytes), spoolFileMaxBytes);
+    }
+
+    /**
+     * Hands a batch to the handler through the circuit breaker, or to the file
+     * handler in a spool file if it is over the spool threshold.
+     */
+    private void ingest(AzureKustoBatch batch) throws Exception {
+        breaker.acquire();
+        try {
+            if (isSpooled(batch.getEstimatedBytes())) {
+                new AzureKustoSpool(spoolDir, fileHandler).add(batch);
+            } else {
+                handler.ingest(batch);
+            }
+        } catch (Throwable ex) {
+            if (AzureKustoRetryPolicy.isPermanent(ex)) {
+                breaker.onRejected();
+            } else {
+                breaker.onFailure();
+            }
+            throw ex;
+        }
+        breaker.onSuccess();
+    }
+
+    /**
+     * Like Executors.newSingleThreadExecutor, but the queue stays reachable for its depth.
+     */
+    private static ThreadPoolExecutor newSingleThreadExecutor(String threadName) {
+        return new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), new NamedThreadFactory(threadName));
+    }
+
+    static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
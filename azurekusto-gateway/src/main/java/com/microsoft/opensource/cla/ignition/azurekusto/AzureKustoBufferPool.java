@@ -0,0 +1,57 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of fixed-size, off-heap chunks that hold compressed payloads. Payloads
+ * grow chunk by chunk instead of re-allocating and copying a byte array, and
+ * chunks go back to the pool once the payload has been ingested.
+ */
+public class AzureKustoBufferPool {
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private final int chunkSize;
+    private final int maxPooledChunks;
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    private final AtomicInteger inUse = new AtomicInteger();
+
+    public AzureKustoBufferPool(int chunkSize, int maxPooledChunks) {
+        this.chunkSize = chunkSize;
+        this.maxPooledChunks = maxPooledChunks;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public ByteBuffer acquire() {
+        inUse.incrementAndGet();
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(chunkSize);
+        }
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        inUse.decrementAndGet();
+        // Above the limit, let the buffer be garbage collected
+        if (pooled.incrementAndGet() <= maxPooledChunks) {
+            free.offer(buffer);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    /**
+     * The number of bytes currently held by payloads that haven't been released yet.
+     */
+    public long getBytesInUse() {
+        return (long) inUse.get() * chunkSize;
+    }
+}
@@ -0,0 +1,151 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * Stops calling ADX after a number of failed ingestions in a row, so batches
+ * wait for their retry instead of each one timing out against a cluster that is
+ * down. Once the open time is over one call is let through as a trial: if it
+ * succeeds the breaker closes, if it fails the breaker opens again for twice as
+ * long, up to the maximum.
+ * <p>
+ * Only transient failures count. A failure ADX marks as permanent means ADX is
+ * up and answering, it just doesn't take the data.
+ */
+public class AzureKustoCircuitBreaker {
+    private static final long TRIAL_WAIT_MILLIS = 1000; // How long callers wait for the outcome of a trial
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    /**
+     * Thrown instead of calling ADX while the breaker is open.
+     */
+    public static class OpenException extends IOException {
+        private final long retryTime;
+
+        OpenException(String message, long retryTime) {
+            super(message);
+            this.retryTime = retryTime;
+        }
+
+        /**
+         * When the breaker lets the next call through.
+         */
+        public long getRetryTime() {
+            return retryTime;
+        }
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final int failureThreshold;
+    private final long openMillis;
+    private final long maxOpenMillis;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long currentOpenMillis;
+    private long openUntil;
+    private long openCount;
+    private volatile long lastSuccessTime;
+
+    public AzureKustoCircuitBreaker(int failureThreshold, long openMillis, long maxOpenMillis) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openMillis = Math.max(1, openMillis);
+        this.maxOpenMillis = Math.max(this.openMillis, maxOpenMillis);
+    }
+
+    /**
+     * Called before each call to ADX. Throws while the breaker is open, or when
+     * it is half open and another caller's trial is still running.
+     */
+    public synchronized void acquire() throws OpenException {
+        if (state == State.CLOSED) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if (state == State.OPEN && now >= openUntil) {
+            state = State.HALF_OPEN;
+            logger.info("Circuit breaker half open, trying ADX again");
+            return;
+        }
+        long retryTime = state == State.OPEN ? openUntil : now + TRIAL_WAIT_MILLIS;
+        throw new OpenException("Circuit breaker is " + state + " after " + consecutiveFailures + " failure(s), not calling ADX", retryTime);
+    }
+
+    public synchronized void onSuccess() {
+        lastSuccessTime = System.currentTimeMillis();
+        consecutiveFailures = 0;
+        if (state != State.CLOSED) {
+            logger.info("Circuit breaker closed, ADX is ingesting again");
+            state = State.CLOSED;
+            currentOpenMillis = 0;
+        }
+    }
+
+    /**
+     * A transient failure, ADX didn't answer or couldn't take the data right now.
+     */
+    public synchronized void onFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN) {
+            open(Math.min(maxOpenMillis, currentOpenMillis * 2));
+        } else if (state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+            open(openMillis);
+        }
+    }
+
+    /**
+     * A permanent failure, ADX answered but rejected the data.
+     */
+    public synchronized void onRejected() {
+        consecutiveFailures = 0;
+        if (state == State.HALF_OPEN) {
+            logger.info("Circuit breaker closed, ADX is answering again");
+            state = State.CLOSED;
+            currentOpenMillis = 0;
+        }
+    }
+
+    private void open(long millis) {
+        state = State.OPEN;
+        currentOpenMillis = millis;
+        openUntil = System.currentTimeMillis() + millis;
+        openCount++;
+        logger.warn("Circuit breaker open after " + consecutiveFailures + " failure(s) in a row, not calling ADX for " + millis / 1000 + "s");
+    }
+
+    /**
+     * Whether a call now would get through, without starting a trial.
+     */
+    public synchronized boolean isCallPermitted(long now) {
+        return state == State.CLOSED || (state == State.OPEN && now >= openUntil);
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized long getOpenUntil() {
+        return openUntil;
+    }
+
+    public synchronized long getOpenCount() {
+        return openCount;
+    }
+
+    /**
+     * When ADX last took a batch, 0 if it hasn't yet.
+     */
+    public long getLastSuccessTime() {
+        return lastSuccessTime;
+    }
+}
@@ -0,0 +1,137 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import com.microsoft.azure.kusto.data.ClientImpl;
+import com.microsoft.azure.kusto.data.ConnectionStringBuilder;
+import com.microsoft.azure.kusto.ingest.IngestClient;
+import com.microsoft.azure.kusto.ingest.IngestClientFactory;
+import com.microsoft.opensource.cla.ignition.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URISyntaxException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The clients a provider talks to ADX with, one for queries and commands and
+ * one each for streaming and queued ingestion, shared by its sink, browsing
+ * and all of its queries. Each client holds its AAD token and its connections
+ * to the cluster, so sharing them means a token is acquired once per provider
+ * rather than once per query.
+ * <p>
+ * The query client is warmed up at startup and then kept warm with a cheap
+ * query every keepWarmSeconds, which refreshes its token before it expires
+ * and keeps its connection open, so the first trend after a quiet spell
+ * doesn't pay for either.
+ */
+public class AzureKustoClients {
+    static final String WARM_UP_QUERY = "print warm = 1";
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final String name;
+    private final AzureKustoHistoryProviderSettings settings; // Null if the clients were given
+    private final String database;
+    private final int keepWarmSeconds;
+    private final AtomicLong warmUps = new AtomicLong();
+    private volatile ClientImpl queryClient;
+    private volatile IngestClient streamingClient;
+    private volatile IngestClient queuedClient;
+    private ScheduledExecutorService keepWarm;
+
+    public AzureKustoClients(String name, AzureKustoHistoryProviderSettings settings) {
+        this.name = name;
+        this.settings = settings;
+        this.database = settings.getDatabaseName();
+        this.keepWarmSeconds = settings.getClientKeepWarmSeconds();
+    }
+
+    AzureKustoClients(String name, String database, int keepWarmSeconds, ClientImpl queryClient, IngestClient streamingClient, IngestClient queuedClient) {
+        this.name = name;
+        this.settings = null;
+        this.database = database;
+        this.keepWarmSeconds = keepWarmSeconds;
+        this.queryClient = queryClient;
+        this.streamingClient = streamingClient;
+        this.queuedClient = queuedClient;
+    }
+
+    /**
+     * Creates the clients and warms them up, unless that was done already.
+     */
+    public synchronized void startup() throws URISyntaxException {
+        if (keepWarm != null) {
+            return;
+        }
+        if (queryClient == null) {
+            String engineURL = Utils.getEngineUriFromSetting(settings.getClusterURL());
+            String dmURL = Utils.getDMUriFromSetting(settings.getClusterURL());
+            ConnectionStringBuilder engine = ConnectionStringBuilder.createWithAadApplicationCredentials(
+                    engineURL, settings.getApplicationId(), settings.getApplicationKey(), settings.getAADTenantId());
+            ConnectionStringBuilder dm = ConnectionStringBuilder.createWithAadApplicationCredentials(
+                    dmURL, settings.getApplicationId(), settings.getApplicationKey(), settings.getAADTenantId());
+            queryClient = new ClientImpl(engine);
+            streamingClient = IngestClientFactory.createStreamingIngestClient(engine);
+            queuedClient = IngestClientFactory.createClient(dm);
+        }
+
+        keepWarm = Executors.newSingleThreadScheduledExecutor(new AzureKustoBatcher.NamedThreadFactory(name + "-keep-warm"));
+        keepWarm.execute(this::warmUp);
+        if (keepWarmSeconds > 0) {
+            keepWarm.scheduleWithFixedDelay(this::warmUp, keepWarmSeconds, keepWarmSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Runs a query that reads nothing, for the token and the connection it needs.
+     */
+    private void warmUp() {
+        try {
+            long start = System.nanoTime();
+            queryClient.execute(database, WARM_UP_QUERY);
+            warmUps.incrementAndGet();
+            logger.debug("Warmed up the query client in " + (System.nanoTime() - start) / 1000000 + " ms");
+        } catch (Exception e) {
+            logger.warn("Warming up the query client failed, the next query will connect itself: " + e.getMessage());
+        }
+    }
+
+    /**
+     * The client for queries and commands, started if it wasn't yet.
+     */
+    public ClientImpl getQueryClient() throws URISyntaxException {
+        if (queryClient == null) {
+            startup();
+        }
+        return queryClient;
+    }
+
+    public IngestClient getStreamingIngestClient() throws URISyntaxException {
+        if (streamingClient == null) {
+            startup();
+        }
+        return streamingClient;
+    }
+
+    public IngestClient getQueuedIngestClient() throws URISyntaxException {
+        if (queuedClient == null) {
+            startup();
+        }
+        return queuedClient;
+    }
+
+    /**
+     * The number of warm-up queries that succeeded.
+     */
+    public long getWarmUps() {
+        return warmUps.get();
+    }
+
+    public synchronized void shutdown() {
+        if (keepWarm != null) {
+            keepWarm.shutdownNow();
+            keepWarm = null;
+        }
+    }
+}
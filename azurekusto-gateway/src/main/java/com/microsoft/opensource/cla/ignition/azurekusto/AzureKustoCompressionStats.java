@@ -0,0 +1,81 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A snapshot of how much the compression stage dropped, overall and per tag.
+ * The ratio of a tag is the number of values received per value stored.
+ */
+public class AzureKustoCompressionStats {
+    private final long received;
+    private final long stored;
+    private final double[] tagRatios; // Sorted
+
+    AzureKustoCompressionStats(AzureKustoCompressor compressor) {
+        this(compressor.getReceived(), compressor.getStored(), compressor.getTagRatios());
+    }
+
+    private AzureKustoCompressionStats(long received, long stored, double[] tagRatios) {
+        this.received = received;
+        this.stored = stored;
+        this.tagRatios = tagRatios;
+    }
+
+    static AzureKustoCompressionStats merge(List<AzureKustoCompressionStats> parts) {
+        long received = 0;
+        long stored = 0;
+        int tags = 0;
+        for (AzureKustoCompressionStats part : parts) {
+            received += part.received;
+            stored += part.stored;
+            tags += part.tagRatios.length;
+        }
+
+        double[] ratios = new double[tags];
+        int n = 0;
+        for (AzureKustoCompressionStats part : parts) {
+            System.arraycopy(part.tagRatios, 0, ratios, n, part.tagRatios.length);
+            n += part.tagRatios.length;
+        }
+        Arrays.sort(ratios);
+        return new AzureKustoCompressionStats(received, stored, ratios);
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    public long getStored() {
+        return stored;
+    }
+
+    public int getTagCount() {
+        return tagRatios.length;
+    }
+
+    /**
+     * Values received per value stored, over all tags.
+     */
+    public double getRatio() {
+        return stored == 0 ? 1 : (double) received / stored;
+    }
+
+    /**
+     * The per-tag ratio at the given percentile (0-100). A low percentile shows
+     * the tags compression does little for.
+     */
+    public double getTagRatioPercentile(double percentile) {
+        if (tagRatios.length == 0) {
+            return 1;
+        }
+        int index = (int) Math.round(percentile / 100 * (tagRatios.length - 1));
+        return tagRatios[Math.max(0, Math.min(tagRatios.length - 1, index))];
+    }
+
+    @Override
+    public String toString() {
+        return String.format("stored %d of %d value(s) over %d tag(s), ratio %.1f:1, per tag p10 %.1f:1 / p50 %.1f:1 / p90 %.1f:1",
+                stored, received, getTagCount(), getRatio(), getTagRatioPercentile(10), getTagRatioPercentile(50), getTagRatioPercentile(90));
+    }
+}
@@ -0,0 +1,381 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Drops values that don't add information before they are ingested, per tag:
+ * <ul>
+ * <li>DEADBAND stores a value once it moved more than the deviation away from
+ * the last stored value.</li>
+ * <li>SWINGING_DOOR holds a point back until a later point shows the trend
+ * can't be continued as a straight line, within the deviation, from the last
+ * stored point. Like in other historians, the line between two stored points can
+ * be off by up to twice the deviation.</li>
+ * </ul>
+ * The deviation is either absolute or a percentage of the last stored value.
+ * Quality changes, values that aren't numbers and values after the maximum
+ * interval are always stored. Booleans are stored when they change. A point
+ * held back for a tag that has gone quiet is stored by drainHeld once it has
+ * been held for the maximum interval, or at shutdown.
+ * <p>
+ * The state of each tag is kept in parallel primitive arrays, an open
+ * addressing table keyed by the 64-bit tag key, so there is no object per tag.
+ * A compressor is not thread-safe. Each batcher worker has its own, which works
+ * because the values of a tag always go through the same worker.
+ */
+public class AzureKustoCompressor {
+    public enum Mode {
+        NONE, DEADBAND, SWINGING_DOOR
+    }
+
+    public static final int STORE_HELD = 1; // Store the point held back before the current one, see getHeldValue()
+    public static final int STORE_CURRENT = 2;
+
+    private static final byte HAS_HELD = 1;
+    private static final byte HELD_INTEGRAL = 2;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final Mode mode;
+    private final double deviation;
+    private final boolean percent;
+    private final long maxIntervalMillis;
+
+    // The per-tag state, indexed by slot
+    private long[] keys; // 0 is an empty slot, a real key of 0 is stored as 1
+    private AzureKustoTag[] tags; // Null for tags only offered by key, their held points can't be drained
+    private double[] archivedValue;
+    private long[] archivedTime;
+    private double[] heldValue;
+    private long[] heldTime;
+    private double[] slopeLow;
+    private double[] slopeHigh;
+    private int[] quality;
+    private byte[] flags;
+    private int[] received;
+    private int[] stored;
+    private int size;
+
+    private long totalReceived;
+    private long totalStored;
+
+    // The last point returned with STORE_HELD
+    private double lastHeldValue;
+    private boolean lastHeldIntegral;
+    private long lastHeldTime;
+    private int lastHeldQuality;
+
+    public AzureKustoCompressor(Mode mode, double deviation, boolean percent, long maxIntervalMillis) {
+        this.mode = mode;
+        this.deviation = Math.max(0, deviation);
+        this.percent = percent;
+        this.maxIntervalMillis = maxIntervalMillis;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Encodes the value into the batch if it should be stored, preceded by the
+     * point that was held back for the tag if that has to be stored now.
+     */
+    public void write(AzureKustoBatch batch, AzureKustoTag tag, Object value, Date timestamp, Integer quality) throws IOException {
+        if (timestamp == null || quality == null) {
+            batch.add(tag, value, timestamp, quality);
+            return;
+        }
+
+        int result = offer(tag.getKey(), tag, value, timestamp.getTime(), quality);
+        if ((result & STORE_HELD) != 0) {
+            batch.add(tag, getHeldValue(), new Date(lastHeldTime), lastHeldQuality);
+        }
+        if ((result & STORE_CURRENT) != 0) {
+            batch.add(tag, value, timestamp, quality);
+        }
+    }
+
+    /**
+     * Feeds a value to the tag's state. Returns a combination of STORE_HELD and
+     * STORE_CURRENT, or 0 if nothing has to be stored for now.
+     */
+    public int offer(long tagKey, Object value, long time, int quality) {
+        return offer(tagKey, null, value, time, quality);
+    }
+
+    private int offer(long tagKey, AzureKustoTag tag, Object value, long time, int quality) {
+        int slot = slot(tagKey);
+        if (tag != null) {
+            tags[slot] = tag;
+        }
+        received[slot]++;
+        totalReceived++;
+
+        int result;
+        if (keys[slot] == 0) {
+            keys[slot] = tagKey == 0 ? 1 : tagKey;
+            size++;
+            result = STORE_CURRENT;
+        } else if (this.quality[slot] != quality || time <= archivedTime[slot]
+                || ((flags[slot] & HAS_HELD) != 0 && time <= heldTime[slot])
+                || (maxIntervalMillis > 0 && time - archivedTime[slot] >= maxIntervalMillis)) {
+            // Don't lose the point held back so far, the trend up to here needs it
+            result = STORE_CURRENT | emitHeld(slot);
+        } else if (isNumber(value)) {
+            double v = ((Number) value).doubleValue();
+            boolean integral = !(value instanceof Double || value instanceof Float);
+            result = mode == Mode.SWINGING_DOOR ? swingingDoor(slot, v, integral, time) : deadband(slot, v, deviation(slot));
+        } else if (value instanceof Boolean) {
+            result = deadband(slot, (Boolean) value ? 1 : 0, 0);
+        } else {
+            result = STORE_CURRENT | emitHeld(slot);
+        }
+
+        if ((result & STORE_CURRENT) != 0) {
+            archive(slot, value, time);
+            stored[slot]++;
+            totalStored++;
+        }
+        this.quality[slot] = quality;
+
+        if (size * 4 > keys.length * 3) {
+            grow();
+        }
+        return result;
+    }
+
+    /**
+     * Whether drainHeld would store any point at now.
+     */
+    public boolean hasHeld(long now) {
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (isDrained(slot, now)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Encodes the points held back for tags that have gone quiet into the
+     * batch: those held for the maximum interval or longer at now, or all of
+     * them for a now of Long.MAX_VALUE, e.g. at shutdown. A drained point is
+     * stored like any other, the next value of its tag starts from it. Returns
+     * the number of points written.
+     */
+    public int drainHeld(AzureKustoBatch batch, long now) throws IOException {
+        int drained = 0;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (!isDrained(slot, now)) {
+                continue;
+            }
+            emitHeld(slot);
+            archivedValue[slot] = lastHeldValue;
+            archivedTime[slot] = lastHeldTime;
+            batch.add(tags[slot], getHeldValue(), new Date(lastHeldTime), lastHeldQuality);
+            drained++;
+        }
+        return drained;
+    }
+
+    private boolean isDrained(int slot, long now) {
+        if (keys[slot] == 0 || (flags[slot] & HAS_HELD) == 0 || tags[slot] == null) {
+            return false;
+        }
+        // Without a maximum interval, points are only drained at shutdown
+        return now == Long.MAX_VALUE || (maxIntervalMillis > 0 && now - heldTime[slot] >= maxIntervalMillis);
+    }
+
+    /**
+     * The value of the point returned with STORE_HELD, boxed as a Long or a Double
+     * depending on what the tag sent.
+     */
+    public Object getHeldValue() {
+        return lastHeldIntegral ? (Object) (long) lastHeldValue : (Object) lastHeldValue;
+    }
+
+    public long getHeldTime() {
+        return lastHeldTime;
+    }
+
+    public int getHeldQuality() {
+        return lastHeldQuality;
+    }
+
+    private int deadband(int slot, double v, double deviation) {
+        return Math.abs(v - archivedValue[slot]) > deviation ? STORE_CURRENT | emitHeld(slot) : 0;
+    }
+
+    /**
+     * The doors pivot around the last stored point plus and minus the deviation.
+     * slopeLow is the steepest slope from the upper pivot, slopeHigh the flattest
+     * from the lower one. Once they cross, no line from the stored point stays
+     * within the deviation of every point since, so the held point is stored and
+     * the doors start over from it.
+     */
+    private int swingingDoor(int slot, double v, boolean integral, long time) {
+        int result = 0;
+        if ((flags[slot] & HAS_HELD) != 0) {
+            double e = deviation(slot);
+            double dt = time - archivedTime[slot];
+            double low = Math.max(slopeLow[slot], (v - e - archivedValue[slot]) / dt);
+            double high = Math.min(slopeHigh[slot], (v + e - archivedValue[slot]) / dt);
+            if (low <= high) {
+                slopeLow[slot] = low;
+                slopeHigh[slot] = high;
+                hold(slot, v, integral, time);
+                return 0;
+            }
+
+            result = emitHeld(slot);
+            archivedValue[slot] = heldValue[slot];
+            archivedTime[slot] = heldTime[slot];
+        }
+
+        double e = deviation(slot);
+        double dt = time - archivedTime[slot];
+        slopeLow[slot] = (v - e - archivedValue[slot]) / dt;
+        slopeHigh[slot] = (v + e - archivedValue[slot]) / dt;
+        hold(slot, v, integral, time);
+        return result;
+    }
+
+    private void hold(int slot, double v, boolean integral, long time) {
+        heldValue[slot] = v;
+        heldTime[slot] = time;
+        flags[slot] = (byte) (HAS_HELD | (integral ? HELD_INTEGRAL : 0));
+    }
+
+    /**
+     * Copies the held point out for getHeldValue() and counts it as stored.
+     * Returns STORE_HELD, or 0 if the tag has no point held back.
+     */
+    private int emitHeld(int slot) {
+        if ((flags[slot] & HAS_HELD) == 0) {
+            return 0;
+        }
+        lastHeldValue = heldValue[slot];
+        lastHeldIntegral = (flags[slot] & HELD_INTEGRAL) != 0;
+        lastHeldTime = heldTime[slot];
+        lastHeldQuality = quality[slot];
+        flags[slot] = 0;
+        stored[slot]++;
+        totalStored++;
+        return STORE_HELD;
+    }
+
+    private double deviation(int slot) {
+        return percent ? Math.abs(archivedValue[slot]) * deviation / 100 : deviation;
+    }
+
+    private void archive(int slot, Object value, long time) {
+        if (value instanceof Number) {
+            archivedValue[slot] = ((Number) value).doubleValue();
+        } else if (value instanceof Boolean) {
+            archivedValue[slot] = (Boolean) value ? 1 : 0;
+        } else {
+            archivedValue[slot] = Double.NaN;
+        }
+        archivedTime[slot] = time;
+        flags[slot] = 0;
+    }
+
+    /**
+     * Finite numbers, NaN and infinity are stored as they come like any other non-numeric value.
+     */
+    private static boolean isNumber(Object value) {
+        if (!(value instanceof Number)) {
+            return false;
+        }
+        double d = ((Number) value).doubleValue();
+        return !Double.isNaN(d) && !Double.isInfinite(d);
+    }
+
+    /**
+     * The slot of the tag, either where it is already or the empty slot it goes into.
+     */
+    private int slot(long tagKey) {
+        long key = tagKey == 0 ? 1 : tagKey;
+        int mask = keys.length - 1;
+        int slot = (int) (key ^ (key >>> 32)) * 0x9E3779B9 & mask;
+        while (keys[slot] != 0 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        tags = new AzureKustoTag[capacity];
+        archivedValue = new double[capacity];
+        archivedTime = new long[capacity];
+        heldValue = new double[capacity];
+        heldTime = new long[capacity];
+        slopeLow = new double[capacity];
+        slopeHigh = new double[capacity];
+        quality = new int[capacity];
+        flags = new byte[capacity];
+        received = new int[capacity];
+        stored = new int[capacity];
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        AzureKustoTag[] oldTags = tags;
+        double[] oldArchivedValue = archivedValue;
+        long[] oldArchivedTime = archivedTime;
+        double[] oldHeldValue = heldValue;
+        long[] oldHeldTime = heldTime;
+        double[] oldSlopeLow = slopeLow;
+        double[] oldSlopeHigh = slopeHigh;
+        int[] oldQuality = quality;
+        byte[] oldFlags = flags;
+        int[] oldReceived = received;
+        int[] oldStored = stored;
+
+        allocate(oldKeys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == 0) {
+                continue;
+            }
+            int slot = slot(oldKeys[i]);
+            keys[slot] = oldKeys[i];
+            tags[slot] = oldTags[i];
+            archivedValue[slot] = oldArchivedValue[i];
+            archivedTime[slot] = oldArchivedTime[i];
+            heldValue[slot] = oldHeldValue[i];
+            heldTime[slot] = oldHeldTime[i];
+            slopeLow[slot] = oldSlopeLow[i];
+            slopeHigh[slot] = oldSlopeHigh[i];
+            quality[slot] = oldQuality[i];
+            flags[slot] = oldFlags[i];
+            received[slot] = oldReceived[i];
+            stored[slot] = oldStored[i];
+        }
+    }
+
+    public int getTagCount() {
+        return size;
+    }
+
+    public long getReceived() {
+        return totalReceived;
+    }
+
+    public long getStored() {
+        return totalStored;
+    }
+
+    /**
+     * The compression ratio (values received per value stored) of every tag, sorted.
+     */
+    public double[] getTagRatios() {
+        double[] ratios = new double[size];
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                ratios[n++] = (double) received[i] / Math.max(1, stored[i]);
+            }
+        }
+        Arrays.sort(ratios);
+        return ratios;
+    }
+}
@@ -0,0 +1,504 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * The sink's own store & forward system: a write-ahead log of compressed batches
+ * on local disk. Every batch is appended (and synced) before it is ingested and
+ * acknowledged once ADX took it. Batches that fail are dropped from memory and
+ * replayed from disk later, so an outage costs disk space instead of heap.
+ * <p>
+ * The log is a directory of segment files, written through NIO channels. Each
+ * record is [length, crc, rowCount, rawBytes, flags, payload], the CRC covers
+ * everything after it. The flags also hold the format of the payload and
+ * the layout of the table its rows are for. Concurrent appends share a single fsync (group commit).
+ * A checkpoint file holds the position before which everything has been
+ * acknowledged; fully acknowledged segments are deleted. On open, all records
+ * after the checkpoint are scanned, checked and queued for replay. Records can be
+ * acknowledged out of order, so a crash may replay a few batches twice.
+ */
+public class AzureKustoForwardLog implements Closeable {
+    public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 1;
+    private static final int CHECKPOINT_SIZE = 8 + 8 + 4;
+    private static final byte FLAG_STREAMING_REJECTED = 1;
+    private static final byte FLAG_NORMALIZED = 2;
+    private static final byte FLAG_TYPED = 4;
+    private static final int FORMAT_SHIFT = 4; // The upper bits of the flags hold the format, 0 is csv
+
+    /**
+     * The location of one batch in the log.
+     */
+    public static class Record implements Comparable<Record> {
+        private final long segment;
+        private final long offset;
+        private final int length;
+        private final long rowCount;
+        private final long rawBytes;
+        private final byte flags;
+        private volatile AzureKustoRetryPolicy.State retryState = new AzureKustoRetryPolicy.State(); // Not persisted
+
+        Record(long segment, long offset, int length, long rowCount, long rawBytes, byte flags) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.rowCount = rowCount;
+            this.rawBytes = rawBytes;
+            this.flags = flags;
+        }
+
+        public long getRowCount() {
+            return rowCount;
+        }
+
+        @Override
+        public int compareTo(Record o) {
+            int c = Long.compare(segment, o.segment);
+            return c != 0 ? c : Long.compare(offset, o.offset);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Record && compareTo((Record) o) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(segment) * 31 + Long.hashCode(offset);
+        }
+
+        @Override
+        public String toString() {
+            return SEGMENT_PREFIX + segment + "@" + offset;
+        }
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final File dir;
+    private final AzureKustoBufferPool pool;
+    private final long segmentSize;
+    private final long maxBytes;
+
+    // Everything below is guarded by this
+    private final TreeSet<Record> unacked = new TreeSet<>(); // Appended or recovered, not yet acknowledged
+    private final Deque<Record> pending = new ArrayDeque<>(); // Waiting to be replayed
+    private final TreeMap<Long, FileChannel> segments = new TreeMap<>(); // Open channels by segment number, for reading
+    private FileChannel active;
+    private long activeSegment;
+    private long writePosition;
+    private long diskBytes;
+    private long checkpointSegment = -1;
+    private long checkpointOffset;
+    private long appended; // Number of appends, for group commit
+    private boolean closed;
+
+    private final Object syncLock = new Object();
+    private long synced; // Guarded by syncLock
+
+    public AzureKustoForwardLog(File dir, AzureKustoBufferPool pool, long segmentSize, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.pool = pool;
+        this.segmentSize = segmentSize;
+        this.maxBytes = maxBytes;
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create store and forward directory '" + dir + "'");
+        }
+        recover();
+    }
+
+    /**
+     * Appends the sealed batch and waits until it is on disk.
+     */
+    public Record append(AzureKustoBatch batch) throws IOException {
+        AzureKustoPayload payload = batch.getPayload();
+        ByteBuffer[] buffers = payload.getBuffers();
+        int length = (int) payload.size();
+        byte flags = (byte) (batch.getFormat().ordinal() << FORMAT_SHIFT);
+        if (batch.isStreamingRejected()) {
+            flags |= FLAG_STREAMING_REJECTED;
+        }
+        if (batch.getLayout().isNormalized()) {
+            flags |= FLAG_NORMALIZED;
+        }
+        if (batch.getLayout().isTyped()) {
+            flags |= FLAG_TYPED;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(length);
+        header.putInt(0); // CRC, filled in below
+        header.putLong(batch.getRowCount());
+        header.putLong(batch.getEstimatedBytes());
+        header.put(flags);
+
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), 8, HEADER_SIZE - 8);
+        for (ByteBuffer buffer : buffers) {
+            crc.update(buffer.duplicate());
+        }
+        header.putInt(4, (int) crc.getValue());
+        header.flip();
+
+        ByteBuffer[] record = new ByteBuffer[buffers.length + 1];
+        record[0] = header;
+        System.arraycopy(buffers, 0, record, 1, buffers.length);
+
+        Record result;
+        long ticket;
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Store and forward log is closed");
+            }
+            long size = HEADER_SIZE + (long) length;
+            if (diskBytes + size > maxBytes) {
+                throw new IOException("Store and forward log is full (" + diskBytes + " byte(s))");
+            }
+            if (active == null || (writePosition > 0 && writePosition + size > segmentSize)) {
+                rotate();
+            }
+
+            long position = writePosition;
+            while (record[record.length - 1].hasRemaining()) {
+                active.write(record);
+            }
+            writePosition += size;
+            diskBytes += size;
+            result = new Record(activeSegment, position, length, batch.getRowCount(), batch.getEstimatedBytes(), flags);
+            result.retryState = batch.getRetryState();
+            unacked.add(result);
+            ticket = ++appended;
+        }
+
+        sync(ticket);
+        return result;
+    }
+
+    /**
+     * Group commit: whoever gets the sync lock first forces everything appended
+     * so far, the threads that queued up behind it usually find their record
+     * already synced.
+     */
+    private void sync(long ticket) throws IOException {
+        synchronized (syncLock) {
+            if (synced >= ticket) {
+                return;
+            }
+            FileChannel channel;
+            long target;
+            synchronized (this) {
+                channel = active;
+                target = appended;
+            }
+            channel.force(false);
+            synced = target;
+        }
+    }
+
+    /**
+     * Marks the batch as ingested. Moves the checkpoint and deletes segments that
+     * have been acknowledged completely.
+     */
+    public synchronized void acknowledge(Record record) throws IOException {
+        if (!unacked.remove(record)) {
+            return;
+        }
+
+        long segment;
+        long offset;
+        if (unacked.isEmpty()) {
+            segment = activeSegment;
+            offset = writePosition;
+        } else {
+            Record first = unacked.first();
+            segment = first.segment;
+            offset = first.offset;
+        }
+
+        if (segment != checkpointSegment || offset != checkpointOffset) {
+            writeCheckpoint(segment, offset);
+            deleteSegmentsBefore(segment);
+        }
+    }
+
+    /**
+     * Queues a batch that failed to ingest for replay.
+     */
+    public synchronized void retryLater(Record record) {
+        if (unacked.contains(record)) {
+            pending.addLast(record);
+        }
+    }
+
+    /**
+     * Takes up to max batches that are waiting for replay. Each one has to be
+     * acknowledged or handed back with retryLater.
+     */
+    public List<Record> pollPending(int max) {
+        return pollPending(max, Long.MAX_VALUE);
+    }
+
+    /**
+     * Like pollPending(max), but skips the batches whose retry isn't due yet at now.
+     */
+    public synchronized List<Record> pollPending(int max, long now) {
+        List<Record> records = new ArrayList<>();
+        for (Iterator<Record> it = pending.iterator(); records.size() < max && it.hasNext(); ) {
+            Record record = it.next();
+            if (record.retryState.isDue(now)) {
+                it.remove();
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Reads a batch back from disk into pooled buffers.
+     */
+    public AzureKustoBatch read(Record record) throws IOException {
+        FileChannel channel;
+        synchronized (this) {
+            channel = segments.get(record.segment);
+        }
+        if (channel == null) {
+            throw new IOException("Segment of " + record + " has been deleted");
+        }
+
+        AzureKustoPayload payload = new AzureKustoPayload(pool);
+        try {
+            payload.readFrom(channel, record.offset + HEADER_SIZE, record.length);
+        } catch (IOException ex) {
+            payload.release();
+            throw ex;
+        }
+        AzureKustoIngestionFormat[] formats = AzureKustoIngestionFormat.values();
+        int format = (record.flags & 0xFF) >>> FORMAT_SHIFT;
+        if (format >= formats.length) {
+            payload.release();
+            throw new IOException("Unknown format " + format + " in " + record);
+        }
+        AzureKustoTableLayout layout = AzureKustoTableLayout.of((record.flags & FLAG_NORMALIZED) != 0, (record.flags & FLAG_TYPED) != 0);
+        AzureKustoBatch batch = new AzureKustoBatch(payload, formats[format], layout, record.rowCount, record.rawBytes);
+        batch.setRetryState(record.retryState);
+        batch.setStreamingRejected((record.flags & FLAG_STREAMING_REJECTED) != 0);
+        batch.setLogRecord(record);
+        return batch;
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    public synchronized int getUnacknowledgedCount() {
+        return unacked.size();
+    }
+
+    public synchronized long getDiskBytes() {
+        return diskBytes;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (active != null) {
+            active.force(false);
+        }
+        for (FileChannel channel : segments.values()) {
+            channel.close();
+        }
+        segments.clear();
+        active = null;
+    }
+
+    private void rotate() throws IOException {
+        if (active != null) {
+            // Everything in the old segment has to be durable before appends move on
+            active.force(false);
+        }
+        activeSegment++;
+        writePosition = 0;
+        active = FileChannel.open(segmentFile(activeSegment).toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segments.put(activeSegment, active);
+    }
+
+    private void recover() throws IOException {
+        readCheckpoint();
+
+        List<Long> numbers = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        numbers.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException ex) {
+                        logger.warn("Ignoring unexpected file '" + file + "' in store and forward directory");
+                    }
+                }
+            }
+        }
+        numbers.sort(null);
+
+        for (long number : numbers) {
+            activeSegment = Math.max(activeSegment, number);
+            File file = segmentFile(number);
+            if (number < checkpointSegment) {
+                Files.deleteIfExists(file.toPath());
+                continue;
+            }
+
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            segments.put(number, channel);
+            diskBytes += channel.size();
+            scan(number, channel, number == checkpointSegment ? checkpointOffset : 0);
+        }
+
+        pending.addAll(unacked);
+        if (!unacked.isEmpty()) {
+            logger.info("Store and forward log in '" + dir + "' has " + unacked.size() + " batch(es) to replay");
+        }
+        // New data always goes to a fresh segment, a torn record at the end of the last one stays behind
+        rotate();
+    }
+
+    private void scan(long segment, FileChannel channel, long offset) throws IOException {
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        ByteBuffer chunk = ByteBuffer.allocate(AzureKustoBufferPool.DEFAULT_CHUNK_SIZE);
+
+        while (offset + HEADER_SIZE <= size) {
+            header.clear();
+            readFully(channel, header, offset);
+            header.flip();
+            int length = header.getInt();
+            int expected = header.getInt();
+            long rowCount = header.getLong();
+            long rawBytes = header.getLong();
+            byte flags = header.get();
+            if (length < 0 || offset + HEADER_SIZE + length > size) {
+                logger.warn("Incomplete record in " + segmentFile(segment) + " at " + offset + ", ignoring the rest of the segment");
+                return;
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(header.array(), 8, HEADER_SIZE - 8);
+            long position = offset + HEADER_SIZE;
+            long remaining = length;
+            while (remaining > 0) {
+                chunk.clear();
+                chunk.limit((int) Math.min(chunk.capacity(), remaining));
+                readFully(channel, chunk, position);
+                chunk.flip();
+                crc.update(chunk);
+                position += chunk.limit();
+                remaining -= chunk.limit();
+            }
+            if ((int) crc.getValue() != expected) {
+                logger.warn("Corrupt record in " + segmentFile(segment) + " at " + offset + ", ignoring the rest of the segment");
+                return;
+            }
+
+            unacked.add(new Record(segment, offset, length, rowCount, rawBytes, flags));
+            offset = position;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of segment");
+            }
+            position += n;
+        }
+    }
+
+    private void readCheckpoint() {
+        File file = new File(dir, CHECKPOINT_FILE);
+        if (!file.isFile()) {
+            return;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            if (buffer.remaining() == CHECKPOINT_SIZE) {
+                CRC32 crc = new CRC32();
+                crc.update(buffer.array(), 0, 16);
+                long segment = buffer.getLong();
+                long offset = buffer.getLong();
+                if (buffer.getInt() == (int) crc.getValue()) {
+                    checkpointSegment = segment;
+                    checkpointOffset = offset;
+                    return;
+                }
+            }
+            logger.warn("Ignoring corrupt store and forward checkpoint, replaying all segments");
+        } catch (IOException ex) {
+            logger.warn("Unable to read store and forward checkpoint, replaying all segments", ex);
+        }
+    }
+
+    private void writeCheckpoint(long segment, long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(CHECKPOINT_SIZE);
+        buffer.putLong(segment);
+        buffer.putLong(offset);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, 16);
+        buffer.putInt((int) crc.getValue());
+
+        // Losing the checkpoint only means replaying a few batches again, so it isn't synced
+        File tmp = new File(dir, CHECKPOINT_FILE + ".tmp");
+        Files.write(tmp.toPath(), buffer.array());
+        Files.move(tmp.toPath(), new File(dir, CHECKPOINT_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        checkpointSegment = segment;
+        checkpointOffset = offset;
+    }
+
+    private void deleteSegmentsBefore(long segment) {
+        Map<Long, FileChannel> obsolete = new HashMap<>(segments.headMap(segment));
+        for (Map.Entry<Long, FileChannel> entry : obsolete.entrySet()) {
+            File file = segmentFile(entry.getKey());
+            try {
+                diskBytes -= entry.getValue().size();
+                entry.getValue().close();
+                Files.deleteIfExists(file.toPath());
+                segments.remove(entry.getKey());
+            } catch (IOException ex) {
+                logger.warn("Unable to delete store and forward segment '" + file + "'", ex);
+            }
+        }
+    }
+
+    private File segmentFile(long segment) {
+        return new File(dir, SEGMENT_PREFIX + String.format("%020d", segment) + SEGMENT_SUFFIX);
+    }
+}
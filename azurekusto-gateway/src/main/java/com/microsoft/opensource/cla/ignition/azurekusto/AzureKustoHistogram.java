@@ -0,0 +1,95 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of non-negative values with log-linear buckets, like HdrHistogram:
+ * every power of two is split into 32 buckets, so a value is known to within
+ * about 3% whatever its magnitude, in a fixed 15 KB. Recording is an array
+ * index computation and an atomic increment, safe from any thread.
+ */
+public class AzureKustoHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = SUB_COUNT + (63 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * The value at the percentile (0-100), as the highest value of its bucket.
+     * Returns 0 if nothing has been recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highestValue(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    static int index(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value); // >= SUB_BITS
+        int shift = exponent - SUB_BITS;
+        int sub = (int) (value >>> shift) & (SUB_COUNT - 1);
+        return SUB_COUNT + shift * SUB_COUNT + sub;
+    }
+
+    static long highestValue(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_COUNT) / SUB_COUNT;
+        int sub = (index - SUB_COUNT) % SUB_COUNT;
+        long lowest = (long) (SUB_COUNT + sub) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -16,11 +16,8 @@ import com.inductiveautomation.ignition.gateway.sqltags.history.TagHistoryProvid
 import com.inductiveautomation.ignition.gateway.sqltags.history.TagHistoryProviderInformation;
 import com.inductiveautomation.ignition.gateway.sqltags.history.query.ColumnQueryDefinition;
 import com.inductiveautomation.ignition.gateway.sqltags.history.query.QueryController;
-import com.microsoft.azure.kusto.data.ClientImpl;
-import com.microsoft.azure.kusto.data.ConnectionStringBuilder;
 import com.microsoft.azure.kusto.data.KustoOperationResult;
 import com.microsoft.azure.kusto.data.KustoResultSetTable;
-import com.microsoft.opensource.cla.ignition.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -43,44 +40,39 @@ public class AzureKustoHistoryProvider implements TagHistoryProvider {
     private GatewayContext context;
     private AzureKustoHistoryProviderSettings settings;
     private AzureKustoHistorySink sink;
-    private ClientImpl kustoQueryClient; // A client for querying data
+    private final AzureKustoTagCache tagCache; // Tag identities, shared by the sink and the queries
+    private final AzureKustoQueryCache queryCache; // Aggregate results, shared by the queries, null if disabled
+    private final AzureKustoQueryPool queryPool; // Runs the sub-queries of the queries
+    private final AzureKustoClients clients; // The clients to ADX, shared by the sink, browsing and the queries
 
     public AzureKustoHistoryProvider(GatewayContext context, String name, AzureKustoHistoryProviderSettings settings) {
         this.name = name;
         this.context = context;
         this.settings = settings;
+        this.tagCache = new AzureKustoTagCache(settings.getTagCacheSize());
+        this.queryCache = settings.getQueryCacheMB() > 0 ? new AzureKustoQueryCache(settings.getQueryCacheMB() * 1024L * 1024L,
+                settings.getQueryCacheSettleSeconds() * 1000L, settings.getQueryCacheRecentSeconds() * 1000L) : null;
+        this.queryPool = new AzureKustoQueryPool(name, Math.max(1, settings.getQueryThreads()), settings.getQueryMaxRequests());
+        this.clients = new AzureKustoClients(name, settings);
     }
 
     @Override
     public void startup() {
         try {
+            // Connect to Kusto first, so the sink and the first query find the clients warm
+            ConnectToKusto();
+
             // Create a new data sink with the same name as the provider to store data
-            sink = new AzureKustoHistorySink(name, context, settings);
+            sink = new AzureKustoHistorySink(name, context, settings, tagCache, clients);
             context.getHistoryManager().registerSink(sink);
 
-            // Create a Kusto client
-            ConnectToKusto();
-
         } catch (Throwable e) {
             logger.error("Error registering Azure Kusto history sink", e);
         }
     }
 
     public void ConnectToKusto() throws URISyntaxException {
-        String clusterURL = settings.getClusterURL();
-        String applicationId = settings.getApplicationId();
-        String applicationKey = settings.getApplicationKey();
-        String aadTenantId = settings.getAADTenantId();
-
-        ConnectionStringBuilder connectionString;
-
-        connectionString = ConnectionStringBuilder.createWithAadApplicationCredentials(
-                clusterURL,
-                applicationId,
-                applicationKey,
-                aadTenantId);
-
-        kustoQueryClient = new ClientImpl(connectionString);
+        clients.startup();
     }
 
     @Override
@@ -91,6 +83,8 @@ public class AzureKustoHistoryProvider implements TagHistoryProvider {
         } catch (Throwable e) {
             logger.error("Error shutting down Azure Kusto history sink", e);
         }
+        queryPool.shutdown();
+        clients.shutdown();
     }
 
     @Override
@@ -121,7 +115,7 @@ public class AzureKustoHistoryProvider implements TagHistoryProvider {
         logger.debug("createQuery(tags, queryController) called.  tags: " + tags.toString()
                 + ", queryController: " + queryController.toString());
 
-        return new AzureKustoQueryExecutor(context, settings, tags, queryController);
+        return new AzureKustoQueryExecutor(context, settings, tagCache, queryCache, queryPool, clients, tags, queryController);
     }
 
     /**
@@ -148,32 +142,36 @@ public class AzureKustoHistoryProvider implements TagHistoryProvider {
         }
         String tagPath = qualifiedPath.getPathComponent(WellKnownPathTypes.Tag);
 
-        String query = settings.getTableName();
+        // The tag dictionary of a normalized table holds each tag once, much less to scan than the values
+        AzureKustoQuery query = new AzureKustoQuery();
+        query.append(AzureKustoQuery.identifier(settings.isTagDictionary() ? AzureKustoTableSchema.getTagTableName(settings.getTableName()) : settings.getTableName()));
         if (systemName == null) {
-            query += " | distinct systemName, tagProvider, tagPath";
-            query += " | summarize countChildren = dcount(tagPath) by systemName, tagProvider";
-            query += " | extend hasChildren = countChildren > 0";
-            query += " | project systemName, tagProvider, hasChildren";
+            query.append(" | distinct systemName, tagProvider, tagPath");
+            query.append(" | summarize countChildren = dcount(tagPath) by systemName, tagProvider");
+            query.append(" | extend hasChildren = countChildren > 0");
+            query.append(" | project systemName, tagProvider, hasChildren");
         } else if (tagPath == null) {
-            query += " | where systemName == \"" + systemName + "\" | where tagProvider == \"" + tagProvider + "\"";
-            query += " | distinct systemName, tagProvider, tagPath";
-            query += " | extend tagPrefix = tostring(split(tagPath, \"/\")[0])";
-            query += " | summarize countChildren = dcountif(tagPath, tagPath != tagPrefix) by systemName, tagProvider, tagPrefix";
-            query += " | extend hasChildren = countChildren > 0";
-            query += " | project systemName, tagProvider, tagPrefix, hasChildren";
+            query.parameter("browseSystemName", systemName).parameter("browseTagProvider", tagProvider);
+            query.append(" | where systemName == browseSystemName | where tagProvider == browseTagProvider");
+            query.append(" | distinct systemName, tagProvider, tagPath");
+            query.append(" | extend tagPrefix = tostring(split(tagPath, \"/\")[0])");
+            query.append(" | summarize countChildren = dcountif(tagPath, tagPath != tagPrefix) by systemName, tagProvider, tagPrefix");
+            query.append(" | extend hasChildren = countChildren > 0");
+            query.append(" | project systemName, tagProvider, tagPrefix, hasChildren");
         } else {
-            String[] tagPathParts = tagPath.split("/");
-            query += " | where systemName == \"" + systemName + "\" | where tagProvider == \"" + tagProvider + "\" | where tagPath startswith \"" + tagPath + "/\"";
-            query += " | distinct systemName, tagProvider, tagPath";
-            query += " | extend tagPrefix = strcat_array(array_slice(split(tagPath, \"/\"), 0, " + tagPathParts.length + "), \"/\")";
-            query += " | summarize countChildren = dcountif(tagPath, tagPath != tagPrefix) by systemName, tagProvider, tagPrefix";
-            query += " | extend hasChildren = countChildren > 0";
-            query += " | project systemName, tagProvider, tagPrefix, hasChildren";
+            query.parameter("browseSystemName", systemName).parameter("browseTagProvider", tagProvider).parameter("browsePrefix", tagPath + "/")
+                    .parameter("browseDepth", tagPath.split("/").length);
+            query.append(" | where systemName == browseSystemName | where tagProvider == browseTagProvider | where tagPath startswith browsePrefix");
+            query.append(" | distinct systemName, tagProvider, tagPath");
+            query.append(" | extend tagPrefix = strcat_array(array_slice(split(tagPath, \"/\"), 0, browseDepth), \"/\")");
+            query.append(" | summarize countChildren = dcountif(tagPath, tagPath != tagPrefix) by systemName, tagProvider, tagPrefix");
+            query.append(" | extend hasChildren = countChildren > 0");
+            query.append(" | project systemName, tagProvider, tagPrefix, hasChildren");
         }
         logger.debug("Issuing query:" + query);
 
         try {
-            KustoOperationResult results = kustoQueryClient.execute(settings.getDatabaseName(), query);
+            KustoOperationResult results = clients.getQueryClient().execute(settings.getDatabaseName(), query.getText(), query.getProperties());
             KustoResultSetTable mainTableResult = results.getPrimaryResults();
 
             while (mainTableResult.next()) {
@@ -218,14 +216,9 @@ public class AzureKustoHistoryProvider implements TagHistoryProvider {
 
         ArrayList<Timeline> timelines = new ArrayList<>();
 
-        String queryPrefix = "let startTime = " + Utils.getDateLiteral(startDate) + ";\n" +
-                "let endTime = " + Utils.getDateLiteral(endDate) + ";\n";
-        String queryData = settings.getTableName() + "| where timestamp between(startTime..endTime) ";
-
-        queryData += "| where ";
-        QualifiedPath[] tagKeys = tags.toArray(new QualifiedPath[]{});
-        for (int i = 0; i < tagKeys.length; i++) {
-            QualifiedPath tag = tagKeys[i];
+        boolean normalized = settings.isTagDictionary();
+        List<AzureKustoTag> queryTags = new ArrayList<>();
+        for (QualifiedPath tag : tags) {
             String systemName = null;
             String tagProvider = null;
             String driver = tag.getPathComponent(WellKnownPathTypes.Driver);
@@ -234,19 +227,17 @@ public class AzureKustoHistoryProvider implements TagHistoryProvider {
                 systemName = parts[0];
                 tagProvider = parts[1];
             }
-            String tagPath = tag.getPathComponent(WellKnownPathTypes.Tag);
-
-            queryData += "(systemName has \"" + systemName + "\" and tagProvider has \"" + tagProvider + "\" and tagPath has \"" + tagPath + "\")";
-            if (i < (tagKeys.length - 1)) {
-                queryData += " or ";
-            }
+            queryTags.add(tagCache.intern(systemName, tagProvider, tag.getPathComponent(WellKnownPathTypes.Tag)));
         }
 
-        String querySuffix = "| summarize startDate = min(timestamp), endDate = max(timestamp) by systemName, tagProvider, tagPath";
-        String query = queryPrefix + queryData + querySuffix;
+        AzureKustoQuery query = new AzureKustoQuery().parameter("startTime", startDate).parameter("endTime", endDate);
+        query.append(AzureKustoQuery.identifier(settings.getTableName()) + "| where timestamp between(startTime..endTime) "
+                + query.getTagFilter(queryTags, normalized)
+                + "| summarize startDate = min(timestamp), endDate = max(timestamp) by "
+                + (normalized ? AzureKustoTableSchema.TAG_ID : "systemName, tagProvider, tagPath"));
         logger.debug("Issuing query:" + query);
 
-        KustoOperationResult results = kustoQueryClient.execute(settings.getDatabaseName(), query);
+        KustoOperationResult results = clients.getQueryClient().execute(settings.getDatabaseName(), query.getText(), query.getProperties());
         KustoResultSetTable mainTableResult = results.getPrimaryResults();
 
         while (mainTableResult.next()) {
@@ -23,7 +23,44 @@ public class AzureKustoHistoryProviderSettings extends PersistentRecord {
     public static final StringField ClusterURL = new StringField(META, "ClusterURL", SFieldFlags.SMANDATORY).setDefault("https://ignitionadxpoc.eastus.kusto.windows.net");
     public static final StringField DatabaseName = new StringField(META, "DatabaseName", SFieldFlags.SMANDATORY);
     public static final StringField TableName = new StringField(META, "TableName", SFieldFlags.SMANDATORY).setDefault("Events");
+    public static final EnumField<AzureKustoIngestionFormat> IngestionFormat = new EnumField<AzureKustoIngestionFormat>(META, "IngestionFormat", AzureKustoIngestionFormat.class, SFieldFlags.SMANDATORY).setDefault(AzureKustoIngestionFormat.CSV);
     public static final BooleanField Streaming = new BooleanField(META, "Streaming", SFieldFlags.SMANDATORY).setDefault(true);
+    public static final IntField StreamingMaxSizeKB = new IntField(META, "StreamingMaxSizeKB", SFieldFlags.SMANDATORY).setDefault(4096);
+    public static final IntField BatchMaxRows = new IntField(META, "BatchMaxRows", SFieldFlags.SMANDATORY).setDefault(100000);
+    public static final IntField BatchMaxSizeKB = new IntField(META, "BatchMaxSizeKB", SFieldFlags.SMANDATORY).setDefault(16384);
+    public static final IntField BatchMaxAgeMillis = new IntField(META, "BatchMaxAgeMillis", SFieldFlags.SMANDATORY).setDefault(5000);
+    public static final BooleanField AdaptiveBatching = new BooleanField(META, "AdaptiveBatching", SFieldFlags.SMANDATORY).setDefault(true);
+    public static final IntField BatchTargetLatencyMillis = new IntField(META, "BatchTargetLatencyMillis", SFieldFlags.SMANDATORY).setDefault(10000);
+    public static final IntField IngestionWorkers = new IntField(META, "IngestionWorkers", SFieldFlags.SMANDATORY).setDefault(4);
+    public static final IntField BackpressureHighMB = new IntField(META, "BackpressureHighMB", SFieldFlags.SMANDATORY).setDefault(256);
+    public static final IntField BackpressureLowMB = new IntField(META, "BackpressureLowMB", SFieldFlags.SMANDATORY).setDefault(128);
+    public static final IntField BackpressureHighBatches = new IntField(META, "BackpressureHighBatches", SFieldFlags.SMANDATORY).setDefault(64);
+    public static final BooleanField StoreAndForward = new BooleanField(META, "StoreAndForward", SFieldFlags.SMANDATORY).setDefault(false);
+    public static final StringField StoreAndForwardPath = new StringField(META, "StoreAndForwardPath");
+    public static final IntField StoreAndForwardMaxMB = new IntField(META, "StoreAndForwardMaxMB", SFieldFlags.SMANDATORY).setDefault(10240);
+    public static final IntField SpoolThresholdMB = new IntField(META, "SpoolThresholdMB", SFieldFlags.SMANDATORY).setDefault(64);
+    public static final IntField SpoolFileMaxMB = new IntField(META, "SpoolFileMaxMB", SFieldFlags.SMANDATORY).setDefault(512);
+    public static final EnumField<AzureKustoCompressor.Mode> CompressionMode = new EnumField<AzureKustoCompressor.Mode>(META, "CompressionMode", AzureKustoCompressor.Mode.class, SFieldFlags.SMANDATORY).setDefault(AzureKustoCompressor.Mode.NONE);
+    public static final DoubleField CompressionDeviation = new DoubleField(META, "CompressionDeviation", SFieldFlags.SMANDATORY).setDefault(0.0);
+    public static final BooleanField CompressionPercent = new BooleanField(META, "CompressionPercent", SFieldFlags.SMANDATORY).setDefault(false);
+    public static final IntField CompressionMaxIntervalMillis = new IntField(META, "CompressionMaxIntervalMillis", SFieldFlags.SMANDATORY).setDefault(3600000);
+    public static final IntField TagCacheSize = new IntField(META, "TagCacheSize", SFieldFlags.SMANDATORY).setDefault(131072);
+    public static final IntField RetryInitialDelayMillis = new IntField(META, "RetryInitialDelayMillis", SFieldFlags.SMANDATORY).setDefault(1000);
+    public static final IntField RetryMaxDelayMillis = new IntField(META, "RetryMaxDelayMillis", SFieldFlags.SMANDATORY).setDefault(300000);
+    public static final IntField CircuitBreakerFailures = new IntField(META, "CircuitBreakerFailures", SFieldFlags.SMANDATORY).setDefault(5);
+    public static final IntField CircuitBreakerOpenMillis = new IntField(META, "CircuitBreakerOpenMillis", SFieldFlags.SMANDATORY).setDefault(30000);
+    public static final IntField QuarantineMaxMB = new IntField(META, "QuarantineMaxMB", SFieldFlags.SMANDATORY).setDefault(1024);
+    public static final BooleanField TagDictionary = new BooleanField(META, "TagDictionary", SFieldFlags.SMANDATORY).setDefault(false);
+    public static final BooleanField TypedColumns = new BooleanField(META, "TypedColumns", SFieldFlags.SMANDATORY).setDefault(false);
+    public static final BooleanField Rollups = new BooleanField(META, "Rollups", SFieldFlags.SMANDATORY).setDefault(false);
+    public static final IntField QueryCacheMB = new IntField(META, "QueryCacheMB", SFieldFlags.SMANDATORY).setDefault(64);
+    public static final IntField QueryCacheSettleSeconds = new IntField(META, "QueryCacheSettleSeconds", SFieldFlags.SMANDATORY).setDefault(300);
+    public static final IntField QueryCacheRecentSeconds = new IntField(META, "QueryCacheRecentSeconds", SFieldFlags.SMANDATORY).setDefault(10);
+    public static final IntField QueryChunkRows = new IntField(META, "QueryChunkRows", SFieldFlags.SMANDATORY).setDefault(500000);
+    public static final IntField QueryThreads = new IntField(META, "QueryThreads", SFieldFlags.SMANDATORY).setDefault(8);
+    public static final IntField QueryMaxRequests = new IntField(META, "QueryMaxRequests", SFieldFlags.SMANDATORY).setDefault(8);
+    public static final IntField QueryTagGroupSize = new IntField(META, "QueryTagGroupSize", SFieldFlags.SMANDATORY).setDefault(200);
+    public static final IntField ClientKeepWarmSeconds = new IntField(META, "ClientKeepWarmSeconds", SFieldFlags.SMANDATORY).setDefault(300);
 
     public String getClusterURL() {
         return getString(ClusterURL);
@@ -49,6 +86,190 @@ public class AzureKustoHistoryProviderSettings extends PersistentRecord {
         return getString(TableName);
     }
 
+    public AzureKustoIngestionFormat getIngestionFormat() {
+        return getEnum(IngestionFormat);
+    }
+
+    public boolean isStreaming() {
+        return getBoolean(Streaming);
+    }
+
+    public int getStreamingMaxSizeKB() {
+        return getInt(StreamingMaxSizeKB);
+    }
+
+    public int getBatchMaxRows() {
+        return getInt(BatchMaxRows);
+    }
+
+    public int getBatchMaxSizeKB() {
+        return getInt(BatchMaxSizeKB);
+    }
+
+    public int getBatchMaxAgeMillis() {
+        return getInt(BatchMaxAgeMillis);
+    }
+
+    public boolean isAdaptiveBatching() {
+        return getBoolean(AdaptiveBatching);
+    }
+
+    public int getBatchTargetLatencyMillis() {
+        return getInt(BatchTargetLatencyMillis);
+    }
+
+    public int getIngestionWorkers() {
+        return getInt(IngestionWorkers);
+    }
+
+    public int getBackpressureHighMB() {
+        return getInt(BackpressureHighMB);
+    }
+
+    public int getBackpressureLowMB() {
+        return getInt(BackpressureLowMB);
+    }
+
+    public int getBackpressureHighBatches() {
+        return getInt(BackpressureHighBatches);
+    }
+
+    public boolean isStoreAndForward() {
+        return getBoolean(StoreAndForward);
+    }
+
+    public String getStoreAndForwardPath() {
+        return getString(StoreAndForwardPath);
+    }
+
+    public int getStoreAndForwardMaxMB() {
+        return getInt(StoreAndForwardMaxMB);
+    }
+
+    public int getSpoolThresholdMB() {
+        return getInt(SpoolThresholdMB);
+    }
+
+    public int getSpoolFileMaxMB() {
+        return getInt(SpoolFileMaxMB);
+    }
+
+    public AzureKustoCompressor.Mode getCompressionMode() {
+        return getEnum(CompressionMode);
+    }
+
+    public double getCompressionDeviation() {
+        return getDouble(CompressionDeviation);
+    }
+
+    public boolean isCompressionPercent() {
+        return getBoolean(CompressionPercent);
+    }
+
+    public int getCompressionMaxIntervalMillis() {
+        return getInt(CompressionMaxIntervalMillis);
+    }
+
+    public int getTagCacheSize() {
+        return getInt(TagCacheSize);
+    }
+
+    public int getRetryInitialDelayMillis() {
+        return getInt(RetryInitialDelayMillis);
+    }
+
+    public int getRetryMaxDelayMillis() {
+        return getInt(RetryMaxDelayMillis);
+    }
+
+    public int getCircuitBreakerFailures() {
+        return getInt(CircuitBreakerFailures);
+    }
+
+    public int getCircuitBreakerOpenMillis() {
+        return getInt(CircuitBreakerOpenMillis);
+    }
+
+    public int getQuarantineMaxMB() {
+        return getInt(QuarantineMaxMB);
+    }
+
+    /**
+     * Whether the table is normalized, with tag ids in the rows and the tag
+     * names in a dictionary table (see AzureKustoTagDictionary).
+     */
+    public boolean isTagDictionary() {
+        return getBoolean(TagDictionary);
+    }
+
+    /**
+     * Whether each value goes into the column of its type instead of a dynamic
+     * column (see AzureKustoTableSchema).
+     */
+    public boolean isTypedColumns() {
+        return getBoolean(TypedColumns);
+    }
+
+    /**
+     * Whether the sink creates the rollup views of the table and queries read
+     * aggregates from them (see AzureKustoRollup).
+     */
+    public boolean isRollups() {
+        return getBoolean(Rollups);
+    }
+
+    /**
+     * The memory for cached aggregate query results, 0 if they aren't cached
+     * (see AzureKustoQueryCache).
+     */
+    public int getQueryCacheMB() {
+        return getInt(QueryCacheMB);
+    }
+
+    public int getQueryCacheSettleSeconds() {
+        return getInt(QueryCacheSettleSeconds);
+    }
+
+    public int getQueryCacheRecentSeconds() {
+        return getInt(QueryCacheRecentSeconds);
+    }
+
+    /**
+     * The rows a raw query reads at a time, 0 to read them all at once.
+     */
+    public int getQueryChunkRows() {
+        return getInt(QueryChunkRows);
+    }
+
+    /**
+     * The threads the sub-queries of large queries run on (see AzureKustoQueryPool).
+     */
+    public int getQueryThreads() {
+        return getInt(QueryThreads);
+    }
+
+    public int getQueryMaxRequests() {
+        return getInt(QueryMaxRequests);
+    }
+
+    /**
+     * The number of tags a sub-query reads at most.
+     */
+    public int getQueryTagGroupSize() {
+        return getInt(QueryTagGroupSize);
+    }
+
+    /**
+     * How often the shared query client is kept warm (see AzureKustoClients), 0 never.
+     */
+    public int getClientKeepWarmSeconds() {
+        return getInt(ClientKeepWarmSeconds);
+    }
+
+    public AzureKustoTableLayout getTableLayout() {
+        return AzureKustoTableLayout.of(isTagDictionary(), isTypedColumns());
+    }
+
     static {
         ProfileId.getFormMeta().setVisible(false);
         Profile.getFormMeta().setVisible(false);
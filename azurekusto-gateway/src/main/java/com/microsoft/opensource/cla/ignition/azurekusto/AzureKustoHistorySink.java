@@ -1,60 +1,82 @@
 package com.microsoft.opensource.cla.ignition.azurekusto;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.inductiveautomation.ignition.common.StatMetric;
 import com.inductiveautomation.ignition.common.i18n.LocalizedString;
+import com.inductiveautomation.ignition.common.sqltags.model.TagPath;
+import com.inductiveautomation.ignition.common.sqltags.model.types.DataQuality;
 import com.inductiveautomation.ignition.gateway.history.*;
 import com.inductiveautomation.ignition.gateway.model.GatewayContext;
 import com.microsoft.azure.kusto.data.ClientImpl;
-import com.microsoft.azure.kusto.data.ConnectionStringBuilder;
 import com.microsoft.azure.kusto.data.KustoOperationResult;
+import com.microsoft.azure.kusto.data.KustoResultSetTable;
 import com.microsoft.azure.kusto.ingest.IngestClient;
-import com.microsoft.azure.kusto.ingest.IngestClientFactory;
 import com.microsoft.azure.kusto.ingest.IngestionProperties;
-import com.microsoft.azure.kusto.ingest.StreamingIngestClient;
 import com.microsoft.azure.kusto.ingest.exceptions.IngestionClientException;
 import com.microsoft.azure.kusto.ingest.exceptions.IngestionServiceException;
-import com.microsoft.azure.kusto.ingest.source.CompressionType;
-import com.microsoft.azure.kusto.ingest.source.StreamSourceInfo;
-import com.microsoft.opensource.cla.ignition.Utils;
-import com.univocity.parsers.csv.CsvWriter;
-import com.univocity.parsers.csv.CsvWriterSettings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.net.URISyntaxException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.zip.GZIPOutputStream;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Responsible for actually storing the data to ADX. Can either use the
- * built-in store & forward system for Ignition or use its own.
+ * built-in store & forward system for Ignition or use its own, a log on
+ * local disk (see AzureKustoForwardLog).
  */
 public class AzureKustoHistorySink implements DataSink {
     private final Logger logger = LoggerFactory.getLogger(getClass());
     private AzureKustoHistoryProviderSettings settings; // Holds the settings for the current provider, needed to connect to ADX
     private GatewayContext context;
     private String pipelineName;
-    private StreamingIngestClient streamingIngestClient;
+    private final AzureKustoClients clients; // The provider's clients to ADX
+    private final boolean ownsClients; // Shut down with the sink if it made them itself
+    private IngestClient streamingIngestClient;
     private IngestClient queuedClient;
     private String table;
     private String database;
-    private final SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSSSSSS");
 
-    private IngestionProperties ingestionProperties;
+    private AzureKustoIngestionFormat ingestionFormat; // The format new batches are written in
+    private AzureKustoTableLayout layout; // The columns of the table, see AzureKustoTableSchema
+    private AzureKustoTagDictionary tagDictionary; // Null unless the table is normalized
+    private IngestionProperties tagIngestionProperties; // For the dictionary table
+    private final Map<AzureKustoIngestionFormat, IngestionProperties> ingestionProperties = new EnumMap<>(AzureKustoIngestionFormat.class);
+    private AzureKustoIngestRouter router; // Picks streaming or queued ingestion per batch
+    private AzureKustoForwardLog forwardLog; // The sink's own store & forward log, if enabled
+    private AzureKustoBatcher batcher; // Merges incoming data into larger batches before ingestion
+    private File spoolDir; // Where data too large for the heap is spooled before ingestion
+    private AzureKustoQuarantine quarantine; // Rows ADX rejected, null if it couldn't be opened
+    private final AzureKustoBufferPool bufferPool = new AzureKustoBufferPool(AzureKustoBufferPool.DEFAULT_CHUNK_SIZE, 256);
+    private final AzureKustoTagCache tagCache; // Tag identities, shared with the provider's queries
+    private final AzureKustoSinkMetrics metrics = new AzureKustoSinkMetrics();
+
+    public AzureKustoHistorySink(String pipelineName, GatewayContext context, AzureKustoHistoryProviderSettings settings, AzureKustoTagCache tagCache) {
+        this(pipelineName, context, settings, tagCache, new AzureKustoClients(pipelineName, settings), true);
+    }
+
+    public AzureKustoHistorySink(String pipelineName, GatewayContext context, AzureKustoHistoryProviderSettings settings, AzureKustoTagCache tagCache,
+                                 AzureKustoClients clients) {
+        this(pipelineName, context, settings, tagCache, clients, false);
+    }
 
-    public AzureKustoHistorySink(String pipelineName, GatewayContext context, AzureKustoHistoryProviderSettings settings) {
+    private AzureKustoHistorySink(String pipelineName, GatewayContext context, AzureKustoHistoryProviderSettings settings, AzureKustoTagCache tagCache,
+                                  AzureKustoClients clients, boolean ownsClients) {
         this.pipelineName = pipelineName;
         this.context = context;
         this.settings = settings;
+        this.tagCache = tagCache;
+        this.clients = clients;
+        this.ownsClients = ownsClients;
     }
 
     @Override
@@ -64,77 +86,230 @@ public class AzureKustoHistorySink implements DataSink {
 
     @Override
     public void startup() {
-        String clusterURL = settings.getClusterURL();
-        String applicationId = settings.getApplicationId();
-        String applicationKey = settings.getApplicationKey();
-        String aadTenantId = settings.getAADTenantId();
         database = settings.getDatabaseName();
+        table = settings.getTableName();
+        ingestionFormat = settings.getIngestionFormat();
+        layout = settings.getTableLayout();
 
-        String dmUrl = Utils.getDMUriFromSetting(clusterURL);
-        String engineURL = Utils.getEngineUriFromSetting(clusterURL);
-
-        ConnectionStringBuilder connectionString = ConnectionStringBuilder.createWithAadApplicationCredentials(
-                engineURL,
-                applicationId,
-                applicationKey,
-                aadTenantId);
-        ConnectionStringBuilder DmConnectionString = ConnectionStringBuilder.createWithAadApplicationCredentials(
-                dmUrl,
-                applicationId,
-                applicationKey,
-                aadTenantId);
         try {
-            ClientImpl client = new ClientImpl(connectionString);
+            ClientImpl client = clients.getQueryClient();
+            createTable(client);
+            if (layout.isNormalized()) {
+                tagDictionary = openTagDictionary(client);
+                tagIngestionProperties = new IngestionProperties(database, AzureKustoTableSchema.getTagTableName(table));
+                tagIngestionProperties.setDataFormat(AzureKustoIngestionFormat.CSV.getDataFormat());
+            }
 
-            try {
-                KustoOperationResult result = client.execute(database, ".show table " + table);
-            } catch (Throwable ex) {
-                try {
-                    client.execute(database, ".create table " + table + " ( systemName:string, tagProvider:string, tagPath:string, value:dynamic, value_double:real, value_integer:int, timestamp:datetime, quality:int)");
-                } catch (Throwable ex2) {
-                    logger.error("Error creating table '" + table + "'", ex2);
+            streamingIngestClient = clients.getStreamingIngestClient();
+            queuedClient = clients.getQueuedIngestClient();
+
+            // Batches replayed from the store & forward log may have been written in another format
+            for (AzureKustoIngestionFormat format : AzureKustoIngestionFormat.values()) {
+                IngestionProperties properties = new IngestionProperties(database, table);
+                properties.setDataFormat(format.getDataFormat());
+                if (format.getMappingKind() != null) {
+                    properties.setIngestionMapping(format.getMappingName(), format.getMappingKind());
                 }
+                ingestionProperties.put(format, properties);
+            }
+
+            router = new AzureKustoIngestRouter(streamingIngestClient, queuedClient, settings);
+            spoolDir = getLocalDir("spool");
+            AzureKustoSpool.deleteLeftovers(spoolDir);
+            if (settings.isStoreAndForward()) {
+                forwardLog = openForwardLog();
             }
-            streamingIngestClient = IngestClientFactory.createStreamingIngestClient(connectionString);
-            queuedClient = IngestClientFactory.createClient(DmConnectionString);
-            table = settings.getTableName();
-            ingestionProperties = new IngestionProperties(database, table);
-            ingestionProperties.setDataFormat(IngestionProperties.DATA_FORMAT.csv);
+            quarantine = openQuarantine();
+            batcher = new AzureKustoBatcher(pipelineName, settings, bufferPool, forwardLog, metrics, quarantine, this::ingestBatch, spoolDir, this::ingestFile);
+            batcher.startup();
         } catch (URISyntaxException ex) {
             logger.error("Error on AzureKustoHistorySink startup ", ex);
         }
     }
 
+    /**
+     * Creates the table if it doesn't exist yet, along with the ingestion mappings
+     * for the formats that need one, the tag dictionary table of a normalized table
+     * and the rollup views.
+     */
+    private void createTable(ClientImpl client) {
+        createTableIfMissing(client, table, AzureKustoTableSchema.getCreateTableCommand(table, layout));
+        if (layout.isNormalized()) {
+            String tagTable = AzureKustoTableSchema.getTagTableName(table);
+            createTableIfMissing(client, tagTable, AzureKustoTableSchema.getCreateTagTableCommand(table));
+        }
+
+        if (settings.isRollups()) {
+            for (AzureKustoRollup rollup : AzureKustoRollup.values()) {
+                try {
+                    client.execute(database, rollup.getCreateCommand(table, layout));
+                } catch (Throwable ex) {
+                    logger.error("Error creating rollup view '" + rollup.getViewName(table) + "'", ex);
+                }
+            }
+        }
+
+        for (AzureKustoIngestionFormat format : AzureKustoIngestionFormat.values()) {
+            String command = AzureKustoTableSchema.getCreateMappingCommand(table, format, layout);
+            if (command == null) {
+                continue;
+            }
+            try {
+                client.execute(database, command);
+            } catch (Throwable ex) {
+                logger.error("Error creating " + format + " ingestion mapping on table '" + table + "'", ex);
+            }
+        }
+    }
+
+    private void createTableIfMissing(ClientImpl client, String name, String createCommand) {
+        try {
+            client.execute(database, ".show table " + name);
+        } catch (Throwable ex) {
+            try {
+                client.execute(database, createCommand);
+            } catch (Throwable ex2) {
+                logger.error("Error creating table '" + name + "'", ex2);
+            }
+        }
+    }
+
+    /**
+     * Opens the tag dictionary with the tags cached on local disk, and queues
+     * the ones the dictionary table doesn't have. Without the local cache the
+     * dictionary is kept in memory, the tags are added to the table again after
+     * a restart.
+     */
+    private AzureKustoTagDictionary openTagDictionary(ClientImpl client) {
+        File dir = getLocalDir("tags");
+        AzureKustoTagDictionary dictionary;
+        try {
+            dictionary = new AzureKustoTagDictionary(dir);
+        } catch (IOException ex) {
+            logger.error("Error opening tag dictionary cache in '" + dir + "', keeping it in memory", ex);
+            dictionary = new AzureKustoTagDictionary();
+        }
+        dictionary.reconcile(loadStoredTagIds(client));
+        return dictionary;
+    }
+
+    /**
+     * The ids in the dictionary table, null if they can't be read.
+     */
+    private Set<Long> loadStoredTagIds(ClientImpl client) {
+        String query = AzureKustoTableSchema.getTagTableName(table) + " | distinct " + AzureKustoTableSchema.TAG_ID;
+        try {
+            KustoOperationResult results = client.execute(database, query);
+            KustoResultSetTable ids = results.getPrimaryResults();
+            Set<Long> stored = new HashSet<>();
+            while (ids.next()) {
+                stored.add(ids.getLong(AzureKustoTableSchema.TAG_ID));
+            }
+            return stored;
+        } catch (Exception ex) {
+            logger.warn("Unable to read the tag dictionary table, adding all cached tags to it again", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Opens the sink's own store & forward log. Without it, batches that can't be
+     * ingested are kept in memory.
+     */
+    private AzureKustoForwardLog openForwardLog() {
+        File dir = getLocalDir(null);
+        try {
+            long maxBytes = settings.getStoreAndForwardMaxMB() * 1024L * 1024L;
+            return new AzureKustoForwardLog(dir, bufferPool, AzureKustoForwardLog.DEFAULT_SEGMENT_SIZE, maxBytes);
+        } catch (IOException ex) {
+            logger.error("Error opening store and forward log in '" + dir + "', continuing without it", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Opens the quarantine for rows ADX rejects. Without it, those rows are dropped.
+     */
+    private AzureKustoQuarantine openQuarantine() {
+        File dir = getLocalDir("quarantine");
+        try {
+            return new AzureKustoQuarantine(dir, bufferPool, settings.getQuarantineMaxMB() * 1024L * 1024L);
+        } catch (IOException ex) {
+            logger.error("Error opening quarantine in '" + dir + "', rows ADX rejects will be dropped", ex);
+            return null;
+        }
+    }
+
+    /**
+     * The sink's directory on local disk, in the store and forward path or the
+     * gateway data directory, or a sub directory of it.
+     */
+    private File getLocalDir(String child) {
+        String path = settings.getStoreAndForwardPath();
+        File parent;
+        if (path != null && !path.trim().isEmpty()) {
+            parent = new File(path.trim());
+        } else if (context != null) {
+            parent = new File(context.getSystemManager().getDataDir(), "azurekusto");
+        } else {
+            parent = new File(System.getProperty("java.io.tmpdir"), "azurekusto");
+        }
+        File dir = new File(parent, pipelineName.replaceAll("[^A-Za-z0-9._-]", "_"));
+        return child == null ? dir : new File(dir.getPath() + "-" + child);
+    }
+
     @Override
     public void shutdown() {
-
+        if (batcher != null) {
+            batcher.shutdown();
+        }
+        if (forwardLog != null) {
+            try {
+                forwardLog.close();
+            } catch (IOException ex) {
+                logger.error("Error closing store and forward log", ex);
+            }
+        }
+        if (tagDictionary != null) {
+            try {
+                tagDictionary.close();
+            } catch (IOException ex) {
+                logger.error("Error closing tag dictionary cache", ex);
+            }
+        }
+        if (ownsClients) {
+            clients.shutdown();
+        }
     }
 
     @Override
     public boolean isAccepting() {
-        // TODO: Determine if ADX is accepting data
-        return true;
+        // Not accepting makes Ignition keep the data in its own store & forward buffers
+        return batcher != null && batcher.isAccepting();
     }
 
     @Override
     public List<DataSinkInformation> getInfo() {
-        // TODO: Determine the status of the ADX history sink
         return Arrays.asList(new HistorySinkStatus());
     }
 
     @Override
     public QuarantineManager getQuarantineManager() {
-        return null; // Not implemented
+        return quarantine == null ? null : new SinkQuarantineManager();
     }
 
     /**
      * Called from Ignition when tags change and have data available for storage.
+     * The values are handed to the batcher's workers, which encode and compress
+     * them straight into their current batches and ingest them from there, or
+     * spool them to disk if there are more than the spool threshold.
      */
     @Override
-    public void storeData(HistoricalData data) throws IOException, IngestionClientException, IngestionServiceException { // TODO Should we fail on error?
+    public void storeData(HistoricalData data) throws IOException {
         logger.debug("Received data of type '" + data.getClass().toString() + "'");
-
-        List<AzureKustoTagValue> records = new ArrayList<AzureKustoTagValue>();
+        if (batcher == null) {
+            throw new IOException("Azure Kusto history sink '" + pipelineName + "' is not started");
+        }
 
         List<HistoricalData> dataList;
         if (data instanceof DataTransaction) {
@@ -143,74 +318,109 @@ public class AzureKustoHistorySink implements DataSink {
             dataList = Collections.singletonList(data);
         }
 
-        // Find all of the tags passed in that have data
+        // Find all of the tags passed in that have data, single values of a transaction go to the batcher together
         logger.debug("History set with '" + dataList.size() + "' row(s)");
+        List<HistoricalTagValue> values = new ArrayList<>();
         for (HistoricalData d : dataList) {
             if (d instanceof ScanclassHistorySet) {
                 ScanclassHistorySet dSet = (ScanclassHistorySet) d;
                 logger.debug("Scan class set '" + dSet.getSetName() + "' has '" + dSet.size() + "' tag(s)");
-                for (HistoricalTagValue historicalTagValue : dSet) {
-                    AzureKustoTagValue tagValue = new AzureKustoTagValue(context, historicalTagValue);
-                    logger.trace(tagValue.toString());
-                    records.add(tagValue);
-                }
+                batcher.add(dSet, tagValueWriter);
             } else if (d instanceof HistoricalTagValue) {
-                HistoricalTagValue dValue = (HistoricalTagValue) d;
-                AzureKustoTagValue tagValue = new AzureKustoTagValue(context, dValue);
-                logger.trace(tagValue.toString());
-                records.add(tagValue);
+                values.add((HistoricalTagValue) d);
             }
         }
-
-        ingestRecords(records);
+        if (!values.isEmpty()) {
+            batcher.add(values, tagValueWriter);
+        }
     }
 
-    void ingestRecords(List<AzureKustoTagValue> records) throws IngestionClientException, IngestionServiceException, IOException {
-        ByteArrayOutputStream bis = new ByteArrayOutputStream();
-        GZIPOutputStream gzipOutputStream = new GZIPOutputStream(bis);
-        OutputStreamWriter outputStreamWriter = new OutputStreamWriter(gzipOutputStream);
-        CsvWriter csvWriter = new CsvWriter(outputStreamWriter, new CsvWriterSettings());
-        // Write as csv stream
-        if (records.size() > 0) {
-            // TODO how much data can one such batch have - maybe we should write straight to blob
-            logger.debug("Logging " + records.size() + " records");
-            for (AzureKustoTagValue record : records) {
-                Object[] recordAsObjects = new Object[8];
-                csvWriter.writeRow();
-                if (record.getTag().getSystemName() != null) recordAsObjects[0] = record.getTag().getSystemName();
-                if (record.getTag().getTagProvider() != null) recordAsObjects[1] = record.getTag().getTagProvider();
-                if (record.getTag().getTagPath() != null) recordAsObjects[2] = record.getTag().getTagPath();
-                Object value = record.getValue();
-                if (value != null) {
-                    ObjectMapper objectMapper = new ObjectMapper();
-                    String valueAsJson = objectMapper.writeValueAsString(value);
-                    recordAsObjects[3] = valueAsJson;
-
-                    if (value instanceof Double || value instanceof Float) {
-                        recordAsObjects[4] = value;
-                    } else if (value instanceof Boolean || value instanceof Byte || value instanceof Short || value instanceof Integer || value instanceof Long) {
-                        recordAsObjects[4] = value;
-                        recordAsObjects[5] = value;
-                    }
-                }
+    /**
+     * Writes Ignition's tag values into a batch. Values are partitioned by their
+     * tag path, so the values of one tag stay in order.
+     */
+    private final AzureKustoBatcher.RowWriter<HistoricalTagValue> tagValueWriter = new AzureKustoBatcher.RowWriter<HistoricalTagValue>() {
+        @Override
+        public int partitionHash(HistoricalTagValue historicalTagValue) {
+            return historicalTagValue.getSource().hashCode();
+        }
 
-                if (record.getTimestamp() != null) {
-                    String formattedDate = simpleDateFormat.format(record.getTimestamp());
-                    recordAsObjects[6] = formattedDate;
-                }
-                if (record.getQuality() != null) recordAsObjects[7] = record.getQuality();
-                csvWriter.writeRow(recordAsObjects);
+        @Override
+        public void write(HistoricalTagValue historicalTagValue, AzureKustoBatch batch, AzureKustoCompressor compressor) throws IOException {
+            TagPath source = historicalTagValue.getSource();
+            String systemName = source.getSystem() == null ? context.getSystemProperties().getSystemName() : source.getSystem();
+            String tagProvider = source.getSource();
+            String tagPath = source.toStringPartial();
+            Object value = historicalTagValue.getValue();
+            Date timestamp = historicalTagValue.getTimestamp();
+            int quality = ((DataQuality) historicalTagValue.getQuality()).getIntValue();
+            if (logger.isTraceEnabled()) {
+                logger.trace("Storing [" + systemName + ";" + tagProvider + "]" + tagPath + " value=" + value + ", timestamp=" + timestamp + ", quality=" + quality);
+            }
+
+            if (compressor == null && tagDictionary == null) {
+                batch.add(systemName, tagProvider, tagPath, value, timestamp, quality);
+                return;
+            }
+
+            AzureKustoTag tag = tagCache.intern(systemName, tagProvider, tagPath);
+            if (tagDictionary != null) {
+                tagDictionary.add(tag);
             }
+            if (compressor != null) {
+                compressor.write(batch, tag, value, timestamp, quality);
+            } else {
+                batch.add(tag, value, timestamp, quality);
+            }
+        }
+    };
+
+    /**
+     * Hands a spool file to the queued ingest client, which uploads it straight from disk.
+     */
+    void ingestFile(File file, AzureKustoIngestionFormat format, long rowCount, long rawBytes) throws IngestionClientException, IngestionServiceException, IOException {
+        long compressedBytes = file.length();
+        logger.debug("Logging " + rowCount + " records from " + file.getName() + ", " + compressedBytes + " compressed byte(s)");
+        long start = System.nanoTime();
+        try {
+            flushTagDictionary();
+            router.ingestFile(file, rowCount, rawBytes, ingestionProperties.get(format));
+        } catch (IngestionClientException | IngestionServiceException | IOException | RuntimeException ex) {
+            metrics.recordFailure();
+            throw ex;
+        }
+        metrics.recordIngested(rowCount, rawBytes, compressedBytes, System.nanoTime() - start);
+    }
+
+    /**
+     * Hands the compressed payload of a sealed batch to the streaming or queued
+     * ingest client. The client reads straight from the pooled buffers.
+     */
+    void ingestBatch(AzureKustoBatch batch) throws IngestionClientException, IngestionServiceException, IOException {
+        logger.debug("Logging " + batch.getRowCount() + " records, " + batch.getPayload().size() + " compressed byte(s)");
+        long start = System.nanoTime();
+        try {
+            flushTagDictionary();
+            router.ingest(batch, ingestionProperties.get(batch.getFormat()));
+        } catch (IngestionClientException | IngestionServiceException | IOException | RuntimeException ex) {
+            metrics.recordFailure();
+            throw ex;
+        }
+        metrics.recordIngested(batch.getRowCount(), batch.getEstimatedBytes(), batch.getPayload().size(), System.nanoTime() - start);
+    }
+
+    /**
+     * Adds the tags that are new since the last batch to the dictionary table,
+     * before the rows that refer to them.
+     */
+    private void flushTagDictionary() throws IngestionClientException, IngestionServiceException, IOException {
+        if (tagDictionary != null) {
+            tagDictionary.flush(bufferPool, tags -> router.ingest(tags, tagIngestionProperties));
         }
-        csvWriter.flush();
-        gzipOutputStream.finish();
-        gzipOutputStream.close();
-        StreamSourceInfo streamSourceInfo = new StreamSourceInfo(new ByteArrayInputStream(bis.toByteArray()), false);
-        streamSourceInfo.setCompressionType(CompressionType.gz);
-        gzipOutputStream.finish();
-        gzipOutputStream.close();
-        // Can change here to streaming
-        queuedClient.ingestFromStream(streamSourceInfo, ingestionProperties);
+    }
+
+    public AzureKustoSinkMetrics getMetrics() {
+        return metrics;
     }
 
     @Override
@@ -227,7 +437,11 @@ public class AzureKustoHistorySink implements DataSink {
 
         @Override
         public DataStoreStatus getDataStoreStatus() {
-            return null;
+            if (batcher == null) {
+                return DataStoreStatus.UNAVAILABLE;
+            }
+            boolean breakerOpen = batcher.getCircuitBreaker().getState() != AzureKustoCircuitBreaker.State.CLOSED;
+            return breakerOpen || metrics.isFailing() || !batcher.isAccepting() ? DataStoreStatus.ERROR : DataStoreStatus.ACTIVE;
         }
 
         @Override
@@ -247,12 +461,108 @@ public class AzureKustoHistorySink implements DataSink {
 
         @Override
         public List<LocalizedString> getMessages() {
-            return null;
+            if (batcher == null) {
+                return null;
+            }
+
+            List<LocalizedString> messages = new ArrayList<>();
+            long pendingBytes = batcher.getPendingBytes();
+            long highWatermark = Math.max(1, batcher.getHighWatermarkBytes());
+            messages.add(new LocalizedString("AzureKustoHistoryProvider.Sink.Pressure",
+                    batcher.getPendingBatches(), pendingBytes / 1024, pendingBytes * 100 / highWatermark));
+            if (!batcher.isAccepting()) {
+                messages.add(new LocalizedString("AzureKustoHistoryProvider.Sink.NotAccepting"));
+            }
+            messages.add(new LocalizedString("AzureKustoHistoryProvider.Sink.Throughput",
+                    Math.round(metrics.getRowsPerSecond()), Math.round(metrics.getBytesPerSecond() / 1024), metrics.getRowsIngested(), metrics.getBatchesIngested()));
+            messages.add(new LocalizedString("AzureKustoHistoryProvider.Sink.Bytes",
+                    metrics.getRawBytes() / 1024 / 1024, metrics.getCompressedBytes() / 1024 / 1024,
+                    String.format("%.1f", (double) metrics.getRawBytes() / Math.max(1, metrics.getCompressedBytes()))));
+            AzureKustoHistogram batchRows = metrics.getBatchRows();
+            messages.add(new LocalizedString("AzureKustoHistoryProvider.Sink.BatchSize",
+                    batchRows.getValueAtPercentile(50), batchRows.getValueAtPercentile(90), batchRows.getValueAtPercentile(99), batchRows.getMax()));
+            AzureKustoHistogram encode = metrics.getEncodeMicros();
+            messages.add(new LocalizedString("AzureKustoHistoryProvider.Sink.Encode",
+                    Math.round(metrics.getEncodeNanosPerRow()), encode.getValueAtPercentile(50) / 1000.0, encode.getValueAtPercentile(99) / 1000.0));
+            AzureKustoHistogram upload = metrics.getUploadMicros();
+            messages.add(new LocalizedString("AzureKustoHistoryProvider.Sink.Upload",
+                    upload.getValueAtPercentile(50) / 1000, upload.getValueAtPercentile(90) / 1000, upload.getValueAtPercentile(99) / 1000, upload.getMax() / 1000));
+            messages.add(new LocalizedString("AzureKustoHistoryProvider.Sink.Queues",
+                    batcher.getEncodeQueueDepth(), batcher.getUploadQueueDepth()));
+            if (metrics.getFailures() > 0 || metrics.getRowsSkipped() > 0) {
+                messages.add(new LocalizedString("AzureKustoHistoryProvider.Sink.Failures", metrics.getFailures(), metrics.getRowsSkipped()));
+            }
+            AzureKustoCircuitBreaker breaker = batcher.getCircuitBreaker();
+            if (breaker.getState() != AzureKustoCircuitBreaker.State.CLOSED) {
+                long seconds = Math.max(0, breaker.getOpenUntil() - System.currentTimeMillis()) / 1000;
+                messages.add(new LocalizedString("AzureKustoHistoryProvider.Sink.CircuitOpen", breaker.getState(), seconds));
+            }
+            if (metrics.getRetries() > 0) {
+                messages.add(new LocalizedString("AzureKustoHistoryProvider.Sink.Retries",
+                        metrics.getRetries(), batcher.getRetryingBatches(), forwardLog == null ? 0 : forwardLog.getPendingCount()));
+            }
+            if (metrics.getRowsRejected() > 0 || (quarantine != null && quarantine.size() > 0)) {
+                messages.add(new LocalizedString("AzureKustoHistoryProvider.Sink.Quarantine",
+                        metrics.getRowsRejected(), quarantine == null ? 0 : quarantine.getRowCount(), quarantine == null ? 0 : quarantine.size()));
+            }
+            if (tagDictionary != null) {
+                messages.add(new LocalizedString("AzureKustoHistoryProvider.Sink.TagDictionary", tagDictionary.size(), tagDictionary.getPendingCount()));
+            }
+            AzureKustoCompressionStats compression = batcher.getCompressionStats();
+            if (compression != null) {
+                messages.add(new LocalizedString("AzureKustoHistoryProvider.Sink.Compression",
+                        compression.getStored(), compression.getReceived(), compression.getTagCount(),
+                        String.format("%.1f", compression.getRatio()), String.format("%.1f", compression.getTagRatioPercentile(10)),
+                        String.format("%.1f", compression.getTagRatioPercentile(50)), String.format("%.1f", compression.getTagRatioPercentile(90))));
+            }
+            return messages;
         }
 
         @Override
         public StatMetric getStorageMetric() {
-            return null;
+            return metrics.getStorageMetric();
+        }
+    }
+
+    /**
+     * Lets the gateway's store and forward page list, resend and delete the rows
+     * ADX rejected. Resent rows go through the batcher like any other batch, if
+     * ADX rejects them again they end up back in the quarantine.
+     */
+    protected class SinkQuarantineManager implements QuarantineManager {
+
+        @Override
+        public List<QuarantinedDataInfo> getQuarantinedDataInfo() {
+            List<QuarantinedDataInfo> infos = new ArrayList<>();
+            for (AzureKustoQuarantine.Entry entry : quarantine.getEntries()) {
+                infos.add(new QuarantinedDataInfo(entry.getId(), HistoryFlavor.SQLTAG, (int) entry.getRowCount(), entry.getReason()));
+            }
+            return infos;
+        }
+
+        @Override
+        public void unquarantineData(List<Long> ids) {
+            for (Long id : ids) {
+                try {
+                    AzureKustoBatch batch = quarantine.read(id);
+                    try {
+                        batcher.submit(batch);
+                    } catch (IOException ex) {
+                        batch.discard();
+                        throw ex;
+                    }
+                    quarantine.delete(id);
+                } catch (IOException ex) {
+                    logger.error("Unable to resend quarantined data " + id, ex);
+                }
+            }
+        }
+
+        @Override
+        public void deleteQuarantinedData(List<Long> ids) {
+            for (Long id : ids) {
+                quarantine.delete(id);
+            }
         }
     }
 }
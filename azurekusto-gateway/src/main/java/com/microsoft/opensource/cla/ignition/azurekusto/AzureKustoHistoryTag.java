@@ -11,11 +11,17 @@ import com.inductiveautomation.ignition.gateway.sqltags.history.query.columns.Pr
 public class AzureKustoHistoryTag {
     private AzureKustoTag tag;
     private Aggregate aggregate;
+    private String kqlFunction; // The aggregate of this column, or of the query if it has none
     private HistoryNode historyTag;
 
     public AzureKustoHistoryTag(AzureKustoTag tag, Aggregate aggregate, HistoryNode historyTag) {
+        this(tag, aggregate, AzureKustoAggregates.getKqlFunction(aggregate), historyTag);
+    }
+
+    public AzureKustoHistoryTag(AzureKustoTag tag, Aggregate aggregate, String kqlFunction, HistoryNode historyTag) {
         this.tag = tag;
         this.aggregate = aggregate;
+        this.kqlFunction = kqlFunction;
         this.historyTag = historyTag;
     }
 
@@ -27,6 +33,10 @@ public class AzureKustoHistoryTag {
         return aggregate;
     }
 
+    public String getKqlFunction() {
+        return kqlFunction;
+    }
+
     public HistoryNode getHistoryTag() {
         return historyTag;
     }
@@ -0,0 +1,215 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import com.microsoft.azure.kusto.ingest.IngestClient;
+import com.microsoft.azure.kusto.ingest.IngestionProperties;
+import com.microsoft.azure.kusto.ingest.exceptions.IngestionClientException;
+import com.microsoft.azure.kusto.ingest.exceptions.IngestionServiceException;
+import com.microsoft.azure.kusto.ingest.source.CompressionType;
+import com.microsoft.azure.kusto.ingest.source.FileSourceInfo;
+import com.microsoft.azure.kusto.ingest.source.StreamSourceInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides per batch whether it goes through streaming ingestion (seconds of
+ * latency, limited payload size) or queued ingestion (minutes of latency, no
+ * practical size limit). Small batches are streamed while streaming is enabled
+ * and healthy. Large batches, batches streaming already rejected and everything
+ * while the streaming error rate is too high go through queued ingestion.
+ */
+public class AzureKustoIngestRouter {
+    private static final double ERROR_RATE_ALPHA = 0.2; // Weight of the latest outcome in the error rate
+    private static final double MAX_STREAMING_ERROR_RATE = 0.5;
+    private static final long STREAMING_SUSPEND_MILLIS = 60000;
+
+    public enum Path {
+        STREAMING,
+        QUEUED
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final IngestClient streamingClient;
+    private final IngestClient queuedClient;
+    private final boolean streamingEnabled;
+    private final long streamingMaxBytes;
+
+    private volatile double streamingErrorRate;
+    private volatile long streamingSuspendedUntil;
+
+    private final PathStats streamingStats = new PathStats();
+    private final PathStats queuedStats = new PathStats();
+
+    public AzureKustoIngestRouter(IngestClient streamingClient, IngestClient queuedClient, AzureKustoHistoryProviderSettings settings) {
+        this.streamingClient = streamingClient;
+        this.queuedClient = queuedClient;
+        this.streamingEnabled = settings.isStreaming() && streamingClient != null;
+        this.streamingMaxBytes = settings.getStreamingMaxSizeKB() * 1024L;
+    }
+
+    /**
+     * Ingests the sealed batch through the best path. If streaming fails, the
+     * batch is marked so it goes through queued ingestion from then on, and
+     * queued ingestion is tried right away. A batch ADX rejected for good is
+     * not sent again, the error is thrown for the batcher to find the rows at
+     * fault, unless the rejection is about streaming itself.
+     */
+    public Path ingest(AzureKustoBatch batch, IngestionProperties ingestionProperties) throws IngestionClientException, IngestionServiceException {
+        if (choose(batch) == Path.STREAMING) {
+            try {
+                send(Path.STREAMING, batch, ingestionProperties);
+                onStreamingResult(true);
+                return Path.STREAMING;
+            } catch (IngestionClientException | IngestionServiceException | RuntimeException ex) {
+                if (AzureKustoRetryPolicy.isPermanent(ex) && !isAboutStreaming(ex)) {
+                    // Queued ingestion would only reject the rows later, out of sight of the quarantine
+                    throw ex;
+                }
+                onStreamingResult(false);
+                batch.setStreamingRejected(true);
+                logger.warn("Streaming ingestion of " + batch.getRowCount() + " row(s) failed, falling back to queued ingestion", ex);
+            }
+        }
+
+        send(Path.QUEUED, batch, ingestionProperties);
+        return Path.QUEUED;
+    }
+
+    /**
+     * Ingests a spool file. Spool files are larger than streaming allows, so they
+     * always go through queued ingestion.
+     */
+    public Path ingestFile(File file, long rowCount, long rawBytes, IngestionProperties ingestionProperties) throws IngestionClientException, IngestionServiceException {
+        long start = System.nanoTime();
+        queuedClient.ingestFromFile(new FileSourceInfo(file.getAbsolutePath(), rawBytes), ingestionProperties);
+        long elapsed = System.nanoTime() - start;
+
+        queuedStats.record(rowCount, file.length(), elapsed);
+        if (logger.isDebugEnabled()) {
+            logger.debug("QUEUED ingestion of " + rowCount + " spooled row(s) from " + file.getName() + " took " + elapsed / 1000000 + "ms, " + queuedStats);
+        }
+        return Path.QUEUED;
+    }
+
+    public Path choose(AzureKustoBatch batch) {
+        if (!streamingEnabled || batch.isStreamingRejected() || batch.getEstimatedBytes() > streamingMaxBytes) {
+            return Path.QUEUED;
+        }
+        if (System.currentTimeMillis() < streamingSuspendedUntil) {
+            return Path.QUEUED;
+        }
+        return Path.STREAMING;
+    }
+
+    public PathStats getStats(Path path) {
+        return path == Path.STREAMING ? streamingStats : queuedStats;
+    }
+
+    public double getStreamingErrorRate() {
+        return streamingErrorRate;
+    }
+
+    private void send(Path path, AzureKustoBatch batch, IngestionProperties ingestionProperties) throws IngestionClientException, IngestionServiceException {
+        IngestClient client = path == Path.STREAMING ? streamingClient : queuedClient;
+        StreamSourceInfo streamSourceInfo = new StreamSourceInfo(batch.getPayload().newInputStream(), false);
+        if (batch.getFormat().isGzipped()) {
+            streamSourceInfo.setCompressionType(CompressionType.gz);
+        }
+
+        long start = System.nanoTime();
+        client.ingestFromStream(streamSourceInfo, ingestionProperties);
+        long elapsed = System.nanoTime() - start;
+
+        PathStats stats = getStats(path);
+        stats.record(batch.getRowCount(), batch.getPayload().size(), elapsed);
+        if (logger.isDebugEnabled()) {
+            logger.debug(path + " ingestion of " + batch.getRowCount() + " row(s) took " + elapsed / 1000000 + "ms, " + stats);
+        }
+    }
+
+    /**
+     * Whether a failure is about streaming ingestion rather than the data, e.g.
+     * a table without a streaming ingestion policy.
+     */
+    private static boolean isAboutStreaming(Throwable ex) {
+        for (Throwable t = ex; t != null; t = t.getCause() == t ? null : t.getCause()) {
+            String message = t.getMessage();
+            if (message != null && message.contains("StreamingIngestion")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void onStreamingResult(boolean success) {
+        double errorRate = streamingErrorRate * (1 - ERROR_RATE_ALPHA) + (success ? 0 : ERROR_RATE_ALPHA);
+        if (errorRate > MAX_STREAMING_ERROR_RATE) {
+            logger.warn("Streaming ingestion error rate is " + Math.round(errorRate * 100) + "%, using queued ingestion for the next " + STREAMING_SUSPEND_MILLIS / 1000 + "s");
+            streamingSuspendedUntil = System.currentTimeMillis() + STREAMING_SUSPEND_MILLIS;
+            // Start probing again at half the threshold, so a single failure after the pause suspends it again quickly
+            errorRate = MAX_STREAMING_ERROR_RATE / 2;
+        }
+        streamingErrorRate = errorRate;
+    }
+
+    /**
+     * Latency and throughput of one ingestion path.
+     */
+    public static class PathStats {
+        private final AtomicLong batches = new AtomicLong();
+        private final AtomicLong rows = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong nanos = new AtomicLong();
+        private volatile long lastLatencyNanos;
+
+        void record(long rowCount, long byteCount, long elapsedNanos) {
+            batches.incrementAndGet();
+            rows.addAndGet(rowCount);
+            bytes.addAndGet(byteCount);
+            nanos.addAndGet(elapsedNanos);
+            lastLatencyNanos = elapsedNanos;
+        }
+
+        public long getBatches() {
+            return batches.get();
+        }
+
+        public long getRows() {
+            return rows.get();
+        }
+
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        public double getAverageLatencyMillis() {
+            long count = batches.get();
+            return count == 0 ? 0 : nanos.get() / 1e6 / count;
+        }
+
+        public double getLastLatencyMillis() {
+            return lastLatencyNanos / 1e6;
+        }
+
+        /**
+         * Rows per second of time spent in ingestion calls on this path.
+         */
+        public double getRowsPerSecond() {
+            long elapsed = nanos.get();
+            return elapsed == 0 ? 0 : rows.get() * 1e9 / elapsed;
+        }
+
+        public double getBytesPerSecond() {
+            long elapsed = nanos.get();
+            return elapsed == 0 ? 0 : bytes.get() * 1e9 / elapsed;
+        }
+
+        @Override
+        public String toString() {
+            return "batches=" + getBatches() + ", rows=" + getRows() + ", avgLatency=" + Math.round(getAverageLatencyMillis()) + "ms, rows/s=" + Math.round(getRowsPerSecond());
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import com.microsoft.azure.kusto.ingest.IngestionMapping;
+import com.microsoft.azure.kusto.ingest.IngestionProperties;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The formats the sink can send batches to ADX in. The text formats are gzipped
+ * as a whole, Avro compresses its own blocks.
+ */
+public enum AzureKustoIngestionFormat {
+    CSV(IngestionProperties.DATA_FORMAT.csv, null, true, "csv"),
+    MULTIJSON(IngestionProperties.DATA_FORMAT.multijson, IngestionMapping.IngestionMappingKind.json, true, "json"),
+    AVRO(IngestionProperties.DATA_FORMAT.avro, IngestionMapping.IngestionMappingKind.avro, false, "avro");
+
+    private final IngestionProperties.DATA_FORMAT dataFormat;
+    private final IngestionMapping.IngestionMappingKind mappingKind;
+    private final boolean gzipped;
+    private final String extension;
+
+    AzureKustoIngestionFormat(IngestionProperties.DATA_FORMAT dataFormat, IngestionMapping.IngestionMappingKind mappingKind, boolean gzipped, String extension) {
+        this.dataFormat = dataFormat;
+        this.mappingKind = mappingKind;
+        this.gzipped = gzipped;
+        this.extension = extension;
+    }
+
+    public IngestionProperties.DATA_FORMAT getDataFormat() {
+        return dataFormat;
+    }
+
+    /**
+     * The kind of ingestion mapping the format needs, null if it maps by column order.
+     */
+    public IngestionMapping.IngestionMappingKind getMappingKind() {
+        return mappingKind;
+    }
+
+    public String getMappingName() {
+        return "Ignition_" + name().toLowerCase();
+    }
+
+    /**
+     * Whether the payload is gzipped by the batch, or compressed by the format itself.
+     */
+    public boolean isGzipped() {
+        return gzipped;
+    }
+
+    /**
+     * The file name extension of a payload in this format. The ingest client
+     * tells gzipped files by their .gz extension.
+     */
+    public String getFileExtension() {
+        return gzipped ? "." + extension + ".gz" : "." + extension;
+    }
+
+    /**
+     * Creates an encoder writing to the stream, for rows of a table with the layout.
+     */
+    public AzureKustoBatchEncoder newEncoder(OutputStream out, AzureKustoTableLayout layout) {
+        switch (this) {
+            case MULTIJSON:
+                return new AzureKustoJsonEncoder(new OutputStreamWriter(out, StandardCharsets.UTF_8), layout);
+            case AVRO:
+                return new AzureKustoAvroEncoder(out, layout);
+            default:
+                return new AzureKustoRowEncoder(new OutputStreamWriter(out, StandardCharsets.UTF_8), layout);
+        }
+    }
+
+    /**
+     * Splits the payload of a sealed batch in this format back into its encoded
+     * rows, which can be written to a new batch with writeRawRow.
+     */
+    public List<byte[]> readRows(InputStream payload) throws IOException {
+        InputStream in = gzipped ? new GZIPInputStream(payload, 8192) : payload;
+        switch (this) {
+            case MULTIJSON:
+                return AzureKustoRowEncoder.readLines(in, false); // Json escapes line breaks inside strings
+            case AVRO:
+                return AzureKustoAvroEncoder.readRows(in);
+            default:
+                return AzureKustoRowEncoder.readLines(in, true);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+/**
+ * Encodes tag values as one json object per line (the multijson format). The
+ * value keeps its json type, so Kusto doesn't have to parse it out of a string
+ * for the dynamic column, and the timestamp is written as milliseconds since the
+ * epoch. Columns without a value are left out of the object, so the row of a
+ * typed table (see AzureKustoTableSchema) only has the value column of its type.
+ */
+public class AzureKustoJsonEncoder implements AzureKustoBatchEncoder {
+    private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+    private final Writer out;
+    private final boolean typed;
+    private long rows;
+    private long charCount;
+
+    public AzureKustoJsonEncoder(Writer out) {
+        this(out, AzureKustoTableLayout.DEFAULT);
+    }
+
+    public AzureKustoJsonEncoder(Writer out, AzureKustoTableLayout layout) {
+        this.out = out;
+        this.typed = layout.isTyped();
+    }
+
+    @Override
+    public void writeRow(String systemName, String tagProvider, String tagPath, Object value, Date timestamp, Integer quality) throws IOException {
+        Buffers buffers = BUFFERS.get();
+        StringBuilder line = buffers.line;
+        line.setLength(0);
+
+        line.append('{');
+        appendString(line, AzureKustoTableSchema.SYSTEM_NAME, systemName);
+        line.append(',');
+        appendString(line, AzureKustoTableSchema.TAG_PROVIDER, tagProvider);
+        line.append(',');
+        appendString(line, AzureKustoTableSchema.TAG_PATH, tagPath);
+        writeColumns(buffers, line, value, timestamp, quality);
+    }
+
+    @Override
+    public void writeRow(long tagId, Object value, Date timestamp, Integer quality) throws IOException {
+        Buffers buffers = BUFFERS.get();
+        StringBuilder line = buffers.line;
+        line.setLength(0);
+
+        line.append('{');
+        appendName(line, AzureKustoTableSchema.TAG_ID).append(tagId);
+        writeColumns(buffers, line, value, timestamp, quality);
+    }
+
+    /**
+     * Appends the properties after the tag to the line and writes it out.
+     */
+    private void writeColumns(Buffers buffers, StringBuilder line, Object value, Date timestamp, Integer quality) throws IOException {
+        if (typed) {
+            appendTypedValue(line, value);
+        } else {
+            appendValue(line, value);
+        }
+        if (timestamp != null) {
+            appendName(line.append(','), AzureKustoTableSchema.TIMESTAMP).append(timestamp.getTime());
+        }
+        if (quality != null) {
+            appendName(line.append(','), AzureKustoTableSchema.QUALITY).append(quality.intValue());
+        }
+        line.append("}\n");
+
+        int length = line.length();
+        char[] chars = buffers.chars(length);
+        line.getChars(0, length, chars, 0);
+        out.write(chars, 0, length);
+        rows++;
+        charCount += length;
+    }
+
+    @Override
+    public void writeRawRow(byte[] row) throws IOException {
+        String line = new String(row, StandardCharsets.UTF_8);
+        out.write(line);
+        rows++;
+        charCount += line.length();
+    }
+
+    @Override
+    public long getRowCount() {
+        return rows;
+    }
+
+    @Override
+    public long getRawBytes() {
+        return charCount;
+    }
+
+    @Override
+    public void finish() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Appends the value, value_double and value_integer properties.
+     */
+    private static void appendValue(StringBuilder line, Object value) throws IOException {
+        if (value == null) {
+            return;
+        }
+
+        line.append(',');
+        appendName(line, AzureKustoTableSchema.VALUE);
+        if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d)) {
+                // Not valid json numbers, Kusto parses these strings into a real
+                line.append('"').append(d).append("\",");
+                appendName(line, AzureKustoTableSchema.VALUE_DOUBLE).append('"').append(d).append('"');
+            } else {
+                String s = value instanceof Float ? Float.toString((Float) value) : Double.toString(d);
+                line.append(s).append(',');
+                appendName(line, AzureKustoTableSchema.VALUE_DOUBLE).append(s);
+            }
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            long l = ((Number) value).longValue();
+            line.append(l).append(',');
+            appendName(line, AzureKustoTableSchema.VALUE_DOUBLE).append(l).append(',');
+            appendName(line, AzureKustoTableSchema.VALUE_INTEGER).append(l);
+        } else if (value instanceof Boolean) {
+            boolean b = (Boolean) value;
+            line.append(b).append(',');
+            appendName(line, AzureKustoTableSchema.VALUE_DOUBLE).append(b ? 1 : 0).append(',');
+            appendName(line, AzureKustoTableSchema.VALUE_INTEGER).append(b ? 1 : 0);
+        } else if (value instanceof String) {
+            AzureKustoRowEncoder.appendJsonString(line, (String) value);
+        } else {
+            line.append(AzureKustoRowEncoder.JSON_WRITER.writeValueAsString(value));
+        }
+    }
+
+    /**
+     * Appends the one value column of a typed table that matches the value.
+     */
+    private static void appendTypedValue(StringBuilder line, Object value) throws IOException {
+        if (value == null) {
+            return;
+        }
+
+        line.append(',');
+        if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            appendName(line, AzureKustoTableSchema.VALUE_DOUBLE);
+            if (Double.isNaN(d) || Double.isInfinite(d)) {
+                line.append('"').append(d).append('"');
+            } else {
+                line.append(value instanceof Float ? Float.toString((Float) value) : Double.toString(d));
+            }
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            appendName(line, AzureKustoTableSchema.VALUE_LONG).append(((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            appendName(line, AzureKustoTableSchema.VALUE_BOOL).append((boolean) (Boolean) value);
+        } else if (value instanceof String) {
+            appendString(line, AzureKustoTableSchema.VALUE_STRING, (String) value);
+        } else {
+            appendName(line, AzureKustoTableSchema.VALUE_DYNAMIC).append(AzureKustoRowEncoder.JSON_WRITER.writeValueAsString(value));
+        }
+    }
+
+    private static void appendString(StringBuilder line, String name, String value) {
+        appendName(line, name);
+        if (value == null) {
+            line.append("null");
+        } else {
+            AzureKustoRowEncoder.appendJsonString(line, value);
+        }
+    }
+
+    private static StringBuilder appendName(StringBuilder line, String name) {
+        return line.append('"').append(name).append("\":");
+    }
+
+    /**
+     * Per-thread buffers, reused across rows and encoders.
+     */
+    private static class Buffers {
+        private final StringBuilder line = new StringBuilder(256);
+        private char[] chars = new char[256];
+
+        private char[] chars(int length) {
+            if (chars.length < length) {
+                chars = new char[Math.max(length, chars.length * 2)];
+            }
+            return chars;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An output stream that collects the compressed bytes of a batch in chunks
+ * borrowed from an AzureKustoBufferPool. The bytes are read back through
+ * newInputStream() directly from the chunks, without another copy on the heap.
+ */
+public class AzureKustoPayload extends OutputStream {
+    private final AzureKustoBufferPool pool;
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private ByteBuffer current;
+    private long size;
+    private boolean released;
+
+    public AzureKustoPayload(AzureKustoBufferPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public void write(int b) {
+        if (current == null || !current.hasRemaining()) {
+            nextChunk();
+        }
+        current.put((byte) b);
+        size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        while (len > 0) {
+            if (current == null || !current.hasRemaining()) {
+                nextChunk();
+            }
+            int n = Math.min(len, current.remaining());
+            current.put(b, off, n);
+            off += n;
+            len -= n;
+            size += n;
+        }
+    }
+
+    private void nextChunk() {
+        if (released) {
+            throw new IllegalStateException("Payload has already been released");
+        }
+        current = pool.acquire();
+        chunks.add(current);
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Returns read-only views over the bytes written so far, one per chunk.
+     */
+    public ByteBuffer[] getBuffers() {
+        ByteBuffer[] views = new ByteBuffer[chunks.size()];
+        for (int i = 0; i < views.length; i++) {
+            ByteBuffer view = chunks.get(i).asReadOnlyBuffer();
+            view.flip();
+            views[i] = view;
+        }
+        return views;
+    }
+
+    /**
+     * Returns a new stream over the bytes written so far. Can be called more than
+     * once, e.g. when an ingestion is retried.
+     */
+    public InputStream newInputStream() {
+        final ByteBuffer[] views = getBuffers();
+
+        return new InputStream() {
+            private int index;
+
+            private ByteBuffer next() {
+                while (index < views.length) {
+                    ByteBuffer view = views[index];
+                    if (view.hasRemaining()) {
+                        return view;
+                    }
+                    index++;
+                }
+                return null;
+            }
+
+            @Override
+            public int read() {
+                ByteBuffer view = next();
+                return view == null ? -1 : view.get() & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (len == 0) {
+                    return 0;
+                }
+                ByteBuffer view = next();
+                if (view == null) {
+                    return -1;
+                }
+                int n = Math.min(len, view.remaining());
+                view.get(b, off, n);
+                return n;
+            }
+
+            @Override
+            public int available() {
+                ByteBuffer view = next();
+                return view == null ? 0 : view.remaining();
+            }
+        };
+    }
+
+    /**
+     * Appends length bytes read from the channel at the given position.
+     */
+    public void readFrom(FileChannel channel, long position, long length) throws IOException {
+        while (length > 0) {
+            if (current == null || !current.hasRemaining()) {
+                nextChunk();
+            }
+            int limit = current.limit();
+            current.limit(current.position() + (int) Math.min(length, current.remaining()));
+            try {
+                while (current.hasRemaining()) {
+                    int n = channel.read(current, position);
+                    if (n < 0) {
+                        throw new EOFException("Unexpected end of file reading payload");
+                    }
+                    position += n;
+                    length -= n;
+                    size += n;
+                }
+            } finally {
+                current.limit(limit);
+            }
+        }
+    }
+
+    /**
+     * Hands the chunks back to the pool. The payload can't be read after this.
+     */
+    public void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        for (ByteBuffer chunk : chunks) {
+            pool.release(chunk);
+        }
+        chunks.clear();
+        current = null;
+    }
+}
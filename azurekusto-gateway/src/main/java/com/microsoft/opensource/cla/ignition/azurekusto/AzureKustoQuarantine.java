@@ -0,0 +1,265 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Keeps the rows ADX rejected for good on local disk, out of the way of the
+ * rest of the data. Each entry is the payload of a small batch in the format it
+ * was sent in, next to a properties file with why ADX rejected it. Entries
+ * survive restarts and stay until they are deleted or sent again from the
+ * gateway's store and forward status page (see the sink's QuarantineManager).
+ * <p>
+ * The properties file is written last, a payload without one is the leftover of
+ * an interrupted add and is deleted on startup.
+ */
+public class AzureKustoQuarantine {
+    private static final String PREFIX = "quarantine-";
+    private static final String INFO_SUFFIX = ".properties";
+
+    /**
+     * One quarantined batch.
+     */
+    public static class Entry {
+        private final long id;
+        private final File file;
+        private final AzureKustoIngestionFormat format;
+        private final AzureKustoTableLayout layout;
+        private final long rowCount;
+        private final long rawBytes;
+        private final long time;
+        private final String reason;
+
+        Entry(long id, File file, AzureKustoIngestionFormat format, AzureKustoTableLayout layout, long rowCount, long rawBytes, long time, String reason) {
+            this.id = id;
+            this.file = file;
+            this.format = format;
+            this.layout = layout;
+            this.rowCount = rowCount;
+            this.rawBytes = rawBytes;
+            this.time = time;
+            this.reason = reason;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public AzureKustoIngestionFormat getFormat() {
+            return format;
+        }
+
+        public long getRowCount() {
+            return rowCount;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final File dir;
+    private final AzureKustoBufferPool pool;
+    private final long maxBytes;
+
+    // Guarded by this
+    private final TreeMap<Long, Entry> entries = new TreeMap<>();
+    private long nextId = 1;
+    private long diskBytes;
+    private long rowCount;
+
+    /**
+     * Opens the quarantine in the directory, with the entries a previous run left there.
+     */
+    public AzureKustoQuarantine(File dir, AzureKustoBufferPool pool, long maxBytes) throws IOException {
+        Files.createDirectories(dir.toPath());
+        this.dir = dir;
+        this.pool = pool;
+        this.maxBytes = maxBytes;
+        recover();
+    }
+
+    /**
+     * Stores the payload of a sealed batch. Returns false, and stores nothing, if
+     * the quarantine is full.
+     */
+    public synchronized boolean add(AzureKustoBatch batch, String reason) throws IOException {
+        long size = batch.getPayload().size();
+        if (diskBytes + size > maxBytes) {
+            return false;
+        }
+
+        long id = nextId++;
+        File file = new File(dir, PREFIX + id + batch.getFormat().getFileExtension());
+        File infoFile = new File(dir, PREFIX + id + INFO_SUFFIX);
+        long time = System.currentTimeMillis();
+        try {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                for (ByteBuffer buffer : batch.getPayload().getBuffers()) {
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+                channel.force(true);
+            }
+
+            Properties info = new Properties();
+            info.setProperty("format", batch.getFormat().name());
+            info.setProperty("layout", batch.getLayout().name());
+            info.setProperty("rows", Long.toString(batch.getRowCount()));
+            info.setProperty("rawBytes", Long.toString(batch.getEstimatedBytes()));
+            info.setProperty("time", Long.toString(time));
+            info.setProperty("reason", reason == null ? "" : reason);
+            try (OutputStream out = new FileOutputStream(infoFile)) {
+                info.store(out, null);
+            }
+        } catch (IOException ex) {
+            delete(file);
+            delete(infoFile);
+            throw ex;
+        }
+
+        entries.put(id, new Entry(id, file, batch.getFormat(), batch.getLayout(), batch.getRowCount(), batch.getEstimatedBytes(), time, reason));
+        diskBytes += size;
+        rowCount += batch.getRowCount();
+        return true;
+    }
+
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    public synchronized Entry getEntry(long id) {
+        return entries.get(id);
+    }
+
+    /**
+     * Reads an entry back into a sealed batch in pooled buffers, e.g. to send it
+     * again. The entry stays until it is deleted.
+     */
+    public AzureKustoBatch read(long id) throws IOException {
+        Entry entry = getEntry(id);
+        if (entry == null) {
+            throw new IOException("No quarantined data with id " + id);
+        }
+
+        AzureKustoPayload payload = new AzureKustoPayload(pool);
+        try (FileChannel channel = FileChannel.open(entry.file.toPath(), StandardOpenOption.READ)) {
+            payload.readFrom(channel, 0, channel.size());
+        } catch (IOException | RuntimeException ex) {
+            payload.release();
+            throw ex;
+        }
+        return new AzureKustoBatch(payload, entry.format, entry.layout, entry.rowCount, entry.rawBytes);
+    }
+
+    public synchronized void delete(long id) {
+        Entry entry = entries.remove(id);
+        if (entry == null) {
+            return;
+        }
+        diskBytes -= entry.file.length();
+        rowCount -= entry.rowCount;
+        delete(new File(dir, PREFIX + id + INFO_SUFFIX));
+        delete(entry.file);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getRowCount() {
+        return rowCount;
+    }
+
+    public synchronized long getDiskBytes() {
+        return diskBytes;
+    }
+
+    private void recover() {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(PREFIX));
+        if (files == null) {
+            return;
+        }
+
+        // Entries first, then whatever payload has no entry
+        for (File infoFile : files) {
+            String name = infoFile.getName();
+            if (!name.endsWith(INFO_SUFFIX)) {
+                continue;
+            }
+            try {
+                long id = Long.parseLong(name.substring(PREFIX.length(), name.length() - INFO_SUFFIX.length()));
+                Properties info = new Properties();
+                try (InputStream in = new FileInputStream(infoFile)) {
+                    info.load(in);
+                }
+                AzureKustoIngestionFormat format = AzureKustoIngestionFormat.valueOf(info.getProperty("format"));
+                File file = new File(dir, PREFIX + id + format.getFileExtension());
+                if (!file.isFile()) {
+                    logger.warn("Quarantine entry " + name + " has no data, deleting it");
+                    delete(infoFile);
+                    continue;
+                }
+                AzureKustoTableLayout layout = AzureKustoTableLayout.valueOf(info.getProperty("layout", AzureKustoTableLayout.DEFAULT.name()));
+                Entry entry = new Entry(id, file, format, layout, Long.parseLong(info.getProperty("rows")), Long.parseLong(info.getProperty("rawBytes")),
+                        Long.parseLong(info.getProperty("time")), info.getProperty("reason"));
+                entries.put(id, entry);
+                diskBytes += file.length();
+                rowCount += entry.rowCount;
+                nextId = Math.max(nextId, id + 1);
+            } catch (IOException | RuntimeException ex) {
+                logger.warn("Unable to read quarantine entry " + name + ", leaving it alone", ex);
+            }
+        }
+
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(INFO_SUFFIX)) {
+                continue;
+            }
+            int end = name.indexOf('.');
+            try {
+                long id = Long.parseLong(name.substring(PREFIX.length(), end < 0 ? name.length() : end));
+                if (!entries.containsKey(id)) {
+                    delete(file);
+                }
+                nextId = Math.max(nextId, id + 1);
+            } catch (NumberFormatException ignored) {
+                // Not one of ours
+            }
+        }
+        if (!entries.isEmpty()) {
+            logger.info("Quarantine holds " + rowCount + " row(s) ADX rejected in " + entries.size() + " entry(ies)");
+        }
+    }
+
+    private void delete(File f) {
+        try {
+            Files.deleteIfExists(f.toPath());
+        } catch (IOException ex) {
+            logger.warn("Unable to delete quarantine file " + f, ex);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import com.microsoft.azure.kusto.data.ClientRequestProperties;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A KQL query whose values are passed as declared query parameters instead of
+ * literals in its text. The text then only depends on the shape of the query,
+ * not on the tags and times it reads, so ADX can reuse its plan and cached
+ * results, and no value has to be escaped into the text.
+ */
+public class AzureKustoQuery {
+    private final StringBuilder declarations = new StringBuilder();
+    private final Map<String, String> parameters = new LinkedHashMap<>();
+    private final StringBuilder text = new StringBuilder();
+
+    public AzureKustoQuery parameter(String name, Date value) {
+        return declare(name, "datetime", AzureKustoTimestampCodec.toLiteral(value));
+    }
+
+    public AzureKustoQuery parameter(String name, long value) {
+        return declare(name, "long", Long.toString(value));
+    }
+
+    public AzureKustoQuery parameter(String name, String value) {
+        return declare(name, "string", value);
+    }
+
+    /**
+     * A dynamic array of the values, for in().
+     */
+    public AzureKustoQuery parameter(String name, Collection<?> values) {
+        StringBuilder array = new StringBuilder("dynamic([");
+        int i = 0;
+        for (Object value : values) {
+            array.append(i++ == 0 ? "" : ",");
+            if (value instanceof Number) {
+                array.append(value);
+            } else {
+                appendJsonString(array, String.valueOf(value));
+            }
+        }
+        return declare(name, "dynamic", array.append("])").toString());
+    }
+
+    private AzureKustoQuery declare(String name, String type, String value) {
+        if (parameters.put(name, value) == null) {
+            declarations.append(declarations.length() == 0 ? "" : ", ").append(name).append(':').append(type);
+        }
+        return this;
+    }
+
+    public AzureKustoQuery append(String kql) {
+        text.append(kql);
+        return this;
+    }
+
+    /**
+     * The filter on the rows of the tags, whole-term matches that can use the
+     * indexes of the tag columns. A normalized table is filtered on the tag
+     * ids, a wide table on each of the name columns, and on the three names
+     * together when the tags come from more than one system or tag provider.
+     * Names are matched ignoring case, as tags are compared.
+     */
+    public String getTagFilter(Collection<AzureKustoTag> tags, boolean normalized) {
+        if (normalized) {
+            Set<Long> ids = new TreeSet<>();
+            for (AzureKustoTag tag : tags) {
+                ids.add(tag.getKey());
+            }
+            parameter("tagIds", ids);
+            return "| where " + AzureKustoTableSchema.TAG_ID + " in (tagIds) ";
+        }
+
+        // Sorted, so the same tags always give the same parameters
+        Set<String> systemNames = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        Set<String> tagProviders = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        Set<String> tagPaths = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        Set<String> tagKeys = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        for (AzureKustoTag tag : tags) {
+            systemNames.add(tag.getSystemName());
+            tagProviders.add(tag.getTagProvider());
+            tagPaths.add(tag.getTagPath());
+            tagKeys.add(tag.getSystemName() + "|" + tag.getTagProvider() + "|" + tag.getTagPath());
+        }
+        parameter("tagPaths", tagPaths).parameter("systemNames", systemNames).parameter("tagProviders", tagProviders);
+        String filter = "| where tagPath in~ (tagPaths) and systemName in~ (systemNames) and tagProvider in~ (tagProviders) ";
+        if (systemNames.size() * tagProviders.size() > 1) {
+            parameter("tagKeys", tagKeys);
+            filter += "| where strcat(systemName, \"|\", tagProvider, \"|\", tagPath) in~ (tagKeys) ";
+        }
+        return filter;
+    }
+
+    /**
+     * The text, declaring the parameters first.
+     */
+    public String getText() {
+        if (parameters.isEmpty()) {
+            return text.toString();
+        }
+        return "declare query_parameters(" + declarations + ");\n" + text;
+    }
+
+    public Map<String, String> getParameters() {
+        return Collections.unmodifiableMap(parameters);
+    }
+
+    public ClientRequestProperties getProperties() {
+        ClientRequestProperties properties = new ClientRequestProperties();
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            properties.setParameter(parameter.getKey(), parameter.getValue());
+        }
+        return properties;
+    }
+
+    /**
+     * The name as a KQL identifier, quoted so any table name works.
+     */
+    public static String identifier(String name) {
+        return "['" + name.replace("\\", "\\\\").replace("'", "\\'") + "']";
+    }
+
+    private static void appendJsonString(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    @Override
+    public String toString() {
+        return getText() + "\nwith " + parameters;
+    }
+}
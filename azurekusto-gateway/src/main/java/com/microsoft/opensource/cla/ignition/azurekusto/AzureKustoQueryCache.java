@@ -0,0 +1,422 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Caches the results of aggregate queries, shared by all queries of a
+ * provider, so the same trend open on many screens is only read from ADX once.
+ * Results are cached per tag set, aggregates, block size and block phase, for
+ * a contiguous range of blocks, with a series per tag and aggregate. The phase
+ * is where blocks start within the block size, the start of the query modulo
+ * the block size, so cached blocks are binned from the start of the query like
+ * uncached ones. A trend that moves by whole blocks keeps hitting the same
+ * blocks, and a query that only partly overlaps the cached range only reads
+ * the missing blocks before and after it.
+ * <p>
+ * Rows reach ADX some time after their timestamp, so only blocks that ended
+ * settleMillis before they were read are kept for good. More recent blocks are
+ * served for recentMillis and read again after that. The least recently used
+ * entries are evicted once the cache holds more than maxBytes.
+ */
+public class AzureKustoQueryCache {
+    private static final long ENTRY_OVERHEAD = 128;
+    private static final long SERIES_OVERHEAD = 64;
+    private static final long POINT_BYTES = 8 + 8 + 4;
+
+    /**
+     * Reads the blocks in [from, to) from ADX.
+     */
+    public interface Fetcher {
+        Map<SeriesId, Series> fetch(long from, long to) throws Exception;
+    }
+
+    /**
+     * The values of one aggregate of one tag.
+     */
+    public static class SeriesId {
+        private final AzureKustoTag tag;
+        private final String aggregate;
+
+        public SeriesId(AzureKustoTag tag, String aggregate) {
+            this.tag = tag;
+            this.aggregate = aggregate;
+        }
+
+        public AzureKustoTag getTag() {
+            return tag;
+        }
+
+        public String getAggregate() {
+            return aggregate;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SeriesId)) {
+                return false;
+            }
+            SeriesId other = (SeriesId) o;
+            return tag.equals(other.tag) && aggregate.equals(other.aggregate);
+        }
+
+        @Override
+        public int hashCode() {
+            return tag.hashCode() * 31 + aggregate.hashCode();
+        }
+    }
+
+    /**
+     * What a cached result is for.
+     */
+    public static class Key {
+        private final Set<AzureKustoTag> tags;
+        private final String aggregate; // All of the aggregates read for the tags, in a fixed order
+        private final long blockSize;
+        private final long phase; // Where the blocks start, in [0, blockSize)
+        private final int hash;
+
+        /**
+         * A key for blocks aligned to the epoch.
+         */
+        public Key(Collection<AzureKustoTag> tags, String aggregate, long blockSize) {
+            this(tags, aggregate, blockSize, 0);
+        }
+
+        public Key(Collection<AzureKustoTag> tags, String aggregate, long blockSize, long phase) {
+            this.tags = new HashSet<>(tags);
+            this.aggregate = aggregate;
+            this.blockSize = blockSize;
+            this.phase = Math.floorMod(phase, blockSize);
+            this.hash = ((this.tags.hashCode() * 31 + aggregate.hashCode()) * 31 + Long.hashCode(blockSize)) * 31 + Long.hashCode(this.phase);
+        }
+
+        public long getBlockSize() {
+            return blockSize;
+        }
+
+        public long getPhase() {
+            return phase;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && blockSize == other.blockSize && phase == other.phase && aggregate.equals(other.aggregate) && tags.equals(other.tags);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * The values of one series, in timestamp order, in primitive arrays.
+     */
+    public static class Series {
+        private long[] timestamps;
+        private double[] values;
+        private int[] qualities;
+        private int size;
+
+        public Series() {
+            this(16);
+        }
+
+        public Series(int capacity) {
+            timestamps = new long[capacity];
+            values = new double[capacity];
+            qualities = new int[capacity];
+        }
+
+        public void add(long timestamp, double value, int quality) {
+            if (size == timestamps.length) {
+                int capacity = Math.max(16, size * 2);
+                timestamps = Arrays.copyOf(timestamps, capacity);
+                values = Arrays.copyOf(values, capacity);
+                qualities = Arrays.copyOf(qualities, capacity);
+            }
+            timestamps[size] = timestamp;
+            values[size] = value;
+            qualities[size] = quality;
+            size++;
+        }
+
+        /**
+         * Appends the values of the other series with a timestamp in [from, to).
+         */
+        void addRange(Series other, long from, long to) {
+            for (int i = 0; i < other.size; i++) {
+                long timestamp = other.timestamps[i];
+                if (timestamp >= from && timestamp < to) {
+                    add(timestamp, other.values[i], other.qualities[i]);
+                }
+            }
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public long getTimestamp(int i) {
+            return timestamps[i];
+        }
+
+        public double getValue(int i) {
+            return values[i];
+        }
+
+        public int getQuality(int i) {
+            return qualities[i];
+        }
+
+        long getBytes() {
+            return SERIES_OVERHEAD + (long) timestamps.length * POINT_BYTES;
+        }
+
+        void trim() {
+            if (size < timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, size);
+                values = Arrays.copyOf(values, size);
+                qualities = Arrays.copyOf(qualities, size);
+            }
+        }
+    }
+
+    /**
+     * A cached result for [from, to). Blocks before settledTo are kept for good,
+     * the rest only until recentExpiry. Never changed once created.
+     */
+    private static class Entry {
+        private final long from;
+        private final long settledTo;
+        private final long to;
+        private final long recentExpiry;
+        private final Map<SeriesId, Series> series;
+        private final long bytes;
+
+        Entry(long from, long settledTo, long to, long recentExpiry, Map<SeriesId, Series> series) {
+            this.from = from;
+            this.settledTo = settledTo;
+            this.to = to;
+            this.recentExpiry = recentExpiry;
+            this.series = series;
+            long total = ENTRY_OVERHEAD;
+            for (Series s : series.values()) {
+                s.trim();
+                total += s.getBytes();
+            }
+            this.bytes = total;
+        }
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final long maxBytes;
+    private final long settleMillis;
+    private final long recentMillis;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // In access order, the eldest is evicted first
+
+    // Guarded by this
+    private long bytes;
+    private long hits;
+    private long partialHits;
+    private long misses;
+    private long evictions;
+
+    public AzureKustoQueryCache(long maxBytes, long settleMillis, long recentMillis) {
+        this.maxBytes = maxBytes;
+        this.settleMillis = settleMillis;
+        this.recentMillis = recentMillis;
+    }
+
+    /**
+     * The start of the block the time is in, blocks are aligned to the epoch.
+     */
+    public static long alignDown(long time, long blockSize) {
+        return Math.floorDiv(time, blockSize) * blockSize;
+    }
+
+    /**
+     * The end of the block the time is in, or the time itself if it is on a block boundary.
+     */
+    public static long alignUp(long time, long blockSize) {
+        return -Math.floorDiv(-time, blockSize) * blockSize;
+    }
+
+    /**
+     * The start of the block the time is in, for blocks that start at phase
+     * within the block size.
+     */
+    public static long alignDown(long time, long blockSize, long phase) {
+        return alignDown(time - phase, blockSize) + phase;
+    }
+
+    /**
+     * Returns the blocks in [from, to) for the key, both on block boundaries
+     * of the key's block size and phase. Reads what isn't cached with the
+     * fetcher and caches it.
+     */
+    public Map<SeriesId, Series> get(Key key, long from, long to, Fetcher fetcher) throws Exception {
+        long now = System.currentTimeMillis();
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+
+        long validTo = 0;
+        if (entry != null) {
+            // The recent blocks are only served as long as they are fresh and cover the rest of the range
+            boolean recent = now <= entry.recentExpiry && to <= entry.to;
+            validTo = recent ? entry.to : entry.settledTo;
+            if (entry.from <= from && to <= validTo) {
+                synchronized (this) {
+                    hits++;
+                }
+                return slice(entry.series, from, to);
+            }
+            if (to < entry.from || from > entry.settledTo) {
+                entry = null; // Not contiguous with the range, replaced by it
+            }
+        }
+
+        if (entry == null) {
+            synchronized (this) {
+                misses++;
+            }
+            Map<SeriesId, Series> fetched = fetcher.fetch(from, to);
+            put(key, new Entry(from, getSettledTo(from, to, now, key), to, now + recentMillis, fetched));
+            return fetched;
+        }
+
+        // Only read the blocks before and after the cached ones
+        synchronized (this) {
+            partialHits++;
+        }
+        long cachedTo = Math.min(to, entry.settledTo);
+        Map<SeriesId, Series> before = from < entry.from ? fetcher.fetch(from, entry.from) : null;
+        Map<SeriesId, Series> after = to > cachedTo ? fetcher.fetch(cachedTo, to) : null;
+
+        long mergedFrom = Math.min(from, entry.from);
+        long mergedTo = Math.max(to, entry.settledTo);
+        Set<SeriesId> ids = new HashSet<>(entry.series.keySet());
+        if (before != null) {
+            ids.addAll(before.keySet());
+        }
+        if (after != null) {
+            ids.addAll(after.keySet());
+        }
+        Map<SeriesId, Series> merged = new HashMap<>();
+        for (SeriesId id : ids) {
+            Series series = new Series();
+            if (before != null && before.containsKey(id)) {
+                series.addRange(before.get(id), from, entry.from);
+            }
+            if (entry.series.containsKey(id)) {
+                series.addRange(entry.series.get(id), entry.from, cachedTo);
+            }
+            if (after != null && after.containsKey(id)) {
+                series.addRange(after.get(id), cachedTo, to);
+            }
+            if (entry.series.containsKey(id) && mergedTo > to) {
+                series.addRange(entry.series.get(id), to, entry.settledTo);
+            }
+            if (series.size() > 0) {
+                merged.put(id, series);
+            }
+        }
+
+        // The blocks read before the cached ones may not have settled either
+        long settledTo = getSettledTo(mergedFrom, to, now, key);
+        if (settledTo >= entry.from) {
+            settledTo = Math.max(settledTo, entry.settledTo);
+        }
+        put(key, new Entry(mergedFrom, settledTo, mergedTo, now + recentMillis, merged));
+        return slice(merged, from, to);
+    }
+
+    /**
+     * The end of the blocks of [from, to) that ended settleMillis before now.
+     */
+    private long getSettledTo(long from, long to, long now, Key key) {
+        return Math.max(from, Math.min(to, alignDown(now - settleMillis, key.blockSize, key.phase)));
+    }
+
+    private static Map<SeriesId, Series> slice(Map<SeriesId, Series> series, long from, long to) {
+        Map<SeriesId, Series> slice = new HashMap<>();
+        for (Map.Entry<SeriesId, Series> e : series.entrySet()) {
+            Series s = new Series(e.getValue().size());
+            s.addRange(e.getValue(), from, to);
+            slice.put(e.getKey(), s);
+        }
+        return slice;
+    }
+
+    private synchronized void put(Key key, Entry entry) {
+        if (entry.bytes > maxBytes / 2) {
+            logger.debug("Not caching a query result of " + entry.bytes + " bytes");
+            return; // Would push out everything else
+        }
+
+        Entry old = entries.put(key, entry);
+        if (old != null) {
+            bytes -= old.bytes;
+        }
+        bytes += entry.bytes;
+
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().bytes;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Queries that were partly answered from the cache.
+     */
+    public synchronized long getPartialHits() {
+        return partialHits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+}
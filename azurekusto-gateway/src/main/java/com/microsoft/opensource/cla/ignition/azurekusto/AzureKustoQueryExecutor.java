@@ -16,13 +16,12 @@ import com.microsoft.azure.kusto.data.ClientImpl;
 import com.microsoft.azure.kusto.data.ConnectionStringBuilder;
 import com.microsoft.azure.kusto.data.KustoOperationResult;
 import com.microsoft.azure.kusto.data.KustoResultSetTable;
-import com.microsoft.opensource.cla.ignition.Utils;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.sql.Timestamp;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 /**
  * Responsible for actually querying the data from ADX. The query controller
@@ -31,26 +30,104 @@ import java.util.*;
  * we can apply an aggregation function against the intervals, such as average.
  */
 public class AzureKustoQueryExecutor implements HistoryQueryExecutor {
+    static final int DENSITY_BUCKETS = 256; // How finely the rows of a raw query are counted to plan its chunks
+    static final long MIN_BUCKET_MILLIS = 1000;
+    static final long MIN_SLICE_MILLIS = 60 * 60 * 1000L; // Shorter ranges aren't worth splitting into sub-queries
+
+    private static final String[] TYPED_VALUE_COLUMNS = {AzureKustoTableSchema.VALUE_DOUBLE, AzureKustoTableSchema.VALUE_LONG,
+            AzureKustoTableSchema.VALUE_BOOL, AzureKustoTableSchema.VALUE_STRING, AzureKustoTableSchema.VALUE_DYNAMIC};
+
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
+    /**
+     * Takes the rows of a query in turn. The values are only valid during the
+     * call, the array is reused for the next row.
+     */
+    private interface RowHandler {
+        void row(AzureKustoTag tag, List<AzureKustoHistoryTag> columns, long timestamp, int quality, Object[] values);
+    }
+
+    /**
+     * The rows read by a sub-query, held in flat arrays until the rows of all
+     * of them are in.
+     */
+    private static class Rows implements RowHandler {
+        private final int width;
+        private int size;
+        private AzureKustoTag[] tags = new AzureKustoTag[256];
+        private long[] timestamps = new long[256];
+        private int[] qualities = new int[256];
+        private Object[] values;
+
+        Rows(int width) {
+            this.width = width;
+            this.values = new Object[256 * width];
+        }
+
+        @Override
+        public void row(AzureKustoTag tag, List<AzureKustoHistoryTag> columns, long timestamp, int quality, Object[] rowValues) {
+            if (size == tags.length) {
+                tags = Arrays.copyOf(tags, size * 2);
+                timestamps = Arrays.copyOf(timestamps, size * 2);
+                qualities = Arrays.copyOf(qualities, size * 2);
+                values = Arrays.copyOf(values, size * 2 * width);
+            }
+            tags[size] = tag;
+            timestamps[size] = timestamp;
+            qualities[size] = quality;
+            System.arraycopy(rowValues, 0, values, size * width, width);
+            size++;
+        }
+
+        void replay(Map<AzureKustoTag, List<AzureKustoHistoryTag>> columnsByTag, RowHandler handler) {
+            Object[] rowValues = new Object[width];
+            AzureKustoTag tag = null;
+            List<AzureKustoHistoryTag> columns = null;
+            for (int i = 0; i < size; i++) {
+                if (tags[i] != tag) {
+                    tag = tags[i];
+                    columns = columnsByTag.get(tag);
+                }
+                System.arraycopy(values, i * width, rowValues, 0, width);
+                handler.row(tag, columns, timestamps[i], qualities[i], rowValues);
+            }
+        }
+    }
+
     private GatewayContext context;
     private AzureKustoHistoryProviderSettings settings; // Holds the settings for the current provider, needed to connect to ADX
+    private AzureKustoTagCache tagCache; // Tag identities, shared with the provider's sink
+    private AzureKustoQueryCache queryCache; // Aggregate results, shared by the provider's queries, null if disabled
+    private AzureKustoQueryPool queryPool; // Runs the sub-queries, shared by the provider's queries, null to run them in turn
+    private AzureKustoClients clients; // The provider's clients to ADX, null to connect on our own
     private QueryController controller; // Holds the settings for what the user wants to query
     private List<ColumnQueryDefinition> tagDefs; // Holds the definition of each tag
-    private Map<AzureKustoTag, AzureKustoHistoryTag> tags; // The list of tags to return with data
+    private Map<AzureKustoTag, List<AzureKustoHistoryTag>> tags; // The columns to return with data, by tag
+    private Map<Long, AzureKustoTag> tagsById; // The same tags by their id, to read the rows of a normalized table
 
-    private ConnectionStringBuilder connectionString;
     private ClientImpl kustoQueryClient; // A client for querying data
 
-    boolean processed = false;
+    int blockSize;
+    List<long[]> chunks = new ArrayList<>(); // The ranges to read in turn, [from, to) except the last, which includes its end
+    int nextChunk = 0;
     long maxTSInData = -1;
 
-    public AzureKustoQueryExecutor(GatewayContext context, AzureKustoHistoryProviderSettings settings, List<ColumnQueryDefinition> tagDefs, QueryController controller) {
+    public AzureKustoQueryExecutor(GatewayContext context, AzureKustoHistoryProviderSettings settings, AzureKustoTagCache tagCache, List<ColumnQueryDefinition> tagDefs, QueryController controller) {
+        this(context, settings, tagCache, null, null, null, tagDefs, controller);
+    }
+
+    public AzureKustoQueryExecutor(GatewayContext context, AzureKustoHistoryProviderSettings settings, AzureKustoTagCache tagCache, AzureKustoQueryCache queryCache,
+                                   AzureKustoQueryPool queryPool, AzureKustoClients clients, List<ColumnQueryDefinition> tagDefs, QueryController controller) {
         this.context = context;
         this.settings = settings;
+        this.tagCache = tagCache;
+        this.queryCache = queryCache;
+        this.queryPool = queryPool;
+        this.clients = clients;
         this.controller = controller;
         this.tagDefs = tagDefs;
         this.tags = new HashMap<>();
+        this.tagsById = new HashMap<>();
 
         initTags();
     }
@@ -61,6 +138,7 @@ public class AzureKustoQueryExecutor implements HistoryQueryExecutor {
      */
     private void initTags() {
         boolean isRaw = controller.getBlockSize() <= 0;
+        String defaultFunction = AzureKustoAggregates.getKqlFunction(controller.getQueryParameters().getAggregationMode());
 
         for (ColumnQueryDefinition c : tagDefs) {
             HistoryNode historyTag;
@@ -72,7 +150,7 @@ public class AzureKustoQueryExecutor implements HistoryQueryExecutor {
             String tagProvider = parts[1];
             String tagPath = qPath.getPathComponent(WellKnownPathTypes.Tag);
 
-            AzureKustoTag tag = new AzureKustoTag(systemName, tagProvider, tagPath);
+            AzureKustoTag tag = tagCache.intern(systemName, tagProvider, tagPath);
 
             if (StringUtils.isBlank(tagPath)) {
                 // We set the data type to Integer here, because if the column is going to be errored, at least integer types won't cause charts to complain.
@@ -84,7 +162,10 @@ public class AzureKustoQueryExecutor implements HistoryQueryExecutor {
                 ((ProcessedHistoryColumn) historyTag).setDataType(DataTypeClass.Float);
             }
 
-            tags.put(tag, new AzureKustoHistoryTag(tag, c.getAggregate(), historyTag));
+            // Each column has its own aggregate, a trend may show the minimum, maximum and average of the same tag
+            String function = c.getAggregate() == null ? defaultFunction : AzureKustoAggregates.getKqlFunction(c.getAggregate());
+            tags.computeIfAbsent(tag, t -> new ArrayList<>()).add(new AzureKustoHistoryTag(tag, c.getAggregate(), function, historyTag));
+            tagsById.put(tag.getKey(), tag);
         }
     }
 
@@ -94,23 +175,31 @@ public class AzureKustoQueryExecutor implements HistoryQueryExecutor {
     @Override
     public List<? extends HistoryNode> getColumnNodes() {
         List<HistoryNode> nodes = new ArrayList<>();
-        for (AzureKustoTag tag : tags.keySet()) {
-            nodes.add(tags.get(tag).getHistoryTag());
+        for (List<AzureKustoHistoryTag> columns : tags.values()) {
+            for (AzureKustoHistoryTag column : columns) {
+                nodes.add(column.getHistoryTag());
+            }
         }
         return nodes;
     }
 
     /**
-     * Called first to initialize the connection
+     * Called first to initialize the connection, borrowing the provider's
+     * client if there is one, which is already connected.
      */
     @Override
     public void initialize() throws Exception {
+        if (clients != null) {
+            kustoQueryClient = clients.getQueryClient();
+            return;
+        }
+
         String clusterURL = settings.getClusterURL();
         String applicationId = settings.getApplicationId();
         String applicationKey = settings.getApplicationKey();
         String aadTenantId = settings.getAADTenantId();
 
-        connectionString = ConnectionStringBuilder.createWithAadApplicationCredentials(
+        ConnectionStringBuilder connectionString = ConnectionStringBuilder.createWithAadApplicationCredentials(
                 clusterURL,
                 applicationId,
                 applicationKey,
@@ -125,70 +214,378 @@ public class AzureKustoQueryExecutor implements HistoryQueryExecutor {
     }
 
     /**
-     * Called after initialization to start reading the data. This is where the bulk
-     * of the work happens.
+     * Called after initialization to start reading the data. Plans the chunks
+     * of the range, which processData reads one at a time.
      */
     @Override
     public void startReading() throws Exception {
-        int blockSize = (int) controller.getBlockSize();
+        blockSize = (int) controller.getBlockSize();
         Date startDate = controller.getQueryParameters().getStartDate();
         Date endDate = controller.getQueryParameters().getEndDate();
 
         logger.debug("startReading(blockSize, startDate, endDate) called.  blockSize: " + blockSize
                 + ", startDate: " + startDate.toString() + ", endDate: " + endDate.toString());
 
-        String queryPrefix =
-                "let blocks = " + blockSize + ";\n" +
-                        "let startTime = " + Utils.getDateLiteral(startDate) + ";\n" +
-                        "let endTime = " + Utils.getDateLiteral(endDate) + ";\n";
-        String queryData = settings.getTableName() + "| where timestamp between(startTime..endTime) ";
+        if (blockSize > 0 || settings.getQueryChunkRows() <= 0) {
+            // Aggregates return a row per tag and block however many rows they read, so they are read at once
+            chunks.add(new long[]{startDate.getTime(), endDate.getTime()});
+            return;
+        }
+
+        // Raw rows are read in chunks of about the same number of rows, planned from a count of the rows over the range
+        long bucketMillis = Math.max(MIN_BUCKET_MILLIS, (endDate.getTime() - startDate.getTime()) / DENSITY_BUCKETS + 1);
+        AzureKustoQuery query = newQuery(0, startDate, endDate).parameter("bucket", bucketMillis);
+        query.append(AzureKustoQuery.identifier(settings.getTableName()) + "| where timestamp between(startTime..endTime) "
+                + query.getTagFilter(tags.keySet(), settings.getTableLayout().isNormalized())
+                + "| summarize rows = count() by timestamp = bin_at(timestamp, 1millisecond * bucket, startTime)");
+        logger.debug("Issuing query:" + query);
+        KustoResultSetTable result = execute(query).getPrimaryResults();
+        Map<Long, Long> rows = new HashMap<>();
+        int timestampColumn = result.findColumn("timestamp");
+        int rowsColumn = result.findColumn("rows");
+        while (result.next()) {
+            rows.put(AzureKustoResultDecoder.readMillis(result, timestampColumn), result.getLong(rowsColumn));
+        }
+        chunks = planChunks(startDate.getTime(), endDate.getTime(), bucketMillis, rows, settings.getQueryChunkRows());
+        logger.debug("Reading " + rows.values().stream().mapToLong(Long::longValue).sum() + " rows in " + chunks.size() + " chunks");
+    }
 
-        queryData += "| where ";
-        AzureKustoTag[] tagKeys = tags.keySet().toArray(new AzureKustoTag[]{});
-        for (int i = 0; i < tagKeys.length; i++) {
-            AzureKustoTag tag = tagKeys[i];
-            queryData += "(systemName has \"" + tag.getSystemName() + "\" and tagProvider has \"" + tag.getTagProvider() + "\" and tagPath has \"" + tag.getTagPath() + "\")";
-            if (i < (tagKeys.length - 1)) {
-                queryData += " or ";
+    /**
+     * Splits [start, end] into chunks of at most maxRows rows, from the number
+     * of rows in each bucket of the range by bucket start. Buckets are kept
+     * whole unless they have more than maxRows rows themselves, those are split
+     * evenly, assuming their rows are spread evenly.
+     */
+    static List<long[]> planChunks(long start, long end, long bucketMillis, Map<Long, Long> rows, long maxRows) {
+        List<long[]> chunks = new ArrayList<>();
+        long chunkStart = start;
+        long chunkRows = 0;
+        for (long bucket = start; bucket <= end; bucket += bucketMillis) {
+            long bucketEnd = Math.min(bucket + bucketMillis, end);
+            long bucketRows = rows.getOrDefault(bucket, 0L);
+            if (bucketRows > maxRows && bucketEnd > bucket) {
+                if (chunkStart < bucket) {
+                    chunks.add(new long[]{chunkStart, bucket});
+                }
+                long parts = Math.min((bucketRows + maxRows - 1) / maxRows, bucketEnd - bucket);
+                for (long i = 0; i < parts; i++) {
+                    chunks.add(new long[]{bucket + (bucketEnd - bucket) * i / parts, bucket + (bucketEnd - bucket) * (i + 1) / parts});
+                }
+                chunkStart = bucketEnd;
+                chunkRows = 0;
+                continue;
             }
+            if (chunkRows > 0 && chunkRows + bucketRows > maxRows) {
+                chunks.add(new long[]{chunkStart, bucket});
+                chunkStart = bucket;
+                chunkRows = 0;
+            }
+            chunkRows += bucketRows;
+        }
+        if (chunkStart < end || chunks.isEmpty()) {
+            chunks.add(new long[]{chunkStart, end});
+        } else {
+            chunks.get(chunks.size() - 1)[1] = end;
         }
+        return chunks;
+    }
 
-        String querySuffix = "| sort by systemName, tagProvider, tagPath, timestamp asc";
+    /**
+     * Reads the raw rows in the range into the columns of their tags.
+     */
+    private void readRaw(Date startDate, Date endDate, boolean endInclusive) throws Exception {
+        boolean typed = settings.getTableLayout().isTyped();
+        readAll(Collections.emptySet(), tags.keySet(), startDate.getTime(), endDate.getTime(), endInclusive,
+                typed ? TYPED_VALUE_COLUMNS : new String[]{"value"}, typed, (tag, columns, timestamp, quality, values) -> {
+                    for (AzureKustoHistoryTag column : columns) {
+                        put(column, values[0], timestamp, quality);
+                    }
+                });
+    }
 
-        // TODO: Implement all aggregate functions
-        if (blockSize > 0) {
-            // Block data, use aggregate function
-            String function = AzureKustoAggregates.getKqlFunction(controller.getQueryParameters().getAggregationMode());
-            queryData = queryData + "| summarize value = " + function + "(value_double), quality = min(quality) by systemName, tagProvider, tagPath, bin_at(timestamp, 1millisecond * blocks, startTime)";
+    /**
+     * Reads the aggregates of the columns over blocks of the range.
+     */
+    private void readAggregates(Date startDate, Date endDate) throws Exception {
+        // The aggregates over the values and the time weighted ones are each computed in one pass, for the tags that need them
+        Map<Boolean, Set<String>> functions = new HashMap<>();
+        Map<Boolean, Set<AzureKustoTag>> functionTags = new HashMap<>();
+        for (Map.Entry<AzureKustoTag, List<AzureKustoHistoryTag>> entry : tags.entrySet()) {
+            for (AzureKustoHistoryTag column : entry.getValue()) {
+                boolean timeWeighted = AzureKustoAggregates.isTimeWeighted(column.getKqlFunction());
+                functions.computeIfAbsent(timeWeighted, t -> new TreeSet<>()).add(column.getKqlFunction());
+                functionTags.computeIfAbsent(timeWeighted, t -> new HashSet<>()).add(entry.getKey());
+            }
+        }
+        for (boolean timeWeighted : functions.keySet()) {
+            readBlocks(blockSize, functions.get(timeWeighted), functionTags.get(timeWeighted), startDate, endDate);
         }
+    }
 
-        String query = queryPrefix + queryData + querySuffix;
-        logger.debug("Issuing query:" + query);
+    /**
+     * Reads the aggregates over blocks for the columns of the tags that have
+     * one of them, from the cache if there is one.
+     */
+    private void readBlocks(int blockSize, Set<String> functions, Set<AzureKustoTag> queryTags, Date startDate, Date endDate) throws Exception {
+        Set<String> distinct = new TreeSet<>();
+        for (String function : functions) {
+            distinct.addAll(AzureKustoAggregates.getOutputs(function));
+        }
+        List<String> outputs = new ArrayList<>(distinct);
+        String[] valueColumns = new String[outputs.size()];
+        for (int i = 0; i < valueColumns.length; i++) {
+            valueColumns[i] = AzureKustoAggregates.getColumn(outputs.get(i));
+        }
 
-        KustoOperationResult results = kustoQueryClient.execute(settings.getDatabaseName(), query);
-        KustoResultSetTable mainTableResult = results.getPrimaryResults();
+        // The values each function puts, by their index in the row
+        Map<String, int[]> functionValues = new HashMap<>();
+        for (String function : functions) {
+            functionValues.put(function, AzureKustoAggregates.getOutputs(function).stream().mapToInt(outputs::indexOf).toArray());
+        }
+        RowHandler direct = (tag, columns, timestamp, quality, values) -> {
+            for (AzureKustoHistoryTag column : columns) {
+                int[] indexes = functionValues.get(column.getKqlFunction());
+                if (indexes != null) {
+                    for (int index : indexes) {
+                        put(column, values[index], timestamp, quality);
+                    }
+                }
+            }
+        };
+
+        // Only whole blocks are cached, the block the end falls in is cut off at the end
+        long from = startDate.getTime();
+        long to = from + (endDate.getTime() + 1 - from) / blockSize * blockSize;
+        if (queryCache == null || to == from) {
+            readAll(functions, queryTags, from, endDate.getTime(), true, valueColumns, false, direct);
+            return;
+        }
 
-        while (mainTableResult.next()) {
-            String systemName = mainTableResult.getString("systemName");
-            String tagProvider = mainTableResult.getString("tagProvider");
-            String tagPath = mainTableResult.getString("tagPath");
-            AzureKustoTag tag = new AzureKustoTag(systemName, tagProvider, tagPath);
+        // Blocks start at the start of the query as they do uncached, the refreshes of a trend that moves by whole blocks share them
+        AzureKustoQueryCache.Key key = new AzureKustoQueryCache.Key(queryTags, String.join(",", outputs), blockSize, from);
+        Map<AzureKustoQueryCache.SeriesId, AzureKustoQueryCache.Series> result = queryCache.get(key, from, to, (fetchFrom, fetchTo) -> {
+            Map<AzureKustoQueryCache.SeriesId, AzureKustoQueryCache.Series> fetched = new HashMap<>();
+            // The series of the tag of the rows before, looked up again when the tag changes
+            AzureKustoQueryCache.Series[] series = new AzureKustoQueryCache.Series[outputs.size()];
+            AzureKustoTag[] seriesTag = new AzureKustoTag[1];
+            readAll(functions, queryTags, fetchFrom, fetchTo, false, valueColumns, false, (tag, columns, timestamp, quality, values) -> {
+                if (tag != seriesTag[0]) {
+                    seriesTag[0] = tag;
+                    for (int i = 0; i < series.length; i++) {
+                        series[i] = fetched.computeIfAbsent(new AzureKustoQueryCache.SeriesId(tag, outputs.get(i)), id -> new AzureKustoQueryCache.Series());
+                    }
+                }
+                for (int i = 0; i < series.length; i++) {
+                    Object value = values[i];
+                    series[i].add(timestamp, value instanceof Number ? ((Number) value).doubleValue() : Double.NaN, quality);
+                }
+            });
+            return fetched;
+        });
+
+        for (AzureKustoTag tag : queryTags) {
+            for (AzureKustoHistoryTag column : tags.get(tag)) {
+                if (!functions.contains(column.getKqlFunction())) {
+                    continue;
+                }
+                // The outputs of an aggregate come from the same rows, MinMax puts the minimum and maximum of each block in turn
+                List<AzureKustoQueryCache.Series> series = new ArrayList<>();
+                for (String output : AzureKustoAggregates.getOutputs(column.getKqlFunction())) {
+                    series.add(result.get(new AzureKustoQueryCache.SeriesId(tag, output)));
+                }
+                for (int i = 0; !series.contains(null) && i < series.get(0).size(); i++) {
+                    for (AzureKustoQueryCache.Series s : series) {
+                        double value = s.getValue(i);
+                        put(column, Double.isNaN(value) ? null : value, s.getTimestamp(i), s.getQuality(i));
+                    }
+                }
+            }
+        }
+        if (to <= endDate.getTime()) {
+            readAll(functions, queryTags, to, endDate.getTime(), true, valueColumns, false, direct);
+        }
+    }
 
-            Object value = mainTableResult.getObject("value");
-            Timestamp timestamp = mainTableResult.getTimestamp("timestamp");
-            Integer quality = mainTableResult.getInt("quality");
+    /**
+     * Reads the rows of the query over the tags and range. Large tag sets are
+     * split into groups of tags and, when there are fewer groups than the
+     * pool runs at once, the range into slices of time, each read by its own
+     * sub-query on the query pool. The rows are handed on slice by slice, so
+     * the rows of each tag stay in timestamp order. A query that isn't split
+     * hands its rows on as they are read.
+     */
+    private void readAll(Collection<String> functions, Collection<AzureKustoTag> queryTags, long from, long to, boolean endInclusive,
+                         String[] valueColumns, boolean coalesce, RowHandler handler) throws Exception {
+        List<List<AzureKustoTag>> groups = partition(queryTags, settings.getQueryTagGroupSize());
+        int parallelism = queryPool == null ? 1 : queryPool.getParallelism();
+        List<long[]> slices = getSlices(from, to, blockSize, (parallelism + groups.size() - 1) / groups.size());
+
+        if (queryPool == null || groups.size() * slices.size() == 1) {
+            for (int i = 0; i < slices.size(); i++) {
+                boolean sliceEndInclusive = endInclusive && i == slices.size() - 1;
+                for (List<AzureKustoTag> group : groups) {
+                    readRows(getQuery(blockSize, functions, group, new Date(slices.get(i)[0]), new Date(slices.get(i)[1]), sliceEndInclusive),
+                            valueColumns, coalesce, handler);
+                }
+            }
+            return;
+        }
+
+        List<Callable<Rows>> tasks = new ArrayList<>();
+        for (int i = 0; i < slices.size(); i++) {
+            Date sliceStart = new Date(slices.get(i)[0]);
+            Date sliceEnd = new Date(slices.get(i)[1]);
+            boolean sliceEndInclusive = endInclusive && i == slices.size() - 1;
+            for (List<AzureKustoTag> group : groups) {
+                tasks.add(() -> {
+                    Rows rows = new Rows(coalesce ? 1 : valueColumns.length);
+                    readRows(getQuery(blockSize, functions, group, sliceStart, sliceEnd, sliceEndInclusive), valueColumns, coalesce, rows);
+                    return rows;
+                });
+            }
+        }
+        logger.debug("Reading " + queryTags.size() + " tags in " + groups.size() + " groups and " + slices.size() + " slices");
+        for (Rows rows : queryPool.invokeAll(tasks)) {
+            rows.replay(tags, handler);
+        }
+    }
+
+    static <T> List<List<T>> partition(Collection<T> items, int size) {
+        List<List<T>> groups = new ArrayList<>();
+        List<T> group = new ArrayList<>();
+        for (T item : items) {
+            if (size > 0 && group.size() == size) {
+                groups.add(group);
+                group = new ArrayList<>();
+            }
+            group.add(item);
+        }
+        groups.add(group);
+        return groups;
+    }
+
+    /**
+     * Splits [from, to) into at most count slices of at least MIN_SLICE_MILLIS,
+     * on block boundaries from the start if blockSize is set, so the blocks of
+     * the slices are the blocks of the range.
+     */
+    static List<long[]> getSlices(long from, long to, long blockSize, int count) {
+        long unit = blockSize > 0 ? blockSize : 1;
+        long units = (to - from + unit - 1) / unit;
+        long perSlice = Math.max((units + count - 1) / Math.max(1, count), (MIN_SLICE_MILLIS + unit - 1) / unit);
+        List<long[]> slices = new ArrayList<>();
+        for (long start = from; start < to || slices.isEmpty(); start += perSlice * unit) {
+            slices.add(new long[]{start, Math.min(to, start + perSlice * unit)});
+        }
+        return slices;
+    }
+
+    /**
+     * Builds the query for the rows or blocks of the tags from the start to
+     * the end date, blocks are aligned to the start.
+     */
+    private AzureKustoQuery getQuery(int blockSize, Collection<String> functions, Collection<AzureKustoTag> queryTags, Date startDate, Date endDate, boolean endInclusive) {
+        AzureKustoQuery query = newQuery(blockSize, startDate, endDate);
+        AzureKustoTableLayout layout = settings.getTableLayout();
+        Set<String> outputs = new LinkedHashSet<>();
+        for (String function : functions) {
+            outputs.addAll(AzureKustoAggregates.getOutputs(function));
+        }
+
+        // Aggregates over long blocks are read from the coarsest rollup they can all be computed from
+        AzureKustoRollup rollup = settings.isRollups() ? getRollup(blockSize, startDate.getTime(), outputs) : null;
+        String table = AzureKustoQuery.identifier(settings.getTableName());
+        String source = rollup == null ? table : AzureKustoQuery.identifier(rollup.getViewName(settings.getTableName()));
+        String timeFilter = endInclusive ? "| where timestamp between(startTime..endTime) " : "| where timestamp >= startTime and timestamp < endTime ";
+
+        String tagColumns = AzureKustoTableSchema.getTagColumns(layout);
+        String tagFilter = query.getTagFilter(queryTags, layout.isNormalized());
+        String rows = source + timeFilter + tagFilter;
+
+        if (rollup != null) {
+            logger.debug("Reading " + outputs + " over " + blockSize + "ms blocks from rollup " + source);
+            String aggregates = "";
+            for (String output : outputs) {
+                aggregates += AzureKustoAggregates.getColumn(output) + " = " + AzureKustoRollup.getAggregate(output) + ", ";
+            }
+            return query.append(rows + "| summarize " + aggregates + "quality = min(quality) by " + tagColumns
+                    + ", timestamp = bin_at(timestamp, 1millisecond * blocks, startTime)| sort by " + tagColumns + ", timestamp asc");
+        } else if (blockSize > 0) {
+            // Block data, the aggregates are computed by ADX
+            String seedRows = table + "| where timestamp >= startTime - " + AzureKustoAggregates.SEED_LOOKBACK + " and timestamp < startTime " + tagFilter;
+            return query.append(AzureKustoAggregates.getBlockQuery(functions, rows, seedRows, tagColumns, AzureKustoTableSchema.getNumericValue(layout)));
+        } else if (layout.isTyped()) {
+            rows += "| project " + tagColumns + ", timestamp, quality, " + String.join(", ", TYPED_VALUE_COLUMNS);
+        }
+        return query.append(rows + "| sort by " + tagColumns + ", timestamp asc");
+    }
 
-            logger.debug(
-                    "Reading: System:" + systemName +
-                            " tagProvider:" + tagProvider +
-                            " tagPath:" + tagPath +
-                            " Value:" + value +
-                            " timestamp:" + timestamp);
+    /**
+     * A query with the block size and range as parameters, so its text is the
+     * same for every range and only the tags filter changes it.
+     */
+    private static AzureKustoQuery newQuery(int blockSize, Date startDate, Date endDate) {
+        return new AzureKustoQuery().parameter("blocks", blockSize).parameter("startTime", startDate).parameter("endTime", endDate);
+    }
 
-            tags.get(tag).getProcessedHistoryTag().put(new BasicQualifiedValue(value, DataQuality.fromIntValue(quality), new Date(timestamp.getTime())));
-            if (timestamp.getTime() > maxTSInData) {
-                maxTSInData = timestamp.getTime();
+    /**
+     * The rollup all of the outputs can be computed from, null if any of them
+     * needs the raw rows.
+     */
+    private static AzureKustoRollup getRollup(int blockSize, long startMillis, Collection<String> outputs) {
+        AzureKustoRollup rollup = null;
+        for (String output : outputs) {
+            rollup = AzureKustoRollup.select(blockSize, startMillis, output);
+            if (rollup == null) {
+                return null;
+            }
+        }
+        return rollup;
+    }
+
+    /**
+     * Runs the query and hands each row of the tags queried to the handler.
+     */
+    private void readRows(AzureKustoQuery query, String[] valueColumns, boolean coalesce, RowHandler handler) throws Exception {
+        logger.debug("Issuing query:" + query);
+        boolean debug = logger.isDebugEnabled();
+
+        KustoOperationResult results = execute(query);
+        AzureKustoResultDecoder decoder = new AzureKustoResultDecoder(results.getPrimaryResults(), tagCache,
+                settings.getTableLayout().isNormalized() ? tagsById : null, valueColumns, coalesce);
+
+        // Rows come sorted by tag, the columns of a tag are looked up once per run of its rows
+        AzureKustoTag tag = null;
+        List<AzureKustoHistoryTag> columns = null;
+        while (decoder.next()) {
+            if (decoder.getTag() != tag) {
+                tag = decoder.getTag();
+                columns = tag == null ? null : tags.get(tag);
+            }
+            if (columns == null) {
+                continue; // Not one of the tags queried
             }
+            if (debug) {
+                logger.debug("Reading: " + tag.toStringFull() + " timestamp:" + decoder.getTimestamp());
+            }
+            handler.row(tag, columns, decoder.getTimestamp(), decoder.getQuality(), decoder.getValues());
+        }
+    }
+
+    private KustoOperationResult execute(AzureKustoQuery query) throws Exception {
+        if (queryPool == null) {
+            return kustoQueryClient.execute(settings.getDatabaseName(), query.getText(), query.getProperties());
+        }
+        return queryPool.execute(kustoQueryClient, settings.getDatabaseName(), query);
+    }
+
+    private void put(AzureKustoHistoryTag column, Object value, long timestamp, int quality) {
+        if (!column.valid()) {
+            return; // An error column, it has no values
+        }
+        column.getProcessedHistoryTag().put(new BasicQualifiedValue(value, DataQuality.fromIntValue(quality), new Date(timestamp)));
+        if (timestamp > maxTSInData) {
+            maxTSInData = timestamp;
         }
     }
 
@@ -197,15 +594,24 @@ public class AzureKustoQueryExecutor implements HistoryQueryExecutor {
      */
     @Override
     public boolean hasMore() {
-        return !processed;
+        return nextChunk < chunks.size();
     }
 
     /**
-     * Called after we have no more data to read. Process data if needed.
+     * Called while there is more data to read, reads the next chunk into the
+     * columns. Only one chunk of rows is held at a time.
      */
     @Override
     public long processData() throws Exception {
-        processed = true;
+        if (!hasMore()) {
+            return maxTSInData;
+        }
+        long[] chunk = chunks.get(nextChunk++);
+        if (blockSize > 0) {
+            readAggregates(new Date(chunk[0]), new Date(chunk[1]));
+        } else {
+            readRaw(new Date(chunk[0]), new Date(chunk[1]), !hasMore());
+        }
         return maxTSInData;
     }
 
@@ -217,8 +623,11 @@ public class AzureKustoQueryExecutor implements HistoryQueryExecutor {
 
     }
 
+    /**
+     * The start of the next chunk to read.
+     */
     @Override
     public long nextTime() {
-        return Long.MAX_VALUE;
+        return hasMore() ? chunks.get(nextChunk)[0] : Long.MAX_VALUE;
     }
 }
\ No newline at end of file
@@ -0,0 +1,83 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import com.microsoft.azure.kusto.data.ClientImpl;
+import com.microsoft.azure.kusto.data.KustoOperationResult;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The threads the queries of a provider run their sub-queries on, shared by
+ * all of its queries, and the limit on the requests they have open on the
+ * cluster at once. A report over thousands of tags is split into sub-queries
+ * that run here side by side, while the cluster never sees more than
+ * maxRequests of them, however many reports run.
+ */
+public class AzureKustoQueryPool {
+    private final ThreadPoolExecutor executor;
+    private final Semaphore requests;
+    private final int parallelism;
+
+    public AzureKustoQueryPool(String name, int threads, int maxRequests) {
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                new AzureKustoBatcher.NamedThreadFactory(name + "-query"));
+        this.executor.allowCoreThreadTimeOut(true);
+        this.requests = new Semaphore(Math.max(1, maxRequests), true);
+        this.parallelism = Math.max(1, Math.min(threads, maxRequests));
+    }
+
+    /**
+     * How many sub-queries are worth running at once.
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Runs the tasks on the pool and returns their results in the order of
+     * the tasks. If one fails the others are cancelled and its exception is
+     * thrown.
+     */
+    public <T> List<T> invokeAll(List<Callable<T>> tasks) throws Exception {
+        List<Future<T>> futures = new ArrayList<>();
+        for (Callable<T> task : tasks) {
+            futures.add(executor.submit(task));
+        }
+        List<T> results = new ArrayList<>();
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } finally {
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Runs the query once fewer than maxRequests are open on the cluster.
+     */
+    public KustoOperationResult execute(ClientImpl client, String database, AzureKustoQuery query) throws Exception {
+        requests.acquire();
+        try {
+            return client.execute(database, query.getText(), query.getProperties());
+        } finally {
+            requests.release();
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,148 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import com.microsoft.azure.kusto.data.KustoResultSetTable;
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Decodes the rows of a query result over tag values: the tag, timestamp,
+ * quality and value columns of each row. The columns are looked up by name
+ * once per result, timestamps are parsed to epoch milliseconds from their
+ * text, and the tag is only looked up when it differs from the tag of the row
+ * before, which in results sorted by tag is once per run of rows. The values
+ * are read into the same array for every row.
+ * <p>
+ * The value columns are read as they are, or coalesced into the first value
+ * that is set, for the value columns of a typed table.
+ */
+public class AzureKustoResultDecoder {
+    private final KustoResultSetTable result;
+    private final AzureKustoTagCache tagCache;
+    private final Map<Long, AzureKustoTag> tagsById; // Null for a wide table, whose rows have the tag names
+    private final int tagIdColumn;
+    private final int systemNameColumn;
+    private final int tagProviderColumn;
+    private final int tagPathColumn;
+    private final int timestampColumn;
+    private final int qualityColumn;
+    private final int[] valueColumns;
+    private final boolean coalesce;
+    private final Object[] values;
+
+    private boolean started;
+    private long tagId;
+    private String systemName;
+    private String tagProvider;
+    private String tagPath;
+    private AzureKustoTag tag;
+    private long timestamp;
+    private int quality;
+
+    public AzureKustoResultDecoder(KustoResultSetTable result, AzureKustoTagCache tagCache, Map<Long, AzureKustoTag> tagsById,
+                                   String[] valueColumns, boolean coalesce) throws SQLException {
+        this.result = result;
+        this.tagCache = tagCache;
+        this.tagsById = tagsById;
+        boolean normalized = tagsById != null;
+        this.tagIdColumn = normalized ? result.findColumn(AzureKustoTableSchema.TAG_ID) : -1;
+        this.systemNameColumn = normalized ? -1 : result.findColumn("systemName");
+        this.tagProviderColumn = normalized ? -1 : result.findColumn("tagProvider");
+        this.tagPathColumn = normalized ? -1 : result.findColumn("tagPath");
+        this.timestampColumn = result.findColumn("timestamp");
+        this.qualityColumn = result.findColumn("quality");
+        this.valueColumns = new int[valueColumns.length];
+        for (int i = 0; i < valueColumns.length; i++) {
+            this.valueColumns[i] = result.findColumn(valueColumns[i]);
+        }
+        this.coalesce = coalesce;
+        this.values = new Object[coalesce ? 1 : valueColumns.length];
+    }
+
+    /**
+     * Moves to the next row, false if there are no more.
+     */
+    public boolean next() throws SQLException {
+        if (!result.next()) {
+            return false;
+        }
+        decodeTag();
+        timestamp = decodeTimestamp();
+        quality = result.getInt(qualityColumn);
+        if (coalesce) {
+            values[0] = null;
+            for (int column : valueColumns) {
+                Object value = result.getObject(column);
+                if (value != null) {
+                    values[0] = value;
+                    break;
+                }
+            }
+        } else {
+            for (int i = 0; i < valueColumns.length; i++) {
+                values[i] = result.getObject(valueColumns[i]);
+            }
+        }
+        started = true;
+        return true;
+    }
+
+    private void decodeTag() throws SQLException {
+        if (tagsById != null) {
+            long id = result.getLong(tagIdColumn);
+            if (!started || id != tagId) {
+                tagId = id;
+                tag = tagsById.get(id);
+            }
+            return;
+        }
+        String path = result.getString(tagPathColumn);
+        String provider = result.getString(tagProviderColumn);
+        String system = result.getString(systemNameColumn);
+        if (!started || !Objects.equals(path, tagPath) || !Objects.equals(provider, tagProvider) || !Objects.equals(system, systemName)) {
+            tagPath = path;
+            tagProvider = provider;
+            systemName = system;
+            tag = tagCache.intern(system, provider, path);
+        }
+    }
+
+    private long decodeTimestamp() throws SQLException {
+        return readMillis(result, timestampColumn);
+    }
+
+    /**
+     * The datetime in a column of the current row in milliseconds since the
+     * epoch, parsed from its text as UTC.
+     */
+    static long readMillis(KustoResultSetTable result, int column) throws SQLException {
+        String text = result.getString(column);
+        long millis = text == null ? Long.MIN_VALUE : AzureKustoTimestampCodec.parseMillis(text);
+        // Not in the form datetimes are returned in, leave it to the client
+        return millis != Long.MIN_VALUE ? millis : result.getTimestamp(column).getTime();
+    }
+
+    /**
+     * The tag of the row, the same instance as long as the rows are of the
+     * same tag. Null for the id of a tag that wasn't queried.
+     */
+    public AzureKustoTag getTag() {
+        return tag;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getQuality() {
+        return quality;
+    }
+
+    /**
+     * The values of the row, overwritten by the next row.
+     */
+    public Object[] getValues() {
+        return values;
+    }
+}
@@ -0,0 +1,125 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Pattern;
+
+/**
+ * Decides how a failed ingestion is retried. Failures ADX marks as permanent
+ * (the request itself is wrong, e.g. a row it can't parse) don't go away by
+ * sending the same batch again, the batcher narrows those down to the rows at
+ * fault instead. Everything else, timeouts, throttling, an unreachable cluster,
+ * is retried with exponential backoff. The delays are jittered so workers that
+ * failed together don't all retry at the same moment.
+ */
+public class AzureKustoRetryPolicy {
+    // Kusto's error payloads carry "@permanent", its BadRequest_ error codes are permanent as well
+    private static final Pattern PERMANENT = Pattern.compile("\"@permanent\"\\s*:\\s*true|BadRequest_");
+
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+
+    public AzureKustoRetryPolicy(long initialDelayMillis, long maxDelayMillis) {
+        this.initialDelayMillis = Math.max(1, initialDelayMillis);
+        this.maxDelayMillis = Math.max(this.initialDelayMillis, maxDelayMillis);
+    }
+
+    /**
+     * The delay before the next try after the given number of failed attempts:
+     * a random time between half and all of the initial delay doubled per
+     * attempt, capped at the maximum delay.
+     */
+    public long getDelay(int attempts) {
+        int doublings = Math.min(Math.max(0, attempts - 1), 30);
+        long cap = Math.min(maxDelayMillis, initialDelayMillis << doublings);
+        return cap / 2 + ThreadLocalRandom.current().nextLong(cap / 2 + 1);
+    }
+
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    /**
+     * Whether retrying the same data can't succeed, judged by the messages of
+     * the exception and its causes.
+     */
+    public static boolean isPermanent(Throwable ex) {
+        for (Throwable t = ex; t != null; t = t.getCause() == t ? null : t.getCause()) {
+            if (t instanceof AzureKustoCircuitBreaker.OpenException) {
+                return false;
+            }
+            String message = t.getMessage();
+            if (message != null && PERMANENT.matcher(message).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A short description of the failure, for logs and the quarantine.
+     */
+    public static String describe(Throwable ex) {
+        String message = ex.getMessage();
+        if (message == null || message.isEmpty()) {
+            message = ex.getClass().getSimpleName();
+        }
+        return message.length() > 1000 ? message.substring(0, 1000) + "..." : message;
+    }
+
+    /**
+     * How often a batch failed and when it is due again. Travels with the batch
+     * into the store & forward log, but isn't written to disk.
+     */
+    public static class State {
+        private volatile int attempts;
+        private volatile long firstFailureTime;
+        private volatile long nextAttemptTime;
+
+        /**
+         * Records a failure. Attempts only count when ADX was actually called,
+         * not when the circuit breaker held the batch back.
+         */
+        void failed(long now, long nextAttemptTime, boolean attempted) {
+            if (firstFailureTime == 0) {
+                firstFailureTime = now;
+            }
+            if (attempted) {
+                attempts++;
+            }
+            this.nextAttemptTime = nextAttemptTime;
+        }
+
+        /**
+         * Puts the batch off until nextAttemptTime without counting a failure,
+         * for a batch the circuit breaker held back.
+         */
+        void holdUntil(long nextAttemptTime) {
+            this.nextAttemptTime = nextAttemptTime;
+        }
+
+        void copyFrom(State other) {
+            attempts = other.attempts;
+            firstFailureTime = other.firstFailureTime;
+            nextAttemptTime = other.nextAttemptTime;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        /**
+         * When the batch failed for the first time, 0 if it hasn't failed yet.
+         */
+        public long getFirstFailureTime() {
+            return firstFailureTime;
+        }
+
+        public long getNextAttemptTime() {
+            return nextAttemptTime;
+        }
+
+        public boolean isDue(long now) {
+            return nextAttemptTime <= now;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The pre-aggregated rollups of the table, kept by ADX as materialized views.
+ * Each one holds a row per tag and period with the count, sum, minimum,
+ * maximum, first and last value and the sum of squares, from which the
+ * aggregates below are combined for any block that is a multiple of the
+ * period. A long range trend then reads one row per tag and hour or day
+ * instead of every raw value.
+ * <p>
+ * Blocks start at the start of the query, which is rarely on a period
+ * boundary. A rollup row counts for the block its period starts in, so a
+ * rollup is only used when the blocks are aligned with it or at least
+ * MIN_PERIODS_PER_BLOCK periods long, which keeps the error at the edges of a
+ * block small.
+ */
+public enum AzureKustoRollup {
+    MINUTE(60 * 1000L, "1m"),
+    HOUR(60 * 60 * 1000L, "1h"),
+    DAY(24 * 60 * 60 * 1000L, "1d");
+
+    static final int MIN_PERIODS_PER_BLOCK = 60;
+
+    // How each aggregate (by its KQL function, see AzureKustoAggregates) is combined from the rollup rows
+    private static final Map<String, String> AGGREGATES = new HashMap<>();
+
+    static {
+        AGGREGATES.put("min", "min(minimum)");
+        AGGREGATES.put("max", "max(maximum)");
+        AGGREGATES.put("avg", "sum(total) / sum(samples)");
+        AGGREGATES.put("count", "sum(samples)");
+        AGGREGATES.put("total", "sum(total)");
+        AGGREGATES.put("variance", "(sum(sumsq) - sum(total) * sum(total) / sum(samples)) / (sum(samples) - 1)");
+        AGGREGATES.put("range", "max(maximum) - min(minimum)");
+        AGGREGATES.put("stddev", "sqrt((sum(sumsq) - sum(total) * sum(total) / sum(samples)) / (sum(samples) - 1))");
+    }
+
+    private final long periodMillis;
+    private final String timespan;
+
+    AzureKustoRollup(long periodMillis, String timespan) {
+        this.periodMillis = periodMillis;
+        this.timespan = timespan;
+    }
+
+    public long getPeriodMillis() {
+        return periodMillis;
+    }
+
+    public String getViewName(String table) {
+        return table + "_Rollup" + timespan;
+    }
+
+    /**
+     * Creates the view if it doesn't exist yet. Existing rows are backfilled in
+     * the background, ADX keeps the view up to date with new rows after that.
+     */
+    public String getCreateCommand(String table, AzureKustoTableLayout layout) {
+        return ".create async ifnotexists materialized-view with (backfill=true) " + getViewName(table) + " on table " + table + " { "
+                + table + " | extend v = " + AzureKustoTableSchema.getNumericValue(layout)
+                + " | summarize samples = countif(isnotnull(v)), total = sum(v), minimum = min(v), maximum = max(v)"
+                + ", (firstTime, first) = arg_min(timestamp, v), (lastTime, last) = arg_max(timestamp, v)"
+                + ", sumsq = sum(v * v), quality = min(quality)"
+                + " by " + AzureKustoTableSchema.getTagColumns(layout) + ", timestamp = bin(timestamp, " + timespan + ") }";
+    }
+
+    /**
+     * The coarsest rollup an aggregate over blocks of the size can be computed
+     * from, null if it needs the raw rows.
+     */
+    public static AzureKustoRollup select(long blockSizeMillis, long startMillis, String kqlFunction) {
+        if (blockSizeMillis <= 0 || getAggregate(kqlFunction) == null) {
+            return null;
+        }
+
+        AzureKustoRollup[] rollups = values();
+        for (int i = rollups.length - 1; i >= 0; i--) {
+            AzureKustoRollup rollup = rollups[i];
+            long period = rollup.periodMillis;
+            boolean aligned = startMillis % period == 0;
+            if (blockSizeMillis % period == 0 && (aligned || blockSizeMillis / period >= MIN_PERIODS_PER_BLOCK)) {
+                return rollup;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The KQL expression combining the rollup rows into the aggregate, null if
+     * the rollups don't have what the aggregate needs.
+     */
+    public static String getAggregate(String kqlFunction) {
+        return AGGREGATES.get(kqlFunction);
+    }
+}
@@ -0,0 +1,314 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Encodes tag values as csv rows for the table created by the sink:
+ * systemName, tagProvider, tagPath, value, value_double, value_integer, timestamp, quality
+ * <p>
+ * The rows of a normalized or typed table have the columns of its layout
+ * instead, see AzureKustoTableSchema.
+ * <p>
+ * Numbers, booleans and strings are written straight into a per-thread line
+ * buffer, only complex values (datasets, arrays, ...) go through Jackson. The
+ * encoder is not thread-safe, create one per output stream.
+ */
+public class AzureKustoRowEncoder implements AzureKustoBatchEncoder {
+    static final ObjectWriter JSON_WRITER = new ObjectMapper().writer(); // ObjectWriter is immutable and thread-safe
+    private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+    private final Writer out;
+    private final boolean typed;
+    private long rows;
+    private long charCount;
+
+    public AzureKustoRowEncoder(Writer out) {
+        this(out, AzureKustoTableLayout.DEFAULT);
+    }
+
+    public AzureKustoRowEncoder(Writer out, AzureKustoTableLayout layout) {
+        this.out = out;
+        this.typed = layout.isTyped();
+    }
+
+    @Override
+    public void writeRow(String systemName, String tagProvider, String tagPath, Object value, Date timestamp, Integer quality) throws IOException {
+        // Looked up per row, an encoder may be fed by different threads over its lifetime
+        Buffers buffers = BUFFERS.get();
+        StringBuilder line = buffers.line;
+        line.setLength(0);
+
+        appendCsv(line, systemName);
+        line.append(',');
+        appendCsv(line, tagProvider);
+        line.append(',');
+        appendCsv(line, tagPath);
+        line.append(',');
+        writeColumns(buffers, line, value, timestamp, quality);
+    }
+
+    @Override
+    public void writeRow(long tagId, Object value, Date timestamp, Integer quality) throws IOException {
+        Buffers buffers = BUFFERS.get();
+        StringBuilder line = buffers.line;
+        line.setLength(0);
+
+        line.append(tagId).append(',');
+        writeColumns(buffers, line, value, timestamp, quality);
+    }
+
+    /**
+     * Appends the columns after the tag to the line and writes it out.
+     */
+    private void writeColumns(Buffers buffers, StringBuilder line, Object value, Date timestamp, Integer quality) throws IOException {
+        if (typed) {
+            appendTypedValue(line, value);
+        } else {
+            appendValue(buffers, line, value);
+        }
+        line.append(',');
+        if (timestamp != null) {
+            buffers.timestampCodec.append(line, timestamp.getTime());
+        }
+        line.append(',');
+        if (quality != null) {
+            line.append(quality.intValue());
+        }
+        line.append('\n');
+
+        int length = line.length();
+        char[] chars = buffers.chars(length);
+        line.getChars(0, length, chars, 0);
+        out.write(chars, 0, length);
+        rows++;
+        charCount += length;
+    }
+
+    @Override
+    public void writeRawRow(byte[] row) throws IOException {
+        String line = new String(row, StandardCharsets.UTF_8);
+        out.write(line);
+        rows++;
+        charCount += line.length();
+    }
+
+    @Override
+    public long getRowCount() {
+        return rows;
+    }
+
+    /**
+     * The number of characters written so far, a close estimate of the uncompressed payload size.
+     */
+    @Override
+    public long getRawBytes() {
+        return charCount;
+    }
+
+    @Override
+    public void finish() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Appends the value, value_double and value_integer columns.
+     */
+    private static void appendValue(Buffers buffers, StringBuilder line, Object value) throws IOException {
+        if (value == null) {
+            line.append(",,");
+        } else if (value instanceof Double) {
+            double d = (Double) value;
+            appendJsonDouble(buffers, line, d);
+            line.append(',').append(d).append(',');
+        } else if (value instanceof Float) {
+            float f = (Float) value;
+            appendJsonDouble(buffers, line, f);
+            line.append(',').append(f).append(',');
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            long l = ((Number) value).longValue();
+            line.append(l).append(',').append(l).append(',').append(l);
+        } else if (value instanceof Boolean) {
+            boolean b = (Boolean) value;
+            line.append(b).append(',').append(b ? 1 : 0).append(',').append(b ? 1 : 0);
+        } else if (value instanceof String) {
+            StringBuilder json = buffers.scratch;
+            json.setLength(0);
+            appendJsonString(json, (String) value);
+            appendCsv(line, json);
+            line.append(",,");
+        } else {
+            appendCsv(line, JSON_WRITER.writeValueAsString(value));
+            line.append(",,");
+        }
+    }
+
+    /**
+     * Appends the value_double, value_long, value_bool, value_string and
+     * value_dynamic columns of a typed table, only the one matching the value is set.
+     */
+    private static void appendTypedValue(StringBuilder line, Object value) throws IOException {
+        if (value == null) {
+            line.append(",,,,");
+        } else if (value instanceof Double) {
+            line.append((double) (Double) value).append(",,,,");
+        } else if (value instanceof Float) {
+            line.append((float) (Float) value).append(",,,,");
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            line.append(',').append(((Number) value).longValue()).append(",,,");
+        } else if (value instanceof Boolean) {
+            line.append(",,").append((boolean) (Boolean) value).append(",,");
+        } else if (value instanceof String) {
+            line.append(",,,");
+            appendCsv(line, (String) value);
+            line.append(',');
+        } else {
+            line.append(",,,,");
+            appendCsv(line, JSON_WRITER.writeValueAsString(value));
+        }
+    }
+
+    /**
+     * Jackson writes non-finite numbers as strings, keep the dynamic column compatible with that.
+     */
+    private static void appendJsonDouble(Buffers buffers, StringBuilder line, double d) {
+        if (Double.isNaN(d) || Double.isInfinite(d)) {
+            StringBuilder json = buffers.scratch;
+            json.setLength(0);
+            json.append('"').append(d).append('"');
+            appendCsv(line, json);
+        } else {
+            line.append(d);
+        }
+    }
+
+    private static void appendJsonDouble(Buffers buffers, StringBuilder line, float f) {
+        if (Float.isNaN(f) || Float.isInfinite(f)) {
+            appendJsonDouble(buffers, line, (double) f);
+        } else {
+            line.append(f);
+        }
+    }
+
+    static void appendJsonString(StringBuilder json, String s) {
+        json.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        json.append("\\u00");
+                        json.append(Character.forDigit(c >> 4, 16));
+                        json.append(Character.forDigit(c & 0xF, 16));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        json.append('"');
+    }
+
+    /**
+     * Appends a csv field, quoting it only if it contains a separator, a quote or a line break.
+     */
+    static void appendCsv(StringBuilder line, CharSequence s) {
+        if (s == null) {
+            return;
+        }
+
+        boolean quote = false;
+        int length = s.length();
+        for (int i = 0; i < length && !quote; i++) {
+            char c = s.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+
+        if (!quote) {
+            line.append(s);
+            return;
+        }
+
+        line.append('"');
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c == '"') {
+                line.append('"');
+            }
+            line.append(c);
+        }
+        line.append('"');
+    }
+
+    /**
+     * Splits encoded text back into its rows, one per line including the line
+     * break. With quoted set, line breaks inside a quoted csv field don't end
+     * the row.
+     */
+    static List<byte[]> readLines(InputStream in, boolean quoted) throws IOException {
+        List<byte[]> lines = new ArrayList<>();
+        ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+        byte[] buffer = new byte[8192];
+        boolean inQuotes = false;
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            int start = 0;
+            for (int i = 0; i < n; i++) {
+                byte b = buffer[i];
+                if (quoted && b == '"') {
+                    inQuotes = !inQuotes; // An escaped quote flips twice
+                } else if (b == '\n' && !inQuotes) {
+                    line.write(buffer, start, i + 1 - start);
+                    lines.add(line.toByteArray());
+                    line.reset();
+                    start = i + 1;
+                }
+            }
+            line.write(buffer, start, n - start);
+        }
+        if (line.size() > 0) {
+            lines.add(line.toByteArray());
+        }
+        return lines;
+    }
+
+    /**
+     * Per-thread buffers, reused across rows and encoders.
+     */
+    private static class Buffers {
+        private final StringBuilder line = new StringBuilder(256);
+        private final StringBuilder scratch = new StringBuilder(64);
+        private char[] chars = new char[256];
+        private final AzureKustoTimestampCodec timestampCodec = new AzureKustoTimestampCodec();
+
+        private char[] chars(int length) {
+            if (chars.length < length) {
+                chars = new char[Math.max(length, chars.length * 2)];
+            }
+            return chars;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import com.inductiveautomation.ignition.common.StatMetric;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of the sink's pipeline, cheap enough to be
+ * always on. Counters are striped (LongAdder) so the encode and upload threads
+ * of all workers update them without contending. Rates are computed from the
+ * counters when they are read, over the time since the previous read.
+ */
+public class AzureKustoSinkMetrics {
+    private final long startTime = System.currentTimeMillis();
+
+    private final LongAdder rowsEncoded = new LongAdder();
+    private final LongAdder encodeNanos = new LongAdder();
+    private final LongAdder rowsSkipped = new LongAdder(); // Rows that couldn't be encoded
+    private final LongAdder rowsIngested = new LongAdder();
+    private final LongAdder batchesIngested = new LongAdder();
+    private final LongAdder rawBytes = new LongAdder();
+    private final LongAdder compressedBytes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder retries = new LongAdder(); // Batches put aside for another try
+    private final LongAdder rowsRejected = new LongAdder(); // Rows ADX rejected for good, see AzureKustoQuarantine
+    private volatile long lastFailureTime;
+    private volatile long lastSuccessTime;
+
+    private final AzureKustoHistogram batchRows = new AzureKustoHistogram();
+    private final AzureKustoHistogram encodeMicros = new AzureKustoHistogram(); // Per call, i.e. per set of rows Ignition hands over
+    private final AzureKustoHistogram uploadMicros = new AzureKustoHistogram(); // Per batch
+
+    private final StatMetric storageMetric = new StatMetric();
+
+    // The counters at the previous rate calculation
+    private long rateTime = startTime;
+    private long rateRows;
+    private long rateBytes;
+    private double rowsPerSecond;
+    private double bytesPerSecond;
+
+    public void recordEncode(int rows, long nanos) {
+        rowsEncoded.add(rows);
+        encodeNanos.add(nanos);
+        encodeMicros.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    public void recordSkipped() {
+        rowsSkipped.increment();
+    }
+
+    /**
+     * Records a batch or spool file ADX accepted.
+     */
+    public void recordIngested(long rows, long raw, long compressed, long nanos) {
+        rowsIngested.add(rows);
+        batchesIngested.increment();
+        rawBytes.add(raw);
+        compressedBytes.add(compressed);
+        batchRows.record(rows);
+        uploadMicros.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+        lastSuccessTime = System.currentTimeMillis();
+        synchronized (storageMetric) {
+            storageMetric.recordValue(rows);
+        }
+    }
+
+    public void recordFailure() {
+        failures.increment();
+        lastFailureTime = System.currentTimeMillis();
+    }
+
+    public void recordRetry() {
+        retries.increment();
+    }
+
+    public void recordRejected(long rows) {
+        rowsRejected.add(rows);
+    }
+
+    /**
+     * Rows per second ingested since the previous call to this or
+     * getBytesPerSecond(), at most once per second.
+     */
+    public double getRowsPerSecond() {
+        updateRates();
+        return rowsPerSecond;
+    }
+
+    /**
+     * Compressed bytes per second ingested, see getRowsPerSecond().
+     */
+    public double getBytesPerSecond() {
+        updateRates();
+        return bytesPerSecond;
+    }
+
+    private synchronized void updateRates() {
+        long now = System.currentTimeMillis();
+        long elapsed = now - rateTime;
+        if (elapsed < 1000) {
+            return;
+        }
+        long rows = rowsIngested.sum();
+        long bytes = compressedBytes.sum();
+        rowsPerSecond = (rows - rateRows) * 1000.0 / elapsed;
+        bytesPerSecond = (bytes - rateBytes) * 1000.0 / elapsed;
+        rateTime = now;
+        rateRows = rows;
+        rateBytes = bytes;
+    }
+
+    /**
+     * Whether the last ingestion failed.
+     */
+    public boolean isFailing() {
+        return lastFailureTime > lastSuccessTime;
+    }
+
+    public long getUptimeMillis() {
+        return System.currentTimeMillis() - startTime;
+    }
+
+    public long getRowsEncoded() {
+        return rowsEncoded.sum();
+    }
+
+    /**
+     * The average time it took to encode and compress one row.
+     */
+    public double getEncodeNanosPerRow() {
+        long rows = rowsEncoded.sum();
+        return rows == 0 ? 0 : (double) encodeNanos.sum() / rows;
+    }
+
+    public long getRowsSkipped() {
+        return rowsSkipped.sum();
+    }
+
+    public long getRowsIngested() {
+        return rowsIngested.sum();
+    }
+
+    public long getBatchesIngested() {
+        return batchesIngested.sum();
+    }
+
+    /**
+     * The uncompressed size of the rows ingested.
+     */
+    public long getRawBytes() {
+        return rawBytes.sum();
+    }
+
+    public long getCompressedBytes() {
+        return compressedBytes.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    public long getRowsRejected() {
+        return rowsRejected.sum();
+    }
+
+    /**
+     * Rows per ingested batch.
+     */
+    public AzureKustoHistogram getBatchRows() {
+        return batchRows;
+    }
+
+    /**
+     * Microseconds to encode the rows of one call to storeData.
+     */
+    public AzureKustoHistogram getEncodeMicros() {
+        return encodeMicros;
+    }
+
+    /**
+     * Microseconds to hand one batch to ADX.
+     */
+    public AzureKustoHistogram getUploadMicros() {
+        return uploadMicros;
+    }
+
+    /**
+     * The rows of each ingestion, for the gateway's status page.
+     */
+    public StatMetric getStorageMetric() {
+        return storageMetric;
+    }
+}
@@ -0,0 +1,95 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes batches too large to stream to ADX out to compressed files on local
+ * disk and hands each file to the file handler, which ingests it from there,
+ * e.g. through queued ingestion. The file is deleted after the handler
+ * returns, so it is only on disk while it is being ingested.
+ * <p>
+ * The spool is not a store & forward: a file that fails to ingest is deleted
+ * too and the error goes to the caller, which still has the batch to retry.
+ */
+public class AzureKustoSpool {
+    private static final String PREFIX = "spool-";
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    /**
+     * Ingests one complete spool file. The file is deleted after the call returns.
+     */
+    public interface FileHandler {
+        void ingest(File file, AzureKustoIngestionFormat format, long rowCount, long rawBytes) throws Exception;
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final File dir;
+    private final FileHandler handler;
+
+    public AzureKustoSpool(File dir, FileHandler handler) throws IOException {
+        Files.createDirectories(dir.toPath());
+        this.dir = dir;
+        this.handler = handler;
+    }
+
+    /**
+     * Writes the payload of a sealed batch out as a file and hands it over.
+     * The batch's buffers are left to the caller.
+     */
+    public void add(AzureKustoBatch batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        AzureKustoIngestionFormat format = batch.getFormat();
+        File file = new File(dir, PREFIX + System.currentTimeMillis() + "-" + SEQUENCE.incrementAndGet() + format.getFileExtension());
+        try {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                for (ByteBuffer buffer : batch.getPayload().getBuffers()) {
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+            }
+            handler.ingest(file, format, batch.getRowCount(), batch.getEstimatedBytes());
+        } catch (IOException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IOException("Ingesting spool file " + file.getName() + " failed", ex);
+        } finally {
+            delete(file);
+        }
+    }
+
+    private void delete(File f) {
+        try {
+            Files.deleteIfExists(f.toPath());
+        } catch (IOException ex) {
+            logger.warn("Unable to delete spool file " + f, ex);
+        }
+    }
+
+    /**
+     * Deletes the spool files a previous run left behind, e.g. after a crash.
+     */
+    public static void deleteLeftovers(File dir) {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(PREFIX));
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            if (!f.delete()) {
+                LoggerFactory.getLogger(AzureKustoSpool.class).warn("Unable to delete spool file " + f);
+            }
+        }
+    }
+}
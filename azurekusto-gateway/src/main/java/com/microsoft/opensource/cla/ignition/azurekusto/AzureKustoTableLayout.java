@@ -0,0 +1,44 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import java.util.List;
+
+/**
+ * The variants of the table the sink writes to, see AzureKustoTableSchema. A
+ * normalized table identifies the tag of a row by its id, a typed table keeps
+ * each value in the column of its type instead of a dynamic column. Batches,
+ * spool files and the store & forward log remember the layout of their rows,
+ * a payload only fits a table of the same layout.
+ */
+public enum AzureKustoTableLayout {
+    DEFAULT(false, false),
+    NORMALIZED(true, false),
+    TYPED(false, true),
+    NORMALIZED_TYPED(true, true);
+
+    private final boolean normalized;
+    private final boolean typed;
+
+    AzureKustoTableLayout(boolean normalized, boolean typed) {
+        this.normalized = normalized;
+        this.typed = typed;
+    }
+
+    public static AzureKustoTableLayout of(boolean normalized, boolean typed) {
+        if (normalized) {
+            return typed ? NORMALIZED_TYPED : NORMALIZED;
+        }
+        return typed ? TYPED : DEFAULT;
+    }
+
+    public boolean isNormalized() {
+        return normalized;
+    }
+
+    public boolean isTyped() {
+        return typed;
+    }
+
+    public List<AzureKustoTableSchema.Column> getColumns() {
+        return AzureKustoTableSchema.getColumns(this);
+    }
+}
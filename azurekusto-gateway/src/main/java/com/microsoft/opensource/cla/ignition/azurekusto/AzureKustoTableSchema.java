@@ -0,0 +1,199 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The columns of the table the sink writes to, and how each ingestion format
+ * maps onto them. The csv format relies on the column order, the other formats
+ * use an ingestion mapping the sink creates at startup.
+ * <p>
+ * With the tag dictionary enabled the table is normalized: rows carry the
+ * 64-bit id of their tag instead of the three name columns, and the names are
+ * kept once per tag in the dictionary table next to it (see AzureKustoTagDictionary).
+ * <p>
+ * With typed columns the value goes into the one column of its type, instead of
+ * being json encoded into the dynamic value column and copied into value_double
+ * and value_integer. Only structured values (datasets, arrays, ...) still go
+ * into a dynamic column. AzureKustoTableLayout names the four combinations.
+ */
+public final class AzureKustoTableSchema {
+    public static final String TAG_ID = "tagId";
+    public static final String SYSTEM_NAME = "systemName";
+    public static final String TAG_PROVIDER = "tagProvider";
+    public static final String TAG_PATH = "tagPath";
+    public static final String VALUE = "value";
+    public static final String VALUE_DOUBLE = "value_double";
+    public static final String VALUE_INTEGER = "value_integer";
+    public static final String VALUE_LONG = "value_long";
+    public static final String VALUE_BOOL = "value_bool";
+    public static final String VALUE_STRING = "value_string";
+    public static final String VALUE_DYNAMIC = "value_dynamic";
+    public static final String TIMESTAMP = "timestamp";
+    public static final String QUALITY = "quality";
+
+    /**
+     * One column, with its Kusto type and the Avro type it is written as.
+     */
+    public static class Column {
+        private final String name;
+        private final String kustoType;
+        private final String avroType;
+        private final String transform; // Kusto mapping transformation for the json and avro formats, if any
+
+        Column(String name, String kustoType, String avroType, String transform) {
+            this.name = name;
+            this.kustoType = kustoType;
+            this.avroType = avroType;
+            this.transform = transform;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getKustoType() {
+            return kustoType;
+        }
+
+        public String getAvroType() {
+            return avroType;
+        }
+    }
+
+    // The binary formats carry the timestamp as milliseconds since the epoch, Kusto converts it on ingestion
+    public static final List<Column> COLUMNS = Collections.unmodifiableList(Arrays.asList(
+            new Column(SYSTEM_NAME, "string", "\"string\"", null),
+            new Column(TAG_PROVIDER, "string", "\"string\"", null),
+            new Column(TAG_PATH, "string", "\"string\"", null),
+            new Column(VALUE, "dynamic", "[\"null\",\"boolean\",\"long\",\"double\",\"string\"]", null),
+            new Column(VALUE_DOUBLE, "real", "[\"null\",\"double\"]", null),
+            new Column(VALUE_INTEGER, "int", "[\"null\",\"long\"]", null),
+            new Column(TIMESTAMP, "datetime", "[\"null\",\"long\"]", "DateTimeFromUnixMilliseconds"),
+            new Column(QUALITY, "int", "[\"null\",\"int\"]", null)));
+
+    public static final List<Column> NORMALIZED_COLUMNS = Collections.unmodifiableList(Arrays.asList(
+            new Column(TAG_ID, "long", "\"long\"", null),
+            COLUMNS.get(3), COLUMNS.get(4), COLUMNS.get(5), COLUMNS.get(6), COLUMNS.get(7)));
+
+    // At most one of the value columns is set, structured values are written as json text
+    public static final List<Column> TYPED_COLUMNS = Collections.unmodifiableList(Arrays.asList(
+            COLUMNS.get(0), COLUMNS.get(1), COLUMNS.get(2),
+            COLUMNS.get(4),
+            new Column(VALUE_LONG, "long", "[\"null\",\"long\"]", null),
+            new Column(VALUE_BOOL, "bool", "[\"null\",\"boolean\"]", null),
+            new Column(VALUE_STRING, "string", "[\"null\",\"string\"]", null),
+            new Column(VALUE_DYNAMIC, "dynamic", "[\"null\",\"string\"]", null),
+            COLUMNS.get(6), COLUMNS.get(7)));
+
+    public static final List<Column> NORMALIZED_TYPED_COLUMNS = Collections.unmodifiableList(Arrays.asList(
+            NORMALIZED_COLUMNS.get(0),
+            TYPED_COLUMNS.get(3), TYPED_COLUMNS.get(4), TYPED_COLUMNS.get(5), TYPED_COLUMNS.get(6), TYPED_COLUMNS.get(7),
+            TYPED_COLUMNS.get(8), TYPED_COLUMNS.get(9)));
+
+    // The dictionary table is always ingested as csv
+    public static final List<Column> TAG_COLUMNS = Collections.unmodifiableList(Arrays.asList(
+            NORMALIZED_COLUMNS.get(0), COLUMNS.get(0), COLUMNS.get(1), COLUMNS.get(2)));
+
+    private AzureKustoTableSchema() {
+    }
+
+    public static List<Column> getColumns(AzureKustoTableLayout layout) {
+        switch (layout) {
+            case NORMALIZED:
+                return NORMALIZED_COLUMNS;
+            case TYPED:
+                return TYPED_COLUMNS;
+            case NORMALIZED_TYPED:
+                return NORMALIZED_TYPED_COLUMNS;
+            default:
+                return COLUMNS;
+        }
+    }
+
+    /**
+     * The columns identifying the tag of a row, to filter, sort and group by.
+     */
+    public static String getTagColumns(AzureKustoTableLayout layout) {
+        return layout.isNormalized() ? TAG_ID : SYSTEM_NAME + ", " + TAG_PROVIDER + ", " + TAG_PATH;
+    }
+
+    /**
+     * The KQL expression for the value of a row as a real, for aggregates. A
+     * typed table has no column with every numeric value in it.
+     */
+    public static String getNumericValue(AzureKustoTableLayout layout) {
+        if (layout.isTyped()) {
+            return "coalesce(" + VALUE_DOUBLE + ", todouble(" + VALUE_LONG + "), todouble(" + VALUE_BOOL + "))";
+        }
+        return VALUE_DOUBLE;
+    }
+
+    /**
+     * The name of the tag dictionary table of a normalized table.
+     */
+    public static String getTagTableName(String table) {
+        return table + "_Tags";
+    }
+
+    public static String getCreateTableCommand(String table, AzureKustoTableLayout layout) {
+        return getCreateTableCommand(table, getColumns(layout));
+    }
+
+    public static String getCreateTagTableCommand(String table) {
+        return getCreateTableCommand(getTagTableName(table), TAG_COLUMNS);
+    }
+
+    private static String getCreateTableCommand(String table, List<Column> columns) {
+        StringBuilder command = new StringBuilder(".create table ").append(table).append(" (");
+        for (int i = 0; i < columns.size(); i++) {
+            Column column = columns.get(i);
+            command.append(i == 0 ? "" : ", ").append(column.name).append(':').append(column.kustoType);
+        }
+        return command.append(')').toString();
+    }
+
+    /**
+     * The command creating (or updating) the ingestion mapping for the format,
+     * null for formats that don't need one.
+     */
+    public static String getCreateMappingCommand(String table, AzureKustoIngestionFormat format, AzureKustoTableLayout layout) {
+        if (format.getMappingKind() == null) {
+            return null;
+        }
+
+        List<Column> columns = getColumns(layout);
+        StringBuilder mapping = new StringBuilder("[");
+        for (int i = 0; i < columns.size(); i++) {
+            Column column = columns.get(i);
+            mapping.append(i == 0 ? "" : ",").append("{\"column\":\"").append(column.name).append("\",\"Properties\":{");
+            if (format == AzureKustoIngestionFormat.AVRO) {
+                mapping.append("\"Field\":\"").append(column.name).append('"');
+            } else {
+                mapping.append("\"Path\":\"$.").append(column.name).append('"');
+            }
+            if (column.transform != null) {
+                mapping.append(",\"Transform\":\"").append(column.transform).append('"');
+            }
+            mapping.append("}}");
+        }
+        mapping.append(']');
+
+        return ".create-or-alter table " + table + " ingestion " + format.getMappingKind().name() + " mapping \""
+                + format.getMappingName() + "\" '" + mapping + "'";
+    }
+
+    /**
+     * The schema of the records in the Avro payloads.
+     */
+    public static String getAvroSchema(AzureKustoTableLayout layout) {
+        List<Column> columns = getColumns(layout);
+        StringBuilder schema = new StringBuilder("{\"type\":\"record\",\"name\":\"TagValue\",\"namespace\":\"com.microsoft.opensource.cla.ignition.azurekusto\",\"fields\":[");
+        for (int i = 0; i < columns.size(); i++) {
+            Column column = columns.get(i);
+            schema.append(i == 0 ? "" : ",").append("{\"name\":\"").append(column.name).append("\",\"type\":").append(column.avroType).append('}');
+        }
+        return schema.append("]}").toString();
+    }
+}
@@ -1,40 +1,45 @@
 package com.microsoft.opensource.cla.ignition.azurekusto;
 
-import java.util.Objects;
-
-public class AzureKustoTag {
-    private String systemName;
-    private String tagProvider;
-    private String tagPath;
+/**
+ * The identity of a tag: system name, tag provider and tag path, compared
+ * without regard to case. The identity is immutable and its case-insensitive
+ * hash is computed once, when it is created. Use AzureKustoTagCache to get
+ * the shared instance instead of creating one per value or result row.
+ */
+public final class AzureKustoTag {
+    private final String systemName;
+    private final String tagProvider;
+    private final String tagPath;
+    private final long key; // See longHash()
 
     public AzureKustoTag(String systemName, String tagProvider, String tagPath) {
+        this(systemName, tagProvider, tagPath, longHash(systemName, tagProvider, tagPath));
+    }
+
+    AzureKustoTag(String systemName, String tagProvider, String tagPath, long key) {
         this.systemName = systemName;
         this.tagProvider = tagProvider;
         this.tagPath = tagPath;
+        this.key = key;
     }
 
     public String getSystemName() {
         return systemName;
     }
 
-    public void setSystemName(String systemName) {
-        this.systemName = systemName;
-    }
-
     public String getTagProvider() {
         return tagProvider;
     }
 
-    public void setTagProvider(String tagProvider) {
-        this.tagProvider = tagProvider;
-    }
-
     public String getTagPath() {
         return tagPath;
     }
 
-    public void setTagPath(String tagPath) {
-        this.tagPath = tagPath;
+    /**
+     * The 64-bit case-insensitive hash of the tag, the key of per-tag state.
+     */
+    public long getKey() {
+        return key;
     }
 
     /**
@@ -44,18 +49,68 @@ public class AzureKustoTag {
         return "[" + systemName + ";" + tagProvider + "]" + tagPath;
     }
 
+    /**
+     * A 64-bit case-insensitive hash of the tag, without creating the lower case
+     * strings. Characters are folded the way String.equalsIgnoreCase compares
+     * them, so tags that are equal always have the same hash.
+     */
+    public static long longHash(String systemName, String tagProvider, String tagPath) {
+        long hash = 0xcbf29ce484222325L; // FNV-1a
+        hash = longHash(hash, systemName);
+        hash = (hash ^ ';') * 0x100000001b3L;
+        hash = longHash(hash, tagProvider);
+        hash = (hash ^ ']') * 0x100000001b3L;
+        return longHash(hash, tagPath);
+    }
+
+    private static long longHash(long hash, String s) {
+        if (s == null) {
+            return hash;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (c >= 'A' && c <= 'Z') {
+                    c += 'a' - 'A';
+                }
+            } else {
+                c = Character.toLowerCase(Character.toUpperCase(c));
+            }
+            hash = (hash ^ c) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Whether this is the tag with the given key and names, without creating an
+     * identity for them first.
+     */
+    boolean matches(long key, String systemName, String tagProvider, String tagPath) {
+        return this.key == key
+                && equalsIgnoreCase(this.tagPath, tagPath)
+                && equalsIgnoreCase(this.tagProvider, tagProvider)
+                && equalsIgnoreCase(this.systemName, systemName);
+    }
+
+    private static boolean equalsIgnoreCase(String a, String b) {
+        return a == null ? b == null : a.equalsIgnoreCase(b);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
+        if (!(o instanceof AzureKustoTag)) return false;
         AzureKustoTag that = (AzureKustoTag) o;
-        return systemName.equalsIgnoreCase(that.systemName) &&
-                tagProvider.equalsIgnoreCase(that.tagProvider) &&
-                tagPath.equalsIgnoreCase(that.tagPath);
+        return matches(that.key, that.systemName, that.tagProvider, that.tagPath);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(systemName.toLowerCase(), tagProvider.toLowerCase(), tagPath.toLowerCase());
+        return (int) (key ^ (key >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return toStringFull();
     }
 }
@@ -0,0 +1,118 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of tag identities, shared by the sink and the query
+ * executors of a provider. Looking up a tag that is already cached hashes the
+ * names and compares them in place, nothing is allocated.
+ * <p>
+ * The cache is set associative: a tag can only be in the few slots of the set
+ * its hash points to, and when the set is full a random one of them is
+ * replaced. The keys of a set sit next to each other, so a lookup only reads
+ * the tag whose key matches. Readers and writers don't lock. Identities are
+ * immutable, so a reader always sees a complete one. Two threads missing the
+ * same tag at once may both create it, which is harmless since identities
+ * compare by value.
+ */
+public class AzureKustoTagCache {
+    private static final int WAYS = 8;
+
+    private final long[] keys; // The key of the tag in each slot, so probing a set touches one array
+    private final AzureKustoTag[] slots;
+    private final int mask;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Creates a cache that holds at least maxTags tags. The table gets twice as
+     * many slots, rounded up to a power of two, so few sets overflow.
+     */
+    public AzureKustoTagCache(int maxTags) {
+        int capacity = WAYS;
+        while (capacity < 2L * maxTags && capacity < (1 << 30)) {
+            capacity <<= 1;
+        }
+        keys = new long[capacity];
+        slots = new AzureKustoTag[capacity];
+        mask = (capacity - 1) & ~(WAYS - 1);
+    }
+
+    /**
+     * Returns the cached identity of the tag, creating it if it isn't cached yet.
+     */
+    public AzureKustoTag intern(String systemName, String tagProvider, String tagPath) {
+        long key = AzureKustoTag.longHash(systemName, tagProvider, tagPath);
+        int set = set(key);
+        for (int i = set; i < set + WAYS; i++) {
+            if (keys[i] == key) {
+                AzureKustoTag tag = slots[i];
+                if (tag != null && tag.matches(key, systemName, tagProvider, tagPath)) {
+                    hits.increment();
+                    return tag;
+                }
+            }
+        }
+
+        misses.increment();
+        AzureKustoTag tag = new AzureKustoTag(systemName, tagProvider, tagPath, key);
+        store(set, tag);
+        return tag;
+    }
+
+    /**
+     * Returns the cached instance equal to the tag, caching the tag if there is none.
+     */
+    public AzureKustoTag intern(AzureKustoTag tag) {
+        long key = tag.getKey();
+        int set = set(key);
+        for (int i = set; i < set + WAYS; i++) {
+            if (keys[i] == key) {
+                AzureKustoTag cached = slots[i];
+                if (cached != null && cached.equals(tag)) {
+                    hits.increment();
+                    return cached;
+                }
+            }
+        }
+
+        misses.increment();
+        store(set, tag);
+        return tag;
+    }
+
+    /**
+     * Puts the tag into a free slot of the set, or over a random one if the set
+     * is full. The key and the slot are written separately, a reader that sees
+     * them out of sync only misses because it compares the whole tag.
+     */
+    private void store(int set, AzureKustoTag tag) {
+        int slot = set + ThreadLocalRandom.current().nextInt(WAYS);
+        for (int i = set; i < set + WAYS; i++) {
+            if (slots[i] == null) {
+                slot = i;
+                break;
+            }
+        }
+        slots[slot] = tag;
+        keys[slot] = tag.getKey();
+    }
+
+    private int set(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & mask;
+    }
+
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+}
@@ -0,0 +1,274 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import com.microsoft.azure.kusto.ingest.exceptions.IngestionClientException;
+import com.microsoft.azure.kusto.ingest.exceptions.IngestionServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The tag dictionary of a normalized table (see AzureKustoTableSchema). The id
+ * of a tag is the 64-bit case-insensitive hash of its names, AzureKustoTag.getKey(),
+ * so the sink, the queries and other gateways writing to the same table all
+ * get the same id for a tag without looking it up. The dictionary table in
+ * ADX maps the ids back to the names, for browsing and for readers outside
+ * of Ignition.
+ * <p>
+ * The sink registers the tag of every row it writes. A tag it hasn't seen
+ * before is appended to a local cache file and queued, and the queued tags are
+ * ingested into the dictionary table before the next batch, so the rows of a tag
+ * never reach ADX before the tag does. On startup the cache file is read back
+ * and the tags the dictionary table doesn't have yet, e.g. after a crash, are
+ * queued again. A tag ingested twice does no harm, queries take distinct rows.
+ */
+public class AzureKustoTagDictionary implements Closeable {
+    private static final String FILE_NAME = "tags.dat";
+
+    /**
+     * Ingests a batch of dictionary rows into the dictionary table.
+     */
+    public interface TagHandler {
+        void ingest(AzureKustoBatch batch) throws IngestionClientException, IngestionServiceException;
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final File file; // The local cache, null to keep the dictionary in memory only
+    private final Set<AzureKustoTag> known = ConcurrentHashMap.newKeySet(); // Looked up per row, without boxing the id
+    private final Map<Long, AzureKustoTag> byId = new ConcurrentHashMap<>();
+    private final Object flushLock = new Object();
+
+    // Guarded by this
+    private FileOutputStream fileOut;
+    private DataOutputStream out;
+    private final List<AzureKustoTag> pending = new ArrayList<>();
+    private volatile int pendingCount;
+    private long collisions;
+
+    /**
+     * Creates an empty dictionary that is kept in memory only.
+     */
+    public AzureKustoTagDictionary() {
+        file = null;
+    }
+
+    /**
+     * Opens the dictionary with the tags cached in the directory.
+     */
+    public AzureKustoTagDictionary(File dir) throws IOException {
+        Files.createDirectories(dir.toPath());
+        file = new File(dir, FILE_NAME);
+        recover();
+        fileOut = new FileOutputStream(file, true);
+        out = new DataOutputStream(fileOut);
+    }
+
+    /**
+     * Registers the tag of a row about to be written. Returns true if the tag is
+     * new, in which case it is queued for the dictionary table.
+     */
+    public boolean add(AzureKustoTag tag) throws IOException {
+        if (known.contains(tag)) {
+            return false;
+        }
+
+        synchronized (this) {
+            if (known.contains(tag)) {
+                return false;
+            }
+            AzureKustoTag other = byId.putIfAbsent(tag.getKey(), tag);
+            if (other != null) {
+                // Two tags with the same 64-bit hash, rare enough to only report it
+                collisions++;
+                known.add(tag);
+                logger.error("Tags " + other + " and " + tag + " have the same id " + tag.getKey() + ", their rows can't be told apart");
+                return false;
+            }
+
+            if (out != null) {
+                try {
+                    write(out, tag);
+                    out.flush(); // Into the OS, it survives the gateway crashing
+                } catch (IOException ex) {
+                    byId.remove(tag.getKey());
+                    throw ex;
+                }
+            }
+            known.add(tag);
+            pending.add(tag);
+            pendingCount = pending.size();
+            return true;
+        }
+    }
+
+    /**
+     * Queues the cached tags that aren't among the ids stored in the dictionary
+     * table, or all of them if the ids are unknown (null).
+     */
+    public synchronized void reconcile(Collection<Long> storedIds) {
+        Set<AzureKustoTag> queued = new HashSet<>(pending);
+        int count = 0;
+        for (AzureKustoTag tag : byId.values()) {
+            if ((storedIds == null || !storedIds.contains(tag.getKey())) && !queued.contains(tag)) {
+                pending.add(tag);
+                count++;
+            }
+        }
+        pendingCount = pending.size();
+        if (count > 0) {
+            logger.info("Queued " + count + " cached tag(s) missing from the dictionary table");
+        }
+    }
+
+    /**
+     * Ingests the queued tags into the dictionary table. Waits for a flush
+     * another thread has started, so once this returns every tag registered
+     * before the call is in ADX. If ingestion fails the tags stay queued.
+     */
+    public void flush(AzureKustoBufferPool pool, TagHandler handler) throws IngestionClientException, IngestionServiceException, IOException {
+        if (pendingCount == 0) {
+            return;
+        }
+
+        synchronized (flushLock) {
+            List<AzureKustoTag> tags;
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                tags = new ArrayList<>(pending);
+                if (out != null) {
+                    out.flush();
+                    fileOut.getFD().sync();
+                }
+            }
+
+            AzureKustoBatch batch = encode(tags, pool);
+            try {
+                handler.ingest(batch);
+            } finally {
+                batch.discard();
+            }
+            logger.debug("Added " + tags.size() + " tag(s) to the dictionary table");
+
+            // Only flush removes tags and new ones are appended, the flushed tags are still first
+            synchronized (this) {
+                pending.subList(0, tags.size()).clear();
+                pendingCount = pending.size();
+            }
+        }
+    }
+
+    /**
+     * The tag with the id, null if the dictionary doesn't know it.
+     */
+    public AzureKustoTag getTag(long id) {
+        return byId.get(id);
+    }
+
+    public int size() {
+        return byId.size();
+    }
+
+    public int getPendingCount() {
+        return pendingCount;
+    }
+
+    public synchronized long getCollisions() {
+        return collisions;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    /**
+     * Encodes the tags as csv rows of the dictionary table, in the column order
+     * of AzureKustoTableSchema.TAG_COLUMNS.
+     */
+    static AzureKustoBatch encode(List<AzureKustoTag> tags, AzureKustoBufferPool pool) throws IOException {
+        AzureKustoBatch batch = new AzureKustoBatch(pool, AzureKustoIngestionFormat.CSV);
+        try {
+            StringBuilder line = new StringBuilder(256);
+            for (AzureKustoTag tag : tags) {
+                line.setLength(0);
+                line.append(tag.getKey()).append(',');
+                AzureKustoRowEncoder.appendCsv(line, tag.getSystemName());
+                line.append(',');
+                AzureKustoRowEncoder.appendCsv(line, tag.getTagProvider());
+                line.append(',');
+                AzureKustoRowEncoder.appendCsv(line, tag.getTagPath());
+                line.append('\n');
+                batch.addRaw(line.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            batch.seal();
+        } catch (IOException | RuntimeException ex) {
+            batch.discard();
+            throw ex;
+        }
+        return batch;
+    }
+
+    /**
+     * Reads the cache file back. A record cut off by a crash is truncated away.
+     */
+    private void recover() throws IOException {
+        if (!file.isFile()) {
+            return;
+        }
+
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        long valid = 0;
+        try {
+            while (in.available() > 0) {
+                long id = in.readLong();
+                AzureKustoTag tag = new AzureKustoTag(read(in), read(in), read(in), id);
+                if (byId.putIfAbsent(id, tag) == null) {
+                    known.add(tag);
+                }
+                valid = bytes.length - in.available();
+            }
+        } catch (EOFException ex) {
+            logger.warn("Tag dictionary cache " + file + " ends in an incomplete record, truncating it");
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(valid);
+            }
+        }
+        logger.debug("Tag dictionary cache holds " + byId.size() + " tag(s)");
+    }
+
+    private static void write(DataOutputStream out, AzureKustoTag tag) throws IOException {
+        out.writeLong(tag.getKey());
+        out.writeUTF(tag.getSystemName() == null ? "" : tag.getSystemName());
+        out.writeUTF(tag.getTagProvider() == null ? "" : tag.getTagProvider());
+        out.writeUTF(tag.getTagPath() == null ? "" : tag.getTagPath());
+    }
+
+    private static String read(DataInputStream in) throws IOException {
+        String s = in.readUTF();
+        return s.isEmpty() ? null : s;
+    }
+}
@@ -4,6 +4,7 @@ import com.inductiveautomation.ignition.common.sqltags.model.types.DataQuality;
 import com.inductiveautomation.ignition.gateway.history.HistoricalTagValue;
 import com.inductiveautomation.ignition.gateway.model.GatewayContext;
 
+import java.io.IOException;
 import java.util.Date;
 
 /**
@@ -16,6 +17,25 @@ import java.util.Date;
  * quality - A quality code that represents the quality of the value, Good=192 else Bad
  */
 public class AzureKustoTagValue {
+    /**
+     * Writes tag values into a batch, partitioned by their tag.
+     */
+    public static final AzureKustoBatcher.RowWriter<AzureKustoTagValue> ROW_WRITER = new AzureKustoBatcher.RowWriter<AzureKustoTagValue>() {
+        @Override
+        public int partitionHash(AzureKustoTagValue row) {
+            return row.getTag().hashCode();
+        }
+
+        @Override
+        public void write(AzureKustoTagValue row, AzureKustoBatch batch, AzureKustoCompressor compressor) throws IOException {
+            if (compressor != null) {
+                compressor.write(batch, row.getTag(), row.getValue(), row.getTimestamp(), row.getQuality());
+            } else {
+                batch.add(row);
+            }
+        }
+    };
+
     private AzureKustoTag tag;
     private Object value;
     private Date timestamp;
@@ -28,12 +48,12 @@ public class AzureKustoTagValue {
         this.quality = quality;
     }
 
-    public AzureKustoTagValue(GatewayContext context, HistoricalTagValue historicalTagValue) {
+    public AzureKustoTagValue(GatewayContext context, AzureKustoTagCache tagCache, HistoricalTagValue historicalTagValue) {
         // Pull all of the required fields from the historical tag value
         String systemName = (historicalTagValue == null || historicalTagValue.getSource().getSystem() == null) ? context.getSystemProperties().getSystemName() : historicalTagValue.getSource().getSystem();
         String tagProvider = historicalTagValue.getSource().getSource();
         String tagPath = historicalTagValue.getSource().toStringPartial();
-        this.tag = new AzureKustoTag(systemName, tagProvider, tagPath);
+        this.tag = tagCache.intern(systemName, tagProvider, tagPath);
         this.value = historicalTagValue.getValue();
         this.timestamp = historicalTagValue.getTimestamp();
         this.quality = ((DataQuality) historicalTagValue.getQuality()).getIntValue();
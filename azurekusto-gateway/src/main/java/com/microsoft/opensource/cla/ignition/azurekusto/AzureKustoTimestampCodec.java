@@ -0,0 +1,155 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Date;
+
+/**
+ * Writes timestamps in the text form of a Kusto datetime, ISO 8601 in UTC
+ * with the seven fractional digits of a 100ns tick:
+ * 2020-01-31T23:59:59.1230000Z
+ * <p>
+ * The date and time up to the second is rendered through java.time and kept,
+ * so timestamps within the same second only write their fraction. A codec is
+ * not thread-safe, use one per thread or the static methods, which do.
+ * <p>
+ * parseMillis reads the same form back from query results.
+ */
+public class AzureKustoTimestampCodec {
+    private static final ThreadLocal<AzureKustoTimestampCodec> CODECS = ThreadLocal.withInitial(AzureKustoTimestampCodec::new);
+    private static final int PREFIX_LENGTH = 20; // yyyy-MM-ddTHH:mm:ss.
+
+    private final char[] prefix = new char[PREFIX_LENGTH];
+    private long prefixSecond = Long.MIN_VALUE;
+
+    /**
+     * Appends the timestamp, given in milliseconds since the epoch.
+     */
+    public void append(StringBuilder sb, long epochMillis) {
+        append(sb, Math.floorDiv(epochMillis, 1000), (int) Math.floorMod(epochMillis, 1000) * 1000000);
+    }
+
+    /**
+     * Appends the timestamp, given in seconds since the epoch and nanoseconds
+     * within the second. Nanoseconds below a tick are truncated.
+     */
+    public void append(StringBuilder sb, long epochSecond, int nanos) {
+        if (epochSecond != prefixSecond) {
+            renderPrefix(epochSecond);
+        }
+        sb.append(prefix);
+
+        int ticks = nanos / 100;
+        for (int divisor = 1000000; divisor > 0; divisor /= 10) {
+            sb.append((char) ('0' + ticks / divisor % 10));
+        }
+        sb.append('Z');
+    }
+
+    private void renderPrefix(long epochSecond) {
+        LocalDateTime time = LocalDateTime.ofEpochSecond(epochSecond, 0, ZoneOffset.UTC);
+        int year = time.getYear();
+        if (year < 0 || year > 9999) {
+            throw new IllegalArgumentException("Year " + year + " is outside of the range of a Kusto datetime");
+        }
+        put(0, year, 4);
+        prefix[4] = '-';
+        put(5, time.getMonthValue(), 2);
+        prefix[7] = '-';
+        put(8, time.getDayOfMonth(), 2);
+        prefix[10] = 'T';
+        put(11, time.getHour(), 2);
+        prefix[13] = ':';
+        put(14, time.getMinute(), 2);
+        prefix[16] = ':';
+        put(17, time.getSecond(), 2);
+        prefix[19] = '.';
+        prefixSecond = epochSecond;
+    }
+
+    private void put(int offset, int value, int digits) {
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            prefix[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    /**
+     * The timestamp as Kusto datetime text, using the codec of the calling thread.
+     */
+    public static String format(Date date) {
+        StringBuilder sb = new StringBuilder(PREFIX_LENGTH + 8);
+        if (date instanceof java.sql.Timestamp) {
+            // Timestamps carry sub-millisecond precision in their nanos
+            java.sql.Timestamp timestamp = (java.sql.Timestamp) date;
+            CODECS.get().append(sb, Math.floorDiv(timestamp.getTime(), 1000), timestamp.getNanos());
+        } else {
+            CODECS.get().append(sb, date.getTime());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The milliseconds since the epoch of Kusto datetime text, as results
+     * return it: 2020-01-31T23:59:59[.fffffff]Z, with any number of fractional
+     * digits. Parsed in place without allocating, Long.MIN_VALUE if the text
+     * isn't in that form.
+     */
+    public static long parseMillis(CharSequence text) {
+        int length = text.length();
+        if (length < PREFIX_LENGTH || text.charAt(length - 1) != 'Z' || text.charAt(4) != '-' || text.charAt(7) != '-'
+                || text.charAt(10) != 'T' || text.charAt(13) != ':' || text.charAt(16) != ':') {
+            return Long.MIN_VALUE;
+        }
+        int year = digits(text, 0, 4);
+        int month = digits(text, 5, 2);
+        int day = digits(text, 8, 2);
+        int hour = digits(text, 11, 2);
+        int minute = digits(text, 14, 2);
+        int second = digits(text, 17, 2);
+        if ((year | month | day | hour | minute | second) < 0 || month < 1 || month > 12 || day < 1 || day > 31) {
+            return Long.MIN_VALUE;
+        }
+
+        int millis = 0;
+        if (length > PREFIX_LENGTH) {
+            if (text.charAt(19) != '.') {
+                return Long.MIN_VALUE;
+            }
+            for (int i = 20, scale = 100; i < length - 1; i++, scale /= 10) {
+                int digit = text.charAt(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    return Long.MIN_VALUE;
+                }
+                millis += digit * scale;
+            }
+        }
+
+        // Days since the epoch of the proleptic Gregorian date, counted from March so leap days come last
+        int y = month <= 2 ? year - 1 : year;
+        int era = Math.floorDiv(y, 400);
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long days = era * 146097L + yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear - 719468;
+        return ((days * 24 + hour) * 60 + minute) * 60000L + second * 1000L + millis;
+    }
+
+    private static int digits(CharSequence text, int offset, int count) {
+        int value = 0;
+        for (int i = offset; i < offset + count; i++) {
+            int digit = text.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * The timestamp as a KQL datetime literal, datetime(...).
+     */
+    public static String toLiteral(Date date) {
+        return "datetime(" + format(date) + ")";
+    }
+}
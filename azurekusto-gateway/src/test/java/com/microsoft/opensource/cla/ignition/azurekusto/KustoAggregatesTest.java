@@ -0,0 +1,306 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import com.microsoft.azure.kusto.data.ClientImpl;
+import com.microsoft.azure.kusto.data.ConnectionStringBuilder;
+import com.microsoft.azure.kusto.data.KustoResultSetTable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static com.microsoft.opensource.cla.ignition.azurekusto.KustoChecks.check;
+
+/**
+ * Checks the aggregates against a local reference implementation. The
+ * reference is checked on values worked out by hand and the queries are
+ * checked for their shape locally. With -DappId, -DappKey and -DappTenant
+ * (and optionally -Dcluster and -Ddatabase) the queries also run on random
+ * series against the cluster, from an inline datatable, and every block is
+ * compared with the reference.
+ */
+public class KustoAggregatesTest {
+    private static final long SECOND = 1000L;
+    private static final long BLOCK = 60 * SECOND;
+    private static final long START = 1700006400000L; // Midnight UTC
+
+    private static class Sample {
+        final long timestamp;
+        final Double value;
+        final int quality;
+
+        Sample(long timestamp, Double value, int quality) {
+            this.timestamp = timestamp;
+            this.value = value;
+            this.quality = quality;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        checkMapping();
+        checkReference();
+        checkQueries();
+        if (System.getProperty("appId") != null) {
+            checkCluster();
+        } else {
+            System.out.println("No -DappId, not comparing with the cluster");
+        }
+        System.out.println("Aggregates test passed");
+    }
+
+    private static void checkMapping() {
+        Set<String> names = new HashSet<>();
+        for (AzureKustoAggregates aggregate : AzureKustoAggregates.values()) {
+            names.add(aggregate.getIgnitionAggregate());
+            check(AzureKustoAggregates.getKqlFunction(aggregate).equals(aggregate.getKqlFunction()), aggregate + " maps to its own function");
+        }
+        for (String name : new String[]{"MinMax", "Average", "LastValue", "SimpleAverage", "Maximum", "Minimum", "DurationOn", "DurationOff",
+                "CountOn", "CountOff", "Count", "Range", "Variance", "StdDev", "PctGood", "PctBad"}) {
+            check(names.contains(name), "Ignition aggregate " + name + " supported");
+        }
+        check(AzureKustoAggregates.AZUREKUSTO_MINMAX.getKqlFunction().equals("minmax"), "MinMax not just the minimum");
+        check(AzureKustoRollup.getAggregate("range") != null && AzureKustoRollup.getAggregate("twavg") == null, "only aggregates of values from the rollups");
+    }
+
+    /**
+     * The seed holds 1 until 15s, then 0 until 45s, 1 (bad) until 90s and 0
+     * until the end at 120s.
+     */
+    private static void checkReference() {
+        List<Sample> samples = Arrays.asList(
+                new Sample(START - 30 * SECOND, 1.0, 192),
+                new Sample(START + 15 * SECOND, 0.0, 192),
+                new Sample(START + 45 * SECOND, 1.0, 0),
+                new Sample(START + 90 * SECOND, 0.0, 192));
+        long end = START + 2 * BLOCK;
+        checkBlocks("twavg", samples, end, 0.5, 0.5);
+        checkBlocks("durationon", samples, end, 30.0, 30.0);
+        checkBlocks("durationoff", samples, end, 30.0, 30.0);
+        checkBlocks("counton", samples, end, 1.0, 0.0);
+        checkBlocks("countoff", samples, end, 1.0, 1.0);
+        checkBlocks("pctgood", samples, end, 75.0, 50.0);
+        checkBlocks("pctbad", samples, end, 25.0, 50.0);
+        checkBlocks("avg", samples, end, 0.5, 0.0);
+        checkBlocks("count", samples, end, 2.0, 1.0);
+        checkBlocks("range", samples, end, 1.0, 0.0);
+        checkBlocks("last", samples, end, 1.0, 0.0);
+        TreeMap<Long, List<Double>> minmax = reference("minmax", samples, START, end);
+        check(minmax.get(START).equals(Arrays.asList(0.0, 1.0)) && minmax.get(START + BLOCK).equals(Arrays.asList(0.0, 0.0)), "reference minmax two values per block");
+    }
+
+    private static void checkBlocks(String function, List<Sample> samples, long end, double first, double second) {
+        TreeMap<Long, List<Double>> blocks = reference(function, samples, START, end);
+        check(blocks.size() == 2 && same(blocks.get(START).get(0), first) && same(blocks.get(START + BLOCK).get(0), second), "reference " + function);
+    }
+
+    private static void checkQueries() {
+        for (AzureKustoAggregates aggregate : AzureKustoAggregates.values()) {
+            String function = aggregate.getKqlFunction();
+            String query = AzureKustoAggregates.getBlockQuery(Collections.singleton(function), "Rows", "Seed", "tagId", "value_double");
+            check(query.endsWith("| sort by tagId, timestamp asc"), function + " sorted by tag and time");
+            boolean timeWeighted = AzureKustoAggregates.isTimeWeighted(function);
+            check(query.contains("(Seed|") == timeWeighted && query.contains("prev(tagId) == tagId") == timeWeighted, function + (timeWeighted ? " seeded and weighted by time" : " from the rows"));
+        }
+        String minmax = AzureKustoAggregates.getBlockQuery(Collections.singleton("minmax"), "Rows", "Seed", "systemName, tagProvider, tagPath", "value_double");
+        check(minmax.contains("value_min = min(v), value_max = max(v), quality = min(quality)"), "minmax has a column for the minimum and the maximum");
+
+        // The columns of a trend with several aggregates come from one summarize, the minimum only once
+        String mixed = AzureKustoAggregates.getBlockQuery(Arrays.asList("min", "minmax", "avg", "last"), "Rows", "Seed", "tagId", "value_double");
+        check(mixed.split("summarize", -1).length == 2
+                && mixed.contains("| summarize value_min = min(v), value_max = max(v), value_avg = avg(v), (lastTime, value_last) = arg_max(timestamp, v), quality = min(quality) by tagId"),
+                "one pass for several aggregates");
+        String weighted = AzureKustoAggregates.getBlockQuery(Arrays.asList("twavg", "pctgood"), "Rows", "Seed", "tagId", "value_double");
+        check(weighted.split("summarize", -1).length == 3 && weighted.contains("| summarize value_twavg = ") && weighted.contains(", value_pctgood = "),
+                "one pass for several time weighted aggregates after the seed");
+        boolean rejected = false;
+        try {
+            AzureKustoAggregates.getBlockQuery(Arrays.asList("avg", "twavg"), "Rows", "Seed", "tagId", "value_double");
+        } catch (IllegalArgumentException ex) {
+            rejected = true;
+        }
+        check(rejected, "time weighted and other aggregates not mixed in one query");
+        String counton = AzureKustoAggregates.getBlockQuery(Collections.singleton("counton"), "Rows", "Seed", "systemName, tagProvider, tagPath", "value_double");
+        check(counton.contains("prev(systemName) == systemName and prev(tagProvider) == tagProvider and prev(tagPath) == tagPath"), "previous value of the same tag");
+    }
+
+    private static void checkCluster() throws Exception {
+        ClientImpl client = new ClientImpl(ConnectionStringBuilder.createWithAadApplicationCredentials(
+                System.getProperty("cluster", "https://ignitionadxpoc.eastus.kusto.windows.net"),
+                System.getProperty("appId"), System.getProperty("appKey"), System.getProperty("appTenant")));
+        String database = System.getProperty("database", "Contoso");
+
+        // An analog tag and a boolean one, sampled at random intervals from before the start
+        Random random = new Random(42);
+        long end = START + 30 * BLOCK;
+        Map<Long, List<Sample>> series = new HashMap<>();
+        StringBuilder data = new StringBuilder("datatable(tagId:long, timestamp:datetime, value_double:real, quality:int)[");
+        for (long tagId = 1; tagId <= 2; tagId++) {
+            List<Sample> samples = new ArrayList<>();
+            for (long t = START - 5 * BLOCK; t < end; t += SECOND * (1 + random.nextInt(40))) {
+                double value = tagId == 1 ? Math.round(random.nextGaussian() * 1000) / 100.0 : random.nextInt(2);
+                Sample sample = new Sample(t, value, random.nextInt(10) == 0 ? 0 : 192);
+                samples.add(sample);
+                data.append(data.charAt(data.length() - 1) == '[' ? "" : ", ").append(tagId).append(", ").append(AzureKustoTimestampCodec.toLiteral(new Date(t)))
+                        .append(", ").append(value).append(", ").append(sample.quality);
+            }
+            series.put(tagId, samples);
+        }
+        data.append("]");
+
+        for (AzureKustoAggregates aggregate : AzureKustoAggregates.values()) {
+            String function = aggregate.getKqlFunction();
+            String query = "let blocks = " + BLOCK + ";\n"
+                    + "let startTime = " + AzureKustoTimestampCodec.toLiteral(new Date(START)) + ";\n"
+                    + "let endTime = " + AzureKustoTimestampCodec.toLiteral(new Date(end)) + ";\n"
+                    + AzureKustoAggregates.getBlockQuery(Collections.singleton(function),
+                    data + "| where timestamp >= startTime and timestamp < endTime | where tagId in (1, 2)",
+                    data + "| where timestamp >= startTime - " + AzureKustoAggregates.SEED_LOOKBACK + " and timestamp < startTime | where tagId in (1, 2)",
+                    "tagId", "value_double");
+            KustoResultSetTable result = client.execute(database, query).getPrimaryResults();
+            Map<Long, TreeMap<Long, List<Double>>> actual = new HashMap<>();
+            while (result.next()) {
+                List<Double> values = actual.computeIfAbsent(result.getLong("tagId"), id -> new TreeMap<>())
+                        .computeIfAbsent(result.getTimestamp("timestamp").getTime(), t -> new ArrayList<>());
+                for (String output : AzureKustoAggregates.getOutputs(function)) {
+                    Object value = result.getObject(AzureKustoAggregates.getColumn(output));
+                    values.add(value instanceof Number ? ((Number) value).doubleValue() : null);
+                }
+            }
+            for (long tagId = 1; tagId <= 2; tagId++) {
+                TreeMap<Long, List<Double>> expected = reference(function, series.get(tagId), START, end);
+                TreeMap<Long, List<Double>> blocks = actual.getOrDefault(tagId, new TreeMap<>());
+                boolean same = expected.keySet().equals(blocks.keySet());
+                for (Long block : expected.keySet()) {
+                    List<Double> e = expected.get(block);
+                    List<Double> a = blocks.get(block);
+                    same &= a != null && a.size() == e.size();
+                    for (int i = 0; same && i < e.size(); i++) {
+                        same = same(a.get(i), e.get(i));
+                    }
+                    if (!same) {
+                        System.out.println("Block " + new Date(block) + " expected " + e + ", got " + a);
+                        break;
+                    }
+                }
+                check(same, function + " of tag " + tagId + " matches the reference");
+            }
+        }
+    }
+
+    /**
+     * The aggregate over blocks of [start, end), by block start, for the
+     * samples of one tag in timestamp order.
+     */
+    private static TreeMap<Long, List<Double>> reference(String function, List<Sample> samples, long start, long end) {
+        TreeMap<Long, List<Double>> result = new TreeMap<>();
+        if (AzureKustoAggregates.isTimeWeighted(function)) {
+            List<Sample> held = new ArrayList<>();
+            for (Sample sample : samples) {
+                if (sample.timestamp < start) {
+                    held.clear(); // Only the last one before the start is the seed
+                }
+                if (sample.timestamp < end) {
+                    held.add(sample);
+                }
+            }
+
+            // Per block: weighted sum, weighted time, time on, time off, count on, count off, time good, time
+            TreeMap<Long, double[]> sums = new TreeMap<>();
+            for (int i = 0; i < held.size(); i++) {
+                Sample sample = held.get(i);
+                Double previous = i > 0 ? held.get(i - 1).value : null;
+                long from = Math.max(sample.timestamp, start);
+                long to = Math.min(i + 1 < held.size() ? held.get(i + 1).timestamp : end, end);
+                if (to < from) {
+                    continue;
+                }
+                for (long block = bin(from, start); block <= bin(Math.max(from, to - 1), start); block += BLOCK) {
+                    double[] s = sums.computeIfAbsent(block, b -> new double[8]);
+                    double dur = Math.min(to, block + BLOCK) - Math.max(from, block);
+                    boolean inBlock = sample.timestamp >= block && sample.timestamp < block + BLOCK;
+                    Double v = sample.value;
+                    if (v != null) {
+                        s[0] += v * dur;
+                        s[1] += dur;
+                        s[2] += v != 0 ? dur : 0;
+                        s[3] += v == 0 ? dur : 0;
+                        s[4] += inBlock && v != 0 && previous != null && previous == 0 ? 1 : 0;
+                        s[5] += inBlock && v == 0 && previous != null && previous != 0 ? 1 : 0;
+                    }
+                    s[6] += (sample.quality & 192) == 192 ? dur : 0;
+                    s[7] += dur;
+                }
+            }
+            for (Map.Entry<Long, double[]> e : sums.entrySet()) {
+                double[] s = e.getValue();
+                double value;
+                switch (function) {
+                    case "twavg": value = s[0] / s[1]; break;
+                    case "durationon": value = s[2] / 1000.0; break;
+                    case "durationoff": value = s[3] / 1000.0; break;
+                    case "counton": value = s[4]; break;
+                    case "countoff": value = s[5]; break;
+                    case "pctgood": value = 100.0 * s[6] / s[7]; break;
+                    default: value = 100.0 * (s[7] - s[6]) / s[7]; break;
+                }
+                result.put(e.getKey(), Collections.singletonList(value));
+            }
+            return result;
+        }
+
+        TreeMap<Long, List<Sample>> blocks = new TreeMap<>();
+        for (Sample sample : samples) {
+            if (sample.timestamp >= start && sample.timestamp < end) {
+                blocks.computeIfAbsent(bin(sample.timestamp, start), b -> new ArrayList<>()).add(sample);
+            }
+        }
+        for (Map.Entry<Long, List<Sample>> e : blocks.entrySet()) {
+            List<Sample> block = e.getValue();
+            double min = Double.MAX_VALUE, max = -Double.MAX_VALUE, sum = 0, sumsq = 0;
+            Set<Double> distinct = new HashSet<>();
+            for (Sample sample : block) {
+                min = Math.min(min, sample.value);
+                max = Math.max(max, sample.value);
+                sum += sample.value;
+                sumsq += sample.value * sample.value;
+                distinct.add(sample.value);
+            }
+            int n = block.size();
+            double variance = n > 1 ? (sumsq - sum * sum / n) / (n - 1) : 0;
+            List<Double> values;
+            switch (function) {
+                case "min": values = Collections.singletonList(min); break;
+                case "max": values = Collections.singletonList(max); break;
+                case "avg": values = Collections.singletonList(sum / n); break;
+                case "count": values = Collections.singletonList((double) n); break;
+                case "dcount": values = Collections.singletonList((double) distinct.size()); break;
+                case "total": values = Collections.singletonList(sum); break;
+                case "variance": values = Collections.singletonList(variance); break;
+                case "stddev": values = Collections.singletonList(Math.sqrt(variance)); break;
+                case "range": values = Collections.singletonList(max - min); break;
+                case "last": values = Collections.singletonList(block.get(n - 1).value); break;
+                default: values = Arrays.asList(min, max); break;
+            }
+            result.put(e.getKey(), values);
+        }
+        return result;
+    }
+
+    private static long bin(long time, long start) {
+        return start + Math.floorDiv(time - start, BLOCK) * BLOCK;
+    }
+
+    private static boolean same(Double a, Double b) {
+        if (a == null || b == null || a.isNaN() || b.isNaN()) {
+            return (a == null || a.isNaN()) && (b == null || b.isNaN());
+        }
+        return Math.abs(a - b) <= 1e-6 * Math.max(1, Math.abs(b));
+    }
+}
@@ -0,0 +1,36 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * The checks the test drivers run with: each prints what it checked, or
+ * throws and ends the run at the first that fails.
+ */
+final class KustoChecks {
+    private static final long WAIT_MILLIS = 30000;
+
+    private KustoChecks() {
+    }
+
+    static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new IllegalStateException("Check failed: " + what);
+        }
+        System.out.println("OK: " + what);
+    }
+
+    /**
+     * Checks a condition that becomes true on other threads, polling it for
+     * up to 30 seconds.
+     */
+    static void waitFor(BooleanSupplier condition, String what) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                check(false, what);
+            }
+            Thread.sleep(20);
+        }
+        System.out.println("OK: " + what);
+    }
+}
@@ -0,0 +1,70 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import com.microsoft.azure.kusto.data.ClientImpl;
+import com.microsoft.azure.kusto.data.ConnectionStringBuilder;
+import com.microsoft.azure.kusto.data.KustoOperationResult;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.microsoft.opensource.cla.ignition.azurekusto.KustoChecks.check;
+
+/**
+ * Starts the shared clients on a client that only counts its queries, and
+ * checks they are warmed up at startup and kept warm after, that starting
+ * them again or borrowing them doesn't connect again, a failing warm-up
+ * isn't thrown and shutting down stops the warm-ups. Runs locally, no
+ * cluster needed.
+ */
+public class KustoClientsTest {
+
+    public static void main(String[] args) throws Exception {
+        AtomicInteger queries = new AtomicInteger();
+        AtomicBoolean failing = new AtomicBoolean();
+        ClientImpl client = new ClientImpl(ConnectionStringBuilder.createWithAadApplicationCredentials("https://localhost", "id", "key", "tenant")) {
+            @Override
+            public KustoOperationResult execute(String database, String query) {
+                if (!query.equals(AzureKustoClients.WARM_UP_QUERY) || !database.equals("db")) {
+                    throw new IllegalArgumentException("Unexpected query " + query);
+                }
+                queries.incrementAndGet();
+                if (failing.get()) {
+                    throw new IllegalStateException("Cluster down");
+                }
+                return null;
+            }
+        };
+
+        AzureKustoClients clients = new AzureKustoClients("test", "db", 1, client, null, null);
+        clients.startup();
+        Thread.sleep(200);
+        check(clients.getWarmUps() == 1, "warmed up at startup");
+        clients.startup();
+        Thread.sleep(200);
+        check(queries.get() == 1, "started once");
+        check(clients.getQueryClient() == client && clients.getQueryClient() == client, "queries borrow the same client");
+
+        Thread.sleep(2000);
+        check(clients.getWarmUps() >= 2 && clients.getWarmUps() <= 4, "kept warm every second");
+
+        failing.set(true);
+        long warmUps = clients.getWarmUps();
+        int tried = queries.get();
+        Thread.sleep(1200);
+        check(queries.get() > tried && clients.getWarmUps() == warmUps, "failed warm-ups not counted or thrown");
+
+        clients.shutdown();
+        Thread.sleep(100);
+        tried = queries.get();
+        Thread.sleep(1200);
+        check(queries.get() == tried, "no warm-ups after shutdown");
+
+        failing.set(false);
+        AzureKustoClients cold = new AzureKustoClients("cold", "db", 0, client, null, null);
+        cold.startup();
+        Thread.sleep(1200);
+        check(cold.getWarmUps() == 1 && queries.get() == tried + 1, "warmed up once without keep warm");
+        cold.shutdown();
+        System.out.println("Clients test passed");
+    }
+}
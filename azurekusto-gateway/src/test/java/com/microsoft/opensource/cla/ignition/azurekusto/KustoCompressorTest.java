@@ -0,0 +1,166 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import static com.microsoft.opensource.cla.ignition.azurekusto.KustoChecks.check;
+import static com.microsoft.opensource.cla.ignition.azurekusto.KustoChecks.waitFor;
+
+/**
+ * Runs noisy analog signals through the deadband and swinging door compressors
+ * and checks that the stored points still describe every received value: within
+ * the deviation for deadband, within twice the deviation between two stored
+ * points for swinging door. Also checks the point held back for a tag that
+ * stops sending is drained into the batches after the maximum interval and at
+ * shutdown. Runs locally, no cluster needed.
+ */
+public class KustoCompressorTest {
+    private static final int TAGS = 1000;
+    private static final int VALUES = 500;
+    private static final double DEVIATION = 0.5;
+
+    public static void main(String[] args) throws Exception {
+        for (AzureKustoCompressor.Mode mode : new AzureKustoCompressor.Mode[]{AzureKustoCompressor.Mode.DEADBAND, AzureKustoCompressor.Mode.SWINGING_DOOR}) {
+            AzureKustoCompressor compressor = new AzureKustoCompressor(mode, DEVIATION, false, 60000);
+            Random random = new Random(7);
+            double worst = 0;
+            for (int tag = 0; tag < TAGS; tag++) {
+                long key = AzureKustoTag.longHash("Ignition-Test", "default", "Tag" + tag);
+                List<long[]> received = new ArrayList<>();
+                List<double[]> stored = new ArrayList<>();
+                double value = random.nextDouble() * 100;
+                for (int i = 0; i < VALUES; i++) {
+                    long time = 1000L * i;
+                    value += random.nextGaussian() * 0.2 + (i % 100 < 50 ? 0.1 : -0.1);
+                    received.add(new long[]{time, Double.doubleToLongBits(value)});
+                    int result = compressor.offer(key, value, time, 192);
+                    if ((result & AzureKustoCompressor.STORE_HELD) != 0) {
+                        stored.add(new double[]{compressor.getHeldTime(), (Double) compressor.getHeldValue()});
+                    }
+                    if ((result & AzureKustoCompressor.STORE_CURRENT) != 0) {
+                        stored.add(new double[]{time, value});
+                    }
+                }
+                worst = Math.max(worst, maxError(mode, received, stored));
+            }
+            System.out.println(mode + ": " + new AzureKustoCompressionStats(compressor) + ", worst error " + String.format("%.3f", worst));
+            double bound = mode == AzureKustoCompressor.Mode.DEADBAND ? DEVIATION : 2 * DEVIATION;
+            check(worst <= bound + 1e-9, mode + " stays within " + bound);
+            check(compressor.getStored() < compressor.getReceived() / 2, mode + " drops most of the noise");
+            check(compressor.getTagCount() == TAGS, mode + " keeps one state per tag");
+        }
+
+        // Quality changes and the max interval are always stored
+        AzureKustoCompressor compressor = new AzureKustoCompressor(AzureKustoCompressor.Mode.SWINGING_DOOR, 10, false, 5000);
+        check(compressor.offer(1, 1.0, 0, 192) == AzureKustoCompressor.STORE_CURRENT, "first value is stored");
+        check(compressor.offer(1, 1.0, 1000, 192) == 0, "flat value is held back");
+        check(compressor.offer(1, 1.0, 2000, 0) == (AzureKustoCompressor.STORE_HELD | AzureKustoCompressor.STORE_CURRENT), "quality change stores the held and the current value");
+        check(compressor.offer(1, 1.0, 3000, 0) == 0, "flat value is held back again");
+        check((compressor.offer(1, 1.0, 7000, 0) & AzureKustoCompressor.STORE_CURRENT) != 0, "value after the max interval is stored");
+        check(compressor.offer(1, "text", 7500, 0) == AzureKustoCompressor.STORE_CURRENT, "strings are always stored");
+        check(compressor.offer(2, true, 0, 192) == AzureKustoCompressor.STORE_CURRENT, "first boolean is stored");
+        check(compressor.offer(2, true, 1000, 192) == 0, "unchanged boolean is dropped");
+        check(compressor.offer(2, false, 2000, 192) == AzureKustoCompressor.STORE_CURRENT, "changed boolean is stored");
+
+        // A quiet tag's held point is drained once it has been held for the max interval
+        AzureKustoBufferPool pool = new AzureKustoBufferPool(4096, 16);
+        AzureKustoBatch batch = new AzureKustoBatch(pool, AzureKustoIngestionFormat.CSV);
+        AzureKustoTag quiet = new AzureKustoTag("Ignition-Test", "default", "Quiet");
+        compressor = new AzureKustoCompressor(AzureKustoCompressor.Mode.SWINGING_DOOR, 10, false, 5000);
+        compressor.write(batch, quiet, 1.0, new Date(0), 192);
+        compressor.write(batch, quiet, 1.0, new Date(1000), 192);
+        check(batch.getRowCount() == 1 && !compressor.hasHeld(3000) && compressor.drainHeld(batch, 3000) == 0, "held point kept within the max interval");
+        check(compressor.hasHeld(6000) && compressor.drainHeld(batch, 6000) == 1 && batch.getRowCount() == 2, "held point drained after the max interval");
+        check(!compressor.hasHeld(Long.MAX_VALUE) && compressor.getStored() == 2, "drained point counted as stored");
+        batch.discard();
+
+        checkBatcher(pool, 1000);
+        checkBatcher(pool, 0);
+        check(pool.getBytesInUse() == 0, "drain buffers back in the pool");
+
+        System.out.println("Compressor test passed");
+    }
+
+    /**
+     * Feeds a tag through a batcher with swinging door compression until its
+     * last value is held back, stops, and checks that value is ingested: after
+     * the max interval, or at shutdown if there is none.
+     */
+    private static void checkBatcher(AzureKustoBufferPool pool, int maxIntervalMillis) throws Exception {
+        KustoFakeIngest ingest = new KustoFakeIngest();
+        KustoRetryTest.Settings settings = new KustoRetryTest.Settings() {
+            @Override
+            public AzureKustoCompressor.Mode getCompressionMode() {
+                return AzureKustoCompressor.Mode.SWINGING_DOOR;
+            }
+
+            @Override
+            public double getCompressionDeviation() {
+                return 10;
+            }
+
+            @Override
+            public boolean isCompressionPercent() {
+                return false;
+            }
+
+            @Override
+            public int getCompressionMaxIntervalMillis() {
+                return maxIntervalMillis;
+            }
+        };
+        AzureKustoBatcher batcher = new AzureKustoBatcher("drain", settings, pool, null, new AzureKustoSinkMetrics(), null, ingest);
+        batcher.startup();
+
+        long now = System.currentTimeMillis();
+        AzureKustoTag quiet = new AzureKustoTag("Ignition-Test", "default", "Quiet");
+        batcher.add(Arrays.asList(new AzureKustoTagValue(quiet, 1.0, new Date(now - 200), 192), new AzureKustoTagValue(quiet, 1.0, new Date(now - 100), 192),
+                new AzureKustoTagValue(quiet, 1.0, new Date(now), 192)), AzureKustoTagValue.ROW_WRITER);
+        String last = AzureKustoTimestampCodec.format(new Date(now));
+        waitFor(() -> ingest.getRowCount() == 1, "first value ingested");
+        AzureKustoCompressionStats stats = batcher.getCompressionStats();
+        check(stats != null && stats.getReceived() == 3 && stats.getStored() == 1, "compression statistics published by the encode thread");
+        Thread.sleep(300);
+        check(!ingest.contains(last), "last value held back");
+        if (maxIntervalMillis > 0) {
+            waitFor(() -> ingest.contains(last), "last value of a quiet tag ingested after the max interval");
+            batcher.shutdown();
+        } else {
+            batcher.shutdown();
+            check(ingest.contains(last), "last value of a quiet tag ingested at shutdown");
+        }
+        check(ingest.getRowCount() == 2, "only the first and the last value stored");
+    }
+
+    /**
+     * The largest distance between a received value and the stored trend: the
+     * last stored value for deadband, the line between stored points for
+     * swinging door. Values after the last stored point are still held back.
+     */
+    private static double maxError(AzureKustoCompressor.Mode mode, List<long[]> received, List<double[]> stored) {
+        double worst = 0;
+        int segment = 0;
+        for (long[] point : received) {
+            double time = point[0];
+            double value = Double.longBitsToDouble(point[1]);
+            while (segment + 1 < stored.size() && stored.get(segment + 1)[0] <= time) {
+                segment++;
+            }
+            double[] from = stored.get(segment);
+            double expected;
+            if (mode == AzureKustoCompressor.Mode.DEADBAND) {
+                expected = from[1];
+            } else if (segment + 1 < stored.size()) {
+                double[] to = stored.get(segment + 1);
+                expected = from[1] + (to[1] - from[1]) * (time - from[0]) / (to[0] - from[0]);
+            } else {
+                break;
+            }
+            worst = Math.max(worst, Math.abs(value - expected));
+        }
+        return worst;
+    }
+}
@@ -0,0 +1,172 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import com.microsoft.azure.kusto.ingest.IngestClient;
+import com.microsoft.azure.kusto.ingest.exceptions.IngestionServiceException;
+import com.microsoft.azure.kusto.ingest.source.FileSourceInfo;
+import com.microsoft.azure.kusto.ingest.source.StreamSourceInfo;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A local stand-in for ADX ingestion. It unpacks every batch or spool file it
+ * receives and remembers the rows, and fails on purpose while it is down. Like
+ * ADX, it rejects a whole batch for good when one of its rows is bad, here a
+ * row with POISON in it.
+ */
+public class KustoFakeIngest implements AzureKustoBatcher.BatchHandler, AzureKustoSpool.FileHandler {
+    public static final String POISON = "Poison";
+    private static final String REJECTION = "Request is invalid and cannot be executed. {\"error\":{\"code\":\"BadRequest_InvalidData\",\"@permanent\": true}}";
+
+    private volatile boolean down;
+    private volatile boolean rejectPoison = true;
+    private volatile boolean rejectAll;
+    private long rejections;
+    private final Set<String> rows = new HashSet<>();
+    private long duplicates;
+    private long calls;
+    private long failures;
+    private long files;
+
+    public void setDown(boolean down) {
+        this.down = down;
+    }
+
+    public void setRejectPoison(boolean rejectPoison) {
+        this.rejectPoison = rejectPoison;
+    }
+
+    /**
+     * Rejects every batch for good, like a misconfigured table would.
+     */
+    public void setRejectAll(boolean rejectAll) {
+        this.rejectAll = rejectAll;
+    }
+
+    @Override
+    public void ingest(AzureKustoBatch batch) throws Exception {
+        ingest(batch.getPayload().newInputStream());
+    }
+
+    private synchronized void ingest(InputStream in) throws IOException, IngestionServiceException {
+        calls++;
+        if (down) {
+            failures++;
+            throw new IOException("Fake ingest endpoint is down");
+        }
+
+        List<String> lines = readLines(in);
+        if (rejectAll || (rejectPoison && lines.stream().anyMatch(line -> line.contains(POISON)))) {
+            rejections++;
+            throw new IngestionServiceException(REJECTION);
+        }
+        add(lines);
+    }
+
+    @Override
+    public void ingest(File file, AzureKustoIngestionFormat format, long rowCount, long rawBytes) throws Exception {
+        if (!file.getName().endsWith(format.getFileExtension())) {
+            throw new IOException("Unexpected file name " + file.getName());
+        }
+        ingestFile(file);
+    }
+
+    /**
+     * The endpoint as an ingest client, for the router. Streams are taken like
+     * batches, files like spool files. Failures come as the client's own
+     * exceptions.
+     */
+    public IngestClient asClient() {
+        return (IngestClient) Proxy.newProxyInstance(IngestClient.class.getClassLoader(), new Class<?>[]{IngestClient.class}, (proxy, method, args) -> {
+            try {
+                switch (method.getName()) {
+                    case "ingestFromStream":
+                        ingest(((StreamSourceInfo) args[0]).getStream());
+                        return null;
+                    case "ingestFromFile":
+                        ingestFile(new File(((FileSourceInfo) args[0]).getFilePath()));
+                        return null;
+                    case "close":
+                        return null;
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            } catch (IOException ex) {
+                throw new IngestionServiceException(ex.getMessage(), ex);
+            }
+        });
+    }
+
+    private synchronized void ingestFile(File file) throws IOException {
+        calls++;
+        if (down) {
+            failures++;
+            throw new IOException("Fake ingest endpoint is down");
+        }
+        files++;
+        try (InputStream in = new FileInputStream(file)) {
+            add(readLines(in));
+        }
+    }
+
+    private static List<String> readLines(InputStream in) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(in), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    private void add(List<String> lines) {
+        for (String line : lines) {
+            if (!rows.add(line)) {
+                duplicates++;
+            }
+        }
+    }
+
+    public synchronized boolean contains(String text) {
+        return rows.stream().anyMatch(line -> line.contains(text));
+    }
+
+    public synchronized int getRowCount() {
+        return rows.size();
+    }
+
+    public synchronized long getDuplicates() {
+        return duplicates;
+    }
+
+    public synchronized long getCalls() {
+        return calls;
+    }
+
+    public synchronized long getFailures() {
+        return failures;
+    }
+
+    /**
+     * The number of batches rejected for good.
+     */
+    public synchronized long getRejections() {
+        return rejections;
+    }
+
+    public synchronized long getFiles() {
+        return files;
+    }
+}
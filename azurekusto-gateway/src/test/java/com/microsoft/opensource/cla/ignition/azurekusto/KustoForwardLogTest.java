@@ -0,0 +1,234 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static com.microsoft.opensource.cla.ignition.azurekusto.KustoChecks.check;
+
+/**
+ * Drives the store & forward log through an outage of the fake ingest endpoint,
+ * a restart and a corrupted record. Runs locally, no cluster needed.
+ */
+public class KustoForwardLogTest {
+    private static final int BATCHES = 50;
+    private static final int ROWS_PER_BATCH = 100;
+
+    public static void main(String[] args) throws Exception {
+        File dir = Files.createTempDirectory("azurekusto-sf").toFile();
+        AzureKustoBufferPool pool = new AzureKustoBufferPool(4096, 64);
+        KustoFakeIngest ingest = new KustoFakeIngest();
+
+        // Small segments so the test rotates and deletes a few of them
+        AzureKustoForwardLog log = new AzureKustoForwardLog(dir, pool, 32 * 1024, Long.MAX_VALUE);
+
+        // The endpoint goes down after the first 20 batches
+        for (int i = 0; i < BATCHES; i++) {
+            ingest.setDown(i >= 20);
+            AzureKustoBatch batch = createBatch(pool, i);
+            batch.setLogRecord(log.append(batch));
+            deliver(log, ingest, batch);
+        }
+        System.out.println("Before restart: delivered " + ingest.getRowCount() + " row(s), " + log.getUnacknowledgedCount() + " batch(es) waiting on " + log.getDiskBytes() + " byte(s) of disk");
+        check(ingest.getRowCount() == 20 * ROWS_PER_BATCH, "rows delivered before the outage");
+        check(log.getUnacknowledgedCount() == BATCHES - 20, "batches waiting during the outage");
+        check(pool.getBytesInUse() == 0, "failed batches are not kept in memory");
+
+        // Restart without acknowledging anything else, the backlog has to come back from disk
+        log.close();
+        log = new AzureKustoForwardLog(dir, pool, 32 * 1024, Long.MAX_VALUE);
+        check(log.getPendingCount() == BATCHES - 20, "batches recovered after restart");
+
+        ingest.setDown(false);
+        replay(log, ingest);
+        System.out.println("After replay: delivered " + ingest.getRowCount() + " row(s), " + ingest.getDuplicates() + " duplicate(s), " + log.getDiskBytes() + " byte(s) of disk");
+        check(ingest.getRowCount() == BATCHES * ROWS_PER_BATCH, "all rows delivered after replay");
+        check(log.getUnacknowledgedCount() == 0, "nothing left to acknowledge");
+
+        // Corrupt the payload of a record that hasn't been acknowledged, it must be skipped on the next open
+        ingest.setDown(true);
+        AzureKustoBatch batch = createBatch(pool, BATCHES);
+        batch.setLogRecord(log.append(batch));
+        deliver(log, ingest, batch);
+        log.close();
+        corruptLastByte(dir);
+        log = new AzureKustoForwardLog(dir, pool, 32 * 1024, Long.MAX_VALUE);
+        check(log.getPendingCount() == 0, "corrupt record is not replayed");
+        log.close();
+
+        checkBatcher(pool);
+        System.out.println("Store and forward test passed");
+    }
+
+    /**
+     * Holds the upload thread of a batcher on its first batch and checks the
+     * batches sealed behind it are in the log while they wait, and acknowledged
+     * once they are ingested.
+     */
+    private static void checkBatcher(AzureKustoBufferPool pool) throws Exception {
+        File dir = Files.createTempDirectory("azurekusto-sf-batcher").toFile();
+        AzureKustoForwardLog log = new AzureKustoForwardLog(dir, pool, 32 * 1024, Long.MAX_VALUE);
+        KustoFakeIngest ingest = new KustoFakeIngest();
+        CountDownLatch release = new CountDownLatch(1);
+        AzureKustoBatcher batcher = new AzureKustoBatcher("sf", new Settings(), pool, log, new AzureKustoSinkMetrics(), null, batch -> {
+            release.await();
+            ingest.ingest(batch);
+        });
+        batcher.startup();
+
+        List<AzureKustoTagValue> values = new ArrayList<>();
+        for (int i = 0; i < 5 * ROWS_PER_BATCH; i++) {
+            values.add(new AzureKustoTagValue(new AzureKustoTag("Ignition-Test", "default", "Batcher/Tag" + i % 10), (double) i, new Date(1000L * i), 192));
+        }
+        batcher.add(values, AzureKustoTagValue.ROW_WRITER);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (log.getUnacknowledgedCount() < 5 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        check(log.getUnacknowledgedCount() == 5 && ingest.getRowCount() == 0, "sealed batches in the log while waiting for upload");
+
+        release.countDown();
+        while ((log.getUnacknowledgedCount() > 0 || ingest.getRowCount() < values.size()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        check(log.getUnacknowledgedCount() == 0 && ingest.getRowCount() == values.size(), "batches acknowledged once ingested");
+        batcher.shutdown();
+        log.close();
+    }
+
+    private static AzureKustoBatch createBatch(AzureKustoBufferPool pool, int number) throws IOException {
+        AzureKustoBatch batch = new AzureKustoBatch(pool);
+        for (int i = 0; i < ROWS_PER_BATCH; i++) {
+            batch.add("Ignition-Test", "default", "Batch" + number + "/Tag" + i, Math.random(), new Date(), 192);
+        }
+        batch.seal();
+        return batch;
+    }
+
+    /**
+     * Does what the batcher does after a batch is in the log.
+     */
+    private static void deliver(AzureKustoForwardLog log, KustoFakeIngest ingest, AzureKustoBatch batch) throws IOException {
+        try {
+            ingest.ingest(batch);
+            log.acknowledge(batch.getLogRecord());
+        } catch (Exception ex) {
+            log.retryLater(batch.getLogRecord());
+        }
+        batch.discard();
+    }
+
+    private static void replay(AzureKustoForwardLog log, KustoFakeIngest ingest) throws IOException {
+        List<AzureKustoForwardLog.Record> records;
+        while (!(records = log.pollPending(4)).isEmpty()) {
+            for (AzureKustoForwardLog.Record record : records) {
+                deliver(log, ingest, log.read(record));
+            }
+        }
+    }
+
+    private static void corruptLastByte(File dir) throws IOException {
+        File last = null;
+        for (File file : dir.listFiles()) {
+            if (file.getName().endsWith(".log") && file.length() > 0 && (last == null || file.getName().compareTo(last.getName()) > 0)) {
+                last = file;
+            }
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(last, "rw")) {
+            raf.seek(raf.length() - 1);
+            int b = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(b ^ 0xFF);
+        }
+    }
+
+    /**
+     * One worker sealing a batch every ROWS_PER_BATCH rows.
+     */
+    private static class Settings extends AzureKustoHistoryProviderSettings {
+        @Override
+        public AzureKustoIngestionFormat getIngestionFormat() {
+            return AzureKustoIngestionFormat.CSV;
+        }
+
+        @Override
+        public int getBatchMaxRows() {
+            return ROWS_PER_BATCH;
+        }
+
+        @Override
+        public boolean isAdaptiveBatching() {
+            return false;
+        }
+
+        @Override
+        public boolean isTagDictionary() {
+            return false;
+        }
+
+        @Override
+        public boolean isTypedColumns() {
+            return false;
+        }
+
+        @Override
+        public int getBatchMaxSizeKB() {
+            return 16384;
+        }
+
+        @Override
+        public int getBatchMaxAgeMillis() {
+            return 200;
+        }
+
+        @Override
+        public int getBatchTargetLatencyMillis() {
+            return 10000;
+        }
+
+        @Override
+        public int getIngestionWorkers() {
+            return 1;
+        }
+
+        @Override
+        public int getRetryInitialDelayMillis() {
+            return 50;
+        }
+
+        @Override
+        public int getRetryMaxDelayMillis() {
+            return 400;
+        }
+
+        @Override
+        public int getCircuitBreakerFailures() {
+            return 5;
+        }
+
+        @Override
+        public int getCircuitBreakerOpenMillis() {
+            return 300;
+        }
+
+        @Override
+        public int getBackpressureHighMB() {
+            return 1024;
+        }
+
+        @Override
+        public int getBackpressureLowMB() {
+            return 512;
+        }
+
+        @Override
+        public int getBackpressureHighBatches() {
+            return 1024;
+        }
+    }
+}
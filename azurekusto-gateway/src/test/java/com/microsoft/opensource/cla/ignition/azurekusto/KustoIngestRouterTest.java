@@ -0,0 +1,66 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import com.microsoft.azure.kusto.ingest.IngestionProperties;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static com.microsoft.opensource.cla.ignition.azurekusto.KustoChecks.check;
+import static com.microsoft.opensource.cla.ignition.azurekusto.KustoChecks.waitFor;
+
+/**
+ * Runs the batcher through the ingest router against fake streaming and
+ * queued clients, and checks a batch streaming rejects for good isn't sent
+ * again through queued ingestion: its poison rows end up in the quarantine
+ * and the rest is streamed. A streaming outage still falls back to queued
+ * ingestion. Runs locally, no cluster needed.
+ */
+public class KustoIngestRouterTest {
+    private static final int ROWS = 5000;
+    private static final int POISON_ROWS = 2;
+
+    public static void main(String[] args) throws Exception {
+        File dir = Files.createTempDirectory("azurekusto-router").toFile();
+        AzureKustoBufferPool pool = new AzureKustoBufferPool(4096, 256);
+        AzureKustoQuarantine quarantine = new AzureKustoQuarantine(dir, pool, Long.MAX_VALUE);
+        KustoFakeIngest streaming = new KustoFakeIngest();
+        KustoFakeIngest queued = new KustoFakeIngest();
+        queued.setRejectPoison(false); // Would take the poison rows, and ADX drop them later
+        KustoRetryTest.Settings settings = new KustoRetryTest.Settings() {
+            @Override
+            public boolean isStreaming() {
+                return true;
+            }
+
+            @Override
+            public int getStreamingMaxSizeKB() {
+                return 4096;
+            }
+        };
+        AzureKustoIngestRouter router = new AzureKustoIngestRouter(streaming.asClient(), queued.asClient(), settings);
+        IngestionProperties properties = new IngestionProperties("db", "table");
+        AzureKustoBatcher batcher = new AzureKustoBatcher("router", settings, pool, null, new AzureKustoSinkMetrics(), quarantine,
+                batch -> router.ingest(batch, properties));
+        batcher.startup();
+
+        batcher.add(KustoRetryTest.createValues(0, ROWS, ROWS / POISON_ROWS), AzureKustoTagValue.ROW_WRITER);
+        waitFor(() -> streaming.getRowCount() == ROWS - POISON_ROWS && quarantine.getRowCount() == POISON_ROWS, "poison rows quarantined, the rest streamed");
+        check(queued.getCalls() == 0, "rejected batches not sent through queued ingestion");
+        check(!streaming.contains(KustoFakeIngest.POISON), "no poison row ingested");
+        check(router.getStreamingErrorRate() == 0, "rejections don't count against streaming");
+
+        // Streaming being down is not the rows' fault, queued ingestion takes over
+        streaming.setDown(true);
+        batcher.add(KustoRetryTest.createValues(ROWS, 1000, 0), AzureKustoTagValue.ROW_WRITER);
+        waitFor(() -> queued.getRowCount() == 1000, "queued ingestion takes over while streaming is down");
+        check(quarantine.getRowCount() == POISON_ROWS, "nothing quarantined during the outage");
+
+        batcher.shutdown();
+        for (AzureKustoQuarantine.Entry entry : quarantine.getEntries()) {
+            quarantine.delete(entry.getId());
+        }
+        check(pool.getBytesInUse() == 0, "all buffers back in the pool");
+        Files.delete(dir.toPath());
+        System.out.println("Ingest router test passed");
+    }
+}
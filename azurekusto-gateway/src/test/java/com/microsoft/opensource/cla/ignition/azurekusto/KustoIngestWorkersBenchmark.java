@@ -0,0 +1,176 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how ingestion throughput scales with the number of ingestion workers.
+ * Every run pushes the same scan class sets for a large tag count through a
+ * batcher, the upload is simulated with a fixed round trip per batch. Runs
+ * locally, no cluster needed.
+ */
+public class KustoIngestWorkersBenchmark {
+    private static final int TAGS = 200000;
+    private static final int SCANS = 10;
+    private static final int SET_SIZE = 10000;
+    private static final long UPLOAD_MILLIS = 20;
+
+    public static void main(String[] args) throws Exception {
+        List<List<AzureKustoTagValue>> sets = createSets();
+
+        run(1, sets); // Warm up
+        System.out.println("workers\trows/s\t\tbatches\tspeedup");
+        double baseline = 0;
+        for (int workers : new int[]{1, 2, 4, 8}) {
+            long[] result = run(workers, sets);
+            double rowsPerSecond = result[0] * 1e9 / result[1];
+            if (baseline == 0) {
+                baseline = rowsPerSecond;
+            }
+            System.out.println(String.format("%d\t%,.0f\t%d\t%.2fx", workers, rowsPerSecond, result[2], rowsPerSecond / baseline));
+        }
+    }
+
+    private static List<List<AzureKustoTagValue>> createSets() {
+        List<AzureKustoTag> tags = new ArrayList<>(TAGS);
+        for (int i = 0; i < TAGS; i++) {
+            tags.add(new AzureKustoTag("Ignition-Bench", "default", "Plant" + (i % 10) + "/Line" + (i % 100) + "/Tag" + i));
+        }
+
+        List<List<AzureKustoTagValue>> sets = new ArrayList<>();
+        long time = System.currentTimeMillis();
+        for (int scan = 0; scan < SCANS; scan++) {
+            Date timestamp = new Date(time + scan * 1000L);
+            for (int start = 0; start < TAGS; start += SET_SIZE) {
+                List<AzureKustoTagValue> set = new ArrayList<>(SET_SIZE);
+                for (int i = start; i < Math.min(TAGS, start + SET_SIZE); i++) {
+                    Object value = i % 4 == 0 ? (Object) (i % 2 == 0) : i % 4 == 1 ? (Object) (long) (scan * i) : (Object) (Math.sin(scan + i) * 1000);
+                    set.add(new AzureKustoTagValue(tags.get(i), value, timestamp, 192));
+                }
+                sets.add(set);
+            }
+        }
+        return sets;
+    }
+
+    /**
+     * Returns the number of rows, the nanos it took until they were all uploaded
+     * and the number of batches.
+     */
+    private static long[] run(int workers, List<List<AzureKustoTagValue>> sets) throws Exception {
+        AzureKustoBufferPool pool = new AzureKustoBufferPool(AzureKustoBufferPool.DEFAULT_CHUNK_SIZE, 256);
+        AtomicLong rows = new AtomicLong();
+        AtomicLong batches = new AtomicLong();
+        AzureKustoBatcher batcher = new AzureKustoBatcher("bench", new Settings(workers), pool, null, new AzureKustoSinkMetrics(), null, batch -> {
+            Thread.sleep(UPLOAD_MILLIS);
+            rows.addAndGet(batch.getRowCount());
+            batches.incrementAndGet();
+        });
+
+        batcher.startup();
+        long start = System.nanoTime();
+        for (List<AzureKustoTagValue> set : sets) {
+            batcher.add(set, AzureKustoTagValue.ROW_WRITER);
+        }
+        batcher.shutdown();
+        long nanos = System.nanoTime() - start;
+
+        if (rows.get() != (long) TAGS * SCANS) {
+            throw new IllegalStateException("Expected " + (long) TAGS * SCANS + " row(s), uploaded " + rows.get());
+        }
+        return new long[]{rows.get(), nanos, batches.get()};
+    }
+
+    /**
+     * Fixed settings, without the internal database behind them.
+     */
+    private static class Settings extends AzureKustoHistoryProviderSettings {
+        private final int workers;
+
+        Settings(int workers) {
+            this.workers = workers;
+        }
+
+        @Override
+        public AzureKustoIngestionFormat getIngestionFormat() {
+            return AzureKustoIngestionFormat.CSV;
+        }
+
+        @Override
+        public int getBatchMaxRows() {
+            return 50000;
+        }
+
+        @Override
+        public int getBatchMaxSizeKB() {
+            return 16384;
+        }
+
+        @Override
+        public int getBatchMaxAgeMillis() {
+            return 5000;
+        }
+
+        @Override
+        public boolean isAdaptiveBatching() {
+            return false;
+        }
+
+        @Override
+        public boolean isTagDictionary() {
+            return false;
+        }
+
+        @Override
+        public boolean isTypedColumns() {
+            return false;
+        }
+
+        @Override
+        public int getBatchTargetLatencyMillis() {
+            return 10000;
+        }
+
+        @Override
+        public int getIngestionWorkers() {
+            return workers;
+        }
+
+        @Override
+        public int getRetryInitialDelayMillis() {
+            return 1000;
+        }
+
+        @Override
+        public int getRetryMaxDelayMillis() {
+            return 300000;
+        }
+
+        @Override
+        public int getCircuitBreakerFailures() {
+            return 5;
+        }
+
+        @Override
+        public int getCircuitBreakerOpenMillis() {
+            return 30000;
+        }
+
+        @Override
+        public int getBackpressureHighMB() {
+            return 1024;
+        }
+
+        @Override
+        public int getBackpressureLowMB() {
+            return 512;
+        }
+
+        @Override
+        public int getBackpressureHighBatches() {
+            return 1024;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.microsoft.opensource.cla.ignition.azurekusto.KustoChecks.check;
+
+/**
+ * Checks the percentiles of AzureKustoHistogram against the exact ones of a
+ * long-tailed latency distribution, records from several threads at once and
+ * prints what recording costs. Runs locally, no cluster needed.
+ */
+public class KustoMetricsTest {
+    private static final int VALUES = 1000000;
+    private static final int THREADS = 4;
+
+    public static void main(String[] args) throws Exception {
+        // Log-normal latencies in microseconds, a few ms typical with a long tail
+        Random random = new Random(42);
+        long[] values = new long[VALUES];
+        AzureKustoHistogram histogram = new AzureKustoHistogram();
+        for (int i = 0; i < VALUES; i++) {
+            values[i] = (long) Math.exp(8 + 1.5 * random.nextGaussian());
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        for (double percentile : new double[]{0, 50, 90, 99, 99.9, 100}) {
+            long exact = values[Math.max(0, (int) Math.ceil(percentile / 100 * VALUES) - 1)];
+            long estimate = histogram.getValueAtPercentile(percentile);
+            double error = exact == 0 ? estimate : Math.abs(estimate - exact) / (double) exact;
+            System.out.println(String.format("p%s: exact %d, histogram %d, error %.2f%%", percentile, exact, estimate, error * 100));
+            check(error <= 1.0 / 32, "p" + percentile + " within the bucket resolution");
+        }
+        check(histogram.getMax() == values[VALUES - 1], "max is exact");
+        check(histogram.getCount() == VALUES, "count is exact");
+
+        // Several threads recording into the same metrics
+        AzureKustoSinkMetrics metrics = new AzureKustoSinkMetrics();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        long start = System.nanoTime();
+        for (int t = 0; t < THREADS; t++) {
+            executor.execute(() -> {
+                for (int i = 0; i < VALUES / THREADS; i++) {
+                    metrics.recordEncode(100, 50000 + i % 1000);
+                    metrics.recordIngested(100, 10000, 1000, 2000000 + i % 1000);
+                }
+            });
+        }
+        executor.shutdown();
+        check(executor.awaitTermination(1, TimeUnit.MINUTES), "recording threads finished");
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println(String.format("%d recordings from %d threads, %d ns per recording", 2L * VALUES, THREADS, elapsed / (2L * VALUES)));
+        check(metrics.getRowsIngested() == 100L * VALUES, "no increments lost");
+        check(metrics.getBatchesIngested() == VALUES, "every batch counted");
+        check(metrics.getCompressedBytes() == 1000L * VALUES, "compressed bytes add up");
+        check(metrics.getBatchRows().getValueAtPercentile(50) == 100, "batch size distribution");
+        check(metrics.getUploadMicros().getValueAtPercentile(99) >= 2000 && metrics.getUploadMicros().getMax() <= 2001, "upload latency in microseconds");
+        check(Math.abs(metrics.getEncodeNanosPerRow() - 505) < 1, "encode time per row");
+        check(!metrics.isFailing(), "not failing");
+        metrics.recordFailure();
+        check(metrics.isFailing() && metrics.getFailures() == 1, "failing after a failure");
+
+        System.out.println("Metrics test passed");
+    }
+}
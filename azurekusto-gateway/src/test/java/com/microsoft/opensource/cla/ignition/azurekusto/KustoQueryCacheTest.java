@@ -0,0 +1,153 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.microsoft.opensource.cla.ignition.azurekusto.KustoChecks.check;
+
+/**
+ * Serves aggregate queries from the cache with a fake fetcher that records
+ * the ranges read, and checks full and partial hits only read the missing
+ * blocks, the stitched results match reading everything, recent blocks expire
+ * and the least recently used entries are evicted. Runs locally, no cluster
+ * needed.
+ */
+public class KustoQueryCacheTest {
+    private static final long BLOCK = 60 * 1000L;
+    private static final AzureKustoTagCache TAGS = new AzureKustoTagCache(16);
+    private static final AzureKustoTag A = TAGS.intern("S", "P", "A");
+    private static final AzureKustoTag B = TAGS.intern("S", "P", "B");
+
+    /**
+     * A block per tag and minute, the value derived from the time.
+     */
+    private static class FakeFetcher implements AzureKustoQueryCache.Fetcher {
+        private final List<long[]> reads = new ArrayList<>();
+
+        @Override
+        public Map<AzureKustoQueryCache.SeriesId, AzureKustoQueryCache.Series> fetch(long from, long to) {
+            reads.add(new long[]{from, to});
+            Map<AzureKustoQueryCache.SeriesId, AzureKustoQueryCache.Series> result = new HashMap<>();
+            for (AzureKustoTag tag : new AzureKustoTag[]{A, B}) {
+                AzureKustoQueryCache.Series series = new AzureKustoQueryCache.Series();
+                for (long t = from; t < to; t += BLOCK) {
+                    series.add(t, value(tag, t), 192);
+                }
+                result.put(new AzureKustoQueryCache.SeriesId(tag, "avg"), series);
+            }
+            return result;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        checkAlignment();
+        checkHits();
+        checkRecent();
+        checkEviction();
+        System.out.println("Query cache test passed");
+    }
+
+    private static void checkAlignment() {
+        check(AzureKustoQueryCache.alignDown(125000, BLOCK) == 120000 && AzureKustoQueryCache.alignUp(125000, BLOCK) == 180000, "unaligned time");
+        check(AzureKustoQueryCache.alignDown(120000, BLOCK) == 120000 && AzureKustoQueryCache.alignUp(120000, BLOCK) == 120000, "aligned time");
+        check(AzureKustoQueryCache.alignDown(-1, BLOCK) == -BLOCK, "time before the epoch");
+        check(AzureKustoQueryCache.alignDown(125000, BLOCK, 5000) == 125000 && AzureKustoQueryCache.alignDown(124999, BLOCK, 5000) == 65000, "time in phased blocks");
+    }
+
+    private static void checkHits() throws Exception {
+        AzureKustoQueryCache cache = new AzureKustoQueryCache(1 << 20, 0, 0);
+        AzureKustoQueryCache.Key key = new AzureKustoQueryCache.Key(Arrays.asList(A, B), "avg", BLOCK);
+        FakeFetcher fetcher = new FakeFetcher();
+        long start = 1000 * BLOCK;
+
+        checkSeries(cache.get(key, start, start + 60 * BLOCK, fetcher), start, start + 60 * BLOCK);
+        check(cache.getMisses() == 1 && fetcher.reads.size() == 1, "first query read");
+
+        checkSeries(cache.get(new AzureKustoQueryCache.Key(Arrays.asList(B, A), "avg", BLOCK), start + 10 * BLOCK, start + 20 * BLOCK, fetcher),
+                start + 10 * BLOCK, start + 20 * BLOCK);
+        check(cache.getHits() == 1 && fetcher.reads.size() == 1, "range inside served from the cache");
+
+        // The trend moved on and zoomed out, only the blocks before and after are read
+        checkSeries(cache.get(key, start - 10 * BLOCK, start + 70 * BLOCK, fetcher), start - 10 * BLOCK, start + 70 * BLOCK);
+        check(cache.getPartialHits() == 1 && fetcher.reads.size() == 3, "partial hit read twice");
+        check(Arrays.equals(fetcher.reads.get(1), new long[]{start - 10 * BLOCK, start})
+                && Arrays.equals(fetcher.reads.get(2), new long[]{start + 60 * BLOCK, start + 70 * BLOCK}), "only the missing blocks read");
+
+        checkSeries(cache.get(key, start - 10 * BLOCK, start + 70 * BLOCK, fetcher), start - 10 * BLOCK, start + 70 * BLOCK);
+        check(cache.getHits() == 2 && fetcher.reads.size() == 3, "stitched range served from the cache");
+
+        cache.get(new AzureKustoQueryCache.Key(Arrays.asList(A, B), "max", BLOCK), start, start + BLOCK, fetcher);
+        cache.get(new AzureKustoQueryCache.Key(Arrays.asList(A), "avg", BLOCK), start, start + BLOCK, fetcher);
+        cache.get(new AzureKustoQueryCache.Key(Arrays.asList(A, B), "avg", 2 * BLOCK), start, start + 2 * BLOCK, fetcher);
+        check(cache.getMisses() == 4 && cache.size() == 4, "aggregate, tags and block size in the key");
+
+        // Blocks binned from another start are other blocks, a start a whole number of blocks later is the same phase
+        AzureKustoQueryCache.Key phased = new AzureKustoQueryCache.Key(Arrays.asList(A, B), "avg", BLOCK, start + 5000);
+        checkSeries(cache.get(phased, start + 5000, start + 5000 + 10 * BLOCK, fetcher), start + 5000, start + 5000 + 10 * BLOCK);
+        check(cache.getMisses() == 5, "phase in the key");
+        cache.get(new AzureKustoQueryCache.Key(Arrays.asList(A, B), "avg", BLOCK, start + 5000 + 3 * BLOCK), start + 5000 + 3 * BLOCK, start + 5000 + 8 * BLOCK, fetcher);
+        check(cache.getMisses() == 5 && new AzureKustoQueryCache.Key(Arrays.asList(A), "avg", BLOCK, 5000).equals(new AzureKustoQueryCache.Key(Arrays.asList(A), "avg", BLOCK, 5000 - BLOCK)),
+                "same phase shares the blocks");
+
+        // A range far away replaces the entry instead of reading the gap
+        cache.get(key, start + 1000 * BLOCK, start + 1010 * BLOCK, fetcher);
+        check(Arrays.equals(fetcher.reads.get(fetcher.reads.size() - 1), new long[]{start + 1000 * BLOCK, start + 1010 * BLOCK}), "gap not read");
+    }
+
+    private static void checkRecent() throws Exception {
+        long now = AzureKustoQueryCache.alignDown(System.currentTimeMillis(), BLOCK);
+        AzureKustoQueryCache cache = new AzureKustoQueryCache(1 << 20, 5 * BLOCK, 200);
+        AzureKustoQueryCache.Key key = new AzureKustoQueryCache.Key(Arrays.asList(A, B), "avg", BLOCK);
+        FakeFetcher fetcher = new FakeFetcher();
+
+        cache.get(key, now - 60 * BLOCK, now + BLOCK, fetcher);
+        cache.get(key, now - 60 * BLOCK, now + BLOCK, fetcher);
+        check(fetcher.reads.size() == 1, "recent blocks served while fresh");
+
+        Thread.sleep(300);
+        checkSeries(cache.get(key, now - 60 * BLOCK, now + BLOCK, fetcher), now - 60 * BLOCK, now + BLOCK);
+        long[] read = fetcher.reads.get(1);
+        check(fetcher.reads.size() == 2 && read[0] >= now - 6 * BLOCK && read[0] <= now - 5 * BLOCK && read[1] == now + BLOCK,
+                "only the unsettled blocks read again after expiry");
+
+        checkSeries(cache.get(key, now - 60 * BLOCK, now - 30 * BLOCK, fetcher), now - 60 * BLOCK, now - 30 * BLOCK);
+        check(fetcher.reads.size() == 2, "settled blocks kept after expiry");
+    }
+
+    private static void checkEviction() throws Exception {
+        FakeFetcher fetcher = new FakeFetcher();
+        AzureKustoQueryCache cache = new AzureKustoQueryCache(8 * 1024, 0, 0);
+        for (int i = 0; i < 10; i++) {
+            cache.get(new AzureKustoQueryCache.Key(Arrays.asList(A, B), "avg", BLOCK * (i + 1)), 0, BLOCK * (i + 1) * 20, fetcher);
+            cache.get(new AzureKustoQueryCache.Key(Arrays.asList(A, B), "avg", BLOCK), 0, BLOCK * 20, fetcher); // Kept in use
+        }
+        check(cache.getBytes() <= 8 * 1024 && cache.getEvictions() > 0, "evicted down to the limit");
+        int reads = fetcher.reads.size();
+        cache.get(new AzureKustoQueryCache.Key(Arrays.asList(A, B), "avg", BLOCK), 0, BLOCK * 20, fetcher);
+        check(fetcher.reads.size() == reads, "recently used entry kept");
+        cache.get(new AzureKustoQueryCache.Key(Arrays.asList(A, B), "avg", BLOCK), 0, BLOCK * 2000, fetcher);
+        check(cache.getBytes() <= 8 * 1024 && cache.size() > 0, "result too large for the cache not cached");
+        cache.clear();
+        check(cache.size() == 0 && cache.getBytes() == 0, "cleared");
+    }
+
+    private static double value(AzureKustoTag tag, long t) {
+        return (tag == A ? 1 : -1) * (t / BLOCK);
+    }
+
+    private static void checkSeries(Map<AzureKustoQueryCache.SeriesId, AzureKustoQueryCache.Series> result, long from, long to) {
+        int expected = (int) ((to - from) / BLOCK);
+        for (AzureKustoTag tag : new AzureKustoTag[]{A, B}) {
+            AzureKustoQueryCache.Series series = result.get(new AzureKustoQueryCache.SeriesId(tag, "avg"));
+            boolean same = series != null && series.size() == expected;
+            for (int i = 0; same && i < expected; i++) {
+                long t = from + i * BLOCK;
+                same = series.getTimestamp(i) == t && series.getValue(i) == value(tag, t) && series.getQuality(i) == 192;
+            }
+            check(same, "values of " + tag.getTagPath() + " from " + from / BLOCK + " to " + to / BLOCK);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.microsoft.opensource.cla.ignition.azurekusto.KustoChecks.check;
+
+/**
+ * Plans the chunks of raw queries from row counts with even, bursty and no
+ * data, and checks the chunks cover the range without gaps or overlaps and
+ * hold at most the maximum number of rows. Runs locally, no cluster needed.
+ */
+public class KustoQueryChunksTest {
+    private static final long HOUR = 60 * 60 * 1000L;
+    private static final long START = 1700006400000L;
+    private static final long END = START + 30 * 24 * HOUR;
+
+    public static void main(String[] args) {
+        // 50 tags every second over a month, counted per hour
+        Map<Long, Long> even = new HashMap<>();
+        for (long t = START; t < END; t += HOUR) {
+            even.put(t, 50 * 3600L);
+        }
+        List<long[]> chunks = AzureKustoQueryExecutor.planChunks(START, END, HOUR, even, 500000);
+        checkChunks(chunks, even, 500000, "even rows");
+        check(chunks.size() == 720 / 2, "two hours per chunk");
+
+        // A burst of rows in one hour is split evenly, the quiet hours around it are kept together
+        Map<Long, Long> burst = new HashMap<>();
+        burst.put(START + 3 * HOUR, 10L);
+        burst.put(START + 5 * HOUR, 2100000L);
+        burst.put(START + 9 * HOUR, 10L);
+        chunks = AzureKustoQueryExecutor.planChunks(START, START + 24 * HOUR, HOUR, burst, 500000);
+        check(chunks.size() == 7, "burst split in five");
+        check(chunks.get(0)[0] == START && chunks.get(0)[1] == START + 5 * HOUR, "quiet hours before the burst in one chunk");
+        check(chunks.get(1)[0] == START + 5 * HOUR && chunks.get(5)[1] == START + 6 * HOUR, "burst hour in its own chunks");
+        check(chunks.get(6)[1] == START + 24 * HOUR, "quiet hours after the burst in one chunk");
+        checkChunks(chunks, burst, 500000, "burst");
+
+        chunks = AzureKustoQueryExecutor.planChunks(START, END, HOUR, new HashMap<>(), 500000);
+        check(chunks.size() == 1 && chunks.get(0)[0] == START && chunks.get(0)[1] == END, "no rows in one chunk");
+
+        // A range that isn't a multiple of the bucket
+        chunks = AzureKustoQueryExecutor.planChunks(START, START + 2 * HOUR + 1234, HOUR, even, 100000);
+        checkChunks(chunks, even, 100000, "partial last bucket");
+        check(chunks.get(chunks.size() - 1)[1] == START + 2 * HOUR + 1234, "last chunk ends at the end");
+        System.out.println("Query chunks test passed");
+    }
+
+    private static void checkChunks(List<long[]> chunks, Map<Long, Long> rows, long maxRows, String what) {
+        long expected = chunks.get(0)[0];
+        boolean contiguous = true;
+        boolean bounded = true;
+        for (long[] chunk : chunks) {
+            contiguous &= chunk[0] == expected && chunk[1] > chunk[0];
+            expected = chunk[1];
+            double chunkRows = 0;
+            for (Map.Entry<Long, Long> e : rows.entrySet()) {
+                // Buckets are an hour, a chunk of part of one gets its share of the rows
+                long overlap = Math.min(chunk[1], e.getKey() + HOUR) - Math.max(chunk[0], e.getKey());
+                chunkRows += overlap > 0 ? (double) e.getValue() * overlap / HOUR : 0;
+            }
+            bounded &= chunkRows <= maxRows + 1;
+        }
+        check(contiguous, what + " chunks contiguous");
+        check(bounded, what + " chunks at most " + maxRows + " rows");
+    }
+}
@@ -0,0 +1,62 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static com.microsoft.opensource.cla.ignition.azurekusto.KustoChecks.check;
+
+/**
+ * Builds tag queries for different tags and ranges and checks their text
+ * stays the same, the tags and times are passed as declared parameters, the
+ * tag filters are exact, and names with quotes, backslashes and newlines are
+ * escaped. Runs locally, no cluster needed.
+ */
+public class KustoQueryParametersTest {
+
+    public static void main(String[] args) {
+        List<AzureKustoTag> pumps = Arrays.asList(new AzureKustoTag("gw1", "default", "Site/Pump1"),
+                new AzureKustoTag("gw1", "default", "Site/Pump2"));
+        List<AzureKustoTag> valves = Arrays.asList(new AzureKustoTag("gw1", "default", "Site/Valve1"),
+                new AzureKustoTag("gw1", "default", "Site/Valve2"), new AzureKustoTag("gw1", "default", "Site/Valve3"));
+
+        AzureKustoQuery first = query(pumps, new Date(1700000000000L), new Date(1700003600000L), false);
+        AzureKustoQuery second = query(valves, new Date(1710000000000L), new Date(1710086400000L), false);
+        System.out.println(first);
+        check(first.getText().equals(second.getText()), "same text for other tags and times");
+        check(!first.getParameters().equals(second.getParameters()), "tags and times in the parameters");
+        check(first.getText().startsWith("declare query_parameters(startTime:datetime, endTime:datetime, tagPaths:dynamic, systemNames:dynamic, tagProviders:dynamic);\n"),
+                "parameters declared");
+        check(first.getParameters().get("startTime").equals("datetime(2023-11-14T22:13:20.0000000Z)"), "datetime parameter");
+        check(first.getParameters().get("tagPaths").equals("dynamic([\"Site/Pump1\",\"Site/Pump2\"])"), "tag paths parameter");
+        check(!first.getText().contains(" has ") && first.getText().contains("tagPath in~ (tagPaths)"), "whole-term tag predicates");
+        check(!first.getText().contains("Pump"), "no tag names in the text");
+
+        // Tags from several systems also filter on the three names together
+        AzureKustoQuery systems = query(Arrays.asList(new AzureKustoTag("gw1", "default", "A"), new AzureKustoTag("gw2", "default", "B")),
+                new Date(0), new Date(1000), false);
+        check(systems.getText().contains("in~ (tagKeys)") && systems.getParameters().get("tagKeys").equals("dynamic([\"gw1|default|A\",\"gw2|default|B\"])"),
+                "names together for several systems");
+
+        // Names are matched ignoring case, like tags compare, so names differing in case are sent once
+        AzureKustoQuery cased = query(Arrays.asList(new AzureKustoTag("gw", "default", "Site/Pump1"), new AzureKustoTag("GW", "Default", "site/pump1")),
+                new Date(0), new Date(1000), false);
+        check(cased.getParameters().get("tagPaths").equals("dynamic([\"Site/Pump1\"])") && !cased.getText().contains("tagKeys"), "names ignoring case");
+
+        AzureKustoQuery normalized = query(pumps, new Date(0), new Date(1000), true);
+        check(normalized.getText().contains("| where tagId in (tagIds)"), "tag ids filter");
+        check(normalized.getParameters().get("tagIds").matches("dynamic\\(\\[-?\\d+,-?\\d+\\]\\)"), "tag ids parameter");
+
+        AzureKustoQuery quoted = query(Arrays.asList(new AzureKustoTag("gw1", "default", "Tank \"A\"\\Level\nHigh")), new Date(0), new Date(1000), false);
+        check(quoted.getParameters().get("tagPaths").equals("dynamic([\"Tank \\\"A\\\"\\\\Level\\u000aHigh\"])"), "names escaped");
+        check(AzureKustoQuery.identifier("Tag'Values").equals("['Tag\\'Values']"), "table names quoted");
+        check(new AzureKustoQuery().append("print 1").getText().equals("print 1"), "no declarations without parameters");
+        System.out.println("Query parameters test passed");
+    }
+
+    private static AzureKustoQuery query(List<AzureKustoTag> tags, Date start, Date end, boolean normalized) {
+        AzureKustoQuery query = new AzureKustoQuery().parameter("startTime", start).parameter("endTime", end);
+        return query.append(AzureKustoQuery.identifier("TagValues") + "| where timestamp between(startTime..endTime) "
+                + query.getTagFilter(tags, normalized) + "| sort by timestamp asc");
+    }
+}
@@ -0,0 +1,110 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import com.microsoft.azure.kusto.data.ClientImpl;
+import com.microsoft.azure.kusto.data.ClientRequestProperties;
+import com.microsoft.azure.kusto.data.ConnectionStringBuilder;
+import com.microsoft.azure.kusto.data.KustoOperationResult;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.microsoft.opensource.cla.ignition.azurekusto.KustoChecks.check;
+
+/**
+ * Runs sub-queries on the query pool against a client that only sleeps, and
+ * checks they run side by side up to the request limit, results come back in
+ * the order of the sub-queries and a failure fails the query. Also checks how
+ * tag sets and ranges are split. Runs locally, no cluster needed.
+ */
+public class KustoQueryPoolTest {
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    public static void main(String[] args) throws Exception {
+        checkSplits();
+        checkPool();
+        System.out.println("Query pool test passed");
+    }
+
+    private static void checkSplits() {
+        List<Integer> tags = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            tags.add(i);
+        }
+        List<List<Integer>> groups = AzureKustoQueryExecutor.partition(tags, 200);
+        check(groups.size() == 10 && groups.get(9).size() == 200 && groups.get(3).get(0) == 600, "2000 tags in 10 groups");
+        check(AzureKustoQueryExecutor.partition(tags.subList(0, 5), 200).size() == 1, "few tags in one group");
+        check(AzureKustoQueryExecutor.partition(new ArrayList<Integer>(), 200).size() == 1, "no tags in one empty group");
+
+        List<long[]> slices = AzureKustoQueryExecutor.getSlices(0, 30 * 24 * HOUR, 0, 8);
+        check(slices.size() == 8 && slices.get(0)[0] == 0 && slices.get(7)[1] == 30 * 24 * HOUR, "month of raw rows in 8 slices");
+        boolean contiguous = true;
+        for (int i = 1; i < slices.size(); i++) {
+            contiguous &= slices.get(i)[0] == slices.get(i - 1)[1];
+        }
+        check(contiguous, "slices contiguous");
+        check(AzureKustoQueryExecutor.getSlices(0, HOUR / 2, 0, 8).size() == 1, "short range not split");
+        check(AzureKustoQueryExecutor.getSlices(0, 4 * HOUR, 0, 8).size() == 4, "slices at least an hour");
+
+        long block = 7 * 60 * 1000L;
+        boolean onBlocks = true;
+        for (long[] slice : AzureKustoQueryExecutor.getSlices(1000, 1000 + 1000 * block, block, 6)) {
+            onBlocks &= (slice[0] - 1000) % block == 0;
+        }
+        check(onBlocks, "aggregate slices on block boundaries");
+    }
+
+    private static void checkPool() throws Exception {
+        AtomicInteger open = new AtomicInteger();
+        AtomicInteger maxOpen = new AtomicInteger();
+        ClientImpl client = new ClientImpl(ConnectionStringBuilder.createWithAadApplicationCredentials("https://localhost", "id", "key", "tenant")) {
+            @Override
+            public KustoOperationResult execute(String database, String query, ClientRequestProperties properties) {
+                maxOpen.accumulateAndGet(open.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(query.equals("fail") ? 10 : 100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    open.decrementAndGet();
+                }
+                if (query.equals("fail")) {
+                    throw new IllegalArgumentException("Bad query");
+                }
+                return null;
+            }
+        };
+
+        AzureKustoQueryPool pool = new AzureKustoQueryPool("test", 8, 4);
+        check(pool.getParallelism() == 4, "parallelism limited by the requests");
+        List<Callable<Integer>> tasks = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            int index = i;
+            tasks.add(() -> {
+                pool.execute(client, "db", new AzureKustoQuery().append("query " + index));
+                return index;
+            });
+        }
+        long start = System.nanoTime();
+        List<Integer> results = pool.invokeAll(tasks);
+        long millis = (System.nanoTime() - start) / 1000000;
+        System.out.println("16 sub-queries of 100 ms in " + millis + " ms, at most " + maxOpen.get() + " open");
+        check(maxOpen.get() == 4, "at most 4 requests open");
+        check(millis >= 400 && millis < 1200, "sub-queries side by side");
+        check(results.equals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15)), "results in the order of the sub-queries");
+
+        tasks.set(5, () -> {
+            pool.execute(client, "db", new AzureKustoQuery().append("fail"));
+            return 5;
+        });
+        try {
+            pool.invokeAll(tasks);
+            check(false, "failure thrown");
+        } catch (IllegalArgumentException e) {
+            check(e.getMessage().equals("Bad query"), "failure of a sub-query thrown");
+        }
+        pool.shutdown();
+    }
+}
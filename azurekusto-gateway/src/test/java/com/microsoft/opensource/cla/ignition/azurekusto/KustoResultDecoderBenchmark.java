@@ -0,0 +1,277 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import com.microsoft.azure.kusto.data.KustoResultSetTable;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static com.microsoft.opensource.cla.ignition.azurekusto.KustoChecks.check;
+
+/**
+ * Checks AzureKustoResultDecoder and the timestamp parsing of the codec, then
+ * compares decoding a synthetic raw result the way the query executor did
+ * before (columns by name, a Timestamp per row, a tag lookup and a debug
+ * string per row, a Row per row) with AzureKustoResultDecoder. The result is
+ * a million rows of 1000 tags sorted by tag, as the executor queries them.
+ * Prints the time and the bytes allocated per row.
+ * <p>
+ * Run with -Drows=... -Dtags=... -Diterations=... to change the workload, it
+ * needs about 1 GB of heap for a million rows.
+ */
+public class KustoResultDecoderBenchmark {
+    private static final int ROWS = Integer.getInteger("rows", 1000000);
+    private static final int TAGS = Integer.getInteger("tags", 1000);
+    private static final int ITERATIONS = Integer.getInteger("iterations", 10);
+    private static final String[] COLUMNS = {"systemName", "tagProvider", "tagPath", "timestamp", "quality", "value"};
+
+    public static void main(String[] args) throws Exception {
+        verify();
+
+        // Each row has its own copies of the strings, like a parsed result
+        List<Object[]> rows = new ArrayList<>(ROWS);
+        Random random = new Random(42);
+        long start = 1700000000000L;
+        for (int t = 0; t < TAGS; t++) {
+            String path = "Site" + (t % 4) + "/Area" + (t % 50) + "/Machine" + t + "/Value";
+            long time = start;
+            for (int r = 0; r < ROWS / TAGS; r++) {
+                time += 1 + random.nextInt(2000);
+                rows.add(new Object[]{"Ignition-Gateway", "default", new String(path), AzureKustoTimestampCodec.format(new Date(time)), 192, random.nextDouble()});
+            }
+        }
+
+        AzureKustoTagCache tagCache = new AzureKustoTagCache(131072);
+        Map<AzureKustoTag, List<AzureKustoHistoryTag>> tags = new HashMap<>();
+        for (Object[] row : rows) {
+            tags.computeIfAbsent(tagCache.intern((String) row[0], (String) row[1], (String) row[2]), tag -> new ArrayList<>());
+        }
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            double[] sums = new double[2];
+            KustoResultSetTable legacyTable = new SyntheticTable(COLUMNS, rows);
+            long legacyBytes = allocatedBytes();
+            long legacy = time(() -> sums[0] = legacyDecode(legacyTable, tagCache, tags));
+            legacyBytes = allocatedBytes() - legacyBytes;
+
+            KustoResultSetTable decoderTable = new SyntheticTable(COLUMNS, rows);
+            long decoderBytes = allocatedBytes();
+            long decoder = time(() -> sums[1] = decode(decoderTable, tagCache, tags));
+            decoderBytes = allocatedBytes() - decoderBytes;
+            if (sums[0] != sums[1]) {
+                throw new IllegalStateException("Decoders read different values");
+            }
+
+            // The first half of the iterations is warm up
+            if (i >= ITERATIONS / 2) {
+                System.out.println(String.format("iteration %d: by name %d ns/row %d bytes/row, decoder %d ns/row %d bytes/row",
+                        i, legacy / rows.size(), legacyBytes / rows.size(), decoder / rows.size(), decoderBytes / rows.size()));
+            }
+        }
+    }
+
+    /**
+     * The loop of readRows before, with the row collected as it was for the sub-queries.
+     */
+    private static double legacyDecode(KustoResultSetTable result, AzureKustoTagCache tagCache, Map<AzureKustoTag, List<AzureKustoHistoryTag>> tags) throws Exception {
+        List<Object[]> collected = new ArrayList<>();
+        StringBuilder debug = new StringBuilder();
+        double sum = 0;
+        while (result.next()) {
+            AzureKustoTag tag = tagCache.intern(result.getString("systemName"), result.getString("tagProvider"), result.getString("tagPath"));
+            if (tag == null || !tags.containsKey(tag)) {
+                continue;
+            }
+            Timestamp timestamp = result.getTimestamp("timestamp");
+            int quality = result.getInt("quality");
+            String message = "Reading: " + tag.toStringFull() + " timestamp:" + timestamp;
+            debug.setLength(0);
+            debug.append(message.length());
+
+            Object[] values = new Object[]{result.getObject("value")};
+            collected.add(new Object[]{tag, values, timestamp.getTime(), quality});
+            sum += tags.get(tag).size() + ((Number) values[0]).doubleValue();
+        }
+        return sum;
+    }
+
+    private static double decode(KustoResultSetTable result, AzureKustoTagCache tagCache, Map<AzureKustoTag, List<AzureKustoHistoryTag>> tags) throws Exception {
+        AzureKustoResultDecoder decoder = new AzureKustoResultDecoder(result, tagCache, null, new String[]{"value"}, false);
+        AzureKustoTag tag = null;
+        List<AzureKustoHistoryTag> columns = null;
+        double sum = 0;
+        while (decoder.next()) {
+            if (decoder.getTag() != tag) {
+                tag = decoder.getTag();
+                columns = tag == null ? null : tags.get(tag);
+            }
+            if (columns == null) {
+                continue;
+            }
+            sum += columns.size() + ((Number) decoder.getValues()[0]).doubleValue();
+        }
+        return sum;
+    }
+
+    private static void verify() throws Exception {
+        Random random = new Random(7);
+        long time = 0;
+        for (int i = 0; i < 100000; i++) {
+            time += random.nextInt(i % 100 == 0 ? Integer.MAX_VALUE : 2000);
+            String text = AzureKustoTimestampCodec.format(new Date(time));
+            check(AzureKustoTimestampCodec.parseMillis(text) == time, "parsed " + text);
+        }
+        check(AzureKustoTimestampCodec.parseMillis("1969-12-31T23:59:59.999Z") == -1, "before the epoch");
+        check(AzureKustoTimestampCodec.parseMillis("2024-02-29T12:00:00Z") == Instant.parse("2024-02-29T12:00:00Z").toEpochMilli(), "no fraction");
+        check(AzureKustoTimestampCodec.parseMillis("2024-02-29T12:00:00.5Z") == Instant.parse("2024-02-29T12:00:00.500Z").toEpochMilli(), "short fraction");
+        check(AzureKustoTimestampCodec.parseMillis("2024-02-29 12:00:00Z") == Long.MIN_VALUE, "other forms rejected");
+
+        // Typed values are coalesced, tags of a normalized table are found by id and only looked up when they change
+        AzureKustoTag a = new AzureKustoTag("gw", "default", "A");
+        AzureKustoTag b = new AzureKustoTag("gw", "default", "B");
+        Map<Long, AzureKustoTag> tagsById = new HashMap<>();
+        tagsById.put(a.getKey(), a);
+        tagsById.put(b.getKey(), b);
+        List<Object[]> rows = new ArrayList<>();
+        rows.add(new Object[]{a.getKey(), "2024-01-01T00:00:00Z", 192, 1.5, null});
+        rows.add(new Object[]{a.getKey(), "2024-01-01T00:00:01.25Z", 192, null, 7L});
+        rows.add(new Object[]{42L, "2024-01-01T00:00:02Z", 192, 1.0, null});
+        rows.add(new Object[]{b.getKey(), "2024-01-01T00:00:03Z", 0, null, null});
+        AzureKustoResultDecoder decoder = new AzureKustoResultDecoder(new SyntheticTable(new String[]{"tagId", "timestamp", "quality", "value_double", "value_long"}, rows),
+                new AzureKustoTagCache(16), tagsById, new String[]{"value_double", "value_long"}, true);
+        List<String> decoded = new ArrayList<>();
+        while (decoder.next()) {
+            decoded.add(decoder.getTag() + "@" + (decoder.getTimestamp() - 1704067200000L) + "=" + decoder.getValues()[0] + "/" + decoder.getQuality());
+        }
+        check(decoded.toString().equals("[" + a + "@0=1.5/192, " + a + "@1250=7/192, null@2000=1.0/192, " + b + "@3000=null/0]"), "decoded " + decoded);
+
+        // Datetimes are read as UTC whatever the time zone of the JVM, e.g. the buckets of the chunk plan
+        TimeZone zone = TimeZone.getDefault();
+        try {
+            TimeZone.setDefault(TimeZone.getTimeZone("America/New_York"));
+            SyntheticTable buckets = new SyntheticTable(new String[]{"timestamp", "rows"}, Collections.singletonList(new Object[]{"2024-01-01T01:00:00Z", 5L}));
+            buckets.next();
+            check(AzureKustoResultDecoder.readMillis(buckets, buckets.findColumn("timestamp")) == 1704070800000L, "datetimes read as UTC");
+        } finally {
+            TimeZone.setDefault(zone);
+        }
+        System.out.println("Result decoder matches");
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    private static long time(Task run) throws Exception {
+        long start = System.nanoTime();
+        run.run();
+        return System.nanoTime() - start;
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * A result over rows held in memory, read like the client reads its
+     * parsed rows: columns by name through a map, datetimes through
+     * Timestamp.valueOf.
+     */
+    private static class SyntheticTable extends KustoResultSetTable {
+        private final Map<String, Integer> columns = new HashMap<>();
+        private final List<Object[]> rows;
+        private Object[] row;
+        private int next;
+
+        SyntheticTable(String[] columnNames, List<Object[]> rows) throws Exception {
+            super(describe(columnNames));
+            for (int i = 0; i < columnNames.length; i++) {
+                columns.put(columnNames[i], i);
+            }
+            this.rows = rows;
+        }
+
+        private static JSONObject describe(String[] columnNames) {
+            JSONArray columns = new JSONArray();
+            for (String name : columnNames) {
+                columns.put(new JSONObject().put("ColumnName", name).put("ColumnType", "string"));
+            }
+            return new JSONObject().put("TableName", "PrimaryResult").put("Columns", columns).put("Rows", new JSONArray());
+        }
+
+        @Override
+        public boolean next() {
+            if (next == rows.size()) {
+                return false;
+            }
+            row = rows.get(next++);
+            return true;
+        }
+
+        @Override
+        public int findColumn(String column) {
+            return columns.get(column);
+        }
+
+        @Override
+        public Object getObject(int column) {
+            return row[column];
+        }
+
+        @Override
+        public Object getObject(String column) {
+            return getObject(findColumn(column));
+        }
+
+        @Override
+        public String getString(int column) {
+            return row[column] == null ? null : row[column].toString();
+        }
+
+        @Override
+        public String getString(String column) {
+            return getString(findColumn(column));
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (Integer) row[column];
+        }
+
+        @Override
+        public int getInt(String column) {
+            return getInt(findColumn(column));
+        }
+
+        @Override
+        public long getLong(int column) {
+            return ((Number) row[column]).longValue();
+        }
+
+        @Override
+        public long getLong(String column) {
+            return getLong(findColumn(column));
+        }
+
+        @Override
+        public Timestamp getTimestamp(int column) {
+            String text = getString(column);
+            return Timestamp.valueOf(text.substring(0, text.length() - 1).replace("T", " "));
+        }
+
+        @Override
+        public Timestamp getTimestamp(String column) {
+            return getTimestamp(findColumn(column));
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static com.microsoft.opensource.cla.ignition.azurekusto.KustoChecks.check;
+import static com.microsoft.opensource.cla.ignition.azurekusto.KustoChecks.waitFor;
+
+/**
+ * Runs the batcher against the fake ingest endpoint through poison rows, an
+ * outage and a table that rejects everything, and checks the healthy rows get
+ * through once, the poison rows end up in the quarantine and the circuit
+ * breaker stops the calls while the endpoint is down. Also checks a split
+ * batch keeps its rows in every format. Runs locally, no cluster needed.
+ */
+public class KustoRetryTest {
+    private static final int ROWS = 20000;
+    private static final int POISON_ROWS = 3;
+
+    public static void main(String[] args) throws Exception {
+        checkSplit();
+        checkEncodeBackpressure();
+
+        File dir = Files.createTempDirectory("azurekusto-quarantine").toFile();
+        AzureKustoBufferPool pool = new AzureKustoBufferPool(4096, 256);
+        AzureKustoQuarantine quarantine = new AzureKustoQuarantine(dir, pool, Long.MAX_VALUE);
+        KustoFakeIngest ingest = new KustoFakeIngest();
+        AzureKustoSinkMetrics metrics = new AzureKustoSinkMetrics();
+        AzureKustoBatcher batcher = new AzureKustoBatcher("retry", new Settings(), pool, null, metrics, quarantine, ingest);
+        batcher.startup();
+
+        // A few poison rows spread over the batches, the rest has to get through
+        List<AzureKustoTagValue> values = createValues(0, ROWS, ROWS / POISON_ROWS);
+        batcher.add(values, AzureKustoTagValue.ROW_WRITER);
+        waitFor(() -> ingest.getRowCount() == ROWS - POISON_ROWS && quarantine.getRowCount() == POISON_ROWS, "poison rows isolated");
+        System.out.println("Poison: " + ingest.getRejections() + " rejection(s) in " + ingest.getCalls() + " call(s), " + quarantine.size() + " quarantine entry(ies)");
+        check(ingest.getDuplicates() == 0, "no row ingested twice");
+        check(!ingest.contains(KustoFakeIngest.POISON), "no poison row ingested");
+        check(metrics.getRowsRejected() == POISON_ROWS, "rejected rows counted");
+        for (AzureKustoQuarantine.Entry entry : quarantine.getEntries()) {
+            check(entry.getRowCount() == 1 && entry.getReason().contains("@permanent"), "quarantined one row with the reason");
+        }
+
+        // An outage opens the breaker, which stops the calls until the endpoint is back
+        ingest.setDown(true);
+        long failuresBefore = ingest.getFailures();
+        long retriesBefore = metrics.getRetries();
+        batcher.add(createValues(ROWS, 5000, 0), AzureKustoTagValue.ROW_WRITER);
+        waitFor(() -> batcher.getCircuitBreaker().getState() == AzureKustoCircuitBreaker.State.OPEN, "breaker open during the outage");
+        long callsWhileOpen = ingest.getCalls();
+        Thread.sleep(200);
+        check(ingest.getCalls() == callsWhileOpen, "no calls while the breaker is open");
+        System.out.println("Outage: breaker opened after " + (ingest.getFailures() - failuresBefore) + " failure(s), " + batcher.getRetryingBatches() + " batch(es) waiting");
+        ingest.setDown(false);
+        waitFor(() -> ingest.getRowCount() == ROWS + 5000 - POISON_ROWS, "rows delivered after the outage");
+        check(batcher.getCircuitBreaker().getState() == AzureKustoCircuitBreaker.State.CLOSED, "breaker closed again");
+        check(ingest.getDuplicates() == 0, "no row ingested twice after the outage");
+        check(metrics.getRetries() - retriesBefore <= ingest.getFailures() - failuresBefore, "batches held by the breaker not counted as retries");
+
+        // A table that rejects everything is not the rows' fault, nothing may be quarantined
+        ingest.setRejectAll(true);
+        batcher.add(createValues(ROWS + 5000, 2000, 0), AzureKustoTagValue.ROW_WRITER);
+        Thread.sleep(1500);
+        long rejections = ingest.getRejections();
+        check(quarantine.getRowCount() == POISON_ROWS, "nothing quarantined while everything is rejected");
+        ingest.setRejectAll(false);
+        waitFor(() -> ingest.getRowCount() == ROWS + 7000 - POISON_ROWS, "rows delivered once the table accepts them");
+        System.out.println("Rejecting everything: " + rejections + " rejection(s) before the table was fixed, " + metrics.getRetries() + " retries in total");
+        check(ingest.getDuplicates() == 0, "no row ingested twice after the rejections");
+
+        // The quarantine survives a restart, resent rows go through once they are accepted
+        AzureKustoQuarantine reopened = new AzureKustoQuarantine(dir, pool, Long.MAX_VALUE);
+        check(reopened.size() == POISON_ROWS, "quarantine recovered after restart");
+        ingest.setRejectPoison(false);
+        for (AzureKustoQuarantine.Entry entry : reopened.getEntries()) {
+            batcher.submit(reopened.read(entry.getId()));
+            reopened.delete(entry.getId());
+        }
+        waitFor(() -> ingest.getRowCount() == ROWS + 7000, "resent rows delivered");
+        check(reopened.size() == 0 && dir.listFiles().length == 0, "quarantine files deleted");
+
+        batcher.shutdown();
+        check(pool.getBytesInUse() == 0, "all buffers back in the pool");
+        Files.delete(dir.toPath());
+        System.out.println("Retry test passed");
+    }
+
+    /**
+     * Splits a batch with awkward values in every format and checks the halves
+     * hold the same rows.
+     */
+    private static void checkSplit() throws Exception {
+        AzureKustoBufferPool pool = new AzureKustoBufferPool(4096, 64);
+        Object[] values = {1.5, 42, true, "plain", "comma, \"quote\"\nand line break", null, "\u00e9\u4e2d\ud83d\ude00", -7L, Float.NaN};
+        for (AzureKustoIngestionFormat format : AzureKustoIngestionFormat.values()) {
+            AzureKustoBatch batch = new AzureKustoBatch(pool, format);
+            for (int i = 0; i < 3001; i++) {
+                batch.add("Ignition-Test", "default", "Split/Tag" + i, values[i % values.length], new Date(1000L * i), 192);
+            }
+            batch.seal();
+            List<byte[]> rows = format.readRows(batch.getPayload().newInputStream());
+
+            AzureKustoBatch[] halves = batch.split(pool);
+            List<byte[]> split = new ArrayList<>(format.readRows(halves[0].getPayload().newInputStream()));
+            split.addAll(format.readRows(halves[1].getPayload().newInputStream()));
+            check(rows.size() == 3001 && halves[0].getRowCount() == 1500 && halves[1].getRowCount() == 1501, format + " split in halves");
+            boolean same = split.size() == rows.size();
+            for (int i = 0; same && i < rows.size(); i++) {
+                same = Arrays.equals(rows.get(i), split.get(i));
+            }
+            check(same, format + " halves hold the same rows");
+            check(halves[0].getEstimatedBytes() + halves[1].getEstimatedBytes() == batch.getEstimatedBytes(), format + " raw size adds up");
+            batch.discard();
+            halves[0].discard();
+            halves[1].discard();
+        }
+        check(pool.getBytesInUse() == 0, "split buffers back in the pool");
+    }
+
+    /**
+     * Holds the encode thread and checks the rows queued behind it stop the
+     * batcher from accepting data until they are encoded.
+     */
+    private static void checkEncodeBackpressure() throws Exception {
+        AzureKustoBufferPool pool = new AzureKustoBufferPool(4096, 256);
+        KustoFakeIngest ingest = new KustoFakeIngest();
+        Settings settings = new Settings() {
+            @Override
+            public int getIngestionWorkers() {
+                return 1;
+            }
+
+            @Override
+            public int getBackpressureHighMB() {
+                return 1;
+            }
+
+            @Override
+            public int getBackpressureLowMB() {
+                return 1;
+            }
+        };
+        AzureKustoBatcher batcher = new AzureKustoBatcher("backpressure", settings, pool, null, new AzureKustoSinkMetrics(), null, ingest);
+        batcher.startup();
+
+        CountDownLatch release = new CountDownLatch(1);
+        batcher.add(Collections.singletonList(new AzureKustoTagValue(new AzureKustoTag("Ignition-Test", "default", "Held"), 0.0, new Date(0), 192)),
+                new AzureKustoBatcher.RowWriter<AzureKustoTagValue>() {
+                    @Override
+                    public int partitionHash(AzureKustoTagValue row) {
+                        return 0;
+                    }
+
+                    @Override
+                    public void write(AzureKustoTagValue row, AzureKustoBatch batch, AzureKustoCompressor compressor) throws IOException {
+                        try {
+                            release.await();
+                        } catch (InterruptedException ex) {
+                            throw new IOException(ex);
+                        }
+                        AzureKustoTagValue.ROW_WRITER.write(row, batch, compressor);
+                    }
+                });
+        int queued = 0;
+        while (batcher.isAccepting() && queued < 1000000) {
+            batcher.add(createValues(queued, 1000, 0), AzureKustoTagValue.ROW_WRITER);
+            queued += 1000;
+        }
+        check(!batcher.isAccepting() && ingest.getCalls() == 0, "rows waiting to be encoded hold back data");
+
+        release.countDown();
+        int rows = queued + 1;
+        waitFor(() -> ingest.getRowCount() == rows && batcher.isAccepting() && batcher.getPendingBytes() == 0, "accepting again once encoded and ingested");
+        batcher.shutdown();
+        check(pool.getBytesInUse() == 0, "backpressure buffers back in the pool");
+    }
+
+    static List<AzureKustoTagValue> createValues(int first, int count, int poisonEvery) {
+        List<AzureKustoTagValue> values = new ArrayList<>(count);
+        for (int i = first; i < first + count; i++) {
+            boolean poison = poisonEvery > 0 && (i - first) % poisonEvery == poisonEvery / 2;
+            AzureKustoTag tag = new AzureKustoTag("Ignition-Test", "default", (poison ? KustoFakeIngest.POISON : "Site") + "/Tag" + (i % 100));
+            values.add(new AzureKustoTagValue(tag, (double) i, new Date(1000L * i), 192));
+        }
+        return values;
+    }
+
+    /**
+     * Small batches and short delays, so the test sees many batches and retries.
+     */
+    static class Settings extends AzureKustoHistoryProviderSettings {
+        @Override
+        public AzureKustoIngestionFormat getIngestionFormat() {
+            return AzureKustoIngestionFormat.CSV;
+        }
+
+        @Override
+        public int getBatchMaxRows() {
+            return 1000;
+        }
+
+        @Override
+        public int getBatchMaxSizeKB() {
+            return 16384;
+        }
+
+        @Override
+        public int getBatchMaxAgeMillis() {
+            return 200;
+        }
+
+        @Override
+        public boolean isAdaptiveBatching() {
+            return false;
+        }
+
+        @Override
+        public boolean isTagDictionary() {
+            return false;
+        }
+
+        @Override
+        public boolean isTypedColumns() {
+            return false;
+        }
+
+        @Override
+        public int getBatchTargetLatencyMillis() {
+            return 10000;
+        }
+
+        @Override
+        public int getIngestionWorkers() {
+            return 2;
+        }
+
+        @Override
+        public int getRetryInitialDelayMillis() {
+            return 50;
+        }
+
+        @Override
+        public int getRetryMaxDelayMillis() {
+            return 400;
+        }
+
+        @Override
+        public int getCircuitBreakerFailures() {
+            return 5;
+        }
+
+        @Override
+        public int getCircuitBreakerOpenMillis() {
+            return 300;
+        }
+
+        @Override
+        public int getBackpressureHighMB() {
+            return 1024;
+        }
+
+        @Override
+        public int getBackpressureLowMB() {
+            return 512;
+        }
+
+        @Override
+        public int getBackpressureHighBatches() {
+            return 1024;
+        }
+    }
+}
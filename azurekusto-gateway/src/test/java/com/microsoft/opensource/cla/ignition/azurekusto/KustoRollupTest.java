@@ -0,0 +1,47 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import static com.microsoft.opensource.cla.ignition.azurekusto.KustoChecks.check;
+
+/**
+ * Checks which rollup an aggregate query is read from for a range of block
+ * sizes and starts, and the views created for each table layout. Runs
+ * locally, no cluster needed.
+ */
+public class KustoRollupTest {
+    private static final long MINUTE = 60 * 1000L;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long DAY = 24 * HOUR;
+    private static final long ALIGNED = 1700006400000L; // Midnight UTC
+    private static final long UNALIGNED = ALIGNED + 12345;
+
+    public static void main(String[] args) {
+        check(AzureKustoRollup.select(DAY, ALIGNED, "avg") == AzureKustoRollup.DAY, "day blocks from the day rollup");
+        check(AzureKustoRollup.select(7 * DAY, ALIGNED, "max") == AzureKustoRollup.DAY, "week blocks from the day rollup");
+        check(AzureKustoRollup.select(6 * HOUR, ALIGNED, "min") == AzureKustoRollup.HOUR, "6 hour blocks from the hour rollup");
+        check(AzureKustoRollup.select(90 * MINUTE, ALIGNED, "count") == AzureKustoRollup.MINUTE, "90 minute blocks from the minute rollup");
+        check(AzureKustoRollup.select(90 * 1000L, ALIGNED, "avg") == null, "blocks of 90 seconds from the raw rows");
+        check(AzureKustoRollup.select(5000, ALIGNED, "avg") == null, "short blocks from the raw rows");
+        check(AzureKustoRollup.select(0, ALIGNED, "avg") == null, "raw query from the raw rows");
+        check(AzureKustoRollup.select(DAY, ALIGNED, "dcount") == null, "distinct count from the raw rows");
+
+        // Unaligned blocks need enough periods per block to keep the edges small
+        check(AzureKustoRollup.select(DAY, UNALIGNED, "avg") == AzureKustoRollup.MINUTE, "unaligned day blocks from the minute rollup");
+        check(AzureKustoRollup.select(60 * DAY, UNALIGNED, "avg") == AzureKustoRollup.DAY, "unaligned 60 day blocks from the day rollup");
+        check(AzureKustoRollup.select(30 * MINUTE, UNALIGNED, "avg") == null, "unaligned half hour blocks from the raw rows");
+
+        check(AzureKustoRollup.getAggregate("avg").equals("sum(total) / sum(samples)"), "average combined from sum and count");
+        check(AzureKustoRollup.getAggregate("stddev").startsWith("sqrt("), "standard deviation combined from the sum of squares");
+
+        String wide = AzureKustoRollup.HOUR.getCreateCommand("Values", AzureKustoTableLayout.DEFAULT);
+        check(wide.startsWith(".create async ifnotexists materialized-view with (backfill=true) Values_Rollup1h on table Values { Values | extend v = value_double "),
+                "hour view created from the table");
+        check(wide.endsWith(" by systemName, tagProvider, tagPath, timestamp = bin(timestamp, 1h) }"), "hour view grouped by tag and hour");
+        String typed = AzureKustoRollup.DAY.getCreateCommand("Values", AzureKustoTableLayout.NORMALIZED_TYPED);
+        check(typed.contains("extend v = coalesce(value_double, todouble(value_long), todouble(value_bool))")
+                && typed.endsWith(" by tagId, timestamp = bin(timestamp, 1d) }"), "normalized typed view");
+        for (String column : new String[]{"samples", "total", "minimum", "maximum", "(firstTime, first)", "(lastTime, last)", "sumsq", "quality"}) {
+            check(wide.contains(column + " = "), "view has " + column);
+        }
+        System.out.println("Rollup test passed");
+    }
+}
@@ -0,0 +1,125 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.univocity.parsers.csv.CsvWriter;
+import com.univocity.parsers.csv.CsvWriterSettings;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Compares the previous csv path of ingestRecords (CsvWriter, a new ObjectMapper
+ * per value and a shared SimpleDateFormat) with AzureKustoRowEncoder. Both write
+ * into a writer that discards the output so only the encoding cost is measured.
+ * <p>
+ * Run with -Drows=... -Diterations=... to change the workload.
+ */
+public class KustoRowEncoderBenchmark {
+    private static final int ROWS = Integer.getInteger("rows", 100000);
+    private static final int ITERATIONS = Integer.getInteger("iterations", 20);
+
+    public static void main(String[] args) throws Exception {
+        List<AzureKustoTagValue> records = createRecords(ROWS);
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            long legacy = time(() -> legacyEncode(records));
+            long encoder = time(() -> encode(records));
+
+            // The first half of the iterations is warm up
+            if (i >= ITERATIONS / 2) {
+                System.out.println(String.format("iteration %d: legacy %,d rows/s, encoder %,d rows/s",
+                        i, ROWS * 1000000000L / legacy, ROWS * 1000000000L / encoder));
+            }
+        }
+    }
+
+    private static List<AzureKustoTagValue> createRecords(int count) {
+        List<AzureKustoTagValue> records = new ArrayList<>(count);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            AzureKustoTag tag = new AzureKustoTag("Ignition-Gateway", "default", "Site/Area" + (i % 50) + "/Line/Tag" + (i % 1000));
+            Object value;
+            switch (i % 5) {
+                case 0:
+                    value = Math.sin(i) * 100;
+                    break;
+                case 1:
+                    value = (float) i / 3;
+                    break;
+                case 2:
+                    value = i;
+                    break;
+                case 3:
+                    value = i % 2 == 0;
+                    break;
+                default:
+                    value = "state " + (i % 7);
+            }
+            records.add(new AzureKustoTagValue(tag, value, new Date(now + i), 192));
+        }
+        return records;
+    }
+
+    private static void legacyEncode(List<AzureKustoTagValue> records) throws IOException {
+        SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSSSSSS");
+        CsvWriter csvWriter = new CsvWriter(new NullWriter(), new CsvWriterSettings());
+        for (AzureKustoTagValue record : records) {
+            Object[] recordAsObjects = new Object[8];
+            csvWriter.writeRow();
+            recordAsObjects[0] = record.getTag().getSystemName();
+            recordAsObjects[1] = record.getTag().getTagProvider();
+            recordAsObjects[2] = record.getTag().getTagPath();
+            Object value = record.getValue();
+            if (value != null) {
+                ObjectMapper objectMapper = new ObjectMapper();
+                recordAsObjects[3] = objectMapper.writeValueAsString(value);
+                if (value instanceof Double || value instanceof Float) {
+                    recordAsObjects[4] = value;
+                } else if (value instanceof Boolean || value instanceof Integer || value instanceof Long) {
+                    recordAsObjects[4] = value;
+                    recordAsObjects[5] = value;
+                }
+            }
+            recordAsObjects[6] = simpleDateFormat.format(record.getTimestamp());
+            recordAsObjects[7] = record.getQuality();
+            csvWriter.writeRow(recordAsObjects);
+        }
+        csvWriter.flush();
+    }
+
+    private static void encode(List<AzureKustoTagValue> records) throws IOException {
+        AzureKustoRowEncoder encoder = new AzureKustoRowEncoder(new NullWriter());
+        for (AzureKustoTagValue record : records) {
+            encoder.writeRow(record);
+        }
+        encoder.finish();
+    }
+
+    private static long time(Task task) throws Exception {
+        long start = System.nanoTime();
+        task.run();
+        return System.nanoTime() - start;
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    private static class NullWriter extends Writer {
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
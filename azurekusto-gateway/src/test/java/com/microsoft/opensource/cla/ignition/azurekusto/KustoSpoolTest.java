@@ -0,0 +1,274 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import com.inductiveautomation.ignition.common.sqltags.model.TagPath;
+import com.inductiveautomation.ignition.common.sqltags.model.types.DataQuality;
+import com.inductiveautomation.ignition.gateway.history.DataTransaction;
+import com.inductiveautomation.ignition.gateway.history.HistoricalData;
+import com.inductiveautomation.ignition.gateway.history.HistoricalTagValue;
+import com.microsoft.azure.kusto.data.ClientImpl;
+import com.microsoft.azure.kusto.data.ConnectionStringBuilder;
+import com.microsoft.azure.kusto.data.KustoOperationResult;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Function;
+
+import static com.microsoft.opensource.cla.ignition.azurekusto.KustoChecks.check;
+import static com.microsoft.opensource.cla.ignition.azurekusto.KustoChecks.waitFor;
+
+/**
+ * Spools batches into the fake ingest endpoint and checks every row arrives
+ * once and the files are deleted, also when the endpoint is down. Then checks
+ * the batcher logs the batches of a backlog before it spools them, without
+ * holding up the encode thread. Last, stores a backlog through the sink and
+ * checks the batcher spools it. Runs locally, no cluster needed.
+ */
+public class KustoSpoolTest {
+
+    public static void main(String[] args) throws Exception {
+        File dir = Files.createTempDirectory("azurekusto-spool").toFile();
+        KustoFakeIngest ingest = new KustoFakeIngest();
+        AzureKustoBufferPool pool = new AzureKustoBufferPool(4096, 64);
+        AzureKustoSpool spool = new AzureKustoSpool(dir, ingest);
+        for (int b = 0; b < 3; b++) {
+            AzureKustoBatch batch = createBatch(pool, b * 1000, 1000);
+            spool.add(batch);
+            batch.discard();
+            check(countFiles(dir) == 0, "spool file " + b + " deleted once ingested");
+        }
+        check(ingest.getRowCount() == 3000 && ingest.getFiles() == 3, "every row arrived in its own file");
+        check(ingest.getDuplicates() == 0, "no row arrived twice");
+
+        // While the endpoint is down the error goes to the caller and nothing is left behind
+        ingest.setDown(true);
+        AzureKustoBatch batch = createBatch(pool, 3000, 1000);
+        try {
+            spool.add(batch);
+            check(false, "spooling fails while the endpoint is down");
+        } catch (IOException ex) {
+            System.out.println("Spooling while down failed as expected: " + ex.getMessage());
+        }
+        batch.discard();
+        check(countFiles(dir) == 0, "failed files are deleted");
+        check(pool.getBytesInUse() == 0, "spooled buffers back in the pool");
+
+        // Files a crash left behind are removed on startup
+        Files.write(new File(dir, "spool-0-1.csv.gz").toPath(), new byte[]{1, 2, 3});
+        AzureKustoSpool.deleteLeftovers(dir);
+        check(countFiles(dir) == 0, "leftover files are deleted");
+
+        Files.delete(dir.toPath());
+
+        checkBatcher(pool);
+        checkSink();
+        System.out.println("Spool test passed");
+    }
+
+    private static AzureKustoBatch createBatch(AzureKustoBufferPool pool, int first, int count) throws IOException {
+        AzureKustoBatch batch = new AzureKustoBatch(pool);
+        for (int i = first; i < first + count; i++) {
+            batch.add("Ignition-Test", "default", "Spool/Tag" + (i % 10), (double) i, new Date(1000L * i), 192);
+        }
+        batch.seal();
+        return batch;
+    }
+
+    /**
+     * Holds the file handler of a batcher with a store & forward log and adds
+     * a backlog over the spool threshold, then checks the backlog is encoded
+     * and in the log while its files wait, and gets through once they are
+     * taken.
+     */
+    private static void checkBatcher(AzureKustoBufferPool pool) throws Exception {
+        File dir = Files.createTempDirectory("azurekusto-spool-batcher").toFile();
+        AzureKustoForwardLog log = new AzureKustoForwardLog(new File(dir, "log"), pool, 1024 * 1024, Long.MAX_VALUE);
+        KustoFakeIngest ingest = new KustoFakeIngest();
+        CountDownLatch release = new CountDownLatch(1);
+        SinkSettings settings = new SinkSettings(dir) {
+            @Override
+            public int getIngestionWorkers() {
+                return 1;
+            }
+        };
+        AzureKustoBatcher batcher = new AzureKustoBatcher("spool", settings, pool, log, new AzureKustoSinkMetrics(), null, ingest,
+                new File(dir, "spool"), (file, format, rowCount, rawBytes) -> {
+                    release.await();
+                    ingest.ingest(file, format, rowCount, rawBytes);
+                });
+        batcher.startup();
+
+        batcher.add(KustoRetryTest.createValues(0, 120000, 0), AzureKustoTagValue.ROW_WRITER);
+        waitFor(() -> batcher.getEncodeQueueDepth() == 0 && batcher.getPendingBatches() >= 2, "backlog encoded while its files wait");
+        check(log.getUnacknowledgedCount() == batcher.getPendingBatches(), "spooled batches in the log");
+        check(ingest.getRowCount() == 0, "nothing ingested yet");
+
+        release.countDown();
+        waitFor(() -> ingest.getRowCount() == 120000, "backlog delivered");
+        check(ingest.getFiles() >= 2 && ingest.getDuplicates() == 0, "backlog ingested from spool files once");
+        waitFor(() -> log.getUnacknowledgedCount() == 0, "spooled batches acknowledged");
+        batcher.shutdown();
+        log.close();
+        check(pool.getBytesInUse() == 0, "batcher buffers back in the pool");
+    }
+
+    /**
+     * Stores a transaction larger than the spool threshold and a small one
+     * through the sink, and checks the large one is ingested from spool files
+     * through queued ingestion and the small one streamed. The backlog also
+     * gets through when the files fail to ingest at first.
+     */
+    private static void checkSink() throws Exception {
+        File dir = Files.createTempDirectory("azurekusto-sink").toFile();
+        KustoFakeIngest streaming = new KustoFakeIngest();
+        KustoFakeIngest queued = new KustoFakeIngest();
+        ClientImpl client = new ClientImpl(ConnectionStringBuilder.createWithAadApplicationCredentials("https://localhost", "id", "key", "tenant")) {
+            @Override
+            public KustoOperationResult execute(String database, String command) {
+                return null; // Tables and mappings exist
+            }
+        };
+        AzureKustoClients clients = new AzureKustoClients("sink", "db", 0, client, streaming.asClient(), queued.asClient());
+        AzureKustoHistorySink sink = new AzureKustoHistorySink("sink", null, new SinkSettings(dir), new AzureKustoTagCache(1024), clients);
+        sink.startup();
+        File spoolDir = new File(dir, "sink-spool");
+
+        sink.storeData(transaction(0, 50000));
+        sink.storeData(transaction(50000, 100));
+        waitFor(() -> streaming.getRowCount() + queued.getRowCount() == 50100, "stored rows delivered");
+        System.out.println("Sink: " + queued.getRowCount() + " row(s) in " + queued.getFiles() + " spool file(s), " + streaming.getRowCount() + " row(s) streamed");
+        check(queued.getFiles() >= 2 && queued.getRowCount() >= 40000, "backlog ingested from spool files");
+        check(streaming.getRowCount() > 0 && streaming.getFiles() == 0, "small rows streamed");
+        waitFor(() -> countFiles(spoolDir) == 0, "sink spool files deleted");
+
+        // Spool files that fail are retried from the upload threads
+        queued.setDown(true);
+        sink.storeData(transaction(100000, 50000));
+        waitFor(() -> queued.getFailures() > 0, "spool files failing");
+        queued.setDown(false);
+        waitFor(() -> streaming.getRowCount() + queued.getRowCount() == 100100, "backlog delivered after the failures");
+        check(streaming.getDuplicates() + queued.getDuplicates() == 0, "no row ingested twice");
+        waitFor(() -> countFiles(spoolDir) == 0, "failed spool files deleted");
+
+        sink.shutdown();
+        clients.shutdown();
+    }
+
+    /**
+     * A transaction of single tag values, the way Ignition forwards a backlog.
+     */
+    private static DataTransaction transaction(int first, int count) {
+        List<HistoricalData> values = new ArrayList<>(count);
+        for (int i = first; i < first + count; i++) {
+            String path = "Sink/Area" + (i % 10) + "/Tag" + (i % 1000);
+            TagPath source = proxy(TagPath.class, method -> {
+                switch (method) {
+                    case "getSystem":
+                        return "Ignition-Test";
+                    case "getSource":
+                        return "default";
+                    case "hashCode":
+                        return path.hashCode();
+                    default:
+                        return path;
+                }
+            });
+            Date timestamp = new Date(1000L * i);
+            double value = i;
+            values.add(proxy(HistoricalTagValue.class, method -> {
+                switch (method) {
+                    case "getSource":
+                        return source;
+                    case "getValue":
+                        return value;
+                    case "getQuality":
+                        return DataQuality.GOOD_DATA;
+                    case "getTimestamp":
+                        return timestamp;
+                    default:
+                        return null;
+                }
+            }));
+        }
+        return proxy(DataTransaction.class, method -> method.equals("getData") ? values : null);
+    }
+
+    /**
+     * An implementation of an Ignition interface that answers its calls by method name.
+     */
+    private static <T> T proxy(Class<T> type, Function<String, Object> answer) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+                (self, method, args) -> method.getName().equals("equals") ? self == args[0] : answer.apply(method.getName())));
+    }
+
+    private static int countFiles(File dir) {
+        File[] files = dir.listFiles();
+        return files == null ? 0 : files.length;
+    }
+
+    /**
+     * A sink on local directories that spools anything above a megabyte.
+     */
+    private static class SinkSettings extends KustoRetryTest.Settings {
+        private final File dir;
+
+        SinkSettings(File dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        public String getDatabaseName() {
+            return "db";
+        }
+
+        @Override
+        public String getTableName() {
+            return "Tags";
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return true;
+        }
+
+        @Override
+        public int getStreamingMaxSizeKB() {
+            return 4096;
+        }
+
+        @Override
+        public boolean isStoreAndForward() {
+            return false;
+        }
+
+        @Override
+        public String getStoreAndForwardPath() {
+            return dir.getPath();
+        }
+
+        @Override
+        public int getQuarantineMaxMB() {
+            return 16;
+        }
+
+        @Override
+        public boolean isRollups() {
+            return false;
+        }
+
+        @Override
+        public int getSpoolThresholdMB() {
+            return 1;
+        }
+
+        @Override
+        public int getSpoolFileMaxMB() {
+            return 4;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import com.microsoft.azure.kusto.ingest.exceptions.IngestionServiceException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.microsoft.opensource.cla.ignition.azurekusto.KustoChecks.check;
+
+/**
+ * Writes normalized batches in every format and checks the rows carry the tag
+ * id instead of the names, then runs the tag dictionary through a failed and a
+ * successful flush, a restart and a cache file cut off by a crash. Runs
+ * locally, no cluster needed.
+ */
+public class KustoTagDictionaryTest {
+    private static final int TAGS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        checkNormalizedBatches();
+        checkForwardLog();
+        checkDictionary();
+        System.out.println("Tag dictionary test passed");
+    }
+
+    /**
+     * The same rows as normalized and as denormalized batches: the normalized
+     * rows are smaller, don't contain the tag paths and can still be split.
+     */
+    private static void checkNormalizedBatches() throws Exception {
+        AzureKustoBufferPool pool = new AzureKustoBufferPool(4096, 64);
+        AzureKustoTagCache tagCache = new AzureKustoTagCache(TAGS);
+        for (AzureKustoIngestionFormat format : AzureKustoIngestionFormat.values()) {
+            AzureKustoBatch normalized = new AzureKustoBatch(pool, format, AzureKustoTableLayout.NORMALIZED);
+            AzureKustoBatch wide = new AzureKustoBatch(pool, format, AzureKustoTableLayout.DEFAULT);
+            for (int i = 0; i < 5000; i++) {
+                AzureKustoTag tag = tagCache.intern("Ignition-Test", "default", "Site/Area" + (i % 10) + "/Line" + (i % 7) + "/Motor" + (i % 100) + "/Temperature");
+                Object value = i % 3 == 0 ? (Object) (long) i : (Object) (i * 0.5);
+                normalized.add(tag, value, new Date(1000L * i), 192);
+                wide.add(tag, value, new Date(1000L * i), 192);
+            }
+            normalized.seal();
+            wide.seal();
+
+            List<byte[]> rows = format.readRows(normalized.getPayload().newInputStream());
+            check(rows.size() == 5000, format + " normalized rows read back");
+            String first = new String(rows.get(0), StandardCharsets.ISO_8859_1);
+            check(!first.contains("Motor") && !first.contains("Ignition-Test"), format + " normalized row has no tag names");
+            if (format != AzureKustoIngestionFormat.AVRO) {
+                long id = AzureKustoTag.longHash("Ignition-Test", "default", "Site/Area0/Line0/Motor0/Temperature");
+                check(first.contains(Long.toString(id)), format + " normalized row has the tag id");
+            }
+            System.out.println(format + ": " + normalized.getEstimatedBytes() / 1024 + " KB raw, " + normalized.getPayload().size() / 1024
+                    + " KB compressed normalized, " + wide.getEstimatedBytes() / 1024 + " KB raw, " + wide.getPayload().size() / 1024 + " KB compressed with names");
+            check(normalized.getEstimatedBytes() < wide.getEstimatedBytes(), format + " normalized rows smaller");
+
+            AzureKustoBatch[] halves = normalized.split(pool);
+            List<byte[]> split = new ArrayList<>(format.readRows(halves[0].getPayload().newInputStream()));
+            split.addAll(format.readRows(halves[1].getPayload().newInputStream()));
+            boolean same = split.size() == rows.size() && halves[0].getLayout().isNormalized() && halves[1].getLayout().isNormalized();
+            for (int i = 0; same && i < rows.size(); i++) {
+                same = Arrays.equals(rows.get(i), split.get(i));
+            }
+            check(same, format + " normalized halves hold the same rows");
+
+            normalized.discard();
+            wide.discard();
+            halves[0].discard();
+            halves[1].discard();
+        }
+
+        // The Avro container has one schema, a row of the other one is a bug
+        boolean rejected = false;
+        try {
+            new AzureKustoAvroEncoder(new ByteArrayOutputStream(), AzureKustoTableLayout.NORMALIZED).writeRow("a", "b", "c", 1.0, new Date(), 192);
+        } catch (IllegalStateException ex) {
+            rejected = true;
+        }
+        check(rejected, "denormalized row rejected by a normalized Avro container");
+        check(pool.getBytesInUse() == 0, "batch buffers back in the pool");
+    }
+
+    /**
+     * A normalized batch replayed from the store & forward log is still normalized.
+     */
+    private static void checkForwardLog() throws Exception {
+        File dir = Files.createTempDirectory("azurekusto-tags-log").toFile();
+        AzureKustoBufferPool pool = new AzureKustoBufferPool(4096, 64);
+        AzureKustoForwardLog log = new AzureKustoForwardLog(dir, pool, AzureKustoForwardLog.DEFAULT_SEGMENT_SIZE, Long.MAX_VALUE);
+        AzureKustoBatch batch = new AzureKustoBatch(pool, AzureKustoIngestionFormat.AVRO, AzureKustoTableLayout.NORMALIZED);
+        batch.add(new AzureKustoTag("Ignition-Test", "default", "Log/Tag"), 1.5, new Date(), 192);
+        batch.seal();
+        log.append(batch);
+        batch.discard();
+        log.close();
+
+        log = new AzureKustoForwardLog(dir, pool, AzureKustoForwardLog.DEFAULT_SEGMENT_SIZE, Long.MAX_VALUE);
+        List<AzureKustoForwardLog.Record> records = log.pollPending(10);
+        check(records.size() == 1, "normalized batch replayed");
+        AzureKustoBatch replayed = log.read(records.get(0));
+        check(replayed.getLayout().isNormalized() && AzureKustoIngestionFormat.AVRO.readRows(replayed.getPayload().newInputStream()).size() == 1, "replayed batch still normalized");
+        replayed.discard();
+        log.close();
+        deleteRecursively(dir);
+    }
+
+    private static void checkDictionary() throws Exception {
+        File dir = Files.createTempDirectory("azurekusto-tags").toFile();
+        AzureKustoBufferPool pool = new AzureKustoBufferPool(4096, 64);
+        AzureKustoTagDictionary dictionary = new AzureKustoTagDictionary(dir);
+
+        // Two writers registering the same tags, each tag is added once
+        Thread[] writers = new Thread[2];
+        int[] added = new int[writers.length];
+        for (int w = 0; w < writers.length; w++) {
+            int writer = w;
+            writers[w] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < TAGS; i++) {
+                        if (dictionary.add(tag(i))) {
+                            added[writer]++;
+                        }
+                    }
+                } catch (IOException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            });
+            writers[w].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        check(added[0] + added[1] == TAGS && dictionary.size() == TAGS && dictionary.getPendingCount() == TAGS, "every tag added once");
+        check(!dictionary.add(new AzureKustoTag("IGNITION-TEST", "Default", "site/tag,\"0\"")), "tags compared without regard to case");
+        check(dictionary.getTag(tag(7).getKey()).equals(tag(7)), "tag found by its id");
+
+        // A failed flush keeps the tags queued
+        boolean failed = false;
+        try {
+            dictionary.flush(pool, batch -> {
+                throw new IngestionServiceException("Fake dictionary table is down");
+            });
+        } catch (IngestionServiceException ex) {
+            failed = true;
+        }
+        check(failed && dictionary.getPendingCount() == TAGS, "tags still queued after a failed flush");
+
+        List<String> rows = new ArrayList<>();
+        dictionary.flush(pool, batch -> {
+            try {
+                for (byte[] row : AzureKustoIngestionFormat.CSV.readRows(batch.getPayload().newInputStream())) {
+                    rows.add(new String(row, StandardCharsets.UTF_8));
+                }
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+        check(rows.size() == TAGS && dictionary.getPendingCount() == 0, "flushed tags ingested");
+        check(rows.contains(tag(0).getKey() + ",Ignition-Test,default,\"Site/Tag,\"\"0\"\"\"\n"), "dictionary row is id and names in csv");
+        dictionary.flush(pool, batch -> {
+            throw new IllegalStateException("Nothing to flush");
+        });
+
+        // Tags added after the last flush are queued again after a restart
+        for (int i = TAGS; i < TAGS + 10; i++) {
+            dictionary.add(tag(i));
+        }
+        dictionary.close();
+        Set<Long> stored = new HashSet<>();
+        for (int i = 0; i < TAGS; i++) {
+            stored.add(tag(i).getKey());
+        }
+        AzureKustoTagDictionary reopened = new AzureKustoTagDictionary(dir);
+        check(reopened.size() == TAGS + 10 && reopened.getPendingCount() == 0, "cached tags read back");
+        reopened.reconcile(stored);
+        check(reopened.getPendingCount() == 10, "tags missing from the dictionary table queued");
+        check(!reopened.add(tag(3)), "cached tag not added again");
+        reopened.close();
+
+        // A record cut off by a crash is dropped, the rest survives
+        File file = new File(dir, "tags.dat");
+        long length = file.length();
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[]{0, 0, 0, 0, 0, 0, 0, 1, 0, 9, 'I'});
+        }
+        reopened = new AzureKustoTagDictionary(dir);
+        check(reopened.size() == TAGS + 10 && file.length() == length, "incomplete record truncated");
+        reopened.reconcile(null);
+        check(reopened.getPendingCount() == TAGS + 10, "every cached tag queued when the table can't be read");
+        reopened.close();
+
+        check(pool.getBytesInUse() == 0, "dictionary buffers back in the pool");
+        deleteRecursively(dir);
+    }
+
+    private static AzureKustoTag tag(int i) {
+        return new AzureKustoTag("Ignition-Test", "default", "Site/Tag,\"" + i + "\"");
+    }
+
+    private static void deleteRecursively(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                Files.delete(f.toPath());
+            }
+        }
+        Files.delete(dir.toPath());
+    }
+}
@@ -0,0 +1,128 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+
+/**
+ * Compares looking up tags in a hash map the way the query executor did before
+ * (a new tag per result row, hashed through toLowerCase) with interning the
+ * names through AzureKustoTagCache first. The names looked up are copies, like
+ * the strings of a result set, so equality is checked character by character.
+ * Prints the time and the bytes allocated per lookup.
+ * <p>
+ * Run with -Dtags=... -Dcache=... -Diterations=... to change the workload.
+ */
+public class KustoTagLookupBenchmark {
+    private static final int TAGS = Integer.getInteger("tags", 100000);
+    private static final int ITERATIONS = Integer.getInteger("iterations", 20);
+    private static final int CACHE_SIZE = Integer.getInteger("cache", 131072); // The default of the TagCacheSize setting
+
+    public static void main(String[] args) {
+        List<String[]> names = new ArrayList<>(TAGS);
+        for (int i = 0; i < TAGS; i++) {
+            names.add(new String[]{"Ignition-Gateway" + (i % 3), "default", "Site" + (i % 4) + "/Area" + (i % 50) + "/Machine" + (i % 500) + "/Tag" + i});
+        }
+
+        AzureKustoTagCache cache = new AzureKustoTagCache(CACHE_SIZE);
+        Map<LegacyTag, Integer> legacyMap = new HashMap<>();
+        Map<AzureKustoTag, Integer> internedMap = new HashMap<>();
+        for (int i = 0; i < TAGS; i++) {
+            String[] n = names.get(i);
+            legacyMap.put(new LegacyTag(n[0], n[1], n[2]), i);
+            internedMap.put(cache.intern(n[0], n[1], n[2]), i);
+        }
+
+        // Look the tags up in another order and case, through copies of the names
+        List<String[]> lookups = new ArrayList<>(TAGS);
+        for (String[] n : names) {
+            lookups.add(new String[]{new String(n[0]), n[1].toUpperCase(), new String(n[2])});
+        }
+        Collections.shuffle(lookups, new Random(42));
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            long legacyBytes = allocatedBytes();
+            long legacy = time(() -> legacyLookup(legacyMap, lookups));
+            legacyBytes = allocatedBytes() - legacyBytes;
+
+            long internedBytes = allocatedBytes();
+            long interned = time(() -> internedLookup(cache, internedMap, lookups));
+            internedBytes = allocatedBytes() - internedBytes;
+
+            // The first half of the iterations is warm up
+            if (i >= ITERATIONS / 2) {
+                System.out.println(String.format("iteration %d: legacy %d ns/lookup %d bytes/lookup, interned %d ns/lookup %d bytes/lookup",
+                        i, legacy / TAGS, legacyBytes / TAGS, interned / TAGS, internedBytes / TAGS));
+            }
+        }
+        System.out.println(String.format("cache capacity %d, hits %d, misses %d", cache.getCapacity(), cache.getHits(), cache.getMisses()));
+    }
+
+    private static void legacyLookup(Map<LegacyTag, Integer> map, List<String[]> lookups) {
+        long sum = 0;
+        for (String[] n : lookups) {
+            sum += map.get(new LegacyTag(n[0], n[1], n[2]));
+        }
+        check(sum);
+    }
+
+    private static void internedLookup(AzureKustoTagCache cache, Map<AzureKustoTag, Integer> map, List<String[]> lookups) {
+        long sum = 0;
+        for (String[] n : lookups) {
+            sum += map.get(cache.intern(n[0], n[1], n[2]));
+        }
+        check(sum);
+    }
+
+    private static void check(long sum) {
+        if (sum != (long) TAGS * (TAGS - 1) / 2) {
+            throw new IllegalStateException("Lookups returned the wrong tags");
+        }
+    }
+
+    private static long time(Runnable run) {
+        long start = System.nanoTime();
+        run.run();
+        return System.nanoTime() - start;
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * The tag identity as it was before interning: mutable, hashed through
+     * toLowerCase on every call.
+     */
+    private static class LegacyTag {
+        private final String systemName;
+        private final String tagProvider;
+        private final String tagPath;
+
+        LegacyTag(String systemName, String tagProvider, String tagPath) {
+            this.systemName = systemName;
+            this.tagProvider = tagProvider;
+            this.tagPath = tagPath;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            LegacyTag that = (LegacyTag) o;
+            return systemName.equalsIgnoreCase(that.systemName) &&
+                    tagProvider.equalsIgnoreCase(that.tagProvider) &&
+                    tagPath.equalsIgnoreCase(that.tagPath);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(systemName.toLowerCase(), tagProvider.toLowerCase(), tagPath.toLowerCase());
+        }
+    }
+}
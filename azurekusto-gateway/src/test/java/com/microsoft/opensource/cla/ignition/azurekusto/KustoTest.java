@@ -55,11 +55,12 @@ public class KustoTest{
         settings.setString(AzureKustoHistoryProviderSettings.ApplicationKey, appKey);
         settings.setString(AzureKustoHistoryProviderSettings.AADTenantId, appTenant);
         settings.setString(AzureKustoHistoryProviderSettings.DatabaseName, databaseName);
+        AzureKustoTagCache tagCache = new AzureKustoTagCache(settings.getTagCacheSize());
 
         //
         // Test sink
         //
-        AzureKustoHistorySink kusto = new AzureKustoHistorySink("kusto", null, settings);
+        AzureKustoHistorySink kusto = new AzureKustoHistorySink("kusto", null, settings, tagCache);
         kusto.startup();
         ArrayList<AzureKustoTagValue> recs = new ArrayList<>();
         AzureKustoTag tag = new AzureKustoTag("kustoIgnitoin", "ohad and uri","toKusto");
@@ -69,8 +70,6 @@ public class KustoTest{
         }, new Date(), 1000000);
         recs.add(tagValue);
 
-        //kusto.ingestRecords(recs);
-
 
         QualifiedPath.Builder builder = new QualifiedPath.Builder().set(WellKnownPathTypes.HistoryProvider, "ADX");
 
@@ -133,7 +132,7 @@ public class KustoTest{
         tagDefs.add(c0);
         tagDefs.add(c1);
 
-        AzureKustoQueryExecutor kustoExecutor = new AzureKustoQueryExecutor(null, settings,
+        AzureKustoQueryExecutor kustoExecutor = new AzureKustoQueryExecutor(null, settings, tagCache,
                 tagDefs,
                 controller);
 
@@ -0,0 +1,105 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+import java.util.Random;
+
+/**
+ * Checks AzureKustoTimestampCodec against java.time, then compares it with
+ * the previous ways of writing timestamps: a new SimpleDateFormat per literal
+ * and a per-thread SimpleDateFormat that reuses the last value. The timestamps
+ * are a few hundred rows per second, like a scan class of many tags.
+ * <p>
+ * Run with -Drows=... -Diterations=... to change the workload.
+ */
+public class KustoTimestampBenchmark {
+    private static final int ROWS = Integer.getInteger("rows", 1000000);
+    private static final int ITERATIONS = Integer.getInteger("iterations", 10);
+    private static final DateTimeFormatter EXPECTED = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSSSSS'Z'").withZone(ZoneOffset.UTC);
+
+    public static void main(String[] args) {
+        verify();
+
+        long[] timestamps = new long[ROWS];
+        long time = System.currentTimeMillis();
+        Random random = new Random(42);
+        for (int i = 0; i < ROWS; i++) {
+            time += random.nextInt(5);
+            timestamps[i] = time;
+        }
+
+        StringBuilder sb = new StringBuilder(64);
+        for (int i = 0; i < ITERATIONS; i++) {
+            long perCall = time(() -> {
+                for (int r = 0; r < ROWS / 10; r++) {
+                    sb.setLength(0);
+                    sb.append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSSSSSS").format(new Date(timestamps[r])));
+                }
+            }) * 10;
+
+            long cached = time(() -> {
+                SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSSSSSS");
+                long last = Long.MIN_VALUE;
+                String formatted = null;
+                for (long timestamp : timestamps) {
+                    if (timestamp != last) {
+                        formatted = format.format(new Date(timestamp));
+                        last = timestamp;
+                    }
+                    sb.setLength(0);
+                    sb.append(formatted);
+                }
+            });
+
+            long codec = time(() -> {
+                AzureKustoTimestampCodec c = new AzureKustoTimestampCodec();
+                for (long timestamp : timestamps) {
+                    sb.setLength(0);
+                    c.append(sb, timestamp);
+                }
+            });
+
+            // The first half of the iterations is warm up
+            if (i >= ITERATIONS / 2) {
+                System.out.println(String.format("iteration %d: SimpleDateFormat per call %d ns/row, cached SimpleDateFormat %d ns/row, codec %d ns/row",
+                        i, perCall / ROWS, cached / ROWS, codec / ROWS));
+            }
+        }
+    }
+
+    private static void verify() {
+        AzureKustoTimestampCodec codec = new AzureKustoTimestampCodec();
+        Random random = new Random(7);
+        StringBuilder sb = new StringBuilder();
+        long time = -100000000000L;
+        for (int i = 0; i < 100000; i++) {
+            time += random.nextInt(i % 100 == 0 ? Integer.MAX_VALUE : 2000);
+            sb.setLength(0);
+            codec.append(sb, time);
+            check(sb.toString(), EXPECTED.format(Instant.ofEpochMilli(time)));
+        }
+
+        Timestamp timestamp = new Timestamp(1580515199123L);
+        timestamp.setNanos(123456789);
+        check(AzureKustoTimestampCodec.format(timestamp), "2020-01-31T23:59:59.1234567Z");
+        check(AzureKustoTimestampCodec.toLiteral(new Date(0)), "datetime(1970-01-01T00:00:00.0000000Z)");
+        check(AzureKustoTimestampCodec.format(new Date(-1)), "1969-12-31T23:59:59.9990000Z");
+        System.out.println("Timestamp codec matches java.time");
+    }
+
+    private static void check(String actual, String expected) {
+        if (!actual.equals(expected)) {
+            throw new IllegalStateException("Expected " + expected + " but got " + actual);
+        }
+    }
+
+    private static long time(Runnable run) {
+        long start = System.nanoTime();
+        run.run();
+        return System.nanoTime() - start;
+    }
+}
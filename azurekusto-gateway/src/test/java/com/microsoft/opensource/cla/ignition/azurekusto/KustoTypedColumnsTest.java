@@ -0,0 +1,157 @@
+package com.microsoft.opensource.cla.ignition.azurekusto;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static com.microsoft.opensource.cla.ignition.azurekusto.KustoChecks.check;
+
+/**
+ * Writes the same values for the default and the typed table in every format,
+ * checks each value lands in the column of its type and the typed rows are
+ * smaller, and that typed batches keep their layout through a split, the store
+ * & forward log and the quarantine. Runs locally, no cluster needed.
+ */
+public class KustoTypedColumnsTest {
+    private static final Object[] VALUES = {1.5, 42, true, "comma, \"quote\"\nand line break", null, -7L, Float.NaN, 0.25f};
+
+    public static void main(String[] args) throws Exception {
+        checkSchema();
+        checkRows();
+        checkLayoutKept();
+        System.out.println("Typed columns test passed");
+    }
+
+    private static void checkSchema() {
+        check(AzureKustoTableSchema.getCreateTableCommand("T", AzureKustoTableLayout.TYPED).equals(".create table T (systemName:string, tagProvider:string, tagPath:string, "
+                + "value_double:real, value_long:long, value_bool:bool, value_string:string, value_dynamic:dynamic, timestamp:datetime, quality:int)"), "typed table columns");
+        check(AzureKustoTableSchema.getCreateTableCommand("T", AzureKustoTableLayout.NORMALIZED_TYPED).startsWith(".create table T (tagId:long, value_double:real, value_long:long"),
+                "normalized typed table columns");
+        check(AzureKustoTableSchema.getAvroSchema(AzureKustoTableLayout.TYPED).contains("{\"name\":\"value_bool\",\"type\":[\"null\",\"boolean\"]}"), "typed Avro schema");
+        check(AzureKustoTableSchema.getCreateMappingCommand("T", AzureKustoIngestionFormat.MULTIJSON, AzureKustoTableLayout.TYPED).contains("{\"column\":\"value_string\",\"Properties\":{\"Path\":\"$.value_string\"}}"),
+                "typed json mapping");
+        check(AzureKustoTableSchema.getNumericValue(AzureKustoTableLayout.DEFAULT).equals("value_double")
+                && AzureKustoTableSchema.getNumericValue(AzureKustoTableLayout.TYPED).equals("coalesce(value_double, todouble(value_long), todouble(value_bool))"), "numeric value expression");
+        for (boolean normalized : new boolean[]{false, true}) {
+            for (boolean typed : new boolean[]{false, true}) {
+                AzureKustoTableLayout layout = AzureKustoTableLayout.of(normalized, typed);
+                check(layout.isNormalized() == normalized && layout.isTyped() == typed, layout + " layout");
+            }
+        }
+    }
+
+    /**
+     * The text formats are checked row by row, Avro by reading it back.
+     */
+    private static void checkRows() throws Exception {
+        AzureKustoBufferPool pool = new AzureKustoBufferPool(4096, 64);
+        List<String> csv = rows(pool, AzureKustoIngestionFormat.CSV, AzureKustoTableLayout.TYPED);
+        check(csv.get(0).equals("S,P,Tag0,1.5,,,,,,192\n"), "double in value_double");
+        check(csv.get(1).equals("S,P,Tag1,,42,,,,,192\n"), "integer in value_long");
+        check(csv.get(2).equals("S,P,Tag2,,,true,,,,192\n"), "boolean in value_bool");
+        check(csv.get(3).equals("S,P,Tag3,,,,\"comma, \"\"quote\"\"\nand line break\",,,192\n"), "string in value_string without json quotes");
+        check(csv.get(4).equals("S,P,Tag4,,,,,,,192\n"), "null in no column");
+        check(csv.get(6).equals("S,P,Tag6,NaN,,,,,,192\n") && csv.get(7).equals("S,P,Tag7,0.25,,,,,,192\n"), "floats in value_double");
+
+        List<String> json = rows(pool, AzureKustoIngestionFormat.MULTIJSON, AzureKustoTableLayout.NORMALIZED_TYPED);
+        long id = AzureKustoTag.longHash("S", "P", "Tag1");
+        check(json.get(1).equals("{\"tagId\":" + id + ",\"value_long\":42,\"quality\":192}\n"), "json row has only the typed column");
+        check(json.get(3).contains("\"value_string\":\"comma, \\\"quote\\\"\\nand line break\""), "json string value");
+        check(json.get(4).equals("{\"tagId\":" + AzureKustoTag.longHash("S", "P", "Tag4") + ",\"quality\":192}\n"), "json null value left out");
+
+        for (AzureKustoIngestionFormat format : AzureKustoIngestionFormat.values()) {
+            for (boolean normalized : new boolean[]{false, true}) {
+                AzureKustoBatch plain = batch(pool, format, AzureKustoTableLayout.of(normalized, false), 5000);
+                AzureKustoBatch typed = batch(pool, format, AzureKustoTableLayout.of(normalized, true), 5000);
+                check(format.readRows(typed.getPayload().newInputStream()).size() == 5000, format + " " + typed.getLayout() + " rows read back");
+                System.out.println(format + " " + typed.getLayout() + ": " + typed.getEstimatedBytes() / 1024 + " KB raw, " + typed.getPayload().size() / 1024
+                        + " KB compressed, " + plain.getLayout() + ": " + plain.getEstimatedBytes() / 1024 + " KB raw, " + plain.getPayload().size() / 1024 + " KB compressed");
+                check(typed.getEstimatedBytes() < plain.getEstimatedBytes(), format + " " + typed.getLayout() + " rows smaller");
+                plain.discard();
+                typed.discard();
+            }
+        }
+        check(pool.getBytesInUse() == 0, "row buffers back in the pool");
+    }
+
+    private static void checkLayoutKept() throws Exception {
+        AzureKustoBufferPool pool = new AzureKustoBufferPool(4096, 64);
+        for (AzureKustoIngestionFormat format : AzureKustoIngestionFormat.values()) {
+            AzureKustoBatch batch = batch(pool, format, AzureKustoTableLayout.TYPED, 1001);
+            List<byte[]> rows = format.readRows(batch.getPayload().newInputStream());
+            AzureKustoBatch[] halves = batch.split(pool);
+            List<byte[]> split = new ArrayList<>(format.readRows(halves[0].getPayload().newInputStream()));
+            split.addAll(format.readRows(halves[1].getPayload().newInputStream()));
+            boolean same = split.size() == rows.size() && halves[0].getLayout() == AzureKustoTableLayout.TYPED;
+            for (int i = 0; same && i < rows.size(); i++) {
+                same = Arrays.equals(rows.get(i), split.get(i));
+            }
+            check(same, format + " typed halves hold the same rows");
+            batch.discard();
+            halves[0].discard();
+            halves[1].discard();
+        }
+
+        File dir = Files.createTempDirectory("azurekusto-typed").toFile();
+        File logDir = new File(dir, "log");
+        AzureKustoForwardLog log = new AzureKustoForwardLog(logDir, pool, AzureKustoForwardLog.DEFAULT_SEGMENT_SIZE, Long.MAX_VALUE);
+        AzureKustoBatch batch = batch(pool, AzureKustoIngestionFormat.AVRO, AzureKustoTableLayout.NORMALIZED_TYPED, 10);
+        log.append(batch);
+        log.close();
+        log = new AzureKustoForwardLog(logDir, pool, AzureKustoForwardLog.DEFAULT_SEGMENT_SIZE, Long.MAX_VALUE);
+        AzureKustoBatch replayed = log.read(log.pollPending(10).get(0));
+        check(replayed.getLayout() == AzureKustoTableLayout.NORMALIZED_TYPED && replayed.getRowCount() == 10, "layout kept in the store and forward log");
+        replayed.discard();
+        log.close();
+
+        File quarantineDir = new File(dir, "quarantine");
+        AzureKustoQuarantine quarantine = new AzureKustoQuarantine(quarantineDir, pool, Long.MAX_VALUE);
+        quarantine.add(batch, "test");
+        batch.discard();
+        AzureKustoQuarantine reopened = new AzureKustoQuarantine(quarantineDir, pool, Long.MAX_VALUE);
+        AzureKustoBatch resent = reopened.read(reopened.getEntries().get(0).getId());
+        check(resent.getLayout() == AzureKustoTableLayout.NORMALIZED_TYPED, "layout kept in the quarantine");
+        resent.discard();
+        reopened.delete(reopened.getEntries().get(0).getId());
+
+        check(pool.getBytesInUse() == 0, "layout buffers back in the pool");
+        deleteRecursively(dir);
+    }
+
+    private static List<String> rows(AzureKustoBufferPool pool, AzureKustoIngestionFormat format, AzureKustoTableLayout layout) throws Exception {
+        AzureKustoBatch batch = new AzureKustoBatch(pool, format, layout);
+        for (int i = 0; i < VALUES.length; i++) {
+            batch.add("S", "P", "Tag" + i, VALUES[i], null, 192);
+        }
+        batch.seal();
+        List<String> rows = new ArrayList<>();
+        for (byte[] row : format.readRows(batch.getPayload().newInputStream())) {
+            rows.add(new String(row, StandardCharsets.UTF_8));
+        }
+        batch.discard();
+        return rows;
+    }
+
+    private static AzureKustoBatch batch(AzureKustoBufferPool pool, AzureKustoIngestionFormat format, AzureKustoTableLayout layout, int rows) throws Exception {
+        AzureKustoBatch batch = new AzureKustoBatch(pool, format, layout);
+        for (int i = 0; i < rows; i++) {
+            batch.add("Ignition-Test", "default", "Site/Line" + (i % 7) + "/Motor" + (i % 100) + "/Speed", VALUES[i % VALUES.length], new Date(1000L * i), 192);
+        }
+        batch.seal();
+        return batch;
+    }
+
+    private static void deleteRecursively(File file) throws Exception {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                deleteRecursively(f);
+            }
+        }
+        Files.delete(file.toPath());
+    }
+}